@@ -3,19 +3,23 @@ package simpledb;
 import java.util.*;
 
 /**
- * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
- * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * The Aggregation operator that computes aggregates (e.g., sum, avg, max,
+ * min). Any number of aggregates, each over a single column, are computed in
+ * one scan of the child, grouped by any number of columns.
+ * <p>
+ * Over a {@link ParallelSeqScan} the aggregation runs in two phases: each
+ * worker of the scan aggregates the rows it scans into a partial aggregator
+ * of its own, and the partial groups are then merged.
  */
 public class Aggregate extends Operator {
 
     private static final long serialVersionUID = 1L;
     private DbIterator m_tupleIterator;
-    private int m_aggregateFieldIndex;
-    private int m_groupByFieldIndex;
-    private Aggregator.Op m_op;
+    private int[] m_aggregateFieldIndexes;
+    private int[] m_groupByFieldIndexes;
+    private Aggregator.Op[] m_ops;
     
-    private Aggregator m_aggregator;
+    private HashAggregator m_aggregator;
     private DbIterator m_aggregateIterator;
     /**
      * Constructor.
@@ -36,32 +40,41 @@ public class Aggregate extends Operator {
      *            The aggregation operator to use
      */
     public Aggregate(DbIterator child, int afield, int gfield, Aggregator.Op aop) {
-	// some code goes here
+	this(child, new int[] {afield}, new Aggregator.Op[] {aop},
+		IntegerAggregator.groupFields(gfield));
+    }
+
+    /**
+     * Constructor for several aggregates over a composite group key.
+     * 
+     * @param child
+     *            The DbIterator that is feeding us tuples.
+     * @param afields
+     *            The column of each aggregate.
+     * @param aops
+     *            The aggregation operator of each aggregate
+     * @param gfields
+     *            The columns over which we are grouping the result, none if
+     *            there is no grouping
+     */
+    public Aggregate(DbIterator child, int[] afields, Aggregator.Op[] aops,
+	    int[] gfields) {
+	this(child, afields, aops, gfields, new HashAggregator(
+		child.getTupleDesc(), gfields, afields, aops));
+    }
+
+    /**
+     * Constructor for a subclass that brings the aggregator of these
+     * aggregates, e.g. set up with a memory budget of its own.
+     */
+    protected Aggregate(DbIterator child, int[] afields, Aggregator.Op[] aops,
+	    int[] gfields, HashAggregator aggregator) {
     	m_tupleIterator = child;
-    	m_aggregateFieldIndex = afield;
-    	m_groupByFieldIndex = gfield;
-    	m_op = aop;
+    	m_aggregateFieldIndexes = afields.clone();
+    	m_groupByFieldIndexes = gfields.clone();
+    	m_ops = aops.clone();
     	m_aggregateIterator = null;
-    	
-    	Type groupByType;
-    	
-    	if (m_groupByFieldIndex == Aggregator.NO_GROUPING)
-    		groupByType = null;
-    	else 
-    		groupByType = m_tupleIterator.getTupleDesc().getFieldType(m_groupByFieldIndex);
-    	
-    	Type aggregateType = m_tupleIterator.getTupleDesc().getFieldType(m_aggregateFieldIndex);
-    	switch(aggregateType)
-    	{
-    		case INT_TYPE: 
-    			m_aggregator = new IntegerAggregator(m_groupByFieldIndex, groupByType, m_aggregateFieldIndex, m_op);
-    			break;
-    		case STRING_TYPE:
-    			m_aggregator = new StringAggregator(m_groupByFieldIndex, groupByType, m_aggregateFieldIndex, m_op);
-    			break;
-    		default:
-    			assert(false);
-    	}
+    	m_aggregator = aggregator;
     }
 
     /**
@@ -72,7 +85,16 @@ public class Aggregate extends Operator {
     public int groupField() {
 	// some code goes here
 	//return -1;
-	return m_groupByFieldIndex;
+	return m_groupByFieldIndexes.length == 0 ? Aggregator.NO_GROUPING
+		: m_groupByFieldIndexes[0];
+    }
+
+    /**
+     * @return the groupby field indexes in the <b>INPUT</b> tuples, none if
+     *         there is no grouping
+     * */
+    public int[] groupFields() {
+	return m_groupByFieldIndexes.clone();
     }
 
     /**
@@ -84,7 +106,7 @@ public class Aggregate extends Operator {
 	// some code goes here
 	//return null;
 	if (this.groupField() == Aggregator.NO_GROUPING){ return null; }
-	return m_tupleIterator.getTupleDesc().getFieldName(this.groupField());
+	return getTupleDesc().getFieldName(0);
 
     }
 
@@ -94,10 +116,17 @@ public class Aggregate extends Operator {
     public int aggregateField() {
 	// some code goes here
 	//return -1;
-	return m_aggregateFieldIndex;
+	return m_aggregateFieldIndexes[0];
 	  
     }
 
+    /**
+     * @return the field of each aggregate
+     * */
+    public int[] aggregateFields() {
+	return m_aggregateFieldIndexes.clone();
+    }
+
     /**
      * @return return the name of the aggregate field in the <b>OUTPUT</b>
      *         tuples
@@ -105,7 +134,7 @@ public class Aggregate extends Operator {
     public String aggregateFieldName() {
 	// some code goes here
 	//return null;
-	return m_tupleIterator.getTupleDesc().getFieldName(this.aggregateField());
+	return getTupleDesc().getFieldName(m_groupByFieldIndexes.length);
     }
 
     /**
@@ -114,31 +143,95 @@ public class Aggregate extends Operator {
     public Aggregator.Op aggregateOp() {
 	// some code goes here
 	//return null;
-	return m_op;
+	return m_ops[0];
+    }
+
+    /**
+     * @return the operator of each aggregate
+     * */
+    public Aggregator.Op[] aggregateOps() {
+	return m_ops.clone();
     }
 
     public static String nameOfAggregatorOp(Aggregator.Op aop) {
 	return aop.toString();
     }
 
+    /**
+     * Sets the number of groups held in memory; the tuples of groups beyond
+     * it are spilled to disk, and aggregated a partition at a time once the
+     * child is done. Takes effect at the next open().
+     */
+    public void setMemoryBudget(int groups) {
+	m_aggregator.setMemoryBudget(groups);
+    }
+
     public void open() throws NoSuchElementException, DbException,
 	    TransactionAbortedException {
 	// some code goes here
     	super.open();
-    	m_tupleIterator.open();
-    	while (m_tupleIterator.hasNext())
+    	m_aggregator.clear();
+    	readChild();
+    }
+
+    /**
+     * Called by open() to read the child: aggregates all of its tuples, and
+     * opens the iterator over the results.
+     */
+    protected void readChild() throws DbException, TransactionAbortedException {
+    	if (m_tupleIterator instanceof ParallelSeqScan)
     	{
-    		m_aggregator.mergeTupleIntoGroup(m_tupleIterator.next());
+    		aggregateInParallel((ParallelSeqScan) m_tupleIterator);
+    	}
+    	else
+    	{
+    		m_tupleIterator.open();
+    		TupleBatch batch;
+    		while ((batch = m_tupleIterator.nextBatch()) != null)
+    		{
+    			m_aggregator.mergeBatchIntoGroup(batch);
+    		}
     	}
     	m_aggregateIterator = m_aggregator.iterator();
     	m_aggregateIterator.open();
     }
 
     /**
-     * Returns the next tuple. If there is a group by field, then the first
-     * field is the field by which we are grouping, and the second field is the
-     * result of computing the aggregate, If there is no group by field, then
-     * the result tuple should contain one field representing the result of the
+     * Has each worker of the scan aggregate its rows into a partial
+     * aggregator, which share the memory budget, then merges them.
+     */
+    private void aggregateInParallel(ParallelSeqScan scan)
+	    throws DbException, TransactionAbortedException {
+    	int workers = scan.getParallelism();
+    	int budget = Math.max(1, m_aggregator.getMemoryBudget() / workers);
+    	final HashAggregator[] partials = new HashAggregator[workers];
+    	ParallelSeqScan.BatchSink[] sinks = new ParallelSeqScan.BatchSink[workers];
+    	for (int i = 0; i < workers; i++)
+    	{
+    		final HashAggregator partial = m_aggregator.partial(budget);
+    		partials[i] = partial;
+    		sinks[i] = new ParallelSeqScan.BatchSink() {
+    			public void add(TupleBatch batch) throws DbException {
+    				partial.mergeBatchIntoGroup(batch);
+    			}
+    		};
+    	}
+    	try
+    	{
+    		scan.scanInto(sinks);
+    		for (HashAggregator partial : partials)
+    			m_aggregator.merge(partial);
+    	}
+    	finally
+    	{
+    		for (HashAggregator partial : partials)
+    			partial.clear();
+    	}
+    }
+
+    /**
+     * Returns the next tuple. The first fields are the fields by which we are
+     * grouping, if any, and the rest are the results of computing each
      * aggregate. Should return null if there are no more tuples.
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
@@ -153,10 +246,8 @@ public class Aggregate extends Operator {
     }
 
     /**
-     * Returns the TupleDesc of this Aggregate. If there is no group by field,
-     * this will have one field - the aggregate column. If there is a group by
-     * field, the first field will be the group by field, and the second will be
-     * the aggregate value column.
+     * Returns the TupleDesc of this Aggregate: the group by fields, if any,
+     * then a column for the value of each aggregate.
      * 
      * The name of an aggregate column should be informative. For example:
      * "aggName(aop) (child_td.getFieldName(afield))" where aop and afield are
@@ -166,7 +257,7 @@ public class Aggregate extends Operator {
     public TupleDesc getTupleDesc() {
 	// some code goes here
 	//return null;
-	return m_tupleIterator.getTupleDesc();
+	return m_aggregator.getTupleDesc();
 
     }
 
@@ -174,21 +265,23 @@ public class Aggregate extends Operator {
 	// some code goes here
     	super.close();
     	m_tupleIterator.close();
-    	m_aggregateIterator.close();
+    	if (m_aggregateIterator != null)
+    		m_aggregateIterator.close();
+    	m_aggregator.clear();
     }
 
     @Override
     public DbIterator[] getChildren() {
 	// some code goes here
 	//return null;
-	return new DbIterator[] {m_aggregateIterator};
+	return new DbIterator[] {m_tupleIterator};
 
     }
 
     @Override
     public void setChildren(DbIterator[] children) {
 	// some code goes here
-    	m_aggregateIterator = children[0];
+    	m_tupleIterator = children[0];
 
     }
     
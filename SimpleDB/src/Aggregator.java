@@ -25,7 +25,16 @@ public interface Aggregator extends Serializable {
          * SC_AVG: compute the avg of a set of SUM_COUNT tuples,
          * will be used to compute distributed avg in lab7.
          * */
-        SC_AVG;
+        SC_AVG,
+        /**
+         * COUNT_DISTINCT: the exact number of distinct values.
+         * */
+        COUNT_DISTINCT,
+        /**
+         * APPROX_COUNT_DISTINCT: the number of distinct values, estimated
+         * with a {@link HyperLogLog} sketch to about 1%.
+         * */
+        APPROX_COUNT_DISTINCT;
 
         /**
          * Interface to access operations by a string containing an integer
@@ -63,6 +72,10 @@ public interface Aggregator extends Serializable {
         		return "count";
         	if (this==SC_AVG)
     			return "sc_avg";
+        	if (this==COUNT_DISTINCT)
+        		return "count_distinct";
+        	if (this==APPROX_COUNT_DISTINCT)
+        		return "approx_count_distinct";
         	throw new IllegalStateException("impossible to reach here");
         }
     }
@@ -74,12 +87,37 @@ public interface Aggregator extends Serializable {
      *
      * @param tup the Tuple containing an aggregate field and a group-by field
      */
-    public void mergeTupleIntoGroup(Tuple tup);
+    public void mergeTupleIntoGroup(Tuple tup) throws DbException;
+
+    /**
+     * Merge the visible rows of a batch into their groups, as
+     * mergeTupleIntoGroup would one at a time.
+     *
+     * @param batch rows with an aggregate field and a group-by field
+     */
+    public default void mergeBatchIntoGroup(TupleBatch batch)
+            throws DbException {
+        for (int k = 0; k < batch.size(); k++)
+            mergeTupleIntoGroup(batch.getTuple(k));
+    }
 
     /**
      * Create a DbIterator over group aggregate results.
      * @see simpledb.TupleIterator for a possible helper
      */
     public DbIterator iterator();
+
+    /**
+     * Sets the number of groups held in memory; the values of groups beyond
+     * it are spilled to disk until the results are read. Removes all groups.
+     *
+     * @param groups the number of groups held in memory
+     */
+    public void setMemoryBudget(int groups);
+
+    /**
+     * Removes all groups, and deletes any files they were spilled to.
+     */
+    public void clear();
     
 }
@@ -0,0 +1,193 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The BlockNestedLoopJoin operator joins its children on any predicate by
+ * reading a block of tuples of child1 into memory and scanning child2 once
+ * for the whole block, comparing each of its tuples with every tuple of the
+ * block. The block holds up to a memory budget of tuples (see
+ * {@link #setMemoryBudget(int)}), so child2 is scanned |child1| / budget
+ * times rather than |child1| times as by {@link Join}.
+ * <p>
+ * Within a block, the output is in the order of child2, so unlike
+ * {@link Join} this operator does not keep the order of child1.
+ */
+public class BlockNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default number of tuples of child1 held in memory at a time. */
+    public static final int DEFAULT_BLOCK_SIZE = 20000;
+
+    private final JoinPredicate pred;
+    private DbIterator child1, child2;
+    private final TupleDesc comboTD;
+    private int memoryBudget = DEFAULT_BLOCK_SIZE;
+
+    // the block, and the join field of each of its tuples
+    private transient Tuple[] block;
+    private transient Field[] keys;
+    private transient int blockSize;
+    // the current tuple of child2, and the next tuple of the block to
+    // compare it with
+    private transient Tuple inner;
+    private transient Field innerKey;
+    private transient int outerPos;
+    private transient int innerScans;
+
+    /**
+     * Constructor. Accepts to children to join and the predicate to join them
+     * on
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     */
+    public BlockNestedLoopJoin(JoinPredicate p, DbIterator child1,
+            DbIterator child2) {
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    /**
+     * Sets the number of tuples of child1 held in memory at a time. Takes
+     * effect at the next open().
+     */
+    public void setMemoryBudget(int tuples) {
+        if (tuples < 1)
+            throw new IllegalArgumentException("memory budget must be positive");
+        memoryBudget = tuples;
+    }
+
+    public int getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /** @return the number of times child2 was scanned since open() */
+    int innerScans() {
+        return innerScans;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        // grown as needed, up to the budget
+        int capacity = Math.min(memoryBudget, 1024);
+        block = new Tuple[capacity];
+        keys = new Field[capacity];
+        reset();
+        super.open();
+    }
+
+    private void reset() {
+        blockSize = 0;
+        inner = null;
+        innerKey = null;
+        outerPos = 0;
+        innerScans = 0;
+    }
+
+    public void close() {
+        super.close();
+        child1.close();
+        child2.close();
+        block = null;
+        keys = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        child2.rewind();
+        reset();
+    }
+
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        Predicate.Op op = pred.getOperator();
+        while (true) {
+            if (inner != null) {
+                while (outerPos < blockSize) {
+                    int i = outerPos++;
+                    if (keys[i].compare(op, innerKey))
+                        return merge(block[i], inner);
+                }
+                inner = null;
+            }
+            if (blockSize > 0 && child2.hasNext()) {
+                inner = child2.next();
+                innerKey = inner.getField(pred.getField2());
+                outerPos = 0;
+                continue;
+            }
+            // child2 is done with this block; read the next one
+            if (!readBlock())
+                return null;
+            if (innerScans++ > 0)
+                child2.rewind();
+        }
+    }
+
+    /** @return false if child1 has no more tuples */
+    private boolean readBlock() throws TransactionAbortedException,
+            DbException {
+        blockSize = 0;
+        while (blockSize < memoryBudget && child1.hasNext()) {
+            if (blockSize == block.length) {
+                int capacity = (int) Math.min(memoryBudget, 2L * block.length);
+                block = Arrays.copyOf(block, capacity);
+                keys = Arrays.copyOf(keys, capacity);
+            }
+            Tuple t = child1.next();
+            block[blockSize] = t;
+            keys[blockSize] = t.getField(pred.getField1());
+            blockSize++;
+        }
+        // drop the references to the tuples of the last block
+        Arrays.fill(block, blockSize, block.length, null);
+        Arrays.fill(keys, blockSize, keys.length, null);
+        return blockSize > 0;
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        Tuple t = new Tuple(comboTD);
+        int n1 = t1.getTupleDesc().numFields();
+        for (int i = 0; i < n1; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < t2.getTupleDesc().numFields(); i++)
+            t.setField(n1 + i, t2.getField(i));
+        return t;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child1, child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        child1 = children[0];
+        child2 = children[1];
+    }
+}
@@ -0,0 +1,34 @@
+package simpledb;
+
+/**
+ * Broadcast is an {@link Exchange} that sends every row of its children to
+ * each of a number of outputs, e.g. to join the small side of a join with
+ * every partition of the large side. The outputs share the same Tuple
+ * objects, which must not be changed.
+ */
+public class Broadcast extends ExchangeProducer {
+
+    /**
+     * @param children the plans whose rows to send
+     * @param numOutputs the number of outputs
+     */
+    public Broadcast(DbIterator[] children, int numOutputs) {
+        super(children, numOutputs);
+    }
+
+    public Broadcast(DbIterator child, int numOutputs) {
+        this(new DbIterator[] { child }, numOutputs);
+    }
+
+    public String getName() {
+        return "broadcast(" + numOutputs() + ")";
+    }
+
+    Exchange.Router router() {
+        return new Exchange.Router() {
+            public int route(Tuple t) {
+                return ALL;
+            }
+        };
+    }
+}
@@ -0,0 +1,108 @@
+package simpledb;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A BufferFrame is one slot of the {@link BufferPool}'s page table. Besides
+ * the cached page it carries a pin count, which keeps the frame from being
+ * chosen for eviction, and a latch that threads wait on while the page is
+ * being read from disk by another thread.
+ * <p>
+ * A frame is created either empty, pinned by the thread that is going to
+ * read the page, or already holding a page that was produced in memory.
+ */
+class BufferFrame {
+
+    final PageId pid;
+    private volatile Page page;
+    private volatile boolean failed = false;
+    private int pinCount = 0;
+    private final CountDownLatch loaded;
+    // set while the page was read ahead and has not been requested since
+    private boolean prefetched = false;
+    // the ring the page was read into, while it is still part of it; guarded
+    // by the pool's replacement lock
+    BufferRing ring;
+
+    /** Creates an empty frame for a page that is about to be read. */
+    BufferFrame(PageId pid) {
+        this.pid = pid;
+        this.loaded = new CountDownLatch(1);
+    }
+
+    /** Creates a frame holding a page that is already in memory. */
+    BufferFrame(Page page) {
+        this.pid = page.getId();
+        this.page = page;
+        this.loaded = new CountDownLatch(0);
+    }
+
+    /** @return the cached page, or null if the page has not been read yet */
+    Page getPage() {
+        return page;
+    }
+
+    void setPage(Page page) {
+        this.page = page;
+    }
+
+    /** @return true once the page is in memory */
+    boolean isLoaded() {
+        return loaded.getCount() == 0 && !failed;
+    }
+
+    /** Publishes the page read by the loading thread and wakes up waiters. */
+    void loadComplete(Page page) {
+        this.page = page;
+        loaded.countDown();
+    }
+
+    /** Wakes up waiters after the loading thread failed to read the page. */
+    void loadFailed() {
+        failed = true;
+        loaded.countDown();
+    }
+
+    /**
+     * Waits until the page has been read.
+     *
+     * @return the page, or null if the read failed
+     */
+    Page awaitPage() throws DbException {
+        try {
+            loaded.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DbException("interrupted while waiting for page " + pid);
+        }
+        return failed ? null : page;
+    }
+
+    synchronized void pin() {
+        pinCount++;
+    }
+
+    synchronized void unpin() {
+        if (pinCount > 0)
+            pinCount--;
+    }
+
+    synchronized boolean isPinned() {
+        return pinCount > 0;
+    }
+
+    synchronized void markPrefetched() {
+        prefetched = true;
+    }
+
+    /**
+     * Records a request for the page.
+     *
+     * @return true if this is the first request since it was read ahead
+     */
+    synchronized boolean claimPrefetched() {
+        boolean was = prefetched;
+        prefetched = false;
+        return was;
+    }
+}
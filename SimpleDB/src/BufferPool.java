@@ -2,6 +2,7 @@ package simpledb;
 
 import java.io.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.*;
 
 /**
@@ -18,7 +19,7 @@ import java.util.*;
 public class BufferPool {
     /** Bytes per page, including header. */
     public static final int PAGE_SIZE = 4096;
-    private int pagesLimit;
+    private final int pagesLimit;
     private static int pageSize = PAGE_SIZE;
     
     /** Default number of pages passed to the constructor. This is used by
@@ -26,26 +27,79 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
-    // Hashmap with the mapping of pageid and page.
-	private HashMap<PageId, Page> pool;
-	
-	
-	//Hashtable to keep the recently used page
-	//latest page added will have priority 0
-	//last used page = max priority (evicted)
+    /** Default number of pages sequential scans read ahead. */
+    public static final int DEFAULT_READ_AHEAD_WINDOW = 8;
+
+    // Page table. Lookups and hits only touch the (lock-striped) map and the
+    // frame they find; the pool-wide lock is taken to update the replacement
+    // policy and to reserve or free frames.
+	private final ConcurrentHashMap<PageId, BufferFrame> frames;
 	
-	private HashMap<PageId, Integer> recent;
+	// decides which page to evict when the pool is full
+	private final ReplacementPolicy policy;
+
+	// guards policy and the number of frames in the page table
+	private final Object replacementLock = new Object();
+
+	// page-level locks held by running transactions
+	private final LockManager lockManager = new LockManager();
+
+	// how many pages sequential scans read ahead; see getReadAheadWindow
+	private volatile int readAheadWindow = DEFAULT_READ_AHEAD_WINDOW;
+	// pages read ahead; those requested before leaving the pool; and those
+	// that left the pool without being requested
+	private final AtomicLong prefetchedPages = new AtomicLong();
+	private final AtomicLong prefetchHits = new AtomicLong();
+	private final AtomicLong prefetchWaste = new AtomicLong();
+
+	// before-images of pages that a running transaction dirtied but that had
+	// to be written out to make room; they are written back if it aborts
+	private final HashMap<TransactionId, HashMap<PageId, Page>> stolenPages =
+	    new HashMap<TransactionId, HashMap<PageId, Page>>();
+
+	// a page may only be evicted once it is in memory and nobody pins it
+	private final ReplacementPolicy.EvictionFilter unpinned =
+	    new ReplacementPolicy.EvictionFilter() {
+	        public boolean canEvict(PageId pid) {
+	            BufferFrame frame = frames.get(pid);
+	            return frame != null && frame.isLoaded() && !frame.isPinned();
+	        }
+	    };
+
+	// the pool prefers not to write out pages of running transactions. A
+	// page write-locked by a transaction may already have been changed even
+	// though it is not marked dirty until the operation completes.
+	private final ReplacementPolicy.EvictionFilter clean =
+	    new ReplacementPolicy.EvictionFilter() {
+	        public boolean canEvict(PageId pid) {
+	            return unpinned.canEvict(pid)
+	                && frames.get(pid).getPage().isDirty() == null
+	                && lockManager.getExclusiveHolder(pid) == null;
+	        }
+	    };
     
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Creates a BufferPool that caches up to numPages pages, evicting pages in
+     * least-recently-used order.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
-    	//Constructor
+        this(numPages, new LruReplacementPolicy());
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and uses the given
+     * policy to choose pages to evict.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy the page replacement policy; it must not be shared with
+     *            another BufferPool
+     */
+    public BufferPool(int numPages, ReplacementPolicy policy) {
     	this.pagesLimit = numPages;
-    	pool = new HashMap<PageId, Page>();
-    	recent = new HashMap<PageId, Integer>();
+    	this.policy = policy;
+    	frames = new ConcurrentHashMap<PageId, BufferFrame>(numPages);
     }
     
     public static int getPageSize() {
@@ -72,57 +126,310 @@ public class BufferPool {
      * be added to the buffer pool and returned.  If there is insufficient
      * space in the buffer pool, a page should be evicted and the new page
      * should be added in its place.
+     * <p>
+     * Threads asking for different pages do not serialize on each other
+     * while pages are read from disk. If several threads miss on the same
+     * page, one of them reads it and the others wait for that read.
      *
      * @param tid the ID of the transaction requesting the page
      * @param pid the ID of the requested page
      * @param perm the requested permissions on the page
+     * @throws TransactionAbortedException if tid was aborted to resolve a
+     *             deadlock while waiting for the lock
      */
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException 
     {
-    	
-    	//Look up page in the buffer pool
-    	//If it contains the page then update it's priority and add it to LRU cache
-    	if(pool.containsKey(pid)){
-            updatePriority();
-            recent.put(pid,0);
-            return pool.get(pid);
+    	return getPage(tid, pid, perm, null);
+    }
 
-        }
-    	//Insufficient space in buffer pool
-        else if(pool.size()>=pagesLimit){
-            evictPage();
-        }
-    	
-    	//If page does not exist in buffer pool 
-    	//retrieve the page from database
-    	//And then add it to buffer pool
-    	Catalog c = Database.getCatalog();
-    	DbFile file = c.getDatabaseFile(pid.getTableId());  
-        Page p = file.readPage(pid); 
-        pool.put(pid,p);   
-        updatePriority();
-        recent.put(pid, 0);
-        return p;
-        
-        // throw new DbException("page requested not in bufferpool or disk");
-        // some code goes here
+    /**
+     * Same as {@link #getPage(TransactionId, PageId, Permissions)}, except
+     * that if the page has to be read it is read into a frame of ring, which
+     * is recycled once the ring is full.
+     *
+     * @param ring the ring to read the page into, or null to use the pool
+     *            like any other request
+     */
+    Page getPage(TransactionId tid, PageId pid, Permissions perm, BufferRing ring)
+        throws TransactionAbortedException, DbException
+    {
+    	lockManager.acquire(tid, pid, perm == Permissions.READ_WRITE);
+    	while (true) {
+    		BufferFrame frame = frames.get(pid);
+    		if (frame == null) {
+    			//Not cached: reserve a frame for it and read it ourselves,
+    			//unless another thread got there first
+    			frame = reserveFrame(pid, ring);
+    			if (frame != null) {
+    				return loadFrame(frame);
+    			}
+    			continue;
+    		}
+    		//Cached, or being read by another thread
+    		Page p = frame.awaitPage();
+    		if (p != null) {
+    			if (frame.claimPrefetched()) {
+    				prefetchHits.incrementAndGet();
+    			}
+    			synchronized (replacementLock) {
+    				if (frames.get(pid) == frame) {
+    					policy.pageAccessed(pid);
+    					if (frame.ring != ring) {
+    						//wanted outside of the ring: keep it in the pool
+    						frame.ring = null;
+    					}
+    				}
+    			}
+    			return p;
+    		}
+    		//The other thread failed to read the page; try again
+    	}
     } 	
+
+    /**
+     * Adds an empty frame for pid to the page table, recycling a frame of
+     * ring or evicting a page first if necessary. The frame is pinned until
+     * it has been loaded.
+     *
+     * @return the new frame, or null if pid is already in the page table
+     */
+    private BufferFrame reserveFrame(PageId pid, BufferRing ring) throws DbException {
+    	synchronized (replacementLock) {
+    		if (frames.containsKey(pid)) {
+    			return null;
+    		}
+    		if (ring != null) {
+    			recycleRingFrame(ring);
+    		}
+    		while (frames.size() >= pagesLimit) {
+    			evictPage();
+    		}
+    		return addFrame(pid, ring);
+    	}
+    }
+
+    /**
+     * Puts a new pinned frame for pid into the page table. Must be called
+     * while holding replacementLock.
+     */
+    private BufferFrame addFrame(PageId pid, BufferRing ring) {
+    	BufferFrame frame = new BufferFrame(pid);
+    	frame.pin();
+    	frames.put(pid, frame);
+    	policy.pageAdded(pid);
+    	if (ring != null) {
+    		frame.ring = ring;
+    		ring.add(pid);
+    	}
+    	return frame;
+    }
+
+    /**
+     * Makes room in a full ring by dropping its oldest page. Pages that have
+     * left the ring since they were read are forgotten instead, which also
+     * makes room. Must be called while holding replacementLock.
+     */
+    private void recycleRingFrame(BufferRing ring) {
+    	PageId old;
+    	while ((old = ring.nextToRecycle()) != null) {
+    		BufferFrame frame = frames.get(old);
+    		if (frame != null && frame.ring == ring && clean.canEvict(old)) {
+    			dropVictim(old);
+    			ring.recycled();
+    			return;
+    		}
+    	}
+    }
+
+    /**
+     * Reads the page of a frame returned by reserveFrame, outside of any
+     * pool-wide lock, and wakes up threads waiting for it.
+     */
+    private Page loadFrame(BufferFrame frame) throws DbException {
+    	boolean loaded = false;
+    	try {
+    		DbFile file = Database.getCatalog().getDatabaseFile(frame.pid.getTableId());
+    		Page p = file.readPage(frame.pid);
+    		if (p == null) {
+    			throw new DbException("unable to read page " + frame.pid);
+    		}
+    		frame.loadComplete(p);
+    		loaded = true;
+    		return p;
+    	} finally {
+    		if (!loaded) {
+    			frame.loadFailed();
+    			removeFrame(frame);
+    		}
+    		frame.unpin();
+    	}
+    }
+
+    /**
+     * Reads a page into the pool on behalf of read-ahead. No lock is taken:
+     * the page is only cached, and the transaction that later asks for it
+     * locks it in getPage. Read-ahead never makes room by writing out
+     * pages, so nothing is read if only dirty or pinned pages could be
+     * evicted.
+     *
+     * @param ring the ring of the scan reading ahead, or null
+     * @return the page if it is cached or was read, or null if it was not
+     *         read (including when the read failed)
+     */
+    Page prefetchPage(PageId pid, BufferRing ring) {
+    	BufferFrame frame = frames.get(pid);
+    	if (frame != null) {
+    		return frame.isLoaded() ? frame.getPage() : null;
+    	}
+    	synchronized (replacementLock) {
+    		if (frames.containsKey(pid)) {
+    			return null;
+    		}
+    		if (ring != null) {
+    			recycleRingFrame(ring);
+    		}
+    		while (frames.size() >= pagesLimit) {
+    			PageId victim = policy.chooseVictim(clean);
+    			if (victim == null) {
+    				return null;
+    			}
+    			dropVictim(victim);
+    		}
+    		frame = addFrame(pid, ring);
+    		frame.markPrefetched();
+    	}
+    	prefetchedPages.incrementAndGet();
+    	try {
+    		return loadFrame(frame);
+    	} catch (Exception e) {
+    		// the scan will report the problem when it reads the page itself
+    		return null;
+    	}
+    }
+
+    /**
+     * Returns how many pages sequential scans read ahead of the page they
+     * are on, never more than a quarter of the pool. 0 disables read-ahead.
+     */
+    public int getReadAheadWindow() {
+    	return Math.min(readAheadWindow, pagesLimit / 4);
+    }
+
+    /**
+     * Sets how many pages sequential scans read ahead; 0 disables
+     * read-ahead. The window is capped at a quarter of the pool.
+     */
+    public void setReadAheadWindow(int pages) {
+    	readAheadWindow = Math.max(0, pages);
+    }
+
+    /** @return the maximum number of pages in this pool */
+    public int getNumPages() {
+    	return pagesLimit;
+    }
+
+    /** @return the number of pages read into the pool by read-ahead */
+    public long getPrefetchedPages() {
+    	return prefetchedPages.get();
+    }
+
+    /** @return the number of read-ahead pages that were then requested */
+    public long getPrefetchHits() {
+    	return prefetchHits.get();
+    }
+
+    /**
+     * @return the number of read-ahead pages that left the pool without
+     *         being requested
+     */
+    public long getPrefetchWaste() {
+    	return prefetchWaste.get();
+    }
+
+    /** Drops frame from the page table, if it is still there. */
+    private void removeFrame(BufferFrame frame) {
+    	synchronized (replacementLock) {
+    		if (frames.remove(frame.pid, frame)) {
+    			policy.pageRemoved(frame.pid);
+    		}
+    	}
+    }
     
-    //Update priority of all pages when a new page is added
-    public void updatePriority()
-    {
-        if(recent.size() == 0)
-          return;
-        if(recent.size() > 0)
-        {
-            for (PageId iterator : recent.keySet()){
-                int priority = recent.get(iterator);
-                priority++;
-                recent.put(iterator,priority);
+    /**
+     * Puts a page that was modified outside of getPage (for example by
+     * insertTuple) into the pool, replacing any cached version of that page.
+     */
+    private void cachePage(Page page) throws DbException {
+        PageId pid = page.getId();
+        while (true) {
+            BufferFrame frame;
+            synchronized (replacementLock) {
+                frame = frames.get(pid);
+                if (frame == null) {
+                    while (frames.size() >= pagesLimit) {
+                        evictPage();
+                    }
+                    frames.put(pid, new BufferFrame(page));
+                    policy.pageAdded(pid);
+                    return;
+                }
+                if (frame.isLoaded()) {
+                    frame.setPage(page);
+                    policy.pageAccessed(pid);
+                    return;
+                }
             }
-         }
+            //another thread is still reading the old version; let it finish
+            frame.awaitPage();
+        }
     }
+
+    /** @return true if pid is in the pool, or being read into it */
+    boolean isCached(PageId pid) {
+    	return frames.containsKey(pid);
+    }
+
+    /**
+     * Pins a cached page so that it is not evicted until a matching call to
+     * {@link #unpinPage}. Pins nest: a page pinned twice must be unpinned
+     * twice. If every page in the pool is pinned, getPage throws DbException
+     * instead of evicting.
+     *
+     * @param pid the ID of the page to pin
+     * @return true if the page was in the pool and is now pinned, false if it
+     *         is not cached
+     */
+    public boolean pinPage(PageId pid) throws DbException {
+    	while (true) {
+    		BufferFrame frame = frames.get(pid);
+    		if (frame == null) {
+    			return false;
+    		}
+    		frame.awaitPage();
+    		// pin under the replacement lock so that an eviction in progress
+    		// cannot pick this frame after we checked it is still resident
+    		synchronized (replacementLock) {
+    			if (frames.get(pid) == frame && frame.isLoaded()) {
+    				frame.pin();
+    				return true;
+    			}
+    		}
+    	}
+    }
+
+    /**
+     * Releases one pin taken by {@link #pinPage}.
+     *
+     * @param pid the ID of the page to unpin
+     */
+    public void unpinPage(PageId pid) {
+    	BufferFrame frame = frames.get(pid);
+    	if (frame != null) {
+    		frame.unpin();
+    	}
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -133,8 +440,7 @@ public class BufferPool {
      * @param pid the ID of the page to unlock
      */
     public  void releasePage(TransactionId tid, PageId pid) {
-        // some code goes here
-        // not necessary for lab1|lab2
+        lockManager.release(tid, pid);
     }
 
     /**
@@ -143,28 +449,50 @@ public class BufferPool {
      * @param tid the ID of the transaction requesting the unlock
      */
     public void transactionComplete(TransactionId tid) throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2
+        transactionComplete(tid, true);
     }
 
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId p) {
-        // some code goes here
-        // not necessary for lab1|lab2
-        return false;
+        return lockManager.holdsLock(tid, p);
     }
 
     /**
      * Commit or abort a given transaction; release all locks associated to
      * the transaction.
+     * <p>
+     * On commit the pages dirtied by the transaction are written to disk; on
+     * abort they are dropped from the pool, so the next reader gets the
+     * version on disk. Pages the transaction dirtied that were written out
+     * early by evictPage get their before-images written back.
      *
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
      */
     public void transactionComplete(TransactionId tid, boolean commit)
         throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2
+        try {
+            HashMap<PageId, Page> stolen;
+            synchronized (replacementLock) {
+                stolen = stolenPages.remove(tid);
+            }
+            if (commit) {
+                flushPages(tid);
+            } else {
+                discardPages(tid);
+                if (stolen != null) {
+                    for (Page before : stolen.values()) {
+                        // restore the disk first, so that read-ahead cannot
+                        // cache the stolen version once the page is gone
+                        Database.getCatalog().getDatabaseFile(
+                            before.getId().getTableId()).writePage(before);
+                        discardPage(before.getId());
+                    }
+                }
+            }
+        } finally {
+            lockManager.releaseAll(tid);
+        }
     }
 
     /**
@@ -190,14 +518,7 @@ public class BufferPool {
     	ArrayList<Page> dirtiedPages = dbFile.insertTuple(tid, t);
     	for (Page currPage : dirtiedPages) {
     		currPage.markDirty(true, tid);
-    		if (!this.pool.containsKey(currPage.getId())) {
-        		while (this.pool.size() >= this.pagesLimit) {
-        			evictPage();
-        		}
-    		}
-    		this.pool.put(currPage.getId(), currPage);
- 
-    	
+    		cachePage(currPage);
     	}
     }
 
@@ -223,7 +544,7 @@ public class BufferPool {
     	for (Page page : modifiedPages)
     	{
     		page.markDirty(true, tid);
-    		pool.put(page.getId(), page);
+    		cachePage(page);
     	}
     }
 
@@ -235,7 +556,7 @@ public class BufferPool {
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-    	for (PageId pid: pool.keySet()) {
+    	for (PageId pid: frames.keySet()) {
             flushPage(pid);
         }
 
@@ -250,56 +571,111 @@ public class BufferPool {
         are removed from the cache so they can be reused safely
     */
     public synchronized void discardPage(PageId pid) {
-        // some code goes here
-        // not necessary for lab1
+        synchronized (replacementLock) {
+            if (frames.containsKey(pid)) {
+                dropVictim(pid);
+            }
+        }
     }
 
     /**
      * Flushes a certain page to disk
      * @param pid an ID indicating the page to flush
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
-        //get the page to be flushed
-    	Page flush = pool.get(pid);
+    private void flushPage(PageId pid) throws IOException {
+        //get the page to be flushed; pages still being read are clean
+    	BufferFrame frame = frames.get(pid);
+    	if (frame == null || !frame.isLoaded()) {
+    		return;
+    	}
+    	Page flush = frame.getPage();
+    	if (flush.isDirty() == null) {
+    		return;
+    	}
         DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
         //Write it back into the database
         file.writePage(flush);
+        flush.markDirty(false, null);
     }
 
     /** Write all pages of the specified transaction to disk.
      */
     public synchronized  void flushPages(TransactionId tid) throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2
+        for (BufferFrame frame : frames.values()) {
+            Page p = frame.getPage();
+            if (p != null && tid.equals(p.isDirty())) {
+                flushPage(frame.pid);
+                // the committed version is the before-image for the next writer
+                p.setBeforeImage();
+            }
+        }
     }
 
-    /**
-     * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+    /** Drops all pages dirtied by the specified transaction from the pool.
      */
-    private synchronized  void evictPage() throws DbException {
-        //Get the lease recently used page's ID
-    	PageId lru = null; 
-        int i = -1;
-        //Find the page with the highest priority(least recently used)
-        for(PageId iterator : recent.keySet()){
-                int priority= recent.get(iterator);
-                if( priority> i){
-                i = priority;
-                lru = iterator;
+    private synchronized void discardPages(TransactionId tid) {
+        for (BufferFrame frame : frames.values()) {
+            Page p = frame.getPage();
+            if (p != null && tid.equals(p.isDirty())) {
+                discardPage(frame.pid);
+                DbFile file = Database.getCatalog().getDatabaseFile(
+                    frame.pid.getTableId());
+                if (file instanceof HeapFile) {
+                    ((HeapFile) file).pageDiscarded(frame.pid.pageNumber());
+                }
             }
         }
-        //writing the page to disk if it's dirty
-        try{
-            flushPage(lru);
-        }catch (IOException e){
-            e.printStackTrace();
-        }
-        // removing the pageid from recently accessed pages
-        recent.remove(lru);
-        // remove the page from the bufferpool
-        pool.remove(lru);
-        
+    }
+
+    /**
+     * Discards a page from the buffer pool.
+     * Pinned pages and pages that are still being read are never chosen.
+     * Pages dirtied by running transactions are only chosen if every other
+     * page is pinned; such a page is written to disk and its before-image is
+     * kept so that an abort can undo the write.
+     * Must be called while holding replacementLock.
+     */
+    private void evictPage() throws DbException {
+        //Ask the replacement policy for the page to give up
+    	PageId victim = policy.chooseVictim(clean);
+    	if (victim == null) {
+    		victim = policy.chooseVictim(unpinned);
+    		if (victim == null) {
+    			throw new DbException("no page in the buffer pool can be evicted");
+    		}
+    		Page p = frames.get(victim).getPage();
+    		TransactionId writer = p.isDirty();
+    		if (writer == null) {
+    			writer = lockManager.getExclusiveHolder(victim);
+    		}
+    		HashMap<PageId, Page> stolen = stolenPages.get(writer);
+    		if (stolen == null) {
+    			stolen = new HashMap<PageId, Page>();
+    			stolenPages.put(writer, stolen);
+    		}
+    		// a page stolen twice keeps the image from before the transaction
+    		if (!stolen.containsKey(victim)) {
+    			stolen.put(victim, p.getBeforeImage());
+    		}
+    		try {
+    			Database.getCatalog().getDatabaseFile(victim.getTableId()).writePage(p);
+    		} catch (IOException e) {
+    			throw new DbException("unable to write page " + victim + ": " + e);
+    		}
+    	}
+        dropVictim(victim);
       }
 
+    /**
+     * Removes a page from the bufferpool and the replacement policy. Must be
+     * called while holding replacementLock.
+     */
+    private void dropVictim(PageId victim) {
+        BufferFrame frame = frames.remove(victim);
+        policy.pageRemoved(victim);
+        if (frame != null && frame.claimPrefetched()) {
+            prefetchWaste.incrementAndGet();
+        }
+    }
+
 }
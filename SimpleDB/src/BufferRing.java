@@ -0,0 +1,63 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+
+/**
+ * A BufferRing is a small private set of BufferPool frames that a large
+ * sequential scan reads its pages into. Once the ring is full, the page the
+ * scan read longest ago is dropped to make room for the next one, instead of
+ * evicting some other page chosen by the pool's replacement policy. A scan
+ * over a table much larger than the pool therefore only ever occupies the
+ * ring's frames, and leaves the rest of the pool, e.g. the internal pages of
+ * a B+ tree used by point lookups, where it was.
+ * <p>
+ * A page only stays in the ring while nobody else uses it: a page found in
+ * the pool by another reader is taken out of the ring and becomes an
+ * ordinary page, and a page that was dirtied is left to the pool to write
+ * out. Either way the ring gives up its frame rather than wait for it.
+ * <p>
+ * Rings are used through {@link BufferPool}; all methods are called with the
+ * pool's replacement lock held.
+ */
+class BufferRing {
+
+    /** Default number of frames in a ring. */
+    public static final int DEFAULT_SIZE = 16;
+
+    private final int size;
+    // pages read through the ring that may still be in it, oldest first
+    private final ArrayDeque<PageId> pages = new ArrayDeque<PageId>();
+    private volatile long recycled = 0;
+
+    BufferRing(int size) {
+        this.size = Math.max(1, size);
+    }
+
+    /** @return the number of frames this ring may occupy */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the page to drop before the ring can take another one, or null
+     *         if the ring is not full yet
+     */
+    PageId nextToRecycle() {
+        return pages.size() < size ? null : pages.poll();
+    }
+
+    /** Records that pid was read into a frame of this ring. */
+    void add(PageId pid) {
+        pages.add(pid);
+    }
+
+    /** Records that a frame of this ring was reused for a new page. */
+    void recycled() {
+        recycled++;
+    }
+
+    /** @return the number of times a frame of this ring was reused */
+    long getRecycledFrames() {
+        return recycled;
+    }
+}
@@ -0,0 +1,86 @@
+package simpledb;
+
+import java.util.HashMap;
+
+/**
+ * CLOCK (second chance) replacement. Frames sit on a circular list, each with
+ * a reference bit that is set on every hit. To pick a victim the clock hand
+ * sweeps the list, clearing reference bits, until it finds a frame whose bit
+ * is already clear. A hit is a single bit store, which makes CLOCK cheaper
+ * than LRU on hit-heavy workloads while approximating it closely.
+ */
+public class ClockReplacementPolicy implements ReplacementPolicy {
+
+    private static class Frame {
+        final PageId pid;
+        boolean referenced;
+        Frame prev, next;
+
+        Frame(PageId pid) {
+            this.pid = pid;
+        }
+    }
+
+    private final HashMap<PageId, Frame> frames = new HashMap<PageId, Frame>();
+    private Frame hand = null;
+
+    public void pageAdded(PageId pid) {
+        if (frames.containsKey(pid)) {
+            pageAccessed(pid);
+            return;
+        }
+        Frame f = new Frame(pid);
+        frames.put(pid, f);
+        if (hand == null) {
+            f.prev = f;
+            f.next = f;
+            hand = f;
+        } else {
+            // insert just behind the hand, so a new page is the last one the
+            // hand reaches on its current sweep
+            f.next = hand;
+            f.prev = hand.prev;
+            hand.prev.next = f;
+            hand.prev = f;
+        }
+    }
+
+    public void pageAccessed(PageId pid) {
+        Frame f = frames.get(pid);
+        if (f == null)
+            pageAdded(pid);
+        else
+            f.referenced = true;
+    }
+
+    public void pageRemoved(PageId pid) {
+        Frame f = frames.remove(pid);
+        if (f == null)
+            return;
+        if (f.next == f) {
+            hand = null;
+            return;
+        }
+        f.prev.next = f.next;
+        f.next.prev = f.prev;
+        if (hand == f)
+            hand = f.next;
+    }
+
+    public PageId chooseVictim(EvictionFilter filter) {
+        if (hand == null)
+            return null;
+        // the first revolution clears every reference bit, so if no frame is
+        // accepted within two revolutions none ever will be
+        int budget = 2 * frames.size();
+        for (int i = 0; i < budget; i++) {
+            if (hand.referenced) {
+                hand.referenced = false;
+            } else if (filter.canEvict(hand.pid)) {
+                return hand.pid;
+            }
+            hand = hand.next;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,108 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * DbFileChannel gives a DbFile a long-lived FileChannel on its backing file.
+ * Pages are read and written with positional I/O, so a page access costs a
+ * single pread/pwrite no matter where the page is, and threads can read and
+ * write different pages concurrently without sharing a file pointer.
+ * <p>
+ * The channel is opened on first use. If it is closed underneath us, e.g.
+ * because a thread blocked in I/O on it was interrupted, it is reopened.
+ */
+class DbFileChannel {
+
+    private final File file;
+    private volatile FileChannel channel;
+
+    DbFileChannel(File file) {
+        this.file = file;
+    }
+
+    /** @return the open channel, opening it if necessary */
+    FileChannel channel() throws IOException {
+        FileChannel ch = channel;
+        if (ch == null || !ch.isOpen()) {
+            synchronized (this) {
+                ch = channel;
+                if (ch == null || !ch.isOpen()) {
+                    ch = FileChannel.open(file.toPath(),
+                            StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    channel = ch;
+                }
+            }
+        }
+        return ch;
+    }
+
+    /**
+     * Reads from position until buf is full or the end of the file is
+     * reached.
+     *
+     * @return the number of bytes read, or -1 if position is at or past the
+     *         end of the file
+     */
+    int read(ByteBuffer buf, long position) throws IOException {
+        int start = buf.position();
+        try {
+            return readFrom(channel(), buf, position);
+        } catch (ClosedChannelException e) {
+            // closed by another thread's interrupt; retry once on a new one
+            buf.position(start);
+            return readFrom(channel(), buf, position);
+        }
+    }
+
+    /** Convenience form of {@link #read(ByteBuffer, long)} for a byte[]. */
+    int read(byte[] buf, long position) throws IOException {
+        return read(ByteBuffer.wrap(buf), position);
+    }
+
+    private static int readFrom(FileChannel ch, ByteBuffer buf, long position)
+        throws IOException {
+        int total = 0;
+        while (buf.hasRemaining()) {
+            int n = ch.read(buf, position + total);
+            if (n < 0)
+                return total == 0 ? -1 : total;
+            total += n;
+        }
+        return total;
+    }
+
+    /** Writes all of data at position, growing the file if needed. */
+    void write(byte[] data, long position) throws IOException {
+        try {
+            writeTo(channel(), data, position);
+        } catch (ClosedChannelException e) {
+            writeTo(channel(), data, position);
+        }
+    }
+
+    private static void writeTo(FileChannel ch, byte[] data, long position)
+        throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        while (buf.hasRemaining()) {
+            ch.write(buf, position + buf.position());
+        }
+    }
+
+    /** @return the current size of the file in bytes */
+    long size() throws IOException {
+        return channel().size();
+    }
+
+    /** Closes the channel; it is reopened by the next read or write. */
+    synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
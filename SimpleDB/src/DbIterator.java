@@ -34,6 +34,22 @@ public interface DbIterator extends Serializable{
    */
   public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException;
 
+  /**
+   * Returns the next rows from the operator as a batch. A consumer should
+   * read an iterator either with next() or with nextBatch() between opens
+   * and rewinds, not both. Iterators without a batch implementation of
+   * their own read up to {@link TupleBatch#DEFAULT_CAPACITY} rows with
+   * next(); see {@link TupleBatch#fromRows(DbIterator)}.
+   *
+   * @return a batch with at least one visible row, or null if there are no
+   *   more rows. The batch is only valid until the next call.
+   * @throws IllegalStateException If the iterator has not been opened
+   */
+  public default TupleBatch nextBatch()
+      throws DbException, TransactionAbortedException {
+      return TupleBatch.fromRows(this);
+  }
+
   /**
    * Resets the iterator to the start.
    * @throws DbException when rewind is unsupported.
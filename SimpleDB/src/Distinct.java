@@ -0,0 +1,113 @@
+package simpledb;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Distinct is an operator that returns each distinct tuple of its child
+ * once. The tuples seen are kept in a {@link GroupTable} keyed on all the
+ * fields, so a tuple is returned as soon as it is first read. Once the table
+ * holds the memory budget of tuples, the tuples it has not seen are spilled
+ * to disk, and those of each spilled partition are returned, without
+ * duplicates, after the child is done.
+ */
+public class Distinct extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private DbIterator child;
+    private int memoryBudget = GroupTable.DEFAULT_MEMORY_BUDGET;
+
+    // the tuples seen since open(), and the distinct tuples of those that
+    // were spilled, once the child is done
+    private transient GroupTable seen;
+    private transient DbIterator spilled;
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            The child operator
+     */
+    public Distinct(DbIterator child) {
+        this.child = child;
+    }
+
+    /**
+     * Sets the number of distinct tuples held in memory; takes effect at the
+     * next open().
+     */
+    public void setMemoryBudget(int tuples) {
+        if (tuples < 1)
+            throw new IllegalArgumentException("memory budget must be positive");
+        memoryBudget = tuples;
+    }
+
+    public int getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        TupleDesc td = child.getTupleDesc();
+        int[] fields = new int[td.numFields()];
+        Type[] types = new Type[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = i;
+            types[i] = td.getFieldType(i);
+        }
+        if (seen != null)
+            seen.clear();
+        seen = new GroupTable(fields, types, new int[0], new Type[0],
+                new Aggregator.Op[0], td, memoryBudget);
+        spilled = null;
+        child.open();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        if (spilled != null)
+            spilled.close();
+        spilled = null;
+        if (seen != null)
+            seen.clear();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        if (spilled != null)
+            spilled.close();
+        spilled = null;
+        seen.clear();
+    }
+
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (spilled == null) {
+            while (child.hasNext()) {
+                Tuple t = child.next();
+                if (seen.add(t))
+                    return t;
+            }
+            spilled = seen.spilledIterator();
+            spilled.open();
+        }
+        return spilled.hasNext() ? spilled.next() : null;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child = children[0];
+    }
+
+}
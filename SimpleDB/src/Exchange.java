@@ -0,0 +1,253 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exchange operators let parts of a plan run on threads of their own.
+ * Producer threads each run a subtree of the plan and send its rows, in
+ * chunks of {@link #CHUNK_SIZE}, through bounded queues to the consumers,
+ * so a producer never gets more than a few chunks ahead of them.
+ * <p>
+ * There are three shapes of exchange:
+ * <ul>
+ * <li>{@link Gather} runs each of its children on a thread of its own and
+ * returns all of their rows.
+ * <li>{@link HashRepartition} runs its children and sends each row to one of
+ * a number of outputs, by the hash of a field, so that e.g. one
+ * HashEquiJoin or Aggregate per output can work on a partition of the rows.
+ * <li>{@link Broadcast} sends every row of its children to each of a number
+ * of outputs, e.g. to give the small side of a join to every partition of
+ * the large side.
+ * </ul>
+ * The operators over the outputs of a HashRepartition or a Broadcast have
+ * to be read concurrently, typically by putting them under a Gather: the
+ * producers stop whenever any of the outputs falls behind.
+ * <p>
+ * Exchange consumers keep the rows they return, so that they can be
+ * rewound, e.g. as the inner child of a Join; see
+ * {@link ExchangeConsumer#setRewindable(boolean)}.
+ */
+public abstract class Exchange extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Number of rows a producer sends at a time. */
+    public static final int CHUNK_SIZE = 256;
+
+    // chunks a queue holds before its producers have to wait
+    static final int QUEUED_CHUNKS = 8;
+
+    private static final ExecutorService executor =
+        Executors.newCachedThreadPool(new ThreadFactory() {
+            private int count = 0;
+
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "simpledb-exchange-" + count++);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    /** @return a short description of the exchange, for query plans */
+    public abstract String getName();
+
+    /** Chooses the outputs of a producer that a row is sent to. */
+    interface Router {
+        /** Route value meaning "every output". */
+        int ALL = -1;
+
+        /** @return the index of the output t goes to, or ALL */
+        int route(Tuple t);
+    }
+
+    /**
+     * Starts a thread for each child that reads every row of it and sends it
+     * to the channels chosen by router.
+     *
+     * @return a latch each thread counts down once it is done and has closed
+     *         its child; see {@link #awaitProducers(CountDownLatch)}
+     */
+    static CountDownLatch startProducers(DbIterator[] children,
+            final Channel[] channels, final Router router) {
+        final CountDownLatch done = new CountDownLatch(children.length);
+        for (final DbIterator child : children) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        produce(child, channels, router);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        return done;
+    }
+
+    /**
+     * Waits for the producers started by
+     * {@link #startProducers(DbIterator[], Channel[], Router)}, once their
+     * channels are cancelled, so that none of them still reads its child, or
+     * takes locks for the transaction, after the exchange is closed.
+     */
+    static void awaitProducers(CountDownLatch done) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private static void produce(DbIterator child, Channel[] channels, Router router) {
+        Exception error = null;
+        ArrayList<ArrayList<Tuple>> chunks = new ArrayList<ArrayList<Tuple>>();
+        for (int i = 0; i < channels.length; i++)
+            chunks.add(new ArrayList<Tuple>(CHUNK_SIZE));
+        try {
+            child.open();
+            boolean sending = true;
+            while (sending && child.hasNext()) {
+                Tuple t = child.next();
+                int to = router.route(t);
+                for (int i = 0; i < channels.length && sending; i++) {
+                    if (to != Router.ALL && to != i)
+                        continue;
+                    ArrayList<Tuple> chunk = chunks.get(i);
+                    chunk.add(t);
+                    if (chunk.size() == CHUNK_SIZE) {
+                        sending = channels[i].send(chunk);
+                        chunks.set(i, new ArrayList<Tuple>(CHUNK_SIZE));
+                    }
+                }
+            }
+            for (int i = 0; i < channels.length && sending; i++) {
+                if (!chunks.get(i).isEmpty())
+                    sending = channels[i].send(chunks.get(i));
+            }
+        } catch (Exception e) {
+            error = e;
+        } finally {
+            child.close();
+            for (Channel c : channels)
+                c.finish(error);
+        }
+    }
+
+    /**
+     * A bounded queue of chunks of rows from a number of producer threads to
+     * one consumer.
+     */
+    static class Channel {
+        // put by each producer when it is done
+        private static final ArrayList<Tuple> END = new ArrayList<Tuple>();
+
+        private final BlockingQueue<ArrayList<Tuple>> queue =
+            new ArrayBlockingQueue<ArrayList<Tuple>>(QUEUED_CHUNKS);
+        // producers the consumer has not seen finish
+        private int producers;
+        private volatile boolean cancelled = false;
+        private volatile boolean discarding = false;
+        private volatile Exception error;
+
+        Channel(int producers) {
+            this.producers = producers;
+        }
+
+        /**
+         * Called by a producer to send a chunk, waiting for room in the
+         * queue.
+         *
+         * @return false if the producer should stop, because the channel
+         *         was cancelled
+         */
+        boolean send(ArrayList<Tuple> chunk) {
+            try {
+                while (!cancelled) {
+                    if (discarding || queue.offer(chunk, 10, TimeUnit.MILLISECONDS))
+                        return true;
+                }
+            } catch (InterruptedException e) {
+                // treated as a cancel
+            }
+            return false;
+        }
+
+        /** Called by a producer when it is done, with the error that stopped it, if any. */
+        void finish(Exception e) {
+            if (e != null && error == null)
+                error = e;
+            try {
+                while (!cancelled && !queue.offer(END, 10, TimeUnit.MILLISECONDS))
+                    ;
+            } catch (InterruptedException ie) {
+                // likewise
+            }
+        }
+
+        /**
+         * Called by the consumer for the next chunk.
+         *
+         * @return the chunk, or null once every producer is done
+         * @throws DbException or TransactionAbortedException if a producer
+         *             failed
+         */
+        ArrayList<Tuple> receive() throws DbException, TransactionAbortedException {
+            while (producers > 0) {
+                ArrayList<Tuple> chunk;
+                try {
+                    chunk = queue.take();
+                } catch (InterruptedException e) {
+                    throw new DbException("interrupted while waiting for an exchange");
+                }
+                if (chunk != END)
+                    return chunk;
+                producers--;
+                if (error != null) {
+                    producers = 0;
+                    rethrow(error);
+                }
+            }
+            return null;
+        }
+
+        /** Stops the producers; they see it at their next send. */
+        void cancel() {
+            cancelled = true;
+            queue.clear();
+        }
+
+        /**
+         * Makes the producers drop whatever they send from now on, for a
+         * consumer that is done while other consumers of the same producers
+         * are not.
+         */
+        void discard() {
+            discarding = true;
+            queue.clear();
+        }
+    }
+
+    private static void rethrow(Exception e)
+            throws DbException, TransactionAbortedException {
+        if (e instanceof DbException)
+            throw (DbException) e;
+        if (e instanceof TransactionAbortedException)
+            throw (TransactionAbortedException) e;
+        if (e instanceof RuntimeException)
+            throw (RuntimeException) e;
+        throw new DbException("exchange producer failed: " + e);
+    }
+}
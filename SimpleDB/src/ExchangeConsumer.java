@@ -0,0 +1,91 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.NoSuchElementException;
+
+/**
+ * The consuming end of an {@link Exchange}: an operator that returns the rows
+ * producer threads send it through a channel.
+ * <p>
+ * Rows that have been returned are kept, so the operator can be rewound
+ * without running the producers again; this costs memory for every row, and
+ * can be turned off with {@link #setRewindable(boolean)} when the consumer
+ * is known never to be rewound, e.g. under an Aggregate.
+ */
+public abstract class ExchangeConsumer extends Exchange {
+
+    private static final long serialVersionUID = 1L;
+
+    private boolean rewindable = true;
+
+    private transient Channel channel;
+    private transient ArrayList<Tuple> chunk;
+    private transient int chunkPos;
+    // the rows returned so far, and the next one to return again after a
+    // rewind
+    private transient ArrayList<Tuple> seen = new ArrayList<Tuple>();
+    private transient int replayPos;
+
+    /**
+     * Sets whether the operator keeps its rows so it can be rewound; true by
+     * default. Takes effect at the next open().
+     */
+    public void setRewindable(boolean rewindable) {
+        this.rewindable = rewindable;
+    }
+
+    public boolean isRewindable() {
+        return rewindable;
+    }
+
+    /**
+     * Makes sure the producers are running.
+     *
+     * @return the channel to read the rows from
+     */
+    protected abstract Channel start() throws DbException,
+            TransactionAbortedException;
+
+    /** Called when the operator is closed, to let the producers stop. */
+    protected abstract void stop();
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        channel = start();
+        chunk = null;
+        seen = new ArrayList<Tuple>();
+        replayPos = 0;
+        super.open();
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (replayPos < seen.size())
+            return seen.get(replayPos++);
+        while (chunk == null || chunkPos >= chunk.size()) {
+            chunk = channel.receive();
+            chunkPos = 0;
+            if (chunk == null)
+                return null;
+        }
+        Tuple t = chunk.get(chunkPos++);
+        if (rewindable) {
+            seen.add(t);
+            replayPos++;
+        }
+        return t;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (!rewindable)
+            throw new DbException(getName() + " is not rewindable");
+        replayPos = 0;
+    }
+
+    public void close() {
+        super.close();
+        stop();
+        channel = null;
+        chunk = null;
+        seen = new ArrayList<Tuple>();
+    }
+}
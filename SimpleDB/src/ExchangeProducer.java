@@ -0,0 +1,135 @@
+package simpledb;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * The producing end of an {@link Exchange} with several outputs: it runs
+ * each of its children on a thread of its own and sends their rows to the
+ * outputs chosen by {@link #router()}. Each output is an operator that
+ * returns the rows sent to it.
+ * <p>
+ * The producers start when the first output is opened and stop when the
+ * last one is closed, which returns once they are done. An output that is
+ * closed before the others is simply not sent any more rows; it cannot be
+ * opened again until they are all closed, but can be rewound.
+ */
+public abstract class ExchangeProducer {
+
+    private DbIterator[] children;
+    private final Output[] outputs;
+
+    private transient Exchange.Channel[] channels;
+    private transient CountDownLatch producers;
+    private transient int openOutputs = 0;
+
+    /**
+     * @param children the plans whose rows to send, which must have the
+     *            same TupleDesc
+     * @param numOutputs the number of outputs
+     */
+    protected ExchangeProducer(DbIterator[] children, int numOutputs) {
+        if (children.length == 0 || numOutputs < 1)
+            throw new IllegalArgumentException("an exchange needs inputs and outputs");
+        this.children = children;
+        this.outputs = new Output[numOutputs];
+        for (int i = 0; i < numOutputs; i++)
+            outputs[i] = new Output(i);
+    }
+
+    /** @return a short description of the exchange, for query plans */
+    public abstract String getName();
+
+    /** @return the router choosing the outputs each row goes to */
+    abstract Exchange.Router router();
+
+    public int numOutputs() {
+        return outputs.length;
+    }
+
+    /** @return the ith output */
+    public ExchangeConsumer getOutput(int i) {
+        return outputs[i];
+    }
+
+    public TupleDesc getTupleDesc() {
+        return children[0].getTupleDesc();
+    }
+
+    public DbIterator[] getChildren() {
+        return children;
+    }
+
+    public void setChildren(DbIterator[] children) {
+        this.children = children;
+    }
+
+    private synchronized Exchange.Channel start(int output) throws DbException {
+        if (outputs[output].opened)
+            throw new DbException(getName() + " output " + output
+                    + " opened again before the other outputs were closed");
+        if (openOutputs == 0) {
+            channels = new Exchange.Channel[outputs.length];
+            for (int i = 0; i < channels.length; i++)
+                channels[i] = new Exchange.Channel(children.length);
+            producers = Exchange.startProducers(children, channels, router());
+        }
+        openOutputs++;
+        outputs[output].opened = true;
+        return channels[output];
+    }
+
+    private synchronized void stop(int output) {
+        if (!outputs[output].opened)
+            return;
+        if (--openOutputs == 0) {
+            for (Exchange.Channel c : channels)
+                c.cancel();
+            Exchange.awaitProducers(producers);
+            channels = null;
+            producers = null;
+            for (Output o : outputs)
+                o.opened = false;
+        } else {
+            channels[output].discard();
+        }
+    }
+
+    /** An output of the exchange. */
+    private class Output extends ExchangeConsumer {
+        private static final long serialVersionUID = 1L;
+
+        private final int index;
+        // opened in the current run of the producers
+        boolean opened = false;
+
+        Output(int index) {
+            this.index = index;
+        }
+
+        public String getName() {
+            return ExchangeProducer.this.getName() + "[" + index + "]";
+        }
+
+        public TupleDesc getTupleDesc() {
+            return ExchangeProducer.this.getTupleDesc();
+        }
+
+        protected Channel start() throws DbException {
+            return ExchangeProducer.this.start(index);
+        }
+
+        protected void stop() {
+            ExchangeProducer.this.stop(index);
+        }
+
+        @Override
+        public DbIterator[] getChildren() {
+            return ExchangeProducer.this.getChildren();
+        }
+
+        @Override
+        public void setChildren(DbIterator[] children) {
+            ExchangeProducer.this.setChildren(children);
+        }
+    }
+}
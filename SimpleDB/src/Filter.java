@@ -70,6 +70,24 @@ public class Filter extends Operator {
         return null;
     }
 
+    /**
+     * Operator.fetchNextBatch implementation. Narrows the selection of the
+     * child's batches to the rows that pass the predicate, skipping batches
+     * in which no row does.
+     *
+     * @see Predicate#filter(TupleBatch)
+     */
+    protected TupleBatch fetchNextBatch() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        TupleBatch batch;
+        while ((batch = this.child.nextBatch()) != null) {
+            if (this.p.filter(batch) > 0) {
+                return batch;
+            }
+        }
+        return null;
+    }
+
     @Override
     public DbIterator[] getChildren() {
         return new DbIterator[] { this.child };
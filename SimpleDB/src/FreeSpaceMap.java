@@ -0,0 +1,189 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * FreeSpaceMap records how many empty slots each page of a {@link HeapFile}
+ * has, so that inserts can go straight to a page with room instead of
+ * reading every page from the start of the file.
+ * <p>
+ * The map is kept in a side file next to the heap file, named after it with
+ * a ".fsm" suffix, holding one byte per page: the number of empty slots,
+ * capped at 255. The map is only a hint. Pages it has no entry for, e.g.
+ * because the side file does not exist yet, are assumed to have room; the
+ * inserter finds out otherwise when it reads the page and corrects the map,
+ * so a missing or stale map is rebuilt by the inserts themselves.
+ * <p>
+ * To keep the cost of maintaining the map low, an entry is written to disk
+ * when its page is written, and in between only when the page stops being
+ * full. A page that fills up in memory is only marked full on disk once it
+ * is written, since the transaction that filled it may still abort; if it
+ * does, the entry goes back to the one of the page on disk (see
+ * {@link #pageDiscarded(int)}). All methods are synchronized.
+ */
+class FreeSpaceMap {
+
+    private static final int MAX_ENTRY = 255;
+
+    private final File file;
+    private DbFileChannel channel;
+    private boolean loaded = false;
+
+    // the entries as last reported, and as last written to the side file;
+    // only the first size entries are known
+    private byte[] current = new byte[0];
+    private byte[] onDisk = new byte[0];
+    private int size = 0;
+    // no page below this one has room
+    private int firstCandidate = 0;
+
+    FreeSpaceMap(File heapFile) {
+        this.file = fileFor(heapFile);
+    }
+
+    /** @return the side file holding the free-space map of heapFile */
+    static File fileFor(File heapFile) {
+        return new File(heapFile.getPath() + ".fsm");
+    }
+
+    /**
+     * Returns the first page from from onwards that may have an empty slot.
+     *
+     * @param numPages the number of pages in the heap file
+     * @return the page number, or -1 if every page is known to be full
+     */
+    synchronized int findPageWithRoom(int from, int numPages) {
+        load();
+        int pageNo = Math.max(from, firstCandidate);
+        while (pageNo < size && pageNo < numPages && current[pageNo] == 0) {
+            pageNo++;
+        }
+        if (from <= firstCandidate) {
+            firstCandidate = pageNo;
+        }
+        return pageNo < numPages ? pageNo : -1;
+    }
+
+    /**
+     * Records the number of empty slots on a page that was changed in
+     * memory. Written to disk only if the page stopped being full.
+     */
+    synchronized void update(int pageNo, int emptySlots) {
+        load();
+        set(pageNo, emptySlots);
+        if (current[pageNo] != 0 && onDisk[pageNo] == 0) {
+            persist(pageNo);
+        }
+    }
+
+    /**
+     * Records the number of empty slots on a page as it is on disk: one that
+     * was just written, or read and not changed since.
+     */
+    synchronized void pageWritten(int pageNo, int emptySlots) {
+        load();
+        set(pageNo, emptySlots);
+        if (current[pageNo] != onDisk[pageNo]) {
+            persist(pageNo);
+        }
+    }
+
+    /**
+     * Called when the version of a page changed in memory is dropped, e.g.
+     * because the transaction that changed it aborted: the entry goes back
+     * to the one last written, of the page on disk.
+     */
+    synchronized void pageDiscarded(int pageNo) {
+        load();
+        if (pageNo >= size) {
+            return;
+        }
+        current[pageNo] = onDisk[pageNo];
+        if (current[pageNo] != 0 && pageNo < firstCandidate) {
+            firstCandidate = pageNo;
+        }
+    }
+
+    /** Closes the side file; it is reopened if the map is written again. */
+    synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    private void set(int pageNo, int emptySlots) {
+        if (pageNo >= current.length) {
+            int capacity = Math.max(pageNo + 1, current.length * 2);
+            current = Arrays.copyOf(current, capacity);
+            onDisk = Arrays.copyOf(onDisk, capacity);
+        }
+        // pages between the old end of the map and pageNo stay candidates
+        for (int i = size; i < pageNo; i++) {
+            current[i] = (byte) MAX_ENTRY;
+            onDisk[i] = (byte) MAX_ENTRY;
+        }
+        if (pageNo >= size) {
+            onDisk[pageNo] = (byte) MAX_ENTRY;
+            size = pageNo + 1;
+        }
+        current[pageNo] = (byte) Math.min(emptySlots, MAX_ENTRY);
+        if (emptySlots > 0 && pageNo < firstCandidate) {
+            firstCandidate = pageNo;
+        }
+    }
+
+    private void persist(int pageNo) {
+        try {
+            if (channel == null) {
+                if (!file.exists()) {
+                    file.createNewFile();
+                }
+                channel = new DbFileChannel(file);
+            }
+            // fill any gap up to pageNo, so that every entry on disk is valid
+            long length = channel.size();
+            if (length < pageNo) {
+                byte[] gap = new byte[pageNo - (int) length];
+                Arrays.fill(gap, (byte) MAX_ENTRY);
+                channel.write(gap, length);
+            }
+            channel.write(new byte[] {current[pageNo]}, pageNo);
+            onDisk[pageNo] = current[pageNo];
+        } catch (IOException e) {
+            // the map is only a hint; the entry is retried when it next
+            // changes
+            e.printStackTrace();
+        }
+    }
+
+    /** Reads the side file the first time the map is used. */
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                int length = (int) raf.length();
+                current = new byte[length];
+                raf.readFully(current);
+                onDisk = current.clone();
+                size = length;
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            // start from an empty map instead
+            current = new byte[0];
+            onDisk = new byte[0];
+            size = 0;
+        }
+    }
+}
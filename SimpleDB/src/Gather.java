@@ -0,0 +1,65 @@
+package simpledb;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Gather is an {@link Exchange} that runs each of its children on a thread
+ * of its own and returns the rows of all of them, in no particular order.
+ * The children must have the same TupleDesc.
+ */
+public class Gather extends ExchangeConsumer {
+
+    private static final long serialVersionUID = 1L;
+
+    private DbIterator[] children;
+    private transient Channel channel;
+    private transient CountDownLatch producers;
+
+    /**
+     * @param children the plans to run in parallel
+     */
+    public Gather(DbIterator[] children) {
+        if (children.length == 0)
+            throw new IllegalArgumentException("nothing to gather");
+        this.children = children;
+    }
+
+    public String getName() {
+        return "gather(" + children.length + ")";
+    }
+
+    public TupleDesc getTupleDesc() {
+        return children[0].getTupleDesc();
+    }
+
+    protected Channel start() {
+        channel = new Channel(children.length);
+        Channel[] channels = new Channel[] { channel };
+        Router router = new Router() {
+            public int route(Tuple t) {
+                return 0;
+            }
+        };
+        producers = startProducers(children, channels, router);
+        return channel;
+    }
+
+    protected void stop() {
+        if (channel != null) {
+            channel.cancel();
+            awaitProducers(producers);
+        }
+        channel = null;
+        producers = null;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return children;
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.children = children;
+    }
+}
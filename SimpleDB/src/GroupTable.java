@@ -0,0 +1,836 @@
+package simpledb;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * A GroupTable computes aggregates of each group of the tuples merged into
+ * it, for the {@link Aggregator}s. A group is identified by the values of
+ * one or more group-by fields, ints or Strings, each held in an array of
+ * its own, and is found by open addressing on the hash of those values;
+ * the aggregates of each group are kept in long accumulators. So merging a
+ * tuple takes one probe, and boxes nothing.
+ * <p>
+ * The table holds up to a memory budget of groups. Once it is full, the
+ * tuples of groups it does not hold are partitioned by the hash of their
+ * group into {@link TupleSpillFile}s, and each partition is aggregated in
+ * a table of its own when the results are read, split again in the same
+ * way if it is still too large. Groups that are in the table before it
+ * fills up stay there, so a table whose frequent groups come early spills
+ * little.
+ * <p>
+ * What is spilled is the state of a group: its accumulators, which a tuple
+ * starts with its values, and its count of tuples. States merge exactly,
+ * AVG included, as its state is a sum and a count; so the tables of
+ * several threads can aggregate parts of the same input and then be merged
+ * into one with {@link #merge(GroupTable)}.
+ * <p>
+ * COUNT_DISTINCT is counted from a second table, of the distinct pairs of a
+ * group and a value, that spills like this one. Once all tuples are merged,
+ * each pair adds one to the count of its group. APPROX_COUNT_DISTINCT keeps
+ * a {@link HyperLogLog} sketch of each group, whose state is spilled as one
+ * tuple for each register that is set.
+ */
+class GroupTable {
+
+    /** Default number of groups held in memory. */
+    static final int DEFAULT_MEMORY_BUDGET = 100000;
+
+    /** Number of partitions a full table spills to. */
+    static final int FANOUT = 16;
+
+    /**
+     * Number of times a partition is split again before the table of the
+     * last level is allowed to outgrow the budget.
+     */
+    static final int MAX_LEVELS = 4;
+
+    // the group-by fields of the input, and for each whether it is an int
+    private final int[] keyFields;
+    private final boolean[] intKey;
+    // the aggregated fields of the input, and for each whether it is an
+    // int; only the counts are computed over Strings
+    private final int[] valueFields;
+    private final boolean[] intValue;
+    private final Aggregator.Op[] ops;
+    private final TupleDesc resultTd;
+    // the group-by fields, then the high and low ints of each accumulator,
+    // then the count
+    private final TupleDesc spillTd;
+    private final int memoryBudget;
+    private final int level;
+
+    // group + 1 of each slot, or 0 if the slot is free; twice as many slots
+    // as groups fit in the arrays below
+    private int[] slots;
+    private int mask;
+    // the hash of the key findGroup() last looked for
+    private int keyHash;
+    // the value of each group-by field of each group
+    private int[][] intKeys;
+    private String[][] stringKeys;
+    // the accumulator of each aggregate of each group, and the number of
+    // tuples of each group
+    private long[][] values;
+    private long[] counts;
+    private int groups;
+    // the sketch of each group of each APPROX_COUNT_DISTINCT, null for the
+    // other aggregates, and a null sketch for a group without values yet
+    private final HyperLogLog[][] sketches;
+    // the distinct pairs of a group and a value of each COUNT_DISTINCT,
+    // null for the other aggregates, and whether they were counted
+    private final GroupTable[] distinct;
+    private boolean finished;
+
+    // the group and values of the tuple being merged
+    private final int[] keyInts;
+    private final String[] keyStrings;
+    private final long[] tupleValues;
+
+    // the tuples of the groups that did not fit, or null if all did
+    private TupleSpillFile[] spills;
+    private int spilled;
+
+    /**
+     * Creates an empty table.
+     *
+     * @param keyFields the group-by fields, none if there is no grouping
+     * @param keyTypes the type of each group-by field
+     * @param valueFields the field each aggregate is computed over
+     * @param valueTypes the type of each of those fields
+     * @param ops the aggregates to compute
+     * @param resultTd the TupleDesc of the results: the group-by fields, then
+     *            an int for each aggregate
+     * @param memoryBudget the number of groups held in memory
+     * @throws IllegalArgumentException if an op is SUM_COUNT or SC_AVG, or
+     *             is not one of the counts over a String field
+     */
+    GroupTable(int[] keyFields, Type[] keyTypes, int[] valueFields,
+            Type[] valueTypes, Aggregator.Op[] ops, TupleDesc resultTd,
+            int memoryBudget) {
+        this(keyFields, keyTypes, valueFields, valueTypes, ops, resultTd,
+                memoryBudget, memoryBudget);
+    }
+
+    /**
+     * Creates an empty table that holds a different number of the distinct
+     * pairs of a group and a value of each COUNT_DISTINCT than of groups.
+     *
+     * @param distinctBudget the number of pairs of each COUNT_DISTINCT held
+     *            in memory
+     * @see #GroupTable(int[], Type[], int[], Type[], Aggregator.Op[],
+     *      TupleDesc, int)
+     */
+    GroupTable(int[] keyFields, Type[] keyTypes, int[] valueFields,
+            Type[] valueTypes, Aggregator.Op[] ops, TupleDesc resultTd,
+            int memoryBudget, int distinctBudget) {
+        this(keyFields, keyTypes, valueFields, valueTypes, ops, resultTd,
+                memoryBudget, distinctBudget, 0);
+    }
+
+    private GroupTable(int[] keyFields, Type[] keyTypes, int[] valueFields,
+            Type[] valueTypes, Aggregator.Op[] ops, TupleDesc resultTd,
+            int memoryBudget, int distinctBudget, int level) {
+        if (keyFields.length != keyTypes.length
+                || valueFields.length != valueTypes.length
+                || valueFields.length != ops.length)
+            throw new IllegalArgumentException("need a type for each field, and a field for each aggregate");
+        if (memoryBudget < 1)
+            throw new IllegalArgumentException("memory budget must be positive");
+        this.keyFields = keyFields.clone();
+        this.valueFields = valueFields.clone();
+        this.ops = ops.clone();
+        this.resultTd = resultTd;
+        this.memoryBudget = memoryBudget;
+        this.level = level;
+        int k = keyFields.length, a = ops.length;
+        Type[] spillTypes = new Type[k + 2 * a + 1];
+        intKey = new boolean[k];
+        for (int i = 0; i < k; i++) {
+            spillTypes[i] = keyTypes[i];
+            intKey[i] = spillTypes[i] == Type.INT_TYPE;
+        }
+        intValue = new boolean[a];
+        sketches = new HyperLogLog[a][];
+        distinct = new GroupTable[a];
+        for (int i = 0; i < a; i++) {
+            boolean count;
+            switch (ops[i]) {
+            case MIN: case MAX: case SUM: case AVG:
+                count = false;
+                break;
+            case COUNT: case COUNT_DISTINCT: case APPROX_COUNT_DISTINCT:
+                count = true;
+                break;
+            default:
+                throw new IllegalArgumentException("unsupported aggregate "
+                        + ops[i]);
+            }
+            intValue[i] = valueTypes[i] == Type.INT_TYPE;
+            if (!intValue[i] && !count)
+                throw new IllegalArgumentException("only counts are supported over strings");
+            if (ops[i] == Aggregator.Op.COUNT_DISTINCT && level == 0) {
+                // the tables of spilled partitions only merge states, in
+                // which the pairs are already counted
+                int[] pairFields = Arrays.copyOf(keyFields, k + 1);
+                Type[] pairTypes = Arrays.copyOf(keyTypes, k + 1);
+                pairFields[k] = valueFields[i];
+                pairTypes[k] = valueTypes[i];
+                distinct[i] = new GroupTable(pairFields, pairTypes, new int[0],
+                        new Type[0], new Aggregator.Op[0], new TupleDesc(pairTypes),
+                        distinctBudget);
+            }
+            spillTypes[k + 2 * i] = Type.INT_TYPE;
+            spillTypes[k + 2 * i + 1] = Type.INT_TYPE;
+        }
+        spillTypes[k + 2 * a] = Type.INT_TYPE;
+        spillTd = new TupleDesc(spillTypes);
+        keyInts = new int[k];
+        keyStrings = new String[k];
+        tupleValues = new long[a];
+        intKeys = new int[k][];
+        stringKeys = new String[k][];
+        values = new long[a][];
+        clear();
+    }
+
+    /** Removes all groups, and deletes the files any were spilled to. */
+    void clear() {
+        for (GroupTable d : distinct)
+            if (d != null)
+                d.clear();
+        finished = false;
+        if (spills != null)
+            for (TupleSpillFile f : spills)
+                if (f != null)
+                    f.delete();
+        spills = null;
+        spilled = 0;
+        groups = 0;
+        allocate(Math.min(memoryBudget, 1024));
+    }
+
+    /** @return the number of groups in memory */
+    int groups() {
+        return groups;
+    }
+
+    /** @return the number of tuples spilled because the table was full */
+    int spilledTuples() {
+        return spilled;
+    }
+
+    /** (Re)allocates the arrays for capacity groups, keeping the groups */
+    private void allocate(int capacity) {
+        int n = 2;
+        while (n < 2 * capacity)
+            n <<= 1;
+        slots = new int[n];
+        mask = n - 1;
+        counts = groups == 0 ? new long[capacity] : Arrays.copyOf(counts, capacity);
+        for (int a = 0; a < values.length; a++) {
+            values[a] = groups == 0 ? new long[capacity] : Arrays.copyOf(values[a], capacity);
+            if (ops[a] == Aggregator.Op.APPROX_COUNT_DISTINCT)
+                sketches[a] = groups == 0 ? new HyperLogLog[capacity] : Arrays.copyOf(sketches[a], capacity);
+        }
+        for (int i = 0; i < keyFields.length; i++) {
+            if (intKey[i])
+                intKeys[i] = groups == 0 ? new int[capacity] : Arrays.copyOf(intKeys[i], capacity);
+            else
+                stringKeys[i] = groups == 0 ? new String[capacity] : Arrays.copyOf(stringKeys[i], capacity);
+        }
+    }
+
+    /** Makes room for one more group, if the budget allows */
+    private void grow() {
+        if (groups < counts.length)
+            return;
+        if (groups >= memoryBudget && level < MAX_LEVELS)
+            return;
+        int capacity = (int) Math.min(Integer.MAX_VALUE / 4, 2L * counts.length);
+        if (level < MAX_LEVELS)
+            capacity = Math.min(capacity, memoryBudget);
+        allocate(capacity);
+        for (int g = 0; g < groups; g++) {
+            int s = hashOfGroup(g) & mask;
+            while (slots[s] != 0)
+                s = (s + 1) & mask;
+            slots[s] = g + 1;
+        }
+    }
+
+    /**
+     * Mixes a hash code; each level mixes differently, so that the groups
+     * of a partition are split by the next level.
+     */
+    private int mix(int h) {
+        h = h * 0x9e3779b9 + (level + 1) * 0x85ebca6b;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private int hashOfKey() {
+        int h = 0;
+        for (int i = 0; i < keyFields.length; i++)
+            h = 31 * h + (intKey[i] ? keyInts[i] : keyStrings[i].hashCode());
+        return mix(h);
+    }
+
+    private int hashOfGroup(int g) {
+        int h = 0;
+        for (int i = 0; i < keyFields.length; i++)
+            h = 31 * h + (intKey[i] ? intKeys[i][g] : stringKeys[i][g].hashCode());
+        return mix(h);
+    }
+
+    private boolean isKey(int g) {
+        for (int i = 0; i < keyFields.length; i++) {
+            if (intKey[i] ? intKeys[i][g] != keyInts[i]
+                    : !stringKeys[i][g].equals(keyStrings[i]))
+                return false;
+        }
+        return true;
+    }
+
+    /** Adds the group of the key in slot s */
+    private int newGroup(int s) {
+        int g = groups++;
+        slots[s] = g + 1;
+        for (int i = 0; i < keyFields.length; i++) {
+            if (intKey[i])
+                intKeys[i][g] = keyInts[i];
+            else
+                stringKeys[i][g] = keyStrings[i];
+        }
+        for (int a = 0; a < ops.length; a++) {
+            values[a][g] = neutral(a);
+            if (sketches[a] != null)
+                sketches[a][g] = null;
+        }
+        counts[g] = 0;
+        return g;
+    }
+
+    /** @return the accumulator of aggregate a that merges as a no-op */
+    private long neutral(int a) {
+        switch (ops[a]) {
+        case MIN:
+            return Long.MAX_VALUE;
+        case MAX:
+            return Long.MIN_VALUE;
+        default:
+            return 0;
+        }
+    }
+
+    /**
+     * @return what a value of the input adds to the accumulator of
+     *         aggregate a: the value itself, the update of its register in
+     *         a sketch for APPROX_COUNT_DISTINCT, and nothing for
+     *         COUNT_DISTINCT, which counts its pairs once all are merged
+     */
+    private long input(int a, int value) {
+        switch (ops[a]) {
+        case COUNT_DISTINCT:
+            return 0;
+        case APPROX_COUNT_DISTINCT:
+            return HyperLogLog.update(HyperLogLog.hash(value));
+        default:
+            return value;
+        }
+    }
+
+    private long input(int a, String value) {
+        if (ops[a] == Aggregator.Op.APPROX_COUNT_DISTINCT)
+            return HyperLogLog.update(HyperLogLog.hash(value));
+        return 0;
+    }
+
+    /**
+     * Merges an accumulator into that of a group: the minimum for MIN, the
+     * maximum for MAX, the sum for SUM, AVG and COUNT_DISTINCT, and an
+     * update of the sketch for APPROX_COUNT_DISTINCT. COUNT only uses
+     * counts.
+     */
+    private void accumulate(int g, int a, long value) {
+        switch (ops[a]) {
+        case MIN:
+            if (value < values[a][g])
+                values[a][g] = value;
+            break;
+        case MAX:
+            if (value > values[a][g])
+                values[a][g] = value;
+            break;
+        case SUM: case AVG: case COUNT_DISTINCT:
+            values[a][g] += value;
+            break;
+        case APPROX_COUNT_DISTINCT:
+            if (value != 0) {
+                if (sketches[a][g] == null)
+                    sketches[a][g] = new HyperLogLog();
+                sketches[a][g].apply((int) value);
+            }
+            break;
+        default:
+            break;
+        }
+    }
+
+    /**
+     * Merges the state in keyInts, keyStrings and tupleValues, of count
+     * tuples, into its group
+     */
+    private void mergeKey(long count) throws DbException {
+        int g = findGroup();
+        if (g < 0) {
+            spill(keyHash, count);
+            return;
+        }
+        for (int a = 0; a < ops.length; a++)
+            accumulate(g, a, tupleValues[a]);
+        counts[g] += count;
+    }
+
+    /**
+     * @return the group of the key in keyInts and keyStrings, added if it is
+     *         new, or -1 if it is new and the table is full; either way,
+     *         keyHash is its hash
+     */
+    private int findGroup() {
+        grow();
+        keyHash = hashOfKey();
+        int s = keyHash & mask;
+        int g;
+        while ((g = slots[s] - 1) >= 0 && !isKey(g))
+            s = (s + 1) & mask;
+        if (g < 0 && groups < counts.length)
+            g = newGroup(s);
+        return g;
+    }
+
+    /**
+     * Merges a tuple into its group.
+     *
+     * @return true if it started a group held in memory; the tuples of
+     *         groups that did not fit only come back from
+     *         {@link #spilledIterator()}
+     */
+    boolean add(Tuple t) throws DbException {
+        int before = groups;
+        merge(t);
+        return groups > before;
+    }
+
+    /** Merges a tuple into its group. */
+    void merge(Tuple t) throws DbException {
+        for (int i = 0; i < keyFields.length; i++) {
+            Field f = t.getField(keyFields[i]);
+            if (intKey[i])
+                keyInts[i] = ((IntField) f).getValue();
+            else
+                keyStrings[i] = ((StringField) f).getValue();
+        }
+        for (int a = 0; a < ops.length; a++) {
+            Field f = t.getField(valueFields[a]);
+            tupleValues[a] = intValue[a] ? input(a, ((IntField) f).getValue())
+                    : input(a, ((StringField) f).getValue());
+        }
+        for (GroupTable d : distinct)
+            if (d != null)
+                d.merge(t);
+        if (keyFields.length == 0)
+            mergeUngrouped(1);
+        else
+            mergeKey(1);
+    }
+
+    /**
+     * Merges the visible rows of a batch into their groups, reading them
+     * from the columns of the batch. Without grouping the aggregates of the
+     * batch are computed in a loop over each column and merged once.
+     */
+    void merge(TupleBatch batch) throws DbException {
+        int n = batch.size();
+        if (n == 0)
+            return;
+        for (GroupTable d : distinct)
+            if (d != null)
+                d.merge(batch);
+        int[][] valueCols = new int[ops.length][];
+        String[][] stringValueCols = new String[ops.length][];
+        for (int a = 0; a < ops.length; a++) {
+            if (intValue[a])
+                valueCols[a] = batch.getIntColumn(valueFields[a]);
+            else
+                stringValueCols[a] = batch.getStringColumn(valueFields[a]);
+        }
+        if (keyFields.length == 0) {
+            if (groups == 0)
+                newGroup(0);
+            for (int a = 0; a < ops.length; a++) {
+                int[] col = valueCols[a];
+                long partial;
+                switch (ops[a]) {
+                case MIN:
+                    partial = Long.MAX_VALUE;
+                    for (int k = 0; k < n; k++)
+                        partial = Math.min(partial, col[batch.row(k)]);
+                    break;
+                case MAX:
+                    partial = Long.MIN_VALUE;
+                    for (int k = 0; k < n; k++)
+                        partial = Math.max(partial, col[batch.row(k)]);
+                    break;
+                case SUM: case AVG:
+                    partial = 0;
+                    for (int k = 0; k < n; k++)
+                        partial += col[batch.row(k)];
+                    break;
+                case APPROX_COUNT_DISTINCT:
+                    // a sketch merges one value at a time
+                    for (int k = 0; k < n; k++) {
+                        int row = batch.row(k);
+                        accumulate(0, a, col != null ? input(a, col[row])
+                                : input(a, stringValueCols[a][row]));
+                    }
+                    partial = 0;
+                    break;
+                default:
+                    partial = 0;
+                }
+                tupleValues[a] = partial;
+            }
+            mergeUngrouped(n);
+            return;
+        }
+        int[][] intCols = new int[keyFields.length][];
+        String[][] stringCols = new String[keyFields.length][];
+        for (int i = 0; i < keyFields.length; i++) {
+            if (intKey[i])
+                intCols[i] = batch.getIntColumn(keyFields[i]);
+            else
+                stringCols[i] = batch.getStringColumn(keyFields[i]);
+        }
+        for (int k = 0; k < n; k++) {
+            int row = batch.row(k);
+            for (int i = 0; i < keyFields.length; i++) {
+                if (intKey[i])
+                    keyInts[i] = intCols[i][row];
+                else
+                    keyStrings[i] = stringCols[i][row];
+            }
+            for (int a = 0; a < ops.length; a++)
+                tupleValues[a] = intValue[a] ? input(a, valueCols[a][row])
+                        : input(a, stringValueCols[a][row]);
+            mergeKey(1);
+        }
+    }
+
+    /**
+     * Merges the aggregates in tupleValues of count tuples into the only
+     * group of a table without grouping.
+     */
+    private void mergeUngrouped(long count) {
+        if (groups == 0)
+            newGroup(0);
+        for (int a = 0; a < ops.length; a++)
+            accumulate(0, a, tupleValues[a]);
+        counts[0] += count;
+    }
+
+    /**
+     * Merges the groups of another table with the same fields and
+     * aggregates into this one, then clears it.
+     */
+    void merge(GroupTable other) throws DbException,
+            TransactionAbortedException {
+        int k = keyFields.length;
+        for (int a = 0; a < ops.length; a++)
+            if (distinct[a] != null)
+                distinct[a].merge(other.distinct[a]);
+        for (int g = 0; g < other.groups; g++) {
+            for (int i = 0; i < k; i++) {
+                if (intKey[i])
+                    keyInts[i] = other.intKeys[i][g];
+                else
+                    keyStrings[i] = other.stringKeys[i][g];
+            }
+            for (int a = 0; a < ops.length; a++)
+                tupleValues[a] = other.values[a][g];
+            int to;
+            if (k == 0) {
+                if (groups == 0)
+                    newGroup(0);
+                to = 0;
+            } else {
+                to = findGroup();
+            }
+            if (to >= 0) {
+                for (int a = 0; a < ops.length; a++) {
+                    accumulate(to, a, tupleValues[a]);
+                    if (sketches[a] != null && other.sketches[a][g] != null) {
+                        for (int u : other.sketches[a][g].updates())
+                            accumulate(to, a, u);
+                    }
+                }
+                counts[to] += other.counts[g];
+                continue;
+            }
+            // spill the state, and each update of its sketches with an
+            // otherwise neutral state of no tuples
+            spill(keyHash, other.counts[g]);
+            for (int a = 0; a < ops.length; a++) {
+                if (sketches[a] == null || other.sketches[a][g] == null)
+                    continue;
+                for (int u : other.sketches[a][g].updates()) {
+                    for (int b = 0; b < ops.length; b++)
+                        tupleValues[b] = neutral(b);
+                    tupleValues[a] = u;
+                    spill(keyHash, 0);
+                }
+            }
+        }
+        if (other.spills != null) {
+            for (TupleSpillFile f : other.spills) {
+                if (f == null)
+                    continue;
+                DbIterator in = f.iterator();
+                in.open();
+                while (in.hasNext())
+                    mergeState(in.next());
+                in.close();
+            }
+        }
+        other.clear();
+    }
+
+    /**
+     * Counts the distinct pairs of each COUNT_DISTINCT into their groups,
+     * once all tuples are merged.
+     */
+    private void finish() throws DbException, TransactionAbortedException {
+        if (finished)
+            return;
+        finished = true;
+        int k = keyFields.length;
+        for (int a = 0; a < ops.length; a++) {
+            if (distinct[a] == null)
+                continue;
+            DbIterator pairs = distinct[a].iterator();
+            pairs.open();
+            while (pairs.hasNext()) {
+                Tuple t = pairs.next();
+                for (int i = 0; i < k; i++) {
+                    if (intKey[i])
+                        keyInts[i] = ((IntField) t.getField(i)).getValue();
+                    else
+                        keyStrings[i] = ((StringField) t.getField(i)).getValue();
+                }
+                for (int b = 0; b < ops.length; b++)
+                    tupleValues[b] = neutral(b);
+                tupleValues[a] = 1;
+                if (k == 0)
+                    mergeUngrouped(0);
+                else
+                    mergeKey(0);
+            }
+            pairs.close();
+            distinct[a].clear();
+        }
+    }
+
+    /** Merges a state read back from a spill file into its group */
+    private void mergeState(Tuple t) throws DbException {
+        int k = keyFields.length;
+        for (int i = 0; i < k; i++) {
+            Field f = t.getField(i);
+            if (intKey[i])
+                keyInts[i] = ((IntField) f).getValue();
+            else
+                keyStrings[i] = ((StringField) f).getValue();
+        }
+        for (int a = 0; a < ops.length; a++) {
+            long high = ((IntField) t.getField(k + 2 * a)).getValue();
+            long low = ((IntField) t.getField(k + 2 * a + 1)).getValue();
+            tupleValues[a] = (high << 32) | (low & 0xffffffffL);
+        }
+        mergeKey(((IntField) t.getField(k + 2 * ops.length)).getValue());
+    }
+
+    private void spill(int h, long count) throws DbException {
+        if (spills == null)
+            spills = new TupleSpillFile[FANOUT];
+        int p = h >>> 28;
+        if (spills[p] == null)
+            spills[p] = new TupleSpillFile(spillTd);
+        Tuple t = new Tuple(spillTd);
+        int k = keyFields.length;
+        for (int i = 0; i < k; i++)
+            t.setField(i, intKey[i] ? new IntField(keyInts[i])
+                    : new StringField(keyStrings[i], Type.STRING_LEN));
+        for (int a = 0; a < ops.length; a++) {
+            t.setField(k + 2 * a, new IntField((int) (tupleValues[a] >> 32)));
+            t.setField(k + 2 * a + 1, new IntField((int) tupleValues[a]));
+        }
+        t.setField(k + 2 * ops.length, new IntField((int) count));
+        spills[p].add(t);
+        spilled++;
+    }
+
+    /** @return a table for a partition of the tuples this one spilled */
+    private GroupTable partitionTable() {
+        int k = keyFields.length;
+        int[] keys = new int[k];
+        for (int i = 0; i < k; i++)
+            keys[i] = i;
+        int[] vals = new int[ops.length];
+        Type[] valTypes = new Type[ops.length];
+        for (int a = 0; a < ops.length; a++) {
+            vals[a] = k + 2 * a;
+            valTypes[a] = Type.INT_TYPE;
+        }
+        Type[] keyTypes = new Type[k];
+        for (int i = 0; i < k; i++)
+            keyTypes[i] = spillTd.getFieldType(i);
+        return new GroupTable(keys, keyTypes, vals, valTypes, ops, resultTd,
+                memoryBudget, memoryBudget, level + 1);
+    }
+
+    private Tuple result(int g) {
+        Tuple t = new Tuple(resultTd);
+        int k = keyFields.length;
+        for (int i = 0; i < k; i++)
+            t.setField(i, intKey[i] ? new IntField(intKeys[i][g])
+                    : new StringField(stringKeys[i][g], Type.STRING_LEN));
+        for (int a = 0; a < ops.length; a++) {
+            long value;
+            switch (ops[a]) {
+            case COUNT:
+                value = counts[g];
+                break;
+            case AVG:
+                value = values[a][g] / counts[g];
+                break;
+            case APPROX_COUNT_DISTINCT:
+                value = sketches[a][g] == null ? 0 : sketches[a][g].estimate();
+                break;
+            default:
+                value = values[a][g];
+            }
+            t.setField(k + a, new IntField((int) value));
+        }
+        return t;
+    }
+
+    /**
+     * Returns an iterator over the result of each group: first those in
+     * memory, then those of each spilled partition, aggregated as they are
+     * reached. No tuples may be merged once the table is read.
+     */
+    DbIterator iterator() {
+        return new Results(false);
+    }
+
+    /**
+     * Returns an iterator over the result of each group that was spilled,
+     * leaving out those in memory.
+     */
+    DbIterator spilledIterator() {
+        return new Results(true);
+    }
+
+    private class Results implements DbIterator {
+        private static final long serialVersionUID = 1L;
+
+        private boolean open;
+        // whether to leave out the groups in memory
+        private final boolean spilledOnly;
+        private int nextGroup, nextPartition;
+        // the table of the partition being read, and its results
+        private GroupTable partition;
+        private DbIterator partitionResults;
+        private Tuple pending;
+
+        Results(boolean spilledOnly) {
+            this.spilledOnly = spilledOnly;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            finish();
+            open = true;
+            nextGroup = spilledOnly ? groups : 0;
+            nextPartition = 0;
+            pending = null;
+        }
+
+        private Tuple fetch() throws DbException, TransactionAbortedException {
+            if (nextGroup < groups)
+                return result(nextGroup++);
+            while (true) {
+                if (partitionResults != null) {
+                    if (partitionResults.hasNext())
+                        return partitionResults.next();
+                    closePartition();
+                }
+                if (spills == null || nextPartition == FANOUT)
+                    return null;
+                TupleSpillFile f = spills[nextPartition++];
+                if (f == null)
+                    continue;
+                partition = partitionTable();
+                DbIterator in = f.iterator();
+                in.open();
+                while (in.hasNext())
+                    partition.mergeState(in.next());
+                in.close();
+                partitionResults = partition.iterator();
+                partitionResults.open();
+            }
+        }
+
+        private void closePartition() {
+            if (partitionResults != null) {
+                partitionResults.close();
+                partition.clear();
+            }
+            partitionResults = null;
+            partition = null;
+        }
+
+        public boolean hasNext() throws DbException,
+                TransactionAbortedException {
+            if (!open)
+                return false;
+            if (pending == null)
+                pending = fetch();
+            return pending != null;
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Tuple t = pending;
+            pending = null;
+            return t;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            closePartition();
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return resultTd;
+        }
+
+        public void close() {
+            closePartition();
+            open = false;
+        }
+    }
+}
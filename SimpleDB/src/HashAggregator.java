@@ -0,0 +1,186 @@
+package simpledb;
+
+/**
+ * Knows how to compute several aggregates at once over a set of tuples,
+ * grouped by any number of fields: one group for each distinct combination
+ * of their values.
+ * <p>
+ * The groups are kept in a {@link GroupTable}, which spills the tuples of
+ * groups beyond a memory budget to disk (see {@link #setMemoryBudget(int)}).
+ * <p>
+ * Several threads can aggregate parts of the same input, each into a
+ * {@link #partial(int)} aggregator of its own, whose groups are then merged
+ * into this one with {@link #merge(HashAggregator)}.
+ */
+public class HashAggregator implements Aggregator {
+
+    private static final long serialVersionUID = 1L;
+    private final int[] gbfields;
+    private final Type[] gbfieldtypes;
+    private final int[] afields;
+    private final Type[] afieldtypes;
+    private final Op[] ops;
+    private final TupleDesc td;
+    private int memoryBudget;
+    private GroupTable groups;
+
+    /**
+     * Aggregate constructor
+     *
+     * @param childTd
+     *            the TupleDesc of the tuples to aggregate
+     * @param gbfields
+     *            the 0-based indexes of the group-by fields in the tuple,
+     *            none if there is no grouping
+     * @param afields
+     *            the 0-based index of the field of each aggregate
+     * @param what
+     *            the aggregation operator of each aggregate
+     * @throws IllegalArgumentException if an aggregate other than COUNT,
+     *             COUNT_DISTINCT or APPROX_COUNT_DISTINCT is over a string
+     *             field
+     */
+    public HashAggregator(TupleDesc childTd, int[] gbfields, int[] afields,
+            Op[] what) {
+        this(gbfields, types(childTd, gbfields), afields,
+                types(childTd, afields), what, resultTd(childTd, gbfields,
+                        afields, what));
+    }
+
+    /**
+     * Creates an aggregator whose results have a given TupleDesc, which
+     * must have the types of the group-by fields, then an int for each
+     * aggregate.
+     */
+    HashAggregator(int[] gbfields, Type[] gbfieldtypes, int[] afields,
+            Type[] afieldtypes, Op[] what, TupleDesc resultTd) {
+        if (afields.length == 0 || afields.length != what.length)
+            throw new IllegalArgumentException("need a field for each aggregate");
+        this.gbfields = gbfields.clone();
+        this.gbfieldtypes = gbfieldtypes.clone();
+        this.afields = afields.clone();
+        this.afieldtypes = afieldtypes.clone();
+        this.ops = what.clone();
+        this.td = resultTd;
+        setMemoryBudget(GroupTable.DEFAULT_MEMORY_BUDGET);
+    }
+
+    private static Type[] types(TupleDesc td, int[] fields) {
+        Type[] types = new Type[fields.length];
+        for (int i = 0; i < fields.length; i++)
+            types[i] = td.getFieldType(fields[i]);
+        return types;
+    }
+
+    /**
+     * Returns the TupleDesc of the results of aggregates over childTd: the
+     * group-by fields, with their names, then an int for each aggregate,
+     * named after its operator and field, e.g. "sum(t.price)".
+     */
+    static TupleDesc resultTd(TupleDesc childTd, int[] gbfields,
+            int[] afields, Op[] what) {
+        int k = gbfields.length;
+        Type[] types = new Type[k + afields.length];
+        String[] names = new String[k + afields.length];
+        for (int i = 0; i < k; i++) {
+            types[i] = childTd.getFieldType(gbfields[i]);
+            names[i] = childTd.getFieldName(gbfields[i]);
+        }
+        for (int a = 0; a < afields.length; a++) {
+            types[k + a] = Type.INT_TYPE;
+            names[k + a] = what[a] + "(" + childTd.getFieldName(afields[a]) + ")";
+        }
+        return new TupleDesc(types, names);
+    }
+
+    /** @return the TupleDesc of the results */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void setMemoryBudget(int budget) {
+        setMemoryBudget(budget, budget);
+    }
+
+    /**
+     * Sets the number of groups held in memory, and apart from it the number
+     * of distinct pairs of a group and a value of each COUNT_DISTINCT, which
+     * is otherwise the same.
+     */
+    void setMemoryBudget(int budget, int distinctBudget) {
+        if (groups != null)
+            groups.clear();
+        memoryBudget = budget;
+        groups = new GroupTable(gbfields, gbfieldtypes, afields, afieldtypes,
+                ops, td, budget, distinctBudget);
+    }
+
+    /** @return the number of groups held in memory */
+    public int getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Returns an empty aggregator of the same aggregates and groups, for
+     * one thread to aggregate part of the input into.
+     *
+     * @param budget the number of groups it holds in memory
+     */
+    HashAggregator partial(int budget) {
+        HashAggregator p = new HashAggregator(gbfields, gbfieldtypes,
+                afields, afieldtypes, ops, td);
+        p.setMemoryBudget(budget);
+        return p;
+    }
+
+    /**
+     * Merges the groups of a partial aggregator into this one, then clears
+     * it. The aggregates are merged from their sums and counts, so they are
+     * exactly those of aggregating all the input here.
+     */
+    void merge(HashAggregator partial) throws DbException,
+            TransactionAbortedException {
+        groups.merge(partial.groups);
+    }
+
+    public void clear() {
+        groups.clear();
+    }
+
+    /** @return the number of tuples spilled because there were too many groups */
+    int spilledTuples() {
+        return groups.spilledTuples();
+    }
+
+    /**
+     * Merge a new tuple into the aggregates, grouping as indicated in the
+     * constructor
+     *
+     * @param tup
+     *            the Tuple containing the aggregate fields and the group-by
+     *            fields
+     */
+    public void mergeTupleIntoGroup(Tuple tup) throws DbException {
+        groups.merge(tup);
+    }
+
+    /**
+     * Merge the visible rows of a batch into their groups, reading them from
+     * the columns of the batch. Without grouping the aggregates of the batch
+     * are computed in a loop over each column and merged once.
+     */
+    public void mergeBatchIntoGroup(TupleBatch batch) throws DbException {
+        groups.merge(batch);
+    }
+
+    /**
+     * Create a DbIterator over group aggregate results.
+     *
+     * @return a DbIterator whose tuples have the values of the group-by
+     *         fields, then the value of each aggregate
+     */
+    public DbIterator iterator() {
+        return groups.iterator();
+    }
+
+}
@@ -3,7 +3,17 @@ package simpledb;
 import java.util.*;
 
 /**
- * The Join operator implements the relational join operation.
+ * The HashEquiJoin operator implements an equality join by building a hash
+ * table on its first child and probing it with the tuples of the second.
+ * <p>
+ * It is a hybrid hash join: the hash table holds up to a memory budget of
+ * tuples (see {@link #setMemoryBudget(int)}). When the first child has more,
+ * both children are partitioned by the hash of their join fields into
+ * {@link TupleSpillFile}s, keeping one partition in memory, and each
+ * spilled partition is then joined on its own, split again in the same way
+ * if it is still too large. So each tuple is written and read back about
+ * once, rather than the second child being scanned once per budget's worth
+ * of the first.
  */
 public class HashEquiJoin extends Operator {
 
@@ -51,47 +61,283 @@ public class HashEquiJoin extends Operator {
     }
     
     HashMap<Object, ArrayList<Tuple>> map = new HashMap<Object, ArrayList<Tuple>>();
+
+    /** Default number of tuples of child1 held in memory at a time. */
     public final static int MAP_SIZE = 20000;
 
-    private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
+    /** Number of partitions each pass spills its inputs to. */
+    static final int FANOUT = 16;
+
+    /**
+     * Number of times a partition is split again before its tuples are taken
+     * to share too few keys to split, and it is joined a chunk at a time
+     * instead.
+     */
+    static final int MAX_LEVELS = 4;
+
+    private int memoryBudget = MAP_SIZE;
+
+    /**
+     * Sets the number of tuples of child1 the join holds in memory at a
+     * time; MAP_SIZE by default. Takes effect at the next open().
+     */
+    public void setMemoryBudget(int tuples) {
+        if (tuples < 1)
+            throw new IllegalArgumentException("memory budget must be positive");
+        memoryBudget = tuples;
+    }
+
+    public int getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * A partition of both inputs that has been spilled to disk, to be joined
+     * in a pass of its own.
+     */
+    private static class Partition {
+        final TupleSpillFile build, probe;
+        // hash level the partition is split with, if it has to be
+        final int level;
+
+        Partition(TupleSpillFile build, TupleSpillFile probe, int level) {
+            this.build = build;
+            this.probe = probe;
+            this.level = level;
+        }
+
+        void delete() {
+            build.delete();
+            probe.delete();
+        }
+    }
+
+    // The join runs in passes. Each pass builds the hash table on tuples of
+    // child1 (or of a spilled partition of it) and probes it with the
+    // matching tuples of child2 (or of the partition). If the build side
+    // outgrows the memory budget, the pass partitions both of its inputs by
+    // the hash of the join field: partition 0 stays in memory, unless it
+    // outgrows the budget on its own, and the others are spilled to be
+    // joined in later passes.
+    transient private DbIterator buildInput, probeInput;
+    transient private int level;
+    transient private TupleSpillFile[] buildSpill, probeSpill;
+    transient private boolean residentSpilled;
+    // the build input is too skewed to partition, and is being joined a
+    // chunk of memoryBudget tuples at a time, rescanning the probe input for
+    // each
+    transient private boolean chunked;
+    transient private Partition current;
+    transient private LinkedList<Partition> pending = new LinkedList<Partition>();
+    transient private int passes;
+
+    /** @return the number of passes the join made over spilled partitions */
+    int spilledPasses() {
+        return passes;
+    }
+
+    /**
+     * Chooses the partition a key belongs to at a level of partitioning;
+     * each level hashes differently, so a partition can be split again.
+     */
+    static int partition(Field key, int level) {
+        int h = key.hashCode() * 0x9e3779b9 + (level + 1) * 0x85ebca6b;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return (h & 0x7fffffff) % FANOUT;
+    }
+
+    private boolean spilled(Field key) {
+        return buildSpill != null
+                && (residentSpilled || partition(key, level) != 0);
+    }
+
+    /**
+     * Builds the hash table of a pass from buildInput, partitioning it if it
+     * does not fit in memory.
+     */
+    private void build() throws DbException, TransactionAbortedException {
         map.clear();
-        while (child1.hasNext()) {
-            t1 = child1.next();
-            ArrayList<Tuple> list = map.get(t1.getField(pred.getField1()));
-            if (list == null) {
-                list = new ArrayList<Tuple>();
-                map.put(t1.getField(pred.getField1()), list);
+        buildSpill = probeSpill = null;
+        residentSpilled = false;
+        chunked = false;
+        int inMemory = 0;
+        while (buildInput.hasNext()) {
+            Tuple t = buildInput.next();
+            Field key = t.getField(pred.getField1());
+            if (spilled(key)) {
+                buildSpill[partition(key, level)].add(t);
+                continue;
+            }
+            addToMap(t);
+            if (++inMemory < memoryBudget)
+                continue;
+            if (level >= MAX_LEVELS) {
+                // joined a chunk at a time; see nextPass
+                chunked = true;
+                return;
+            }
+            if (buildSpill == null) {
+                buildSpill = new TupleSpillFile[FANOUT];
+                probeSpill = new TupleSpillFile[FANOUT];
+                for (int i = 0; i < FANOUT; i++) {
+                    buildSpill[i] = new TupleSpillFile(child1.getTupleDesc());
+                    probeSpill[i] = new TupleSpillFile(child2.getTupleDesc());
+                }
+                inMemory = 0;
+                Iterator<ArrayList<Tuple>> lists = map.values().iterator();
+                while (lists.hasNext()) {
+                    ArrayList<Tuple> l = lists.next();
+                    int part = partition(l.get(0).getField(pred.getField1()), level);
+                    if (part == 0) {
+                        inMemory += l.size();
+                        continue;
+                    }
+                    for (Tuple spill : l)
+                        buildSpill[part].add(spill);
+                    lists.remove();
+                }
+            }
+            if (inMemory >= memoryBudget) {
+                for (ArrayList<Tuple> l : map.values())
+                    for (Tuple spill : l)
+                        buildSpill[0].add(spill);
+                map.clear();
+                residentSpilled = true;
+            }
+        }
+    }
+
+    private void addToMap(Tuple t) {
+        Field key = t.getField(pred.getField1());
+        ArrayList<Tuple> list = map.get(key);
+        if (list == null) {
+            list = new ArrayList<Tuple>();
+            map.put(key, list);
+        }
+        list.add(t);
+    }
+
+    /**
+     * Called when probeInput is exhausted to move on to the next pass.
+     *
+     * @return false if there are no more passes
+     */
+    private boolean nextPass() throws DbException, TransactionAbortedException {
+        if (wholeBuildInMemory())
+            return false;
+        if (chunked && buildInput.hasNext()) {
+            map.clear();
+            for (int n = 0; n < memoryBudget && buildInput.hasNext(); n++)
+                addToMap(buildInput.next());
+            probeInput.rewind();
+            return true;
+        }
+        if (buildSpill != null) {
+            for (int i = 0; i < FANOUT; i++) {
+                if (buildSpill[i].size() > 0 && probeSpill[i].size() > 0)
+                    pending.addFirst(new Partition(buildSpill[i],
+                            probeSpill[i], level + 1));
+                else {
+                    buildSpill[i].delete();
+                    probeSpill[i].delete();
+                }
             }
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
+            buildSpill = probeSpill = null;
         }
-        return cnt > 0;
+        endPartition();
+        map.clear();
+        if (pending.isEmpty())
+            return false;
+        current = pending.removeFirst();
+        passes++;
+        level = current.level;
+        buildInput = current.build.iterator();
+        probeInput = current.probe.iterator();
+        buildInput.open();
+        probeInput.open();
+        build();
+        return true;
+    }
 
+    /**
+     * @return true if the join is a single pass whose hash table holds the
+     *         whole of child1, which is then kept until close() so that
+     *         rewind() only has to rewind child2
+     */
+    private boolean wholeBuildInMemory() {
+        return passes == 0 && buildSpill == null && !chunked;
+    }
+
+    private void endPartition() {
+        if (current == null)
+            return;
+        buildInput.close();
+        probeInput.close();
+        current.delete();
+        current = null;
+    }
+
+    /** Starts the first pass, over the children. */
+    private void start() throws DbException, TransactionAbortedException {
+        buildInput = child1;
+        probeInput = child2;
+        level = 0;
+        passes = 0;
+        build();
+    }
+
+    /** Deletes the spill files of every pass. */
+    private void deleteSpills() {
+        endPartition();
+        if (buildSpill != null) {
+            for (int i = 0; i < FANOUT; i++) {
+                buildSpill[i].delete();
+                probeSpill[i].delete();
+            }
+        }
+        buildSpill = probeSpill = null;
+        for (Partition part : pending)
+            part.delete();
+        pending.clear();
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
+        start();
         super.open();
     }
 
     public void close() {
         super.close();
+        deleteSpills();
         child2.close();
         child1.close();
         this.t1=null;
         this.t2=null;
         this.listIt=null;
         this.map.clear();
+        this.probe=null;
+        this.matches=null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        listIt = null;
+        probe = null;
+        matches = null;
+        if (wholeBuildInMemory()) {
+            child2.rewind();
+            return;
+        }
+        deleteSpills();
         child1.rewind();
         child2.rewind();
+        start();
     }
 
     transient Iterator<Tuple> listIt = null;
@@ -131,32 +377,110 @@ public class HashEquiJoin extends Operator {
     }
 
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
+        while (listIt == null || !listIt.hasNext()) {
+            t2 = nextProbeTuple();
+            if (t2 == null)
+                return null;
+            ArrayList<Tuple> l = map.get(t2.getField(pred.getField2()));
+            listIt = l == null ? null : l.iterator();
         }
+        return processList();
+    }
 
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
-
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            ArrayList<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
-                continue;
-            listIt = l.iterator();
+    /**
+     * @return the next tuple to probe the hash table with, spilling those
+     *         of partitions that are not in memory, or null when the join is
+     *         done
+     */
+    private Tuple nextProbeTuple() throws TransactionAbortedException,
+            DbException {
+        do {
+            while (probeInput.hasNext()) {
+                Tuple t = probeInput.next();
+                Field key = t.getField(pred.getField2());
+                if (!spilled(key))
+                    return t;
+                probeSpill[partition(key, level)].add(t);
+            }
+        } while (nextPass());
+        return null;
+    }
 
-            return processList();
+    /**
+     * @return the next batch of tuples to probe the hash table with, like
+     *         {@link #nextProbeTuple()}
+     */
+    private TupleBatch nextProbeBatch() throws TransactionAbortedException,
+            DbException {
+        do {
+            TupleBatch b;
+            while ((b = probeInput.nextBatch()) != null) {
+                if (buildSpill != null) {
+                    int field = pred.getField2();
+                    int[] sel = b.getSelection();
+                    int kept = 0;
+                    for (int k = 0; k < b.size(); k++) {
+                        int row = b.row(k);
+                        Field key = b.getField(field, row);
+                        if (spilled(key))
+                            probeSpill[partition(key, level)].add(b.getTuple(k));
+                        else
+                            sel[kept++] = row;
+                    }
+                    b.setSelected(kept);
+                }
+                if (b.size() > 0)
+                    return b;
+            }
+        } while (nextPass());
+        return null;
+    }
 
-        }
+    // batch-at-a-time state: the batch of probe tuples being probed, the
+    // next of its visible rows to probe, and the matches of the row probed
+    // last
+    transient private TupleBatch out = null;
+    transient private TupleBatch probe = null;
+    transient private int probeK = 0;
+    transient private int probeRow = 0;
+    transient private ArrayList<Tuple> matches = null;
+    transient private int matchPos = 0;
 
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
+    /**
+     * Operator.fetchNextBatch implementation. Probes the hash table with the
+     * rows of the probe side's batches, copying the fields of each match into
+     * an output batch instead of making a Tuple for it.
+     */
+    protected TupleBatch fetchNextBatch() throws TransactionAbortedException,
+            DbException {
+        if (out == null)
+            out = new TupleBatch(comboTD);
+        out.clear();
+        int td1n = child1.getTupleDesc().numFields();
+        int td2n = child2.getTupleDesc().numFields();
+        while (!out.isFull()) {
+            if (matches != null && matchPos < matches.size()) {
+                Tuple left = matches.get(matchPos++);
+                int row = out.addRow();
+                for (int i = 0; i < td1n; i++)
+                    out.setField(i, row, left.getField(i));
+                for (int i = 0; i < td2n; i++)
+                    out.copyField(td1n + i, row, probe, i, probeRow);
+                continue;
+            }
+            matches = null;
+            if (probe != null && probeK < probe.size()) {
+                probeRow = probe.row(probeK++);
+                matches = map.get(probe.getField(pred.getField2(), probeRow));
+                matchPos = 0;
+                continue;
+            }
+            probe = nextProbeBatch();
+            probeK = 0;
+            if (probe == null)
+                break;
         }
-
-        return null;
+        return out.size() > 0 ? out : null;
     }
 
     @Override
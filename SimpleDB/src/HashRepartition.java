@@ -0,0 +1,50 @@
+package simpledb;
+
+/**
+ * HashRepartition is an {@link Exchange} that splits the rows of its
+ * children between a number of outputs by the hash of a field, so that rows
+ * with equal values of the field go to the same output. Building e.g. a
+ * HashEquiJoin over output i of a repartition of each side, on the join
+ * fields, for every i, and gathering the joins, joins the two sides in
+ * parallel.
+ */
+public class HashRepartition extends ExchangeProducer {
+
+    private final int field;
+
+    /**
+     * @param children the plans whose rows to split
+     * @param field the index of the field to split the rows by
+     * @param numOutputs the number of outputs
+     */
+    public HashRepartition(DbIterator[] children, int field, int numOutputs) {
+        super(children, numOutputs);
+        this.field = field;
+    }
+
+    public HashRepartition(DbIterator child, int field, int numOutputs) {
+        this(new DbIterator[] { child }, field, numOutputs);
+    }
+
+    /** @return the index of the field the rows are split by */
+    public int getField() {
+        return field;
+    }
+
+    public String getName() {
+        return "repartition(" + getTupleDesc().getFieldName(field) + ")";
+    }
+
+    /** @return the output a value of the field goes to */
+    int outputFor(Field value) {
+        return (value.hashCode() & 0x7fffffff) % numOutputs();
+    }
+
+    Exchange.Router router() {
+        return new Exchange.Router() {
+            public int route(Tuple t) {
+                return outputFor(t.getField(field));
+            }
+        };
+    }
+}
@@ -1,6 +1,9 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 /**
@@ -17,6 +20,15 @@ public class HeapFile implements DbFile {
 
 	private File file;
 	private TupleDesc td;
+	private final DbFileChannel channel;
+	// which pages have room for inserts
+	private final FreeSpaceMap freeSpace;
+
+	// in memory-mapped mode, a read-only mapping of the whole pages that were
+	// in the file when it was first read; pages appended later are read
+	// through the channel
+	private final boolean memoryMapped;
+	private volatile MappedByteBuffer mapping;
 	
     /**
      * Constructs a heap file backed by the specified file.
@@ -26,8 +38,36 @@ public class HeapFile implements DbFile {
      *            file.
      */
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, optionally in
+     * memory-mapped mode. In that mode readPage decodes pages straight out of
+     * a read-only mapping of the file instead of copying them into a buffer
+     * first, and read-ahead is left to the operating system's page cache.
+     * This suits read-mostly tables. Pages still go through the BufferPool
+     * like any others. Writes always go through the file channel.
+     * 
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param memoryMapped
+     *            true to serve page reads from a memory mapping of f
+     */
+    public HeapFile(File f, TupleDesc td, boolean memoryMapped) {
         this.file = f;
         this.td = td;
+        this.channel = new DbFileChannel(f);
+        this.freeSpace = new FreeSpaceMap(f);
+        this.memoryMapped = memoryMapped;
+    }
+
+    /**
+     * @return true if this file serves page reads from a memory mapping
+     */
+    public boolean isMemoryMapped() {
+        return memoryMapped;
     }
 
     /**
@@ -64,22 +104,20 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
     	HeapPage res = null;
-    	byte[] buffer = new byte[BufferPool.getPageSize()];
-    	long offset = pid.pageNumber() * BufferPool.getPageSize();
+    	HeapPageId id = new HeapPageId(pid.getTableId(), pid.pageNumber());
+    	long offset = (long) pid.pageNumber() * BufferPool.getPageSize();
 
     	try {
-			RandomAccessFile f = new RandomAccessFile(this.file, "r");
-			f.seek(offset);
-			f.read(buffer, 0, BufferPool.getPageSize());
-			f.close();
+    		ByteBuffer mapped = memoryMapped ? mappedPage(offset) : null;
+    		if (mapped != null) {
+    			return new HeapPage(id, mapped);
+    		}
+
+			// a page past the end of the file reads as an empty page
+	    	byte[] buffer = new byte[BufferPool.getPageSize()];
+			channel.read(buffer, offset);
 			
-			res = new HeapPage(
-						 new HeapPageId(
-								 pid.getTableId(),
-								 pid.pageNumber()),
-						 buffer);
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
+			res = new HeapPage(id, buffer);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -87,19 +125,76 @@ public class HeapFile implements DbFile {
     	return res;
     }
 
+    /**
+     * Returns a view of the mapped page starting at offset, mapping the file
+     * on first use.
+     *
+     * @return the page, or null if it lies outside the mapping
+     */
+    private ByteBuffer mappedPage(long offset) throws IOException {
+    	MappedByteBuffer m = mapping;
+    	if (m == null) {
+    		synchronized (this) {
+    			m = mapping;
+    			if (m == null) {
+    				long pageSize = BufferPool.getPageSize();
+    				long size = Math.min(channel.size(), Integer.MAX_VALUE);
+    				size -= size % pageSize;
+    				if (size == 0) {
+    					return null;
+    				}
+    				m = channel.channel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+    				mapping = m;
+    			}
+    		}
+    	}
+    	if (offset + BufferPool.getPageSize() > m.capacity()) {
+    		return null;
+    	}
+    	// every reader gets its own position and limit
+    	ByteBuffer page = m.duplicate();
+    	page.position((int) offset);
+    	page.limit((int) offset + BufferPool.getPageSize());
+    	return page;
+    }
+
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
-    	try {
-			RandomAccessFile f = new RandomAccessFile(this.file, "rw");
-			f.seek(
-				 (long) page.getId().pageNumber() * BufferPool.getPageSize());
-			f.write(page.getPageData(), 0, BufferPool.getPageSize());
-			f.close();
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+    	channel.write(page.getPageData(),
+    			(long) page.getId().pageNumber() * BufferPool.getPageSize());
+    	if (page instanceof HeapPage) {
+    		freeSpace.pageWritten(page.getId().pageNumber(),
+    				((HeapPage) page).getNumEmptySlots());
+    	}
+    }
+
+    /**
+     * Called by the BufferPool when it drops the version of a page changed
+     * by a transaction that aborted, so that the free-space map goes back to
+     * the room on the page on disk.
+     */
+    void pageDiscarded(int pageNo) {
+    	freeSpace.pageDiscarded(pageNo);
+    }
+
+    /**
+     * Has the file of a temporary heap file deleted when the virtual machine
+     * exits, together with the free-space map kept next to it.
+     */
+    public static void deleteOnExit(File f) {
+    	f.deleteOnExit();
+    	FreeSpaceMap.fileFor(f).deleteOnExit();
+    }
+
+    /**
+     * Closes the file channel this HeapFile reads and writes pages through.
+     * It is reopened if the file is used again.
+     */
+    public void close() throws IOException {
+    	// the mapping stays valid until it is garbage collected
+    	mapping = null;
+    	channel.close();
+    	freeSpace.close();
     }
 
     /**
@@ -114,8 +209,10 @@ public class HeapFile implements DbFile {
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
     	HeapPage page = null;
-    	int pageNo = 0;
-    	while (pageNo < this.numPages()) {
+    	int numPages = this.numPages();
+    	// only visit the pages the free-space map says may have room
+    	int pageNo = freeSpace.findPageWithRoom(0, numPages);
+    	while (pageNo >= 0) {
     		page =
     			(HeapPage) Database
     						   .getBufferPool()
@@ -127,15 +224,22 @@ public class HeapFile implements DbFile {
 			if (page.getNumEmptySlots() > 0) {
 				break;
 			}
+			if (page.isDirty() == null) {
+				// full on disk too
+				freeSpace.pageWritten(pageNo, 0);
+			} else {
+				freeSpace.update(pageNo, 0);
+			}
 
 			// Release the lock on the page early. This violates 2PL, but works
 			// because the scan did not modify any data.
 			Database.getBufferPool().releasePage(tid, page.getId());
 
-			pageNo++;
+			pageNo = freeSpace.findPageWithRoom(pageNo + 1, numPages);
     	}
 
-    	if (pageNo == this.numPages()) {
+    	if (pageNo < 0) {
+    		pageNo = numPages;
     		// Create a new HeapPage.
     		page = new HeapPage(
     				   new HeapPageId(
@@ -157,6 +261,7 @@ public class HeapFile implements DbFile {
     	}
 
     	page.insertTuple(t);
+    	freeSpace.update(pageNo, page.getNumEmptySlots());
 
     	ArrayList<Page> res = new ArrayList<Page>();
     	res.add(page);
@@ -174,6 +279,7 @@ public class HeapFile implements DbFile {
     						   t.getRecordId().getPageId(),
     						   Permissions.READ_WRITE);
     	page.deleteTuple(t);
+    	freeSpace.update(page.getId().pageNumber(), page.getNumEmptySlots());
 
     	// No need to write here because the tuple is already invalidated in
     	// memory, so it will be overwritten (and persisted to disk) later when
@@ -189,4 +295,12 @@ public class HeapFile implements DbFile {
 		return new HeapFileIterator(this, tid);
     }
 
+    /**
+     * Returns an iterator over all the tuples of this file that reads the
+     * pages it needs into ring instead of the rest of the BufferPool.
+     */
+    DbFileIterator iterator(TransactionId tid, BufferRing ring) {
+		return new HeapFileIterator(this, tid, ring);
+    }
+
 }
@@ -1,6 +1,5 @@
 package simpledb;
 
-import java.util.Iterator;
 import java.util.NoSuchElementException;
 
 public class HeapFileIterator implements DbFileIterator {
@@ -9,28 +8,70 @@ public class HeapFileIterator implements DbFileIterator {
     
 	private HeapFile file;
     private TransactionId tid;
-	private Iterator<Tuple> i;
     private boolean open;
+    // the page the scan is on, and the next slot on it to look at
+    private HeapPage page;
+    private int slot;
     private int currentPage = 0;
+    // the pages to scan, from fromPage up to but not including toPage; a
+    // toPage of -1 means the end of the file
+    private int fromPage = 0;
+    private int toPage = -1;
+    private final BufferRing ring;
+    private final ReadAhead readAhead;
     
     public HeapFileIterator(HeapFile file, TransactionId tid) {
+    	this(file, tid, null);
+    }
+
+    /**
+     * Creates an iterator that reads the pages of file into ring, or into
+     * the buffer pool as usual if ring is null.
+     */
+    HeapFileIterator(HeapFile file, TransactionId tid, BufferRing ring) {
     	this.file = file;
     	this.tid = tid;
+    	this.ring = ring;
+    	this.readAhead = new ReadAhead(ring);
     }
     
+	/**
+	 * Limits the scan to pages from up to but not including to, e.g. to
+	 * read one morsel of a {@link ParallelSeqScan}. Takes effect at the
+	 * next open(); the range must not be empty.
+	 */
+	void setPageRange(int from, int to) {
+		this.fromPage = from;
+		this.toPage = to;
+	}
+
+	/** @return the page after the last one to scan */
+	private int endPage() {
+		return this.toPage < 0 ? this.file.numPages() : this.toPage;
+	}
+
 	@Override
 	public void open() throws DbException, TransactionAbortedException {
 		this.open = true;
-		this.currentPage = 0;
-		this.i = ((HeapPage) (Database
+		this.readAhead.reset();
+		readPage(this.fromPage);
+	}
+
+	/** Moves on to the first slot of page pageNo. */
+	private void readPage(int pageNo)
+			throws DbException, TransactionAbortedException {
+		this.currentPage = pageNo;
+		this.readAhead.heapPageRead(this.file.getId(), pageNo, endPage());
+		this.page = (HeapPage) Database
 								  .getBufferPool()
 								  .getPage(
 									  this.tid,
 									  new HeapPageId(
 										  this.file.getId(),
-										  this.currentPage),
-										  Permissions.READ_ONLY)))
-								  .iterator();
+										  pageNo),
+									  Permissions.READ_ONLY,
+									  this.ring);
+		this.slot = 0;
 	}
 
 	@Override
@@ -39,24 +80,19 @@ public class HeapFileIterator implements DbFileIterator {
 			return false;
 		}
 		
-		while (!(this.i.hasNext())) {
-			if (this.currentPage == (this.file.numPages() - 1)) {
+		while (true) {
+			while (this.slot < this.page.numSlots
+					&& !this.page.isSlotUsed(this.slot)) {
+				this.slot++;
+			}
+			if (this.slot < this.page.numSlots) {
+				return true;
+			}
+			if (this.currentPage >= (endPage() - 1)) {
 				return false;
 			}
-			
-			this.currentPage++;
-			this.i = ((HeapPage) (Database
-									  .getBufferPool()
-									  .getPage(
-										  this.tid,
-										  new HeapPageId(
-											  this.file.getId(),
-											  this.currentPage),
-											  Permissions.READ_ONLY)))
-									  .iterator();
+			readPage(this.currentPage + 1);
 		}
-		
-		return true;
 	}
 
 	@Override
@@ -66,13 +102,34 @@ public class HeapFileIterator implements DbFileIterator {
 			throw new NoSuchElementException("Not opened yet.");
 		}
 		
-		if (this.i.hasNext()) {
-			return this.i.next();
+		if (this.hasNext()) {
+			return this.page.getTuple(this.slot++);
 		}
 		
 		return null;
 	}
 
+	/**
+	 * Clears batch and fills it with the following tuples, reading the
+	 * pages' bytes directly; see {@link HeapPage#appendTo}.
+	 *
+	 * @return false if there were no more tuples
+	 */
+	boolean nextBatch(TupleBatch batch)
+			throws DbException, TransactionAbortedException {
+		batch.clear();
+		while (this.open && !batch.isFull()) {
+			this.slot = this.page.appendTo(batch, this.slot);
+			if (this.slot >= this.page.numSlots) {
+				if (this.currentPage >= (endPage() - 1)) {
+					break;
+				}
+				readPage(this.currentPage + 1);
+			}
+		}
+		return batch.numRows() > 0;
+	}
+
 	@Override
 	public void rewind() throws DbException, TransactionAbortedException {
 		if (!this.open) {
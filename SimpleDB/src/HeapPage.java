@@ -2,10 +2,19 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * By default pages decode lazily: a page keeps the bytes it was read from,
+ * and the tuples it hands out decode their fields from those bytes only
+ * when asked for them, so a scan whose filter rejects most tuples, or that
+ * only needs a few columns, allocates a fraction of the Fields. Tuples
+ * inserted into the page are kept as they are. See
+ * {@link #setLazyDecoding(boolean)}.
  *
  * @see HeapFile
  * @see BufferPool
@@ -16,10 +25,23 @@ public class HeapPage implements Page {
     final HeapPageId pid;
     final TupleDesc td;
     final byte header[];
+    // tuples inserted since the page was read; in eager mode, every tuple
     final Tuple tuples[];
     final int numSlots;
+    // in lazy mode, the serialized page, starting at dataOffset; null in
+    // eager mode. Never written to.
+    private final byte[] data;
+    private final int dataOffset;
+
+    private static volatile boolean lazyDecoding = true;
+    // kept up to date by markSlotUsed
+    private int numEmptySlots;
     private TransactionId lastDirtyTid;
 
+    // the page as of the last setBeforeImage(); null while the page has not
+    // been modified since, in which case the current contents are the
+    // before-image. Taken by the first modification, so that pages that are
+    // only read never pay for serializing a copy of themselves.
     byte[] oldData;
     private final Byte oldDataLock=new Byte((byte)0);
 
@@ -40,27 +62,76 @@ public class HeapPage implements Page {
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a HeapPage from a buffer holding the page's bytes, starting at
+     * the buffer's position, in the format described above. The tuples are
+     * decoded from the buffer, which may be a view of a memory-mapped file;
+     * the buffer's position is advanced past the page.
+     * <p>
+     * In lazy mode the page keeps the buffer's backing array, if it has one,
+     * and decodes tuples from it later, so the array must not be modified
+     * afterwards. Other buffers are copied, so that the page keeps no
+     * reference to e.g. a memory mapping.
+     *
+     * @see #HeapPage(HeapPageId, byte[])
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
+        int pageLen = getHeaderSize() + numSlots * td.getSize();
+        if (lazyDecoding && data.remaining() >= pageLen) {
+            if (data.hasArray()) {
+                this.data = data.array();
+                this.dataOffset = data.arrayOffset() + data.position();
+            } else {
+                this.data = new byte[pageLen];
+                this.dataOffset = 0;
+                data.duplicate().get(this.data);
+            }
+        } else {
+            this.data = null;
+            this.dataOffset = 0;
+        }
+
+        try {
+            // allocate and read the header slots of this page
+            header = new byte[getHeaderSize()];
+            data.get(header);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("page " + id + " is truncated");
+        }
+        numEmptySlots = numSlots - countUsedSlots();
         
         tuples = new Tuple[numSlots];
+        if (this.data != null) {
+            data.position(data.position() + numSlots * td.getSize());
+            return;
+        }
         try{
             // allocate and read the actual records of this page
             for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
+                tuples[i] = readNextTuple(data,i);
         }catch(NoSuchElementException e){
             e.printStackTrace();
         }
-        dis.close();
+    }
 
-        setBeforeImage();
+    /**
+     * Sets whether pages read from now on decode their tuples lazily (the
+     * default) or all at once when the page is read.
+     */
+    public static void setLazyDecoding(boolean lazy) {
+        lazyDecoding = lazy;
+    }
+
+    /** @return true if pages read from now on decode tuples lazily */
+    public static boolean isLazyDecoding() {
+        return lazyDecoding;
     }
 
     /** Retrieve the number of tuples on this page.
@@ -73,6 +144,20 @@ public class HeapPage implements Page {
 
     }
 
+    /**
+     * Counts the bits set in the header, ignoring any padding bits past the
+     * last slot.
+     */
+    private int countUsedSlots() {
+        int used = 0;
+        for (int i = 0; i < numSlots / 8; i++)
+            used += Integer.bitCount(header[i] & 0xff);
+        for (int i = numSlots / 8 * 8; i < numSlots; i++)
+            if (isSlotUsed(i))
+                used++;
+        return used;
+    }
+
     /**
      * Computes the number of bytes in the header of a page in a HeapFile with each tuple occupying tupleSize bytes
      * @return the number of bytes in the header of a page in a HeapFile with each tuple occupying tupleSize bytes
@@ -93,6 +178,8 @@ public class HeapPage implements Page {
             synchronized(oldDataLock)
             {
                 oldDataRef = oldData;
+                if (oldDataRef == null)
+                    oldDataRef = getPageData();
             }
             return new HeapPage(pid,oldDataRef);
         } catch (IOException e) {
@@ -106,7 +193,20 @@ public class HeapPage implements Page {
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        oldData = null;
+        }
+    }
+
+    /**
+     * Saves the current contents as the before-image, unless the page was
+     * already modified since the last setBeforeImage(). Called before every
+     * change to the page.
+     */
+    private void preserveBeforeImage() {
+        synchronized(oldDataLock)
+        {
+        if (oldData == null)
+            oldData = getPageData();
         }
     }
 
@@ -120,20 +220,78 @@ public class HeapPage implements Page {
     	// throw new UnsupportedOperationException("implement this");
     }
 
+    /**
+     * Returns the tuple in a slot. A tuple that has not been changed since
+     * the page was read is decoded from the page's bytes, as its fields are
+     * asked for.
+     *
+     * @return the tuple, or null if the slot is empty
+     */
+    Tuple getTuple(int slotId) {
+        if (!isSlotUsed(slotId))
+            return null;
+        Tuple t = tuples[slotId];
+        if (t == null && data != null) {
+            t = new Tuple(td, data, slotOffset(slotId));
+            t.setRecordId(new RecordId(pid, slotId));
+        }
+        return t;
+    }
+
+    /**
+     * Adds the tuples in used slots from fromSlot onwards to batch, until it
+     * is full. Fields of tuples that have not been changed since the page
+     * was read are copied straight from the page's bytes.
+     *
+     * @return the slot to continue from, or getNumTuples() if every used
+     *   slot has been added
+     */
+    int appendTo(TupleBatch batch, int fromSlot) {
+        int numFields = td.numFields();
+        int slot = fromSlot;
+        for (; slot < numSlots && !batch.isFull(); slot++) {
+            if (!isSlotUsed(slot))
+                continue;
+            int row = batch.addRow();
+            Tuple t = tuples[slot];
+            if (t != null || data == null) {
+                for (int j = 0; j < numFields; j++)
+                    batch.setField(j, row, t.getField(j));
+                continue;
+            }
+            int base = slotOffset(slot);
+            for (int j = 0; j < numFields; j++) {
+                int off = base + td.getFieldOffset(j);
+                int value = ((data[off] & 0xff) << 24) | ((data[off + 1] & 0xff) << 16)
+                    | ((data[off + 2] & 0xff) << 8) | (data[off + 3] & 0xff);
+                if (td.getFieldType(j) == Type.INT_TYPE) {
+                    batch.setInt(j, row, value);
+                } else {
+                    // a string is its length followed by its bytes
+                    int len = Math.max(0, Math.min(value, Type.STRING_LEN));
+                    batch.setString(j, row, new String(data, off + 4, len));
+                }
+            }
+        }
+        return slot;
+    }
+
+    /** @return the position of a slot's serialized tuple in data */
+    private int slotOffset(int slotId) {
+        return dataOffset + header.length + slotId * td.getSize();
+    }
+
     /**
      * Suck up tuples from the source file.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
+    private Tuple readNextTuple(ByteBuffer data, int slotId) throws NoSuchElementException {
         // if associated bit is not set, read forward to the next tuple, and
         // return null.
         if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
+            if (data.remaining() < td.getSize()) {
+                throw new NoSuchElementException("error reading empty tuple");
             }
+            data.position(data.position() + td.getSize());
             return null;
         }
 
@@ -143,7 +301,7 @@ public class HeapPage implements Page {
         t.setRecordId(rid);
         try {
             for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
+                Field f = td.getFieldType(j).parse(data);
                 t.setField(j, f);
             }
         } catch (java.text.ParseException e) {
@@ -196,6 +354,16 @@ public class HeapPage implements Page {
                 continue;
             }
 
+            // non-empty slot that has not changed since it was read
+            if (tuples[i] == null) {
+                try {
+                    dos.write(data, slotOffset(i), td.getSize());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                continue;
+            }
+
             // non-empty slot
             for (int j=0; j<td.numFields(); j++) {
                 Field f = tuples[i].getField(j);
@@ -261,6 +429,7 @@ public class HeapPage implements Page {
             throw new DbException("tuple slot is already empty");
         }
         
+        preserveBeforeImage();
         tuples[tno] = null;
         markSlotUsed(tno, false);
     }
@@ -282,11 +451,15 @@ public class HeapPage implements Page {
             throw new DbException("TupleDesc is mismatch.");
         }
         
-        // find the first empty slot
+        // find the first empty slot, skipping full header bytes
         int es = 0;
+        while (header[es / 8] == (byte) 0xff) {
+            es += 8;
+        }
         for (; es < numSlots && isSlotUsed(es); es++) {
         }
         
+        preserveBeforeImage();
         RecordId rid = new RecordId(pid, es);
         t.setRecordId(rid);
         tuples[es] = t;
@@ -320,11 +493,7 @@ public class HeapPage implements Page {
      */
     public int getNumEmptySlots() {
         // some code goes here
-    	 int slots = 0;
-         for (int i = 0; i < this.numSlots; i++)
-             if (!(this.isSlotUsed(i)))
-                 slots++;
-         return slots;
+        return this.numEmptySlots;
     }
 
   
@@ -344,6 +513,10 @@ public class HeapPage implements Page {
      */
     private void markSlotUsed(int i, boolean value) {
         // some code goes here
+    	if (isSlotUsed(i) == value) {
+    		return;
+    	}
+    	numEmptySlots += value ? -1 : 1;
     	int byteLoc = i / 8;
         int offset = i % 8;
         if (value) {
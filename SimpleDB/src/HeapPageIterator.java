@@ -5,32 +5,43 @@ import java.util.*;
 public class HeapPageIterator implements Iterator<Tuple> {
 
     private HeapPage heapPage; 
-    private int numTuples;
-    private int curTuple;
+    // the next used slot, or numSlots if there is none
+    private int nextSlot;
 
     /**
      * Constructor of the iterator for HeapPage
      */
     public HeapPageIterator(HeapPage heapPage) {
         this.heapPage = heapPage;
-        this.curTuple = 0;
-        this.numTuples = heapPage.occupiedTuples();
+        this.nextSlot = findUsedSlot(0);
+    }
+
+    private int findUsedSlot(int from) {
+        int slot = from;
+        while (slot < this.heapPage.numSlots && !this.heapPage.isSlotUsed(slot)) {
+            slot++;
+        }
+        return slot;
     }
 
     /** @return if there are more tuples followed current tuple */
 
     public boolean hasNext() {
-        if (this.curTuple < this.numTuples) {
-            return true;
-        } else {
-            return false;
-        }
+        return this.nextSlot < this.heapPage.numSlots;
     }
 
     /** @return the next tuple */
     public Tuple next() {
-        return heapPage.tuples[this.curTuple++];
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Tuple t = heapPage.getTuple(this.nextSlot);
+        this.nextSlot = findUsedSlot(this.nextSlot + 1);
+        return t;
     }
 
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
 
 }
@@ -0,0 +1,300 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The IndexNestedLoopJoin operator joins its first child with a table that
+ * has a B+ tree on the join field by looking each tuple of the child up in
+ * the tree with {@link BTreeFile#indexIterator}, instead of scanning the
+ * table for it. It supports the =, &lt;, &lt;=, &gt; and &gt;= predicates.
+ * <p>
+ * The second child must be a {@link SeqScan} of a {@link BTreeFile} keyed on
+ * the join field, possibly under {@link Filter}s (see
+ * {@link #canProbe(DbIterator, int)}); it is never opened, its filters are
+ * applied to the tuples the lookups find.
+ * <p>
+ * The tuples of child1 are looked up a block of {@link #BLOCK_SIZE} at a
+ * time, in order of their keys. Equal keys then share a lookup, and for an
+ * equality join a key a little larger than the last one is found by reading
+ * on along the leaf pages from where the last lookup ended, rather than
+ * descending the tree again; so a block of dense keys reads each leaf page
+ * once.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Number of tuples of child1 sorted and looked up together. */
+    static final int BLOCK_SIZE = 1024;
+
+    private final JoinPredicate pred;
+    private DbIterator child1, child2;
+    private final TupleDesc comboTD;
+    // what child2 reads
+    private BTreeFile file;
+    private TransactionId tid;
+    private ArrayList<Predicate> filters;
+    // inner key op outer key, for the predicate outer key op inner key
+    private final Predicate.Op probeOp;
+    // tuples in a leaf page: how far to read on before descending again
+    private int leafTuples;
+
+    private transient Tuple[] block;
+    private transient int blockSize, blockPos;
+    private transient Tuple left;
+    // equality joins: the matches of key, and the lookup that found them,
+    // positioned at the first tuple after them
+    private transient ArrayList<Tuple> matches;
+    private transient int matchPos;
+    private transient Field key;
+    private transient DbFileIterator cursor;
+    private transient Tuple pending;
+    // inequality joins: the lookup of the current tuple of child1
+    private transient DbFileIterator range;
+    private transient int lookups;
+
+    /**
+     * Constructor. Accepts to children to join and the predicate to join them
+     * on
+     *
+     * @param p
+     *            The predicate to use to join the children; one of EQUALS,
+     *            LESS_THAN, LESS_THAN_OR_EQ, GREATER_THAN and
+     *            GREATER_THAN_OR_EQ
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Scan of the right(inner) relation, whose tuples are looked
+     *            up in its B+ tree
+     * @throws IllegalArgumentException if the predicate is not supported, or
+     *             child2 cannot be probed on its join field
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, DbIterator child1,
+            DbIterator child2) {
+        switch (p.getOperator()) {
+        case EQUALS:
+            probeOp = Predicate.Op.EQUALS;
+            break;
+        case LESS_THAN:
+            probeOp = Predicate.Op.GREATER_THAN;
+            break;
+        case LESS_THAN_OR_EQ:
+            probeOp = Predicate.Op.GREATER_THAN_OR_EQ;
+            break;
+        case GREATER_THAN:
+            probeOp = Predicate.Op.LESS_THAN;
+            break;
+        case GREATER_THAN_OR_EQ:
+            probeOp = Predicate.Op.LESS_THAN_OR_EQ;
+            break;
+        default:
+            throw new IllegalArgumentException("index join cannot evaluate "
+                    + p.getOperator());
+        }
+        this.pred = p;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        setChildren(new DbIterator[] { child1, child2 });
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    /** @return the number of times the B+ tree was descended since open() */
+    int lookups() {
+        return lookups;
+    }
+
+    /**
+     * Returns true if an iterator is a {@link SeqScan} of a {@link BTreeFile}
+     * keyed on a field, or a {@link Filter} over one, whose tuples can be
+     * looked up by that field.
+     */
+    static boolean canProbe(DbIterator it, int field) {
+        while (it instanceof Filter)
+            it = ((Filter) it).getChildren()[0];
+        if (!(it instanceof SeqScan) || it instanceof ParallelSeqScan)
+            return false;
+        DbFile f = ((SeqScan) it).getFile();
+        return f instanceof BTreeFile && ((BTreeFile) f).keyField() == field;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        block = new Tuple[BLOCK_SIZE];
+        matches = new ArrayList<Tuple>();
+        reset();
+        lookups = 0;
+        super.open();
+    }
+
+    private void reset() {
+        blockSize = blockPos = 0;
+        left = null;
+        matches.clear();
+        matchPos = 0;
+        key = null;
+        if (cursor != null)
+            cursor.close();
+        cursor = null;
+        pending = null;
+        if (range != null)
+            range.close();
+        range = null;
+    }
+
+    public void close() {
+        super.close();
+        if (matches != null)
+            reset();
+        child1.close();
+        block = null;
+        matches = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        reset();
+    }
+
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (left != null) {
+                Tuple right = nextMatch();
+                if (right != null) {
+                    Tuple t = new Tuple(comboTD);
+                    int n1 = left.getTupleDesc().numFields();
+                    for (int i = 0; i < n1; i++)
+                        t.setField(i, left.getField(i));
+                    for (int i = 0; i < right.getTupleDesc().numFields(); i++)
+                        t.setField(n1 + i, right.getField(i));
+                    return t;
+                }
+            }
+            left = nextLeft();
+            if (left == null)
+                return null;
+            lookUp(left.getField(pred.getField1()));
+        }
+    }
+
+    /** @return the next tuple of child1, in key order within each block */
+    private Tuple nextLeft() throws TransactionAbortedException, DbException {
+        if (blockPos == blockSize) {
+            blockSize = blockPos = 0;
+            while (blockSize < BLOCK_SIZE && child1.hasNext())
+                block[blockSize++] = child1.next();
+            if (blockSize == 0)
+                return null;
+            Arrays.sort(block, 0, blockSize, new TupleComparator(
+                    pred.getField1(), true));
+        }
+        return block[blockPos++];
+    }
+
+    private boolean passes(Tuple t) {
+        for (Predicate p : filters)
+            if (!p.filter(t))
+                return false;
+        return true;
+    }
+
+    private Tuple nextMatch() throws TransactionAbortedException, DbException {
+        if (range == null)
+            return matchPos < matches.size() ? matches.get(matchPos++) : null;
+        while (range.hasNext()) {
+            Tuple t = range.next();
+            if (passes(t))
+                return t;
+        }
+        return null;
+    }
+
+    /** Starts returning the tuples of child2 that join with k */
+    private void lookUp(Field k) throws TransactionAbortedException,
+            DbException {
+        if (probeOp != Predicate.Op.EQUALS) {
+            if (range != null)
+                range.close();
+            range = file.indexIterator(tid, new IndexPredicate(probeOp, k));
+            range.open();
+            lookups++;
+            return;
+        }
+        matchPos = 0;
+        if (key != null && k.equals(key))
+            return;
+        matches.clear();
+        int kf = file.keyField();
+        if (key == null || key.compare(Predicate.Op.GREATER_THAN, k)) {
+            // the first lookup of a block
+            seek(k);
+        } else {
+            // the cursor is at the first tuple after the last key; read on
+            // if k is close
+            for (int i = 0; pending != null && i < leafTuples
+                    && pending.getField(kf).compare(Predicate.Op.LESS_THAN, k); i++)
+                pending = cursor.hasNext() ? cursor.next() : null;
+            if (pending != null
+                    && pending.getField(kf).compare(Predicate.Op.LESS_THAN, k))
+                seek(k);
+        }
+        while (pending != null
+                && pending.getField(kf).compare(Predicate.Op.EQUALS, k)) {
+            if (passes(pending))
+                matches.add(pending);
+            pending = cursor.hasNext() ? cursor.next() : null;
+        }
+        key = k;
+    }
+
+    /** Positions the cursor at the first tuple with a key of at least k */
+    private void seek(Field k) throws TransactionAbortedException,
+            DbException {
+        if (cursor != null)
+            cursor.close();
+        cursor = file.indexIterator(tid, new IndexPredicate(
+                Predicate.Op.GREATER_THAN_OR_EQ, k));
+        cursor.open();
+        lookups++;
+        pending = cursor.hasNext() ? cursor.next() : null;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child1, child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        if (!canProbe(children[1], pred.getField2()))
+            throw new IllegalArgumentException(
+                    "inner relation has no B+ tree on the join field");
+        child1 = children[0];
+        child2 = children[1];
+        filters = new ArrayList<Predicate>();
+        DbIterator it = child2;
+        while (it instanceof Filter) {
+            filters.add(((Filter) it).getPredicate());
+            it = ((Filter) it).getChildren()[0];
+        }
+        SeqScan scan = (SeqScan) it;
+        file = (BTreeFile) scan.getFile();
+        tid = scan.getTransactionId();
+        leafTuples = Math.max(1, BufferPool.getPageSize()
+                / file.getTupleDesc().getSize());
+    }
+}
@@ -0,0 +1,83 @@
+package simpledb;
+
+import java.util.Arrays;
+
+/**
+ * A hash table from int keys to the rows that have them, held in primitive
+ * arrays, so that neither adding nor looking up a key boxes it or calls
+ * through the Field interface. Rows are numbered 0, 1, ... in the order
+ * they are added; the table records only their keys, and the caller keeps
+ * the rows themselves in an array of its own.
+ * <p>
+ * The rows with a key are found by chaining through them:
+ * <pre>
+ * for (int row = table.first(key); row &gt;= 0; row = table.next(row, key))
+ *     ...
+ * </pre>
+ */
+class IntHashTable {
+
+    private final int[] heads;
+    private final int[] next;
+    private final int[] keys;
+    private final int shift;
+    private int size = 0;
+
+    /**
+     * Creates an empty table.
+     *
+     * @param capacity the number of rows that will be added
+     */
+    IntHashTable(int capacity) {
+        int bits = 1;
+        while (bits < 30 && (1 << bits) < 2 * capacity)
+            bits++;
+        heads = new int[1 << bits];
+        Arrays.fill(heads, -1);
+        next = new int[capacity];
+        keys = new int[capacity];
+        shift = 32 - bits;
+    }
+
+    // Fibonacci hashing: uses the high bits of the product, so that keys
+    // that agree in their low bits, e.g. those of a radix partition, still
+    // spread over the buckets
+    private int bucket(int key) {
+        return (key * 0x9e3779b9) >>> shift;
+    }
+
+    /** @return the number of rows added */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Adds a row with a key.
+     *
+     * @return the number of the row
+     */
+    int add(int key) {
+        int row = size++;
+        int b = bucket(key);
+        keys[row] = key;
+        next[row] = heads[b];
+        heads[b] = row;
+        return row;
+    }
+
+    /** @return the first row with key, or -1 if there is none */
+    int first(int key) {
+        return chain(heads[bucket(key)], key);
+    }
+
+    /** @return the row with key after row, or -1 if there is none */
+    int next(int row, int key) {
+        return chain(next[row], key);
+    }
+
+    private int chain(int row, int key) {
+        while (row >= 0 && keys[row] != key)
+            row = next[row];
+        return row;
+    }
+}
@@ -69,21 +69,63 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        switch (lj.algorithm) {
+        case HASH:
+            j = new HashEquiJoin(p,plan1,plan2);
+            break;
+        case SORT_MERGE:
+            j = new SortMergeJoin(p,plan1,plan2);
+            break;
+        case BLOCK_NESTED_LOOP:
+            j = new BlockNestedLoopJoin(p,plan1,plan2);
+            break;
+        case INDEX_NESTED_LOOP:
+            if (IndexNestedLoopJoin.canProbe(plan2, t2id)) {
+                j = new IndexNestedLoopJoin(p,plan1,plan2);
+                break;
+            }
+            // the index was costed, but plan2 is not a scan of it: use the
+            // cheapest of the algorithms that need no index instead of the
+            // plain nested loop, which was never costed for this join
+            if (lj.p == Predicate.Op.EQUALS)
+                j = new HashEquiJoin(p,plan1,plan2);
+            else
+                j = new BlockNestedLoopJoin(p,plan1,plan2);
+            break;
+        default:
+            j = new Join(p,plan1,plan2);
+        }
 
         return j;
 
     }
 
+    /** The join algorithms there are operators for */
+    static final EnumSet<LogicalJoinNode.Algorithm> EXECUTABLE = EnumSet.of(
+            LogicalJoinNode.Algorithm.NESTED_LOOP, LogicalJoinNode.Algorithm.HASH,
+            LogicalJoinNode.Algorithm.BLOCK_NESTED_LOOP,
+            LogicalJoinNode.Algorithm.INDEX_NESTED_LOOP,
+            LogicalJoinNode.Algorithm.SORT_MERGE);
+
+    /** Number of outer tuples a block nested-loop join scans the inner
+     * relation once for */
+    static final int BLOCK_TUPLES = BlockNestedLoopJoin.DEFAULT_BLOCK_SIZE;
+
+    /** Cost of writing a tuple to a spill file and reading it back */
+    static final double SPILL_COST = 4;
+
+    /** Number of children of an internal B+ tree page assumed when costing
+     * index lookups */
+    static final int INDEX_FANOUT = 100;
+
+    /** Cost of merging a tuple, relative to adding it to or looking it up
+     * in a hash table: a merge compares it with one other tuple */
+    static final double MERGE_COST = 0.5;
+
     /**
-     * Estimate the cost of a join.
-     * 
-     * The cost of the join should be calculated based on the join algorithm (or
-     * algorithms) that you implemented for Project 2. It should be a function of
-     * the amount of data that must be read over the course of the query, as
-     * well as the number of CPU opertions performed by your join. Assume that
-     * the cost of a single predicate application is roughly 1.
-     * 
+     * Estimate the cost of a join, executed with the algorithm already chosen
+     * for it (see {@link LogicalJoinNode#algorithm}); index lookups are taken
+     * to be unavailable.
      * 
      * @param j
      *            A LogicalJoinNode representing the join operation being
@@ -103,13 +145,230 @@ public class JoinOptimizer {
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
             double cost1, double cost2) {
+        return estimateJoinCost(j, j.algorithm, card1, card2, cost1, cost2,
+                Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Estimate the cost of a join executed with the specified algorithm. The
+     * cost is a function of the amount of data that must be read over the
+     * course of the query, as well as the number of CPU opertions performed by
+     * the join, assuming the cost of a single predicate application or hash
+     * table operation is roughly 1. The left-hand side is the outer relation
+     * of the nested-loop joins and the one the hash join builds its table on.
+     * 
+     * @param j
+     *            A LogicalJoinNode representing the join operation being
+     *            performed.
+     * @param algorithm
+     *            The algorithm to cost
+     * @param card1
+     *            Estimated cardinality of the left-hand side of the query
+     * @param card2
+     *            Estimated cardinality of the right-hand side of the query
+     * @param cost1
+     *            Estimated cost of one full scan of the table on the left-hand
+     *            side of the query
+     * @param cost2
+     *            Estimated cost of one full scan of the table on the right-hand
+     *            side of the query
+     * @param probeCost
+     *            Estimated cost of one lookup in an index on the right-hand
+     *            join field, or Double.POSITIVE_INFINITY if there is none
+     * @return An estimate of the cost of this query, or
+     *         Double.POSITIVE_INFINITY if the algorithm cannot execute it
+     */
+    public double estimateJoinCost(LogicalJoinNode j,
+            LogicalJoinNode.Algorithm algorithm, int card1, int card2,
+            double cost1, double cost2, double probeCost) {
+        return estimateJoinCost(j, algorithm, card1, card2, cost1, cost2,
+                probeCost, false, false);
+    }
+
+    /**
+     * Estimate the cost of a join executed with the specified algorithm,
+     * given whether its inputs already come in order of their join fields;
+     * the other arguments are as for
+     * {@link #estimateJoinCost(LogicalJoinNode, LogicalJoinNode.Algorithm, int, int, double, double, double)}.
+     * 
+     * @param sorted1
+     *            Does the left-hand side come in ascending order of f1?
+     * @param sorted2
+     *            Does the right-hand side come in ascending order of f2?
+     */
+    public double estimateJoinCost(LogicalJoinNode j,
+            LogicalJoinNode.Algorithm algorithm, int card1, int card2,
+            double cost1, double cost2, double probeCost, boolean sorted1,
+            boolean sorted2) {
         if (j instanceof LogicalSubplanJoinNode) {
             return card1 + cost1 + cost2;
-        } else {
+        }
+        switch (algorithm) {
+        case HASH:
+            if (j.p != Predicate.Op.EQUALS)
+                return Double.POSITIVE_INFINITY;
+            // the tuples of the partitions that do not fit in memory are
+            // written out and read back once, on both sides
+            double spilled = card1 <= HashEquiJoin.MAP_SIZE ? 0
+                    : 1 - (double) HashEquiJoin.MAP_SIZE / card1;
+            return cost1 + cost2 + card1 + card2 + spilled * SPILL_COST
+                    * ((double) card1 + card2);
+        case BLOCK_NESTED_LOOP:
+            int blocks = Math.max(1, (card1 + BLOCK_TUPLES - 1) / BLOCK_TUPLES);
+            return cost1 + blocks * cost2 + (double) card1 * card2;
+        case INDEX_NESTED_LOOP:
+            if (j.p == Predicate.Op.NOT_EQUALS || j.p == Predicate.Op.LIKE)
+                return Double.POSITIVE_INFINITY;
+            if (j.p == Predicate.Op.EQUALS) {
+                // the keys of a block are looked up in order, so a block
+                // reads each page of t2 at most once
+                int lookups = Math.max(1, (card1
+                        + IndexNestedLoopJoin.BLOCK_SIZE - 1)
+                        / IndexNestedLoopJoin.BLOCK_SIZE);
+                return cost1 + Math.min(card1 * probeCost, lookups
+                        * (probeCost + cost2)) + card1;
+            }
+            // every tuple a lookup finds is a match
+            return cost1 + card1 * probeCost + card1
+                    + estimateTableJoinCardinality(j.p, j.t1Alias, j.t2Alias,
+                            j.f1PureName, j.f2PureName, card1, card2, false,
+                            false, null, null);
+        case SORT_MERGE:
+            if (j.p == Predicate.Op.NOT_EQUALS || j.p == Predicate.Op.LIKE)
+                return Double.POSITIVE_INFINITY;
+            double cost = cost1 + cost2 + MERGE_COST * ((double) card1 + card2);
+            if (!sorted1)
+                cost += sortCost(card1);
+            if (!sorted2)
+                cost += sortCost(card2);
+            if (j.p != Predicate.Op.EQUALS) {
+                // every pair in the range of a tuple of t1 is a match
+                cost += estimateTableJoinCardinality(j.p, j.t1Alias,
+                        j.t2Alias, j.f1PureName, j.f2PureName, card1, card2,
+                        false, false, null, null);
+            }
+            return cost;
+        default:
             return cost1 + card1*cost2 + card1*card2;
         }
     }
 
+    /** Number of comparisons to sort card tuples */
+    private static double sortCost(int card) {
+        return card < 2 ? 0 : card * (Math.log(card) / Math.log(2));
+    }
+
+    /**
+     * Return the cheapest executable algorithm for a join; the arguments are
+     * as for {@link #estimateJoinCost(LogicalJoinNode, LogicalJoinNode.Algorithm, int, int, double, double, double, boolean, boolean)}.
+     */
+    public LogicalJoinNode.Algorithm chooseJoinAlgorithm(LogicalJoinNode j,
+            int card1, int card2, double cost1, double cost2, double probeCost,
+            boolean sorted1, boolean sorted2) {
+        LogicalJoinNode.Algorithm best = LogicalJoinNode.Algorithm.NESTED_LOOP;
+        double bestCost = Double.POSITIVE_INFINITY;
+        if (j instanceof LogicalSubplanJoinNode)
+            return best;
+        for (LogicalJoinNode.Algorithm a : EXECUTABLE) {
+            double cost = estimateJoinCost(j, a, card1, card2, cost1, cost2,
+                    probeCost, sorted1, sorted2);
+            if (cost < bestCost) {
+                best = a;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Estimate the cost of looking up a value of a field of a base table in
+     * an index on it: the table must be a {@link BTreeFile} keyed on the
+     * field, and a lookup reads a page per level of the tree.
+     * 
+     * @return the cost, or Double.POSITIVE_INFINITY if there is no index
+     */
+    private double estimateIndexProbeCost(String tableAlias, String field,
+            Map<String, TableStats> stats) {
+        BTreeFile bf = btreeKeyedOn(tableAlias, field);
+        if (bf == null)
+            return Double.POSITIVE_INFINITY;
+        int tableId = bf.getId();
+        int pages = Math.max(1, bf.numPages());
+        double pageCost = stats.get(Database.getCatalog().getTableName(tableId))
+                .estimateScanCost() / pages;
+        int levels = 1 + (int) Math.ceil(Math.log(pages) / Math.log(INDEX_FANOUT));
+        return pageCost * levels;
+    }
+
+    /**
+     * @return the file of a base table if it is a {@link BTreeFile} keyed on
+     *         the specified field, which its scans return tuples in order of,
+     *         or null
+     */
+    private BTreeFile btreeKeyedOn(String tableAlias, String field) {
+        DbFile f = Database.getCatalog().getDatabaseFile(
+                p.getTableId(tableAlias));
+        if (!(f instanceof BTreeFile))
+            return null;
+        BTreeFile bf = (BTreeFile) f;
+        if (!field.equals(bf.getTupleDesc().getFieldName(bf.keyField())))
+            return null;
+        return bf;
+    }
+
+    /**
+     * Return the fields, by quantified name, whose ascending order a plan
+     * returns its tuples in: the "interesting orders" a sort-merge join on
+     * one of them can use without sorting. A base table is in order of the
+     * key of its B+ tree, a sort-merge join is in order of its join fields,
+     * and a nested-loop join keeps the order of its outer relation, as does
+     * an index join whose outer relation is in order of the join field
+     * already (it looks its tuples up in that order).
+     * 
+     * @param plan
+     *            a plan from the PlanCache, or an empty plan for the single
+     *            table tableAlias
+     */
+    Set<String> outputOrder(Vector<LogicalJoinNode> plan, String tableAlias) {
+        HashMap<String, Set<String>> orders = new HashMap<String, Set<String>>();
+        for (LogicalJoinNode j : plan) {
+            Set<String> outer = orders.containsKey(j.t1Alias) ? orders
+                    .get(j.t1Alias) : baseOrder(j.t1Alias);
+            Set<String> inner = orders.get(j.t2Alias);
+            Set<String> out = new HashSet<String>();
+            if (j.algorithm == LogicalJoinNode.Algorithm.SORT_MERGE) {
+                out.add(j.f1QuantifiedName);
+                if (j.p == Predicate.Op.EQUALS)
+                    out.add(j.f2QuantifiedName);
+            } else if (j.algorithm == LogicalJoinNode.Algorithm.NESTED_LOOP
+                    || (j.algorithm == LogicalJoinNode.Algorithm.INDEX_NESTED_LOOP
+                            && outer.contains(j.f1QuantifiedName))) {
+                out.addAll(outer);
+            }
+            // every table of either side now comes out of this join
+            for (Map.Entry<String, Set<String>> e : orders.entrySet())
+                if (e.getValue() == outer || e.getValue() == inner)
+                    e.setValue(out);
+            orders.put(j.t1Alias, out);
+            if (j.t2Alias != null)
+                orders.put(j.t2Alias, out);
+        }
+        return orders.containsKey(tableAlias) ? orders.get(tableAlias)
+                : baseOrder(tableAlias);
+    }
+
+    private Set<String> baseOrder(String tableAlias) {
+        Set<String> order = new HashSet<String>();
+        DbFile f = Database.getCatalog().getDatabaseFile(
+                p.getTableId(tableAlias));
+        if (f instanceof BTreeFile) {
+            BTreeFile bf = (BTreeFile) f;
+            order.add(tableAlias + "."
+                    + bf.getTupleDesc().getFieldName(bf.keyField()));
+        }
+        return order;
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -226,6 +485,10 @@ public class JoinOptimizer {
         // should work.
 
         // some code goes here
+        if (joins.isEmpty()) {
+            // a single table; the plan cache has no order for it
+            return new Vector<LogicalJoinNode>();
+        }
     	PlanCache cache = new PlanCache();
         Set<LogicalJoinNode> hash = new HashSet<LogicalJoinNode>(joins);
         Set<Set<LogicalJoinNode>> join = enumerateSubsets(joins,1);
@@ -316,6 +579,7 @@ public class JoinOptimizer {
         double t1cost, t2cost;
         int t1card, t2card;
         boolean leftPkey, rightPkey;
+        boolean t1IsBase = true, t2IsBase = table2Alias != null;
 
         if (news.isEmpty()) { // base case -- both are base relations
             prevBest = new Vector<LogicalJoinNode>();
@@ -351,6 +615,7 @@ public class JoinOptimizer {
                 // subtree is
                 t1card = bestCard;
                 leftPkey = hasPkey(prevBest);
+                t1IsBase = false;
 
                 t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
                         .estimateScanCost();
@@ -367,6 +632,7 @@ public class JoinOptimizer {
                 // subtree is
                 t2card = bestCard;
                 rightPkey = hasPkey(prevBest);
+                t2IsBase = false;
 
                 t1cost = stats.get(table1Name).estimateScanCost();
                 t1card = stats.get(table1Name).estimateTableCardinality(
@@ -380,11 +646,30 @@ public class JoinOptimizer {
             }
         }
 
+        // index lookups are possible only into base tables
+        double t1probe = t1IsBase ? estimateIndexProbeCost(j.t1Alias,
+                j.f1PureName, stats) : Double.POSITIVE_INFINITY;
+        double t2probe = t2IsBase ? estimateIndexProbeCost(j.t2Alias,
+                j.f2PureName, stats) : Double.POSITIVE_INFINITY;
+
+        // a sort-merge join need not sort a side that is in order already
+        boolean t1sorted = outputOrder(t1IsBase ? new Vector<LogicalJoinNode>()
+                : prevBest, j.t1Alias).contains(j.f1QuantifiedName);
+        boolean t2sorted = table2Alias != null
+                && outputOrder(t2IsBase ? new Vector<LogicalJoinNode>()
+                        : prevBest, j.t2Alias).contains(j.f2QuantifiedName);
+
         // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        j = j.withAlgorithm(chooseJoinAlgorithm(j, t1card, t2card, t1cost,
+                t2cost, t2probe, t1sorted, t2sorted));
+        double cost1 = estimateJoinCost(j, j.algorithm, t1card, t2card,
+                t1cost, t2cost, t2probe, t1sorted, t2sorted);
 
         LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        j2.algorithm = chooseJoinAlgorithm(j2, t2card, t1card, t2cost, t1cost,
+                t1probe, t2sorted, t1sorted);
+        double cost2 = estimateJoinCost(j2, j2.algorithm, t2card, t1card,
+                t2cost, t1cost, t1probe, t2sorted, t1sorted);
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
@@ -501,7 +786,8 @@ public class JoinOptimizer {
             // Double c = pc.getCost(pathSoFar);
             neither = true;
 
-            root = new DefaultMutableTreeNode("Join " + j + " (Cost ="
+            root = new DefaultMutableTreeNode("Join " + j + " by "
+                    + j.algorithm + " (Cost ="
                     + pc.getCost(pathSoFar) + ", card = "
                     + pc.getCard(pathSoFar) + ")");
             DefaultMutableTreeNode n = m.get(j.t1Alias);
@@ -0,0 +1,225 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * LockManager keeps the page-level shared and exclusive locks that the
+ * {@link BufferPool} takes on behalf of transactions under strict two-phase
+ * locking: locks are acquired as pages are requested and are only released
+ * all at once when the transaction completes.
+ * <p>
+ * A transaction that cannot be granted a lock waits for it. Before waiting it
+ * adds its edges to the wait-for graph (it waits for every other holder of
+ * the page) and searches the graph for a cycle through itself. If there is
+ * one, the youngest transaction on the cycle, i.e. the one with the highest
+ * {@link TransactionId#getId()}, is aborted: if that is the requester,
+ * acquire throws TransactionAbortedException; otherwise the victim is woken
+ * up and throws it from its own pending acquire.
+ * <p>
+ * All state is guarded by the LockManager's monitor.
+ */
+public class LockManager {
+
+    private static class PageLock {
+        final HashSet<TransactionId> holders = new HashSet<TransactionId>();
+        boolean exclusive = false;
+    }
+
+    private final HashMap<PageId, PageLock> locks = new HashMap<PageId, PageLock>();
+    // pages locked by each transaction
+    private final HashMap<TransactionId, HashSet<PageId>> lockedPages =
+        new HashMap<TransactionId, HashSet<PageId>>();
+    // the page each blocked transaction is waiting for; these are the edges
+    // of the wait-for graph, together with the holders of those pages
+    private final HashMap<TransactionId, PageId> waitingFor =
+        new HashMap<TransactionId, PageId>();
+    // transactions chosen as deadlock victims that have not completed yet
+    private final HashSet<TransactionId> victims = new HashSet<TransactionId>();
+
+    /**
+     * Acquires a lock on pid for tid, blocking until it can be granted. A
+     * transaction that already holds a shared lock is upgraded when it asks
+     * for an exclusive one; asking for a shared lock while holding an
+     * exclusive one keeps the exclusive lock.
+     *
+     * @param tid the transaction requesting the lock
+     * @param pid the page to lock
+     * @param exclusive true for an exclusive (write) lock, false for a shared
+     *            (read) lock
+     * @throws TransactionAbortedException if tid was chosen to break a
+     *             deadlock, or was interrupted while waiting
+     */
+    public synchronized void acquire(TransactionId tid, PageId pid, boolean exclusive)
+        throws TransactionAbortedException {
+        while (true) {
+            if (victims.contains(tid)) {
+                waitingFor.remove(tid);
+                throw new TransactionAbortedException();
+            }
+            if (grantable(tid, pid, exclusive)) {
+                waitingFor.remove(tid);
+                grant(tid, pid, exclusive);
+                return;
+            }
+
+            waitingFor.put(tid, pid);
+            TransactionId victim = findDeadlockVictim(tid);
+            if (victim != null) {
+                if (victim.equals(tid)) {
+                    waitingFor.remove(tid);
+                    throw new TransactionAbortedException();
+                }
+                victims.add(victim);
+                notifyAll();
+            }
+
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                waitingFor.remove(tid);
+                Thread.currentThread().interrupt();
+                throw new TransactionAbortedException();
+            }
+        }
+    }
+
+    private boolean grantable(TransactionId tid, PageId pid, boolean exclusive) {
+        PageLock lock = locks.get(pid);
+        if (lock == null || lock.holders.isEmpty())
+            return true;
+        if (exclusive)
+            return lock.holders.size() == 1 && lock.holders.contains(tid);
+        return !lock.exclusive || lock.holders.contains(tid);
+    }
+
+    private void grant(TransactionId tid, PageId pid, boolean exclusive) {
+        PageLock lock = locks.get(pid);
+        if (lock == null) {
+            lock = new PageLock();
+            locks.put(pid, lock);
+        }
+        lock.holders.add(tid);
+        if (exclusive)
+            lock.exclusive = true;
+
+        HashSet<PageId> pages = lockedPages.get(tid);
+        if (pages == null) {
+            pages = new HashSet<PageId>();
+            lockedPages.put(tid, pages);
+        }
+        pages.add(pid);
+    }
+
+    /**
+     * Looks for a cycle in the wait-for graph through tid, which has just
+     * started waiting. The graph was acyclic before, so any new cycle must
+     * pass through tid.
+     *
+     * @return the youngest transaction on the cycle, or null if there is no
+     *         cycle or it is already being broken by an earlier victim
+     */
+    private TransactionId findDeadlockVictim(TransactionId tid) {
+        ArrayList<TransactionId> path = new ArrayList<TransactionId>();
+        path.add(tid);
+        if (!findPathBack(tid, tid, new HashSet<TransactionId>(), path))
+            return null;
+
+        TransactionId youngest = null;
+        for (TransactionId t : path) {
+            if (victims.contains(t))
+                return null;
+            if (youngest == null || t.getId() > youngest.getId())
+                youngest = t;
+        }
+        return youngest;
+    }
+
+    /**
+     * Depth-first search from current along wait-for edges; on success path
+     * holds the transactions of the cycle.
+     */
+    private boolean findPathBack(TransactionId start, TransactionId current,
+            HashSet<TransactionId> visited, ArrayList<TransactionId> path) {
+        PageId pid = waitingFor.get(current);
+        if (pid == null)
+            return false;
+        PageLock lock = locks.get(pid);
+        if (lock == null)
+            return false;
+        for (TransactionId holder : lock.holders) {
+            if (holder.equals(current))
+                continue;
+            if (holder.equals(start))
+                return true;
+            if (visited.add(holder)) {
+                path.add(holder);
+                if (findPathBack(start, holder, visited, path))
+                    return true;
+                path.remove(path.size() - 1);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Releases tid's lock on pid, if it holds one.
+     */
+    public synchronized void release(TransactionId tid, PageId pid) {
+        HashSet<PageId> pages = lockedPages.get(tid);
+        if (pages != null && pages.remove(pid)) {
+            if (pages.isEmpty())
+                lockedPages.remove(tid);
+            unlock(tid, pid);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Releases every lock held by tid and forgets about it; called when tid
+     * commits or aborts.
+     */
+    public synchronized void releaseAll(TransactionId tid) {
+        HashSet<PageId> pages = lockedPages.remove(tid);
+        if (pages != null) {
+            for (PageId pid : pages)
+                unlock(tid, pid);
+        }
+        waitingFor.remove(tid);
+        victims.remove(tid);
+        notifyAll();
+    }
+
+    private void unlock(TransactionId tid, PageId pid) {
+        PageLock lock = locks.get(pid);
+        if (lock == null)
+            return;
+        lock.holders.remove(tid);
+        if (lock.holders.isEmpty())
+            locks.remove(pid);
+    }
+
+    /** @return true if tid holds a shared or exclusive lock on pid */
+    public synchronized boolean holdsLock(TransactionId tid, PageId pid) {
+        HashSet<PageId> pages = lockedPages.get(tid);
+        return pages != null && pages.contains(pid);
+    }
+
+    /**
+     * @return the transaction holding an exclusive lock on pid, or null if
+     *         pid is unlocked or only locked in shared mode
+     */
+    public synchronized TransactionId getExclusiveHolder(PageId pid) {
+        PageLock lock = locks.get(pid);
+        if (lock == null || !lock.exclusive)
+            return null;
+        return lock.holders.iterator().next();
+    }
+
+    /** @return the pages tid currently holds locks on */
+    public synchronized Set<PageId> getLockedPages(TransactionId tid) {
+        HashSet<PageId> pages = lockedPages.get(tid);
+        if (pages == null)
+            return new HashSet<PageId>();
+        return new HashSet<PageId>(pages);
+    }
+}
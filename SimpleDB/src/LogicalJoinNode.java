@@ -23,6 +23,26 @@ public class LogicalJoinNode {
     /** The join predicate */
     public Predicate.Op p;
 
+    /** The ways a join can be executed; see {@link JoinOptimizer}. */
+    public enum Algorithm {
+        /** {@link Join}: scan t2 once for every tuple of t1 */
+        NESTED_LOOP,
+        /** {@link HashEquiJoin}: hash t1 and probe it with t2 */
+        HASH,
+        /** {@link BlockNestedLoopJoin}: scan t2 once for every block of
+         * tuples of t1 */
+        BLOCK_NESTED_LOOP,
+        /** {@link IndexNestedLoopJoin}: look up each tuple of t1 in a B+
+         * tree index on t2.f2 */
+        INDEX_NESTED_LOOP,
+        /** {@link SortMergeJoin}: merge t1 and t2 in order of f1 and f2,
+         * sorting those that are not already in it */
+        SORT_MERGE
+    }
+
+    /** The algorithm chosen for the join by the optimizer */
+    public Algorithm algorithm = Algorithm.NESTED_LOOP;
+
     public LogicalJoinNode() {
     }
 
@@ -60,6 +80,15 @@ public class LogicalJoinNode {
             newp = p;
         
         LogicalJoinNode j2 = new LogicalJoinNode(t2Alias,t1Alias,f2PureName,f1PureName, newp);
+        j2.algorithm = algorithm;
+        return j2;
+    }
+
+    /** Return a copy of this LogicalJoinNode executed with the specified
+     * algorithm. */
+    public LogicalJoinNode withAlgorithm(Algorithm a) {
+        LogicalJoinNode j2 = new LogicalJoinNode(t1Alias,t2Alias,f1PureName,f2PureName, p);
+        j2.algorithm = a;
         return j2;
     }
     
@@ -29,13 +29,16 @@ public class LogicalPlan {
     private HashMap<String,Integer> tableMap;
 
     private Vector<LogicalSelectListNode> selectList;
-    private String groupByField = null;
-    private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
-    private boolean oByAsc, hasOrderBy = false;
-    private String oByField;
+    private Vector<String> groupByFields = new Vector<String>();
+    private Vector<String> aggOps = new Vector<String>();
+    private Vector<String> aggFields = new Vector<String>();
+    private boolean hasOrderBy = false;
+    private Vector<String> oByFields = new Vector<String>();
+    private Vector<Boolean> oByAsc = new Vector<Boolean>();
+    private int limit = -1;
+    private boolean distinct = false;
     private String query;
+    private boolean parallelScans = true;
 //    private Query owner;
 
     /** Constructor -- generate an empty logical plan */
@@ -50,6 +53,14 @@ public class LogicalPlan {
         this.query = "";
     }
 
+    /** Set whether large tables may be read with a {@link ParallelSeqScan};
+        true by default. A plan whose rows need their RecordIds, like the
+        input of a Delete, must not use one.
+    */
+    public void setParallelScans(boolean allowed) {
+        this.parallelScans = allowed;
+    }
+
     /** Set the text of the query representing this logical plan.  Does NOT parse the
         specified query -- this method is just used so that the object can print the
         SQL it represents.
@@ -186,36 +197,64 @@ public class LogicalPlan {
     }
     
     /** Add an aggregate over the field with the specified grouping to
-        the query.  SimpleDb only supports a single aggregate
-        expression and GROUP BY field.
+        the query.  Called once for each aggregate expression; all of them
+        are computed in one pass over the same groups.
         @param op the aggregation operator
         @param afield the field to aggregate over
-        @param gfield the field to group by
+        @param gfield a field to group by, or null
      * @throws ParsingException 
     */
     public void addAggregate(String op, String afield, String gfield) throws ParsingException {
         afield=disambiguateName(afield);
+        aggOps.add(op);
+        aggFields.add(afield);
         if (gfield!=null)
-            gfield=disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
-        groupByField = gfield;
-        hasAgg = true;
+            addGroupBy(gfield);
+    }
+
+    /** Add a GROUP BY field to the query.  Called once for each field of a
+        multi-field GROUP BY, from the first to the last.
+        @param field the field to group by
+     * @throws ParsingException 
+    */
+    public void addGroupBy(String field) throws ParsingException {
+        field=disambiguateName(field);
+        if (!groupByFields.contains(field))
+            groupByFields.add(field);
     }
 
-    /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
-        a single ORDER BY field.
+    /** Add an ORDER BY expression in the specified order on the specified field.  Called once for
+        each field of a multi-field ORDER BY, from the first to the last.
         @param field the field to order by
         @param asc true if should be ordered in ascending order, false for descending order
      * @throws ParsingException 
     */
     public void addOrderBy(String field, boolean asc) throws ParsingException {
         field=disambiguateName(field);
-        oByField = field;
-        oByAsc = asc;
+        oByFields.add(field);
+        oByAsc.add(asc);
         hasOrderBy = true;
     }
 
+    /** Add a LIMIT to the plan: it returns only the first rows, after any
+        ORDER BY. With an ORDER BY, the plan keeps only that many rows
+        while it reads its input (see {@link TopK}).
+        @param rows the most rows the plan returns
+     * @throws ParsingException if rows is negative
+    */
+    public void addLimit(int rows) throws ParsingException {
+        if (rows < 0)
+            throw new ParsingException("LIMIT must not be negative");
+        limit = rows;
+    }
+
+    /** Set whether the plan returns each distinct row of the select list
+        only once (SELECT DISTINCT); see {@link Distinct}.
+    */
+    public void setDistinct(boolean distinct) {
+        this.distinct = distinct;
+    }
+
     /** Given a name of a field, try to figure out what table it belongs to by looking
      *   through all of the tables added via {@link #addScan}. 
      *  @return A fully qualified name of the form tableAlias.name.  If the name parameter is already qualified
@@ -258,6 +297,15 @@ public class LogicalPlan {
 
     }
 
+    /** Returns the position of an aggregate among those added with
+        addAggregate, or -1 if it was never added. */
+    private int indexOfAggregate(String op, String afield) {
+        for (int i = 0; i < aggOps.size(); i++)
+            if (aggOps.get(i).equals(op) && aggFields.get(i).equals(afield))
+                return i;
+        return -1;
+    }
+
     /** Convert the aggregate operator name s into an Aggregator.op operation.
      *  @throws ParsingException if s is not a valid operator name 
      */
@@ -268,6 +316,8 @@ public class LogicalPlan {
         if (s.equals("COUNT")) return Aggregator.Op.COUNT;
         if (s.equals("MIN")) return Aggregator.Op.MIN;
         if (s.equals("MAX")) return Aggregator.Op.MAX;
+        if (s.equals("COUNT_DISTINCT")) return Aggregator.Op.COUNT_DISTINCT;
+        if (s.equals("APPROX_COUNT_DISTINCT")) return Aggregator.Op.APPROX_COUNT_DISTINCT;
         throw new ParsingException("Unknown predicate " + s);
     }
 
@@ -294,7 +344,13 @@ public class LogicalPlan {
             LogicalScanNode table = tableIt.next();
             SeqScan ss = null;
             try {
-                 ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
+                 DbFile f = Database.getCatalog().getDatabaseFile(table.t);
+                 // large tables are scanned by several workers, which also
+                 // run the table's filters
+                 if (parallelScans && ParallelSeqScan.suits(f))
+                     ss = new ParallelSeqScan(t, f.getId(), table.alias);
+                 else
+                     ss = new SeqScan(t, f.getId(), table.alias);
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
@@ -334,7 +390,10 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            if (subplan instanceof ParallelSeqScan)
+                ((ParallelSeqScan) subplan).addFilter(p);
+            else
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
@@ -414,7 +473,11 @@ public class LogicalPlan {
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.elementAt(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField!=null?1:0);
+                int a = indexOfAggregate(si.aggOp, si.fname);
+                if (a < 0) {
+                    throw new ParsingException("Aggregate " + si.aggOp + "(" + si.fname + ") is not computed");
+                }
+                outFields.add(groupByFields.size() + a);
                 TupleDesc td = node.getTupleDesc();
 //                int  id;
                 try {
@@ -425,17 +488,18 @@ public class LogicalPlan {
                 }
                 outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
 
-            } else if (hasAgg) {
-                    if (groupByField == null) {
+            } else if (!aggOps.isEmpty()) {
+                    int g = groupByFields.indexOf(si.fname);
+                    if (g < 0) {
                         throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
                     }
-                    outFields.add(0);
+                    outFields.add(g);
                     TupleDesc td = node.getTupleDesc();
                     int  id;
                     try {
-                        id = td.fieldNameToIndex(groupByField);
+                        id = td.fieldNameToIndex(si.fname);
                     } catch (NoSuchElementException e) {
-                        throw new ParsingException("Unknown field " +  groupByField + " in GROUP BY statement");
+                        throw new ParsingException("Unknown field " +  si.fname + " in GROUP BY statement");
                     }
                     outTypes.add(td.getFieldType(id));
             } else if (si.fname.equals("null.*")) {
@@ -458,14 +522,23 @@ public class LogicalPlan {
                 }
         }
 
-        if (hasAgg) {
+        if (!aggOps.isEmpty()) {
             TupleDesc td = node.getTupleDesc();
             Aggregate aggNode;
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                int[] afields = new int[aggOps.size()];
+                Aggregator.Op[] ops = new Aggregator.Op[aggOps.size()];
+                for (int i = 0; i < afields.length; i++) {
+                    afields[i] = td.fieldNameToIndex(aggFields.get(i));
+                    ops[i] = getAggOp(aggOps.get(i));
+                }
+                int[] gfields = new int[groupByFields.size()];
+                for (int i = 0; i < gfields.length; i++)
+                    gfields[i] = td.fieldNameToIndex(groupByFields.get(i));
+                if (SortedAggregate.isGroupedOn(node, gfields))
+                    aggNode = new SortedAggregate(node, afields, ops, gfields);
+                else
+                    aggNode = new Aggregate(node, afields, ops, gfields);
             } catch (NoSuchElementException e) {
                 throw new simpledb.ParsingException(e);
             } catch (IllegalArgumentException e) {
@@ -474,8 +547,40 @@ public class LogicalPlan {
             node = aggNode;
         }
 
+        if (distinct) {
+            // project first, so that only the selected fields tell tuples
+            // apart; ORDER BY and LIMIT then see the projected fields
+            node = new Distinct(new Project(outFields, outTypes, node));
+            outFields = new ArrayList<Integer>();
+            for (int i = 0; i < outTypes.size(); i++)
+                outFields.add(i);
+        }
+
         if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+            int[] fields = new int[oByFields.size()];
+            boolean[] asc = new boolean[oByFields.size()];
+            for (int i = 0; i < fields.length; i++) {
+                try {
+                    fields[i] = node.getTupleDesc().fieldNameToIndex(oByFields.get(i));
+                } catch (NoSuchElementException e) {
+                    throw new ParsingException("Unknown field " + oByFields.get(i) + " in ORDER BY");
+                }
+                asc[i] = oByAsc.get(i);
+            }
+            if (limit >= 0)
+                node = new TopK(fields, asc, limit, node);
+            else
+                node = new OrderBy(fields, asc, node);
+        } else if (limit >= 0) {
+            node = new Limit(limit, node);
+        }
+
+        if (node instanceof ParallelSeqScan) {
+            // let the workers project the rows too
+            ((ParallelSeqScan) node).setProjection(outFields);
+            outFields = new ArrayList<Integer>();
+            for (int i = 0; i < outTypes.size(); i++)
+                outFields.add(i);
         }
 
         return new Project(outFields, outTypes, node);
@@ -35,6 +35,13 @@ public class LogicalSubplanJoinNode extends LogicalJoinNode {
     
     public LogicalSubplanJoinNode swapInnerOuter() {
         LogicalSubplanJoinNode j2 = new LogicalSubplanJoinNode(t1Alias,f1PureName,subPlan, p);
+        j2.algorithm = algorithm;
+        return j2;
+    }
+
+    public LogicalSubplanJoinNode withAlgorithm(Algorithm a) {
+        LogicalSubplanJoinNode j2 = new LogicalSubplanJoinNode(t1Alias,f1PureName,subPlan, p);
+        j2.algorithm = a;
         return j2;
     }
 
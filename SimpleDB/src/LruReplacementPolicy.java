@@ -0,0 +1,39 @@
+package simpledb;
+
+import java.util.LinkedHashMap;
+
+/**
+ * Least-recently-used replacement. Pages are kept in an access-ordered
+ * LinkedHashMap, so a hit moves the page to the tail of the list and the
+ * victim is the first evictable page from the head of the list; both are
+ * O(1) when few pages are pinned.
+ */
+public class LruReplacementPolicy implements ReplacementPolicy {
+
+    // access-ordered: iteration starts at the least recently used page
+    private final LinkedHashMap<PageId, Boolean> pages =
+        new LinkedHashMap<PageId, Boolean>(16, 0.75f, true);
+
+    public void pageAdded(PageId pid) {
+        pages.put(pid, Boolean.TRUE);
+    }
+
+    public void pageAccessed(PageId pid) {
+        if (pages.get(pid) == null)
+            pages.put(pid, Boolean.TRUE);
+    }
+
+    public void pageRemoved(PageId pid) {
+        pages.remove(pid);
+    }
+
+    public PageId chooseVictim(EvictionFilter filter) {
+        // only frames the filter rejects are skipped, so this is O(1) unless
+        // many of the least recently used pages are pinned
+        for (PageId pid : pages.keySet()) {
+            if (filter.canEvict(pid))
+                return pid;
+        }
+        return null;
+    }
+}
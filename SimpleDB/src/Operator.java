@@ -33,6 +33,39 @@ public abstract class Operator implements DbIterator {
         return result;
     }
 
+    public TupleBatch nextBatch() throws DbException,
+            TransactionAbortedException {
+        if (!this.open)
+            throw new IllegalStateException("Operator not yet open");
+
+        if (next != null) {
+            // a row was already fetched by hasNext(); go on row by row
+            return TupleBatch.fromRows(this);
+        }
+        return fetchNextBatch();
+    }
+
+    /**
+     * Returns the next batch of the iterator, or null if the iteration is
+     * finished. Operator uses this method to implement
+     * <code>nextBatch</code>. Operators that can work a batch at a time
+     * override it; by default it collects rows from <code>fetchNext</code>.
+     *
+     * @return a batch with at least one visible row, or null if the
+     *         iteration is finished.
+     */
+    protected TupleBatch fetchNextBatch() throws DbException,
+            TransactionAbortedException {
+        TupleBatch batch = null;
+        Tuple t;
+        while ((batch == null || !batch.isFull()) && (t = fetchNext()) != null) {
+            if (batch == null)
+                batch = new TupleBatch(t.getTupleDesc());
+            batch.addTuple(t);
+        }
+        return batch;
+    }
+
     /**
      * Returns the next Tuple in the iterator, or null if the iteration is
      * finished. Operator uses this method to implement both <code>next</code>
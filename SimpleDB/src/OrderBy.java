@@ -3,22 +3,45 @@ package simpledb;
 import java.util.*;
 
 /**
- * OrderBy is an operator that implements a relational ORDER BY.
+ * OrderBy is an operator that implements a relational ORDER BY, on one or
+ * more fields.
+ * <p>
+ * It sorts in memory when its input fits in a memory budget of tuples (see
+ * {@link #setMemoryBudget(int)}). Otherwise it is an external merge sort:
+ * each budget's worth of tuples is sorted and written to a
+ * {@link TupleSpillFile} as a run, and the runs are merged a heap at a
+ * time, at most {@link #MERGE_FANIN} of them at once, in as many passes as
+ * that takes.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Default number of tuples sorted in memory at a time. */
+    public static final int DEFAULT_MEMORY_BUDGET = 100000;
+
+    /** Most runs merged at once; each has a read buffer. */
+    static final int MERGE_FANIN = 64;
+
     private DbIterator child;
     private TupleDesc td;
     private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
-    private int orderByField;
+    private final int[] orderByFields;
+    private final boolean[] ascending;
     private String orderByFieldName;
     private Iterator<Tuple> it;
-    private boolean asc;
+    private int memoryBudget = DEFAULT_MEMORY_BUDGET;
+
+    // the runs of an external sort, the last of which may be childTups,
+    // and the heads of those that are not done
+    private ArrayList<TupleSpillFile> spills = new ArrayList<TupleSpillFile>();
+    private ArrayList<DbIterator> runs;
+    private PriorityQueue<Run> heads;
+    private int spilledRuns, mergePasses;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
-     * 
+     *
      * @param orderbyField
      *            the field to which the sort is applied.
      * @param asc
@@ -27,62 +50,250 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, DbIterator child) {
+        this(new int[] { orderbyField }, new boolean[] { asc }, child);
+    }
+
+    /**
+     * Creates a new OrderBy node over the tuples from the iterator, that
+     * sorts them on several fields: by the first, then by the second the
+     * tuples that agree on the first, and so on.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied.
+     * @param asc
+     *            for each field, true if the sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, DbIterator child) {
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length)
+            throw new IllegalArgumentException("need an order for each field");
         this.child = child;
         td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.orderByFields = orderbyFields.clone();
+        this.ascending = asc.clone();
+        this.orderByFieldName = td.getFieldName(orderbyFields[0]);
     }
-    
+
+    /** @return true if the sort order of the first field is ascending */
     public boolean isASC()
     {
-	return this.asc;
+	return this.ascending[0];
     }
-    
+
+    /** @return the first field the sort is applied to */
     public int getOrderByField()
     {
-        return this.orderByField;
+        return this.orderByFields[0];
     }
-    
+
     public String getOrderFieldName()
     {
 	return this.orderByFieldName;
     }
-    
+
+    /** @return the fields the sort is applied to, first to last */
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
+    }
+
+    /** @return for each field, true if its sort order is ascending */
+    public boolean[] getAscending() {
+        return ascending.clone();
+    }
+
+    /**
+     * Sets the number of tuples sorted in memory at a time. Takes effect at
+     * the next open().
+     */
+    public void setMemoryBudget(int tuples) {
+        if (tuples < 1)
+            throw new IllegalArgumentException("memory budget must be positive");
+        memoryBudget = tuples;
+    }
+
+    public int getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * @return the number of runs the last open() spilled, or 0 if it sorted
+     *         in memory
+     */
+    int spilledRuns() {
+        return spilledRuns;
+    }
+
+    /** @return the number of passes that merged runs into longer runs */
+    int mergePasses() {
+        return mergePasses;
+    }
+
     public TupleDesc getTupleDesc() {
         return td;
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
+        // the runs of an open() that was not closed are not merged again
+        deleteSpills();
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add((Tuple) child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        TupleComparator cmp = new TupleComparator(orderByFields, ascending);
+        // load the tuples in a collection, and sort it, writing it out as a
+        // run whenever it is full
+        childTups.clear();
+        runs = null;
+        spilledRuns = mergePasses = 0;
+        while (child.hasNext()) {
+            if (childTups.size() == memoryBudget) {
+                Collections.sort(childTups, cmp);
+                spills.add(spill(childTups.iterator()));
+                spilledRuns++;
+                childTups.clear();
+            }
+            childTups.add(child.next());
+        }
+        Collections.sort(childTups, cmp);
+        if (spills.isEmpty()) {
+            it = childTups.iterator();
+        } else {
+            // merge until the runs left, and the last tuples, which stay in
+            // memory, can be merged at once
+            ArrayList<TupleSpillFile> level = new ArrayList<TupleSpillFile>(spills);
+            while (level.size() >= MERGE_FANIN) {
+                ArrayList<TupleSpillFile> next = new ArrayList<TupleSpillFile>();
+                for (int i = 0; i < level.size(); i += MERGE_FANIN) {
+                    List<TupleSpillFile> group = level.subList(i,
+                            Math.min(level.size(), i + MERGE_FANIN));
+                    if (group.size() == 1) {
+                        next.add(group.get(0));
+                        continue;
+                    }
+                    ArrayList<DbIterator> in = new ArrayList<DbIterator>();
+                    for (TupleSpillFile f : group)
+                        in.add(f.iterator());
+                    TupleSpillFile merged = new TupleSpillFile(td);
+                    spills.add(merged);
+                    PriorityQueue<Run> q = startMerge(in);
+                    Tuple t;
+                    while ((t = nextMerged(q)) != null)
+                        merged.add(t);
+                    for (DbIterator r : in)
+                        r.close();
+                    for (TupleSpillFile f : group)
+                        f.delete();
+                    next.add(merged);
+                }
+                level = next;
+                mergePasses++;
+            }
+            runs = new ArrayList<DbIterator>();
+            for (TupleSpillFile f : level)
+                runs.add(f.iterator());
+            runs.add(new TupleIterator(td, childTups));
+            heads = startMerge(runs);
+        }
         super.open();
     }
 
+    private TupleSpillFile spill(Iterator<Tuple> sorted) throws DbException {
+        TupleSpillFile f = new TupleSpillFile(td);
+        while (sorted.hasNext())
+            f.add(sorted.next());
+        return f;
+    }
+
+    /** The next tuple of a run being merged, and where it comes from */
+    private static class Run {
+        final DbIterator it;
+        final int index;
+        Tuple head;
+
+        Run(DbIterator it, int index) {
+            this.it = it;
+            this.index = index;
+        }
+    }
+
+    /** Opens runs and puts their first tuples in a heap */
+    private PriorityQueue<Run> startMerge(List<DbIterator> in)
+            throws DbException, TransactionAbortedException {
+        final TupleComparator cmp = new TupleComparator(orderByFields, ascending);
+        // equal tuples come out in the order of their runs, which keeps the
+        // sort stable
+        PriorityQueue<Run> q = new PriorityQueue<Run>(Math.max(1, in.size()),
+                new Comparator<Run>() {
+                    public int compare(Run a, Run b) {
+                        int c = cmp.compare(a.head, b.head);
+                        return c != 0 ? c : a.index - b.index;
+                    }
+                });
+        for (int i = 0; i < in.size(); i++) {
+            Run r = new Run(in.get(i), i);
+            r.it.open();
+            if (r.it.hasNext()) {
+                r.head = r.it.next();
+                q.add(r);
+            }
+        }
+        return q;
+    }
+
+    /** @return the least head of the heap, replaced by the next of its run */
+    private static Tuple nextMerged(PriorityQueue<Run> q) throws DbException,
+            TransactionAbortedException {
+        Run r = q.poll();
+        if (r == null)
+            return null;
+        Tuple t = r.head;
+        if (r.it.hasNext()) {
+            r.head = r.it.next();
+            q.add(r);
+        }
+        return t;
+    }
+
+    private void deleteSpills() {
+        if (runs != null)
+            for (DbIterator r : runs)
+                r.close();
+        for (TupleSpillFile f : spills)
+            f.delete();
+        spills.clear();
+        heads = null;
+    }
+
     public void close() {
         super.close();
+        child.close();
         it = null;
+        deleteSpills();
+        runs = null;
+        childTups.clear();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+        if (runs == null) {
+            it = childTups.iterator();
+        } else {
+            for (DbIterator r : runs)
+                r.close();
+            heads = startMerge(runs);
+        }
     }
 
     /**
      * Operator.fetchNext implementation. Returns tuples from the child operator
      * in order
-     * 
+     *
      * @return The next tuple in the ordering, or null if there are no more
      *         tuples
      */
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
-        if (it != null && it.hasNext()) {
+        if (heads != null) {
+            return nextMerged(heads);
+        } else if (it != null && it.hasNext()) {
             return it.next();
         } else
             return null;
@@ -99,25 +310,3 @@ public class OrderBy extends Operator {
     }
 
 }
-
-class TupleComparator implements Comparator<Tuple> {
-    int field;
-    boolean asc;
-
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
-    }
-
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
-    }
-    
-}
@@ -0,0 +1,481 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * ParallelHashJoin is an in-memory equality join that builds and probes its
+ * hash tables on several threads of a fork-join pool.
+ * <p>
+ * Both inputs are read a batch at a time (see {@link DbIterator#nextBatch()})
+ * and radix-partitioned: each row goes to one of {@link #PARTITIONS}
+ * partitions by the low bits of the hash of its join key, the threads first
+ * counting how many rows of their slice of the input fall in each partition
+ * and then writing the rows' numbers to their place. Every partition of the
+ * first child gets a hash table of its own, small enough to stay in cache
+ * while it is built or probed, and the threads build and then probe the
+ * partitions independently. The second child is probed
+ * {@link #PROBE_CHUNK} rows at a time.
+ * <p>
+ * The hash tables are {@link IntHashTable}s keyed by the values of an
+ * INT_TYPE join field, read straight from the batches' int columns, so that
+ * neither building nor probing makes Fields, boxes keys or calls
+ * Field.hashCode; STRING_TYPE keys are hashed once, and matches on their
+ * hash are checked by comparing the strings. Unlike {@link HashEquiJoin},
+ * the whole of the first child is held in memory.
+ */
+public class ParallelHashJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Number of bits of the key hash the inputs are partitioned on. */
+    static final int RADIX_BITS = 6;
+
+    /** Number of partitions of each input. */
+    public static final int PARTITIONS = 1 << RADIX_BITS;
+
+    /** Number of rows of the second child probed at a time. */
+    public static final int PROBE_CHUNK = 64 * 1024;
+
+    // rows are kept in full batches of 1 << BATCH_BITS rows
+    private static final int BATCH_BITS = 10;
+    private static final int BATCH_ROWS = 1 << BATCH_BITS;
+
+    // smallest slice of the input worth handing to a thread of its own
+    private static final int MIN_SLICE = 4096;
+
+    private final JoinPredicate pred;
+    private DbIterator child1, child2;
+    private final TupleDesc comboTD;
+    private final int parallelism;
+    private final boolean intKeys;
+
+    transient private ForkJoinPool pool;
+    // the rows of child1, their partitions, and the hash table of each
+    transient private Rows build;
+    transient private Partitioned buildParts;
+    transient private IntHashTable[] tables;
+    // the chunk of child2 probed last, the matches in each of its
+    // partitions, and the next match to return
+    transient private Rows probe;
+    transient private ArrayList<int[]> matches;
+    transient private int matchList;
+    transient private int matchPos;
+    transient private TupleBatch out;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to join on, which must be EQUALS
+     * @param child1
+     *            Iterator for the relation to build the hash tables on
+     * @param child2
+     *            Iterator for the relation to probe them with
+     * @param parallelism
+     *            The number of threads to use
+     */
+    public ParallelHashJoin(JoinPredicate p, DbIterator child1,
+            DbIterator child2, int parallelism) {
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException("a hash join needs an equality predicate");
+        if (parallelism < 1)
+            throw new IllegalArgumentException("parallelism must be positive");
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.parallelism = parallelism;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        intKeys = child1.getTupleDesc().getFieldType(p.getField1()) == Type.INT_TYPE;
+    }
+
+    /**
+     * Constructor, using as many threads as ParallelSeqScan does by default.
+     *
+     * @see ParallelSeqScan#getDefaultParallelism()
+     */
+    public ParallelHashJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, ParallelSeqScan.getDefaultParallelism());
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    /**
+     * Rows copied out of a child's batches, which the child may reuse, into
+     * full batches of BATCH_ROWS rows: row i is row i % BATCH_ROWS of batch
+     * i / BATCH_ROWS.
+     */
+    private static class Rows {
+        final TupleDesc td;
+        final ArrayList<TupleBatch> batches = new ArrayList<TupleBatch>();
+        int size = 0;
+
+        Rows(TupleDesc td) {
+            this.td = td;
+        }
+
+        void append(TupleBatch from) {
+            int n = td.numFields();
+            for (int k = 0; k < from.size(); k++) {
+                int row = from.row(k);
+                if ((size & (BATCH_ROWS - 1)) == 0)
+                    batches.add(new TupleBatch(td, BATCH_ROWS));
+                TupleBatch to = batches.get(batches.size() - 1);
+                int r = to.addRow();
+                for (int i = 0; i < n; i++)
+                    to.copyField(i, r, from, i, row);
+                size++;
+            }
+        }
+
+        TupleBatch batch(int i) {
+            return batches.get(i >>> BATCH_BITS);
+        }
+
+        String getString(int field, int i) {
+            return batch(i).getString(field, i & (BATCH_ROWS - 1));
+        }
+    }
+
+    /** The rows of a Rows radix-partitioned by their keys. */
+    private static class Partitioned {
+        // the rows of partition p are rows[start[p]] to
+        // rows[start[p + 1] - 1], and keys are their keys
+        final int[] rows;
+        final int[] keys;
+        final int[] start = new int[PARTITIONS + 1];
+
+        Partitioned(int n) {
+            rows = new int[n];
+            keys = new int[n];
+        }
+    }
+
+    /** @return the partition of a key, from the low bits of its hash */
+    static int radix(int key) {
+        int h = key;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h & (PARTITIONS - 1);
+    }
+
+    /** Runs tasks on the pool, or in this thread if there is no pool. */
+    private <T> ArrayList<T> run(ArrayList<Callable<T>> tasks) throws DbException {
+        ArrayList<T> results = new ArrayList<T>(tasks.size());
+        try {
+            if (pool == null) {
+                for (Callable<T> task : tasks)
+                    results.add(task.call());
+            } else {
+                for (Future<T> f : pool.invokeAll(tasks))
+                    results.add(f.get());
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new DbException("parallel hash join failed: " + e.getCause());
+        } catch (InterruptedException e) {
+            throw new DbException("interrupted during a parallel hash join");
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new DbException("parallel hash join failed: " + e);
+        }
+        return results;
+    }
+
+    /** Radix-partitions rows by their field'th field. */
+    private Partitioned partition(final Rows rows, final int field)
+            throws DbException {
+        final int n = rows.size;
+        final int[] keys = new int[n];
+        final int[] parts = new int[n];
+        // slices are whole batches
+        final int batches = rows.batches.size();
+        final int slices = Math.max(1, Math.min(Math.min(parallelism,
+                n / MIN_SLICE), batches));
+        // first the number of rows of each slice in each partition, then
+        // where the slice's next row of each partition goes
+        final int[][] counts = new int[slices][PARTITIONS];
+
+        ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int s = 0; s < slices; s++) {
+            final int slice = s;
+            tasks.add(new Callable<Void>() {
+                public Void call() {
+                    int[] count = counts[slice];
+                    for (int b = batches * slice / slices; b < batches * (slice + 1) / slices; b++) {
+                        TupleBatch batch = rows.batches.get(b);
+                        int base = b << BATCH_BITS;
+                        int[] ints = batch.getIntColumn(field);
+                        String[] strings = batch.getStringColumn(field);
+                        for (int r = 0; r < batch.numRows(); r++) {
+                            int key = ints != null ? ints[r] : strings[r].hashCode();
+                            int part = radix(key);
+                            keys[base + r] = key;
+                            parts[base + r] = part;
+                            count[part]++;
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        run(tasks);
+
+        final Partitioned p = new Partitioned(n);
+        int pos = 0;
+        for (int part = 0; part < PARTITIONS; part++) {
+            p.start[part] = pos;
+            for (int s = 0; s < slices; s++) {
+                int c = counts[s][part];
+                counts[s][part] = pos;
+                pos += c;
+            }
+        }
+        p.start[PARTITIONS] = pos;
+
+        tasks.clear();
+        for (int s = 0; s < slices; s++) {
+            final int slice = s;
+            tasks.add(new Callable<Void>() {
+                public Void call() {
+                    int[] next = counts[slice];
+                    int from = (batches * slice / slices) << BATCH_BITS;
+                    int to = Math.min(n, (batches * (slice + 1) / slices) << BATCH_BITS);
+                    for (int i = from; i < to; i++) {
+                        int at = next[parts[i]]++;
+                        p.rows[at] = i;
+                        p.keys[at] = keys[i];
+                    }
+                    return null;
+                }
+            });
+        }
+        run(tasks);
+        return p;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        if (parallelism > 1)
+            pool = new ForkJoinPool(parallelism);
+        child1.open();
+        child2.open();
+
+        build = new Rows(child1.getTupleDesc());
+        TupleBatch b;
+        while ((b = child1.nextBatch()) != null)
+            build.append(b);
+        buildParts = partition(build, pred.getField1());
+
+        tables = new IntHashTable[PARTITIONS];
+        ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int p = 0; p < PARTITIONS; p++) {
+            final int part = p;
+            tasks.add(new Callable<Void>() {
+                public Void call() {
+                    int from = buildParts.start[part], to = buildParts.start[part + 1];
+                    IntHashTable table = new IntHashTable(to - from);
+                    for (int i = from; i < to; i++)
+                        table.add(buildParts.keys[i]);
+                    tables[part] = table;
+                    return null;
+                }
+            });
+        }
+        run(tasks);
+
+        matches = new ArrayList<int[]>();
+        matchList = 0;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child2.close();
+        child1.close();
+        if (pool != null)
+            pool.shutdown();
+        pool = null;
+        build = null;
+        buildParts = null;
+        tables = null;
+        probe = null;
+        matches = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child2.rewind();
+        matches = new ArrayList<int[]>();
+        matchList = 0;
+    }
+
+    /**
+     * Probes the hash tables with the next chunk of child2.
+     *
+     * @return false if child2 has no more rows
+     */
+    private boolean probeChunk() throws DbException, TransactionAbortedException {
+        final Rows chunk = new Rows(child2.getTupleDesc());
+        TupleBatch b;
+        while (chunk.size < PROBE_CHUNK && (b = child2.nextBatch()) != null)
+            chunk.append(b);
+        if (chunk.size == 0)
+            return false;
+        final Partitioned parts = partition(chunk, pred.getField2());
+
+        ArrayList<Callable<int[]>> tasks = new ArrayList<Callable<int[]>>();
+        for (int p = 0; p < PARTITIONS; p++) {
+            final int part = p;
+            if (parts.start[part] == parts.start[part + 1]
+                    || buildParts.start[part] == buildParts.start[part + 1])
+                continue;
+            tasks.add(new Callable<int[]>() {
+                public int[] call() {
+                    return probePartition(chunk, parts, part);
+                }
+            });
+        }
+        probe = chunk;
+        matches = run(tasks);
+        matchList = 0;
+        matchPos = 0;
+        return true;
+    }
+
+    /**
+     * @return the matches in one partition of a chunk of child2: pairs of
+     *         the number of a row of child1 and that of a row of the chunk,
+     *         ending at the first negative number
+     */
+    private int[] probePartition(Rows chunk, Partitioned parts, int part) {
+        int[] pairs = new int[2 * (parts.start[part + 1] - parts.start[part]) + 2];
+        int n = 0;
+        IntHashTable table = tables[part];
+        int buildStart = buildParts.start[part];
+        int f1 = pred.getField1(), f2 = pred.getField2();
+        for (int i = parts.start[part]; i < parts.start[part + 1]; i++) {
+            int key = parts.keys[i];
+            for (int r = table.first(key); r >= 0; r = table.next(r, key)) {
+                int left = buildParts.rows[buildStart + r];
+                int right = parts.rows[i];
+                if (!intKeys && !build.getString(f1, left).equals(
+                        chunk.getString(f2, right)))
+                    continue;
+                if (n + 2 >= pairs.length)
+                    pairs = Arrays.copyOf(pairs, 2 * pairs.length);
+                pairs[n++] = left;
+                pairs[n++] = right;
+            }
+        }
+        pairs[n] = -1;
+        return pairs;
+    }
+
+    /**
+     * Moves on to the next match, probing the next chunk of child2 if need
+     * be; afterwards, the match is at matchPos in matches.get(matchList).
+     *
+     * @return false if there are no more matches
+     */
+    private boolean nextMatch() throws DbException, TransactionAbortedException {
+        while (matchList == matches.size()
+                || matches.get(matchList)[matchPos] < 0) {
+            if (matchList < matches.size()) {
+                matchList++;
+                matchPos = 0;
+            } else if (!probeChunk())
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples: the concatenation of a matching tuple of child1 and one
+     * of child2, in no particular order.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (!nextMatch())
+            return null;
+        int[] pairs = matches.get(matchList);
+        int left = pairs[matchPos++];
+        int right = pairs[matchPos++];
+        TupleBatch lb = build.batch(left), rb = probe.batch(right);
+        left &= BATCH_ROWS - 1;
+        right &= BATCH_ROWS - 1;
+        int td1n = lb.getTupleDesc().numFields();
+        int td2n = rb.getTupleDesc().numFields();
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, lb.getField(i, left));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, rb.getField(i, right));
+        return t;
+    }
+
+    /**
+     * Operator.fetchNextBatch implementation. Copies the fields of the
+     * matching rows into an output batch instead of making a Tuple for each.
+     */
+    protected TupleBatch fetchNextBatch() throws TransactionAbortedException,
+            DbException {
+        if (out == null)
+            out = new TupleBatch(comboTD);
+        out.clear();
+        int td1n = child1.getTupleDesc().numFields();
+        int td2n = child2.getTupleDesc().numFields();
+        while (!out.isFull() && nextMatch()) {
+            int[] pairs = matches.get(matchList);
+            int left = pairs[matchPos++];
+            int right = pairs[matchPos++];
+            TupleBatch lb = build.batch(left), rb = probe.batch(right);
+            left &= BATCH_ROWS - 1;
+            right &= BATCH_ROWS - 1;
+            int row = out.addRow();
+            for (int i = 0; i < td1n; i++)
+                out.copyField(i, row, lb, i, left);
+            for (int i = 0; i < td2n; i++)
+                out.copyField(td1n + i, row, rb, i, right);
+        }
+        return out.size() > 0 ? out : null;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child1, this.child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+}
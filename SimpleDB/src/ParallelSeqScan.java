@@ -0,0 +1,455 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ParallelSeqScan is a sequential scan of a HeapFile that runs on several
+ * worker threads. The file is cut into morsels of {@link #MORSEL_PAGES}
+ * pages, which the workers take one after another from a shared cursor, so
+ * a worker that is held up, e.g. waiting for a read, simply ends up with
+ * fewer of them. Each worker runs the scan's filters, and its projection if
+ * it has one, over its morsels a batch at a time, and hands the batches
+ * that come out to the consumer through a bounded queue.
+ * <p>
+ * Rows come out in no particular order, and without RecordIds, so a
+ * ParallelSeqScan cannot feed a Delete. An operator that can consume rows
+ * on several threads, like {@link Aggregate}, can instead have each worker
+ * hand its batches straight to it (see {@link #scanInto}). {@link LogicalPlan} uses one in
+ * place of a SeqScan for tables of at least {@link #getMinPages()} pages
+ * when more than one worker is available, and pushes the table's filters
+ * into it.
+ */
+public class ParallelSeqScan extends SeqScan {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Number of pages a worker takes at a time. */
+    public static final int MORSEL_PAGES = 16;
+
+    /** Default size, in pages, from which LogicalPlan scans a table in parallel. */
+    public static final int DEFAULT_MIN_PAGES = 128;
+
+    // the number of batches each worker may get ahead of the consumer
+    private static final int QUEUED_BATCHES_PER_WORKER = 4;
+
+    private static volatile int defaultParallelism =
+        Runtime.getRuntime().availableProcessors();
+    private static volatile int minPages = DEFAULT_MIN_PAGES;
+
+    private static final ExecutorService executor =
+        Executors.newCachedThreadPool(new ThreadFactory() {
+            private int count = 0;
+
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "simpledb-scan-worker-" + count++);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    // put in the queue by a worker when it is done
+    private static final TupleBatch DONE =
+        new TupleBatch(new TupleDesc(new Type[] { Type.INT_TYPE }), 1);
+
+    private final TransactionId tid;
+    private final HeapFile file;
+    private final int parallelism;
+    private final ArrayList<Predicate> filters = new ArrayList<Predicate>();
+    private ArrayList<Integer> projection;
+    private Type[] projectedTypes;
+    private TupleDesc projectedTd;
+
+    // the workers started by the last open(), and the batch next() is on
+    private transient Run run;
+    private transient TupleBatch batch;
+    private transient int batchPos;
+
+    /**
+     * Creates a parallel scan of a HeapFile.
+     *
+     * @param parallelism the number of worker threads to use
+     * @throws IllegalArgumentException if the table is not a HeapFile
+     * @see SeqScan#SeqScan(TransactionId, int, String)
+     */
+    public ParallelSeqScan(TransactionId tid, int tableid, String tableAlias,
+            int parallelism) {
+        super(tid, tableid, tableAlias);
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(f instanceof HeapFile))
+            throw new IllegalArgumentException("can only scan a HeapFile in parallel");
+        this.tid = tid;
+        this.file = (HeapFile) f;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    public ParallelSeqScan(TransactionId tid, int tableid, String tableAlias) {
+        this(tid, tableid, tableAlias, defaultParallelism);
+    }
+
+    /**
+     * Sets the number of workers of scans created without one; defaults to
+     * the number of available processors.
+     */
+    public static void setDefaultParallelism(int parallelism) {
+        defaultParallelism = parallelism;
+    }
+
+    public static int getDefaultParallelism() {
+        return defaultParallelism;
+    }
+
+    /** Sets the size, in pages, from which LogicalPlan scans a table in parallel. */
+    public static void setMinPages(int pages) {
+        minPages = pages;
+    }
+
+    public static int getMinPages() {
+        return minPages;
+    }
+
+    /**
+     * @return true if f is worth scanning in parallel: a HeapFile of at
+     *         least getMinPages() pages, with more than one worker to use
+     */
+    static boolean suits(DbFile f) {
+        return defaultParallelism > 1 && f instanceof HeapFile
+            && ((HeapFile) f).numPages() >= minPages;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Adds a predicate that the workers apply to the rows they scan. Its
+     * field numbers refer to the scan's fields before any projection. Takes
+     * effect at the next open().
+     */
+    public void addFilter(Predicate p) {
+        filters.add(p);
+    }
+
+    public ArrayList<Predicate> getFilters() {
+        return filters;
+    }
+
+    /**
+     * Makes the scan return only the given fields, in that order; the
+     * workers project the rows that pass the filters. Takes effect at the
+     * next open().
+     *
+     * @param fields the indexes of the fields to keep
+     */
+    public void setProjection(ArrayList<Integer> fields) {
+        TupleDesc td = super.getTupleDesc();
+        Type[] types = new Type[fields.size()];
+        String[] names = new String[fields.size()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = td.getFieldType(fields.get(i));
+            names[i] = td.getFieldName(fields.get(i));
+        }
+        this.projection = fields;
+        this.projectedTypes = types;
+        this.projectedTd = new TupleDesc(types, names);
+    }
+
+    /** @return the projected fields, or null if all fields are returned */
+    public ArrayList<Integer> getProjection() {
+        return projection;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return projectedTd != null ? projectedTd : super.getTupleDesc();
+    }
+
+    /** @return the TupleDesc of the rows scanned, before any projection */
+    public TupleDesc getScannedTupleDesc() {
+        return super.getTupleDesc();
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        close();
+        int numPages = file.numPages();
+        int morsels = (numPages + MORSEL_PAGES - 1) / MORSEL_PAGES;
+        run = new Run(numPages, Math.min(parallelism, morsels), null);
+        run.start();
+    }
+
+    public boolean hasNext() throws TransactionAbortedException, DbException {
+        if (run == null)
+            return false;
+        while (batch == null || batchPos >= batch.size()) {
+            batch = run.take();
+            batchPos = 0;
+            if (batch == null)
+                return false;
+        }
+        return true;
+    }
+
+    public Tuple next() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return batch.getTuple(batchPos++);
+    }
+
+    public TupleBatch nextBatch() throws DbException,
+            TransactionAbortedException {
+        if (run == null)
+            throw new IllegalStateException("scan not yet open");
+        batch = null;
+        return run.take();
+    }
+
+    public void rewind() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        open();
+    }
+
+    /**
+     * Stops the workers, and returns once they are done, so that none of
+     * them reads a page, or takes a lock, for the transaction any more.
+     */
+    public void close() {
+        if (run != null)
+            run.cancel();
+        run = null;
+        batch = null;
+    }
+
+    /**
+     * Consumes the batches of one worker of a scan run by
+     * {@link ParallelSeqScan#scanInto}, on that worker's thread.
+     */
+    interface BatchSink {
+        void add(TupleBatch batch) throws DbException,
+                TransactionAbortedException;
+    }
+
+    /**
+     * Scans the table with each worker handing its batches to a sink of its
+     * own instead of queueing them for next(), and returns once all the
+     * workers are done, even if one of them failed, so that no sink is in
+     * use any more. Runs at most sinks.length workers.
+     *
+     * @throws DbException or TransactionAbortedException if a worker, or
+     *             its sink, failed
+     */
+    void scanInto(BatchSink[] sinks) throws DbException,
+            TransactionAbortedException {
+        close();
+        int numPages = file.numPages();
+        int morsels = (numPages + MORSEL_PAGES - 1) / MORSEL_PAGES;
+        run = new Run(numPages, Math.min(Math.min(parallelism, morsels),
+                sinks.length), sinks);
+        Run r = run;
+        r.start();
+        try {
+            r.finished.await();
+        } catch (InterruptedException e) {
+            throw new DbException("interrupted while scanning in parallel");
+        } finally {
+            close();
+        }
+        if (r.error != null)
+            rethrow(r.error);
+    }
+
+    /** The workers of one open() and the queue they fill. */
+    private class Run {
+        final AtomicInteger nextPage = new AtomicInteger(0);
+        final int numPages;
+        final int workers;
+        // where each worker puts its batches, or null to queue them
+        final BatchSink[] sinks;
+        final BlockingQueue<TupleBatch> queue;
+        // the number of workers the consumer has not seen finish
+        int running;
+        // counted down by each worker when it is done
+        final CountDownLatch finished;
+        volatile boolean cancelled = false;
+        volatile Exception error;
+
+        Run(int numPages, int workers, BatchSink[] sinks) {
+            this.numPages = numPages;
+            this.workers = workers;
+            this.sinks = sinks;
+            this.running = workers;
+            this.finished = new CountDownLatch(workers);
+            this.queue = new ArrayBlockingQueue<TupleBatch>(
+                Math.max(1, workers * QUEUED_BATCHES_PER_WORKER));
+        }
+
+        void start() {
+            for (int i = 0; i < workers; i++) {
+                final BatchSink sink = sinks == null ? null : sinks[i];
+                executor.execute(new Runnable() {
+                    public void run() {
+                        work(sink);
+                    }
+                });
+            }
+        }
+
+        /** Hands out the next morsel as {from, to}, or null if there are none left. */
+        int[] nextMorsel() {
+            int from = nextPage.getAndAdd(MORSEL_PAGES);
+            if (cancelled || from >= numPages)
+                return null;
+            return new int[] { from, Math.min(from + MORSEL_PAGES, numPages) };
+        }
+
+        void work(BatchSink sink) {
+            MorselIterator it = new MorselIterator(this);
+            try {
+                TupleBatch b;
+                while (!cancelled && (b = it.nextBatch()) != null) {
+                    if (sink != null)
+                        sink.add(b);
+                    else
+                        put(b);
+                }
+            } catch (Exception e) {
+                if (error == null)
+                    error = e;
+            } finally {
+                it.close();
+                if (sink == null)
+                    put(DONE);
+                finished.countDown();
+            }
+        }
+
+        private void put(TupleBatch b) {
+            try {
+                while (!cancelled) {
+                    if (queue.offer(b, 10, TimeUnit.MILLISECONDS))
+                        return;
+                }
+            } catch (InterruptedException e) {
+                // the scan is being torn down
+            }
+        }
+
+        /** @return the next batch from the workers, or null when they are all done */
+        TupleBatch take() throws DbException, TransactionAbortedException {
+            while (running > 0) {
+                TupleBatch b;
+                try {
+                    b = queue.take();
+                } catch (InterruptedException e) {
+                    throw new DbException("interrupted while scanning in parallel");
+                }
+                if (b != DONE)
+                    return b;
+                running--;
+                if (error != null) {
+                    cancel();
+                    running = 0;
+                    rethrow(error);
+                }
+            }
+            return null;
+        }
+
+        /** Stops the workers and waits for them to be done. */
+        void cancel() {
+            cancelled = true;
+            queue.clear();
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    finished.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void rethrow(Exception e)
+            throws DbException, TransactionAbortedException {
+        if (e instanceof DbException)
+            throw (DbException) e;
+        if (e instanceof TransactionAbortedException)
+            throw (TransactionAbortedException) e;
+        if (e instanceof RuntimeException)
+            throw (RuntimeException) e;
+        throw new DbException("parallel scan failed: " + e);
+    }
+
+    /**
+     * The rows of the morsels a worker takes, read a batch at a time and run
+     * through the scan's filters and projection; each call to nextBatch
+     * returns a new batch, since the batches are queued.
+     */
+    private class MorselIterator {
+        private final Run run;
+        private final HeapFileIterator pages;
+        private final TupleDesc td = getScannedTupleDesc();
+        // the fields projected out of each batch, or null to keep them all
+        private final int[] projected;
+        private boolean inMorsel = false;
+
+        MorselIterator(Run run) {
+            this.run = run;
+            this.pages = new HeapFileIterator(file, tid,
+                ParallelSeqScan.this.chooseRing(run.workers));
+            if (projection == null) {
+                projected = null;
+            } else {
+                projected = new int[projection.size()];
+                for (int i = 0; i < projected.length; i++)
+                    projected[i] = projection.get(i);
+            }
+        }
+
+        /**
+         * @return the next batch with a row that passes the filters, or null
+         *         once there are no morsels left
+         */
+        TupleBatch nextBatch() throws DbException,
+                TransactionAbortedException {
+            TupleBatch b = new TupleBatch(td);
+            while (true) {
+                if (!inMorsel) {
+                    int[] morsel = run.nextMorsel();
+                    if (morsel == null)
+                        return null;
+                    pages.setPageRange(morsel[0], morsel[1]);
+                    pages.open();
+                    inMorsel = true;
+                }
+                if (!pages.nextBatch(b))
+                    inMorsel = false;
+                else if (passesFilters(b))
+                    return projected == null ? b : b.project(projectedTd, projected);
+            }
+        }
+
+        private boolean passesFilters(TupleBatch b) {
+            for (Predicate p : filters) {
+                if (p.filter(b) == 0)
+                    return false;
+            }
+            return true;
+        }
+
+        void close() {
+            pages.close();
+        }
+    }
+}
@@ -4,6 +4,8 @@ import Zql.*;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -12,6 +14,11 @@ import jline.SimpleCompletor;
 public class Parser {
     static boolean explain = false;
 
+    static {
+        // parsed like the built-in aggregates from then on
+        ZUtils.addCustomFunction("approx_count_distinct", 1);
+    }
+
     public static Predicate.Op getOp(String s) throws simpledb.ParsingException {
         if (s.equals("="))
             return Predicate.Op.EQUALS;
@@ -182,23 +189,19 @@ public class Parser {
 
         // now look for group by fields
         ZGroupBy gby = q.getGroupBy();
-        String groupByField = null;
+        Vector<String> groupByFields = new Vector<String>();
         if (gby != null) {
             @SuppressWarnings("unchecked")
             Vector<ZExp> gbs = gby.getGroupBy();
-            if (gbs.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "At most one grouping field expression supported.");
-            }
-            if (gbs.size() == 1) {
-                ZExp gbe = gbs.elementAt(0);
+            for (ZExp gbe : gbs) {
                 if (!(gbe instanceof ZConstant)) {
                     throw new simpledb.ParsingException(
                             "Complex grouping expressions (" + gbe
                                     + ") not supported.");
                 }
-                groupByField = ((ZConstant) gbe).getValue();
+                String groupByField = ((ZConstant) gbe).getValue();
                 System.out.println("GROUP BY FIELD : " + groupByField);
+                groupByFields.add(groupByField);
             }
 
         }
@@ -207,8 +210,7 @@ public class Parser {
         // validity
         @SuppressWarnings("unchecked")
         Vector<ZSelectItem> selectList = q.getSelect();
-        String aggField = null;
-        String aggFun = null;
+        boolean hasAgg = false;
 
         for (int i = 0; i < selectList.size(); i++) {
             ZSelectItem si = selectList.elementAt(i);
@@ -218,21 +220,28 @@ public class Parser {
                         "Expressions in SELECT list are not supported.");
             }
             if (si.getAggregate() != null) {
-                if (aggField != null) {
-                    throw new simpledb.ParsingException(
-                            "Aggregates over multiple fields not supported.");
-                }
-                aggField = ((ZConstant) ((ZExpression) si.getExpression())
+                String aggField = ((ZConstant) ((ZExpression) si.getExpression())
                         .getOperand(0)).getValue();
-                aggFun = si.getAggregate();
+                String aggFun = si.getAggregate();
+                // Zql leaves the DISTINCT of COUNT(DISTINCT f) in the field
+                if (aggField.regionMatches(true, 0, "distinct ", 0, 9)) {
+                    if (!aggFun.equalsIgnoreCase("COUNT")) {
+                        throw new simpledb.ParsingException(
+                                "DISTINCT is only supported in COUNT.");
+                    }
+                    aggField = aggField.substring(9).trim();
+                    aggFun = "COUNT_DISTINCT";
+                }
                 System.out.println("Aggregate field is " + aggField
                         + ", agg fun is : " + aggFun);
                 lp.addProjectField(aggField, aggFun);
+                lp.addAggregate(aggFun, aggField, null);
+                hasAgg = true;
             } else {
-                if (groupByField != null
-                        && !(groupByField.equals(si.getTable() + "."
-                                + si.getColumn()) || groupByField.equals(si
-                                .getColumn()))) {
+                if (!groupByFields.isEmpty()
+                        && !groupByFields.contains(si.getTable() + "."
+                                + si.getColumn())
+                        && !groupByFields.contains(si.getColumn())) {
                     throw new simpledb.ParsingException("Non-aggregate field "
                             + si.getColumn()
                             + " does not appear in GROUP BY list.");
@@ -241,30 +250,31 @@ public class Parser {
             }
         }
 
-        if (groupByField != null && aggFun == null) {
+        if (!groupByFields.isEmpty() && !hasAgg) {
             throw new simpledb.ParsingException("GROUP BY without aggregation.");
         }
 
-        if (aggFun != null) {
-            lp.addAggregate(aggFun, aggField, groupByField);
+        for (String groupByField : groupByFields) {
+            lp.addGroupBy(groupByField);
+        }
+
+        if (q.isDistinct()) {
+            lp.setDistinct(true);
         }
         // sort the data
 
         if (q.getOrderBy() != null) {
             @SuppressWarnings("unchecked")
             Vector<ZOrderBy> obys = q.getOrderBy();
-            if (obys.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "Multi-attribute ORDER BY is not supported.");
-            }
-            ZOrderBy oby = obys.elementAt(0);
-            if (!(oby.getExpression() instanceof ZConstant)) {
-                throw new simpledb.ParsingException(
-                        "Complex ORDER BY's are not supported");
-            }
-            ZConstant f = (ZConstant) oby.getExpression();
+            for (ZOrderBy oby : obys) {
+                if (!(oby.getExpression() instanceof ZConstant)) {
+                    throw new simpledb.ParsingException(
+                            "Complex ORDER BY's are not supported");
+                }
+                ZConstant f = (ZConstant) oby.getExpression();
 
-            lp.addOrderBy(f.getValue(), oby.getAscOrder());
+                lp.addOrderBy(f.getValue(), oby.getAscOrder());
+            }
 
         }
         return lp;
@@ -273,12 +283,57 @@ public class Parser {
     private Transaction curtrans = null;
     private boolean inUserTrans = false;
 
+    /** A LIMIT at the end of a statement, which Zql does not parse */
+    private static final Pattern LIMIT_CLAUSE = Pattern.compile(
+            "(?is)^(.*?)\\s+LIMIT\\s+(\\d+)\\s*;?\\s*$");
+
+    /** A statement without its LIMIT, and the LIMIT */
+    private static class LimitedStatement {
+        final String sql;
+        // -1 if the statement has no LIMIT
+        final int limit;
+
+        LimitedStatement(String sql, int limit) {
+            this.sql = sql;
+            this.limit = limit;
+        }
+    }
+
+    /**
+     * Removes a LIMIT from the end of a statement, so that Zql can parse the
+     * rest.
+     */
+    private static LimitedStatement stripLimit(String s)
+            throws simpledb.ParsingException {
+        Matcher m = LIMIT_CLAUSE.matcher(s);
+        if (!m.matches())
+            return new LimitedStatement(s, -1);
+        try {
+            return new LimitedStatement(m.group(1) + ";",
+                    Integer.parseInt(m.group(2)));
+        } catch (NumberFormatException e) {
+            throw new simpledb.ParsingException("LIMIT " + m.group(2)
+                    + " is too large");
+        }
+    }
+
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws TransactionAbortedException, DbException, IOException,
             simpledb.ParsingException, Zql.ParseException {
+        return handleQueryStatement(s, tId, -1);
+    }
+
+    /**
+     * @param limit the number of rows to return, or -1 to return them all
+     */
+    public Query handleQueryStatement(ZQuery s, TransactionId tId, int limit)
+            throws TransactionAbortedException, DbException, IOException,
+            simpledb.ParsingException, Zql.ParseException {
         Query query = new Query(tId);
 
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        if (limit >= 0)
+            lp.addLimit(limit);
         DbIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
@@ -418,6 +473,8 @@ public class Parser {
         if (s.getWhere() != null)
             processExpression(tid, (ZExpression) s.getWhere(), lp);
         lp.addProjectField("null.*", null);
+        // Delete needs the RecordIds that a parallel scan does not keep
+        lp.setParallelScans(false);
 
         DbIterator op = new Delete(tid, lp.physicalPlan(tid,
                 TableStats.getStatsMap(), false));
@@ -465,12 +522,15 @@ public class Parser {
 
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
+        LimitedStatement st = stripLimit(s);
+        ByteArrayInputStream bis = new ByteArrayInputStream(st.sql.getBytes());
         ZqlParser p = new ZqlParser(bis);
         try {
             ZStatement stmt = p.readStatement();
             if (stmt instanceof ZQuery) {
                 LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                if (st.limit >= 0)
+                    lp.addLimit(st.limit);
                 return lp;
             }
         } catch (Zql.ParseException e) {
@@ -501,10 +561,46 @@ public class Parser {
         }
     }
 
+    /**
+     * Processes the statements read from is, e.g. those of a query file, one
+     * at a time: each statement, up to its semicolon, is run before the next
+     * one is read.
+     */
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
+            Reader in = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+            String statement;
+            while ((statement = readStatement(in)) != null)
+                processStatement(statement);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return the text of in up to and including the next semicolon, or up
+     *         to its end if there is none, or null if only white space is
+     *         left
+     */
+    private static String readStatement(Reader in) throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int c; (c = in.read()) >= 0;) {
+            text.append((char) c);
+            if (c == ';')
+                break;
+        }
+        return text.toString().trim().length() == 0 ? null : text.toString();
+    }
+
+    private void processStatement(String text) {
+        try {
+            LimitedStatement st = stripLimit(text);
+            ZqlParser p = new ZqlParser(new ByteArrayInputStream(
+                    st.sql.getBytes("UTF-8")));
             ZStatement s = p.readStatement();
+            if (st.limit >= 0 && !(s instanceof ZQuery))
+                throw new simpledb.ParsingException(
+                        "LIMIT is only supported in queries");
 
             Query query = null;
             if (s instanceof ZTransactStmt)
@@ -525,7 +621,7 @@ public class Parser {
                                 curtrans.getId());
                     else if (s instanceof ZQuery)
                         query = handleQueryStatement((ZQuery) s,
-                                curtrans.getId());
+                                curtrans.getId(), st.limit);
                     else {
                         System.out
                                 .println("Can't parse "
@@ -581,7 +677,8 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "limit", "distinct",
+            "approx_count_distinct(" };
 
     public static void main(String argv[]) throws IOException {
 
@@ -11,6 +11,8 @@ public class Project extends Operator {
     private DbIterator child;
     private TupleDesc td;
     private ArrayList<Integer> outFieldIds;
+    // outFieldIds as an array, for projecting batches
+    private int[] fields;
 
     /**
      * Constructor accepts a child operator to read tuples to apply projection
@@ -80,6 +82,23 @@ public class Project extends Operator {
         return null;
     }
 
+    /**
+     * Operator.fetchNextBatch implementation. The projected batch shares the
+     * columns of the child's batch, so no values are copied.
+     */
+    protected TupleBatch fetchNextBatch() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        TupleBatch batch = child.nextBatch();
+        if (batch == null)
+            return null;
+        if (fields == null) {
+            fields = new int[outFieldIds.size()];
+            for (int i = 0; i < fields.length; i++)
+                fields[i] = outFieldIds.get(i);
+        }
+        return batch.project(td, fields);
+    }
+
     @Override
     public DbIterator[] getChildren() {
         return new DbIterator[] { this.child };
@@ -105,14 +105,19 @@ public class Query implements Serializable {
         }
         System.out.println("");
 
-        this.start();
-        int cnt = 0;
-        while (this.hasNext()) {
-            Tuple tup = this.next();
-            System.out.println(tup);
-            cnt++;
+        try {
+            this.start();
+            int cnt = 0;
+            while (this.hasNext()) {
+                Tuple tup = this.next();
+                System.out.println(tup);
+                cnt++;
+            }
+            System.out.println("\n " + cnt + " rows.");
+        } finally {
+            // also when the query fails, so that its operators delete any
+            // files they spilled to
+            this.close();
         }
-        System.out.println("\n " + cnt + " rows.");
-        this.close();
     }
 }
@@ -0,0 +1,142 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * ReadAhead reads the pages a sequential scan is about to visit into the
+ * {@link BufferPool} on a background I/O thread, so that the scan finds
+ * them cached instead of waiting for each read in turn. Each file iterator
+ * owns one ReadAhead and reports every page it moves on to.
+ * <p>
+ * For a HeapFile the next pages are simply the following page numbers; a
+ * batch is requested once fewer than half a window of requested pages is
+ * left ahead of the scan, and only while the scan is moving forward one page
+ * at a time. For a BTreeFile the next leaves are only known by following
+ * right-sibling pointers, so the background thread walks the chain itself,
+ * starting from the right sibling of the leaf the scan is on.
+ * <p>
+ * The window comes from {@link BufferPool#getReadAheadWindow()}. Pages are
+ * read without taking locks, and into the scan's {@link BufferRing} if it
+ * has one; see {@link BufferPool#prefetchPage(PageId, BufferRing)}.
+ */
+class ReadAhead {
+
+    private static final ExecutorService executor =
+        Executors.newFixedThreadPool(2, new ThreadFactory() {
+            private int count = 0;
+
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "simpledb-read-ahead-" + count++);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    private final BufferRing ring;
+    // the last page the scan moved on to, and the last page requested
+    private int lastPage = -1;
+    private int requestedUpTo = -1;
+    // BTree leaves visited since the last chain was requested
+    private int leavesSinceRequest = 0;
+
+    /**
+     * @param ring the ring the scan reads its pages into, or null if it
+     *            reads them into the pool
+     */
+    ReadAhead(BufferRing ring) {
+        this.ring = ring;
+    }
+
+    /** Forgets the scan's position, e.g. when the iterator is rewound. */
+    void reset() {
+        lastPage = -1;
+        requestedUpTo = -1;
+        leavesSinceRequest = 0;
+    }
+
+    /**
+     * Called when a heap file scan moves on to page pageNo of a file with
+     * numPages pages.
+     */
+    void heapPageRead(int tableId, int pageNo, int numPages) {
+        int window = Database.getBufferPool().getReadAheadWindow();
+        boolean sequential = pageNo == lastPage + 1;
+        lastPage = pageNo;
+        if (window <= 0 || !sequential) {
+            requestedUpTo = pageNo;
+            return;
+        }
+        if (requestedUpTo - pageNo > window / 2) {
+            return;
+        }
+
+        int from = Math.max(requestedUpTo, pageNo) + 1;
+        int to = Math.min(pageNo + window, numPages - 1);
+        if (from > to) {
+            return;
+        }
+        final ArrayList<PageId> pages = new ArrayList<PageId>();
+        for (int i = from; i <= to; i++) {
+            pages.add(new HeapPageId(tableId, i));
+        }
+        requestedUpTo = to;
+        submit(new Runnable() {
+            public void run() {
+                BufferPool bp = Database.getBufferPool();
+                for (PageId pid : pages) {
+                    bp.prefetchPage(pid, ring);
+                }
+            }
+        });
+    }
+
+    /**
+     * Called when a BTree scan moves on to a leaf whose right sibling is
+     * next; a null sibling means the scan is on the last leaf.
+     */
+    void leafPageRead(final BTreePageId next) {
+        final int window = Database.getBufferPool().getReadAheadWindow();
+        if (window <= 0 || next == null) {
+            return;
+        }
+        if (leavesSinceRequest > 0 && leavesSinceRequest < Math.max(1, window / 2)) {
+            leavesSinceRequest++;
+            return;
+        }
+        leavesSinceRequest = 1;
+        submit(new Runnable() {
+            public void run() {
+                BufferPool bp = Database.getBufferPool();
+                BTreePageId pid = next;
+                for (int i = 0; i < window && pid != null; i++) {
+                    Page p = bp.prefetchPage(pid, ring);
+                    if (!(p instanceof BTreeLeafPage)) {
+                        return;
+                    }
+                    pid = ((BTreeLeafPage) p).getRightSiblingId();
+                }
+            }
+        });
+    }
+
+    private static void submit(final Runnable task) {
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        // read-ahead is only a hint; the scan reads the page
+                        // itself if it is not cached
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // likewise
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package simpledb;
+
+/**
+ * ReplacementPolicy decides which page the {@link BufferPool} gives up when
+ * it runs out of frames. The BufferPool reports every page that enters the
+ * pool, every hit on a cached page and every page that leaves the pool; in
+ * exchange the policy nominates eviction victims.
+ * <p>
+ * Implementations are expected to do constant (amortized) work per call so
+ * that page replacement bookkeeping does not grow with the size of the pool.
+ * They are not thread-safe; the BufferPool serializes calls into its policy.
+ *
+ * @see LruReplacementPolicy
+ * @see ClockReplacementPolicy
+ * @see TwoQueueReplacementPolicy
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * Called when a page is brought into the buffer pool.
+     *
+     * @param pid the id of the page that now occupies a frame
+     */
+    public void pageAdded(PageId pid);
+
+    /**
+     * Called on every request for a page that is already in the buffer pool.
+     *
+     * @param pid the id of the page that was hit
+     */
+    public void pageAccessed(PageId pid);
+
+    /**
+     * Called when a page leaves the buffer pool, either because it was chosen
+     * as a victim or because it was discarded.
+     *
+     * @param pid the id of the page that no longer occupies a frame
+     */
+    public void pageRemoved(PageId pid);
+
+    /**
+     * Nominates the page that should be evicted next. Pages rejected by the
+     * filter (for example pinned frames) are passed over and keep their place
+     * in the replacement order. The page is not forgotten by this call; the
+     * BufferPool calls {@link #pageRemoved} once the page has actually left
+     * the pool.
+     *
+     * @param filter decides whether a candidate page may be evicted
+     * @return the id of the page to evict, or null if no tracked page is
+     *         accepted by the filter
+     */
+    public PageId chooseVictim(EvictionFilter filter);
+
+    /**
+     * Lets the BufferPool veto eviction candidates, e.g. frames that are
+     * pinned or still being read from disk.
+     */
+    public interface EvictionFilter {
+        /** @return true if pid may be evicted right now */
+        public boolean canEvict(PageId pid);
+    }
+
+    /** A filter that accepts every page. */
+    public static final EvictionFilter ANY_PAGE = new EvictionFilter() {
+        public boolean canEvict(PageId pid) {
+            return true;
+        }
+    };
+}
@@ -6,16 +6,45 @@ import java.util.*;
  * SeqScan is an implementation of a sequential scan access method that reads
  * each tuple of a table in no particular order (e.g., as they are laid out on
  * disk).
+ * <p>
+ * A scan of a table larger than a fraction of the BufferPool reads its pages
+ * into a small {@link BufferRing} of frames that it keeps reusing, so that
+ * it does not push the rest of the pool's pages out; see
+ * {@link BufferStrategy}.
  */
 public class SeqScan implements DbIterator {
 
     private static final long serialVersionUID = 1L;
-    
+
+    /**
+     * How a scan uses the BufferPool.
+     */
+    public enum BufferStrategy {
+        /** Use a ring if the table is larger than the ring threshold. */
+        AUTO,
+        /** Always read pages into a small private {@link BufferRing}. */
+        RING,
+        /** Read pages into the BufferPool like any other request. */
+        POOL
+    }
+
+    /**
+     * Default fraction of the BufferPool above which an AUTO scan uses a
+     * ring. A table that fits in the pool is worth caching for the next
+     * scan; one that does not would only evict itself on the way through.
+     */
+    public static final double DEFAULT_RING_THRESHOLD = 1.0;
+
     private TransactionId tid;
     private int tableid;
     private String tableAlias;
     private DbFile f;
     private DbFileIterator dbIterator;
+    private BufferStrategy strategy = BufferStrategy.AUTO;
+    private double ringThreshold = DEFAULT_RING_THRESHOLD;
+    private BufferRing ring;
+    // refilled by each nextBatch() on a HeapFile
+    private TupleBatch batch;
     
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -79,7 +108,93 @@ public class SeqScan implements DbIterator {
         this(tid, tableid, Database.getCatalog().getTableName(tableid));
     }
 
+    /** @return the transaction this scan runs as a part of */
+    TransactionId getTransactionId() {
+        return this.tid;
+    }
+
+    /** @return the file this operator scans */
+    DbFile getFile() {
+        return this.f;
+    }
+
+    /**
+     * Sets how this scan uses the BufferPool. Takes effect at the next
+     * open().
+     */
+    public void setBufferStrategy(BufferStrategy strategy) {
+        this.strategy = strategy;
+    }
+
+    public BufferStrategy getBufferStrategy() {
+        return this.strategy;
+    }
+
+    /**
+     * Sets the size of table, as a fraction of the BufferPool, above which
+     * an AUTO scan reads its pages into a ring. Takes effect at the next
+     * open().
+     */
+    public void setRingThreshold(double fraction) {
+        this.ringThreshold = fraction;
+    }
+
+    public double getRingThreshold() {
+        return this.ringThreshold;
+    }
+
+    /**
+     * @return true if the scan reads its pages into a ring since it was last
+     *         opened
+     */
+    public boolean usesBufferRing() {
+        return this.ring != null;
+    }
+
+    /**
+     * @return the number of times a ring frame was reused for another page
+     *         since the scan was last opened; 0 if it does not use a ring
+     */
+    public long getRecycledFrames() {
+        return this.ring == null ? 0 : this.ring.getRecycledFrames();
+    }
+
+    /**
+     * Decides whether the scan needs a ring, from the size of the table.
+     *
+     * @param rings the number of rings the scan will use at once, which
+     *            share the pool frames a single ring could take
+     */
+    BufferRing chooseRing(int rings) {
+        int pages;
+        if (f instanceof HeapFile) {
+            pages = ((HeapFile) f).numPages();
+        } else if (f instanceof BTreeFile) {
+            pages = ((BTreeFile) f).numPages();
+        } else {
+            return null;
+        }
+        BufferPool bp = Database.getBufferPool();
+        if (strategy == BufferStrategy.POOL
+            || (strategy == BufferStrategy.AUTO
+                && pages <= ringThreshold * bp.getNumPages())) {
+            return null;
+        }
+        // leave room in the ring for the pages read ahead of the scan
+        int size = Math.min(BufferRing.DEFAULT_SIZE, bp.getNumPages() / (4 * rings));
+        return new BufferRing(Math.max(size, bp.getReadAheadWindow() + 2));
+    }
+
     public void open() throws DbException, TransactionAbortedException {
+        this.dbIterator.close();
+        this.ring = chooseRing(1);
+        if (this.ring == null) {
+            this.dbIterator = f.iterator(tid);
+        } else if (f instanceof HeapFile) {
+            this.dbIterator = ((HeapFile) f).iterator(tid, this.ring);
+        } else {
+            this.dbIterator = ((BTreeFile) f).iterator(tid, this.ring);
+        }
         dbIterator.open();
     }
 
@@ -114,6 +229,25 @@ public class SeqScan implements DbIterator {
         return this.dbIterator.next();
     }
 
+    /**
+     * Reads a HeapFile a batch at a time straight from its pages' bytes,
+     * without making a Tuple for each row; other files are read a row at a
+     * time.
+     */
+    public TupleBatch nextBatch() throws DbException,
+            TransactionAbortedException {
+        if (!(this.dbIterator instanceof HeapFileIterator)) {
+            return TupleBatch.fromRows(this);
+        }
+        if (this.batch == null) {
+            this.batch = new TupleBatch(getTupleDesc());
+        }
+        if (!((HeapFileIterator) this.dbIterator).nextBatch(this.batch)) {
+            return null;
+        }
+        return this.batch;
+    }
+
     public void close() {
     	this.dbIterator.close();
     }
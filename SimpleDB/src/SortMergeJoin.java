@@ -0,0 +1,265 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The SortMergeJoin operator joins its children by reading both in ascending
+ * order of their join fields and merging them. It supports the =, &lt;,
+ * &lt;=, &gt; and &gt;= predicates.
+ * <p>
+ * A child that already returns its tuples in that order, e.g. a scan of a
+ * {@link BTreeFile} keyed on the join field, or an ascending
+ * {@link OrderBy} on it (see {@link #isSortedOn(DbIterator, int)}), is read
+ * as it is; any other child is sorted first.
+ * <p>
+ * An equality join keeps only the tuples of child2 that share the current
+ * key in memory. An inequality join keeps all of child2, and for each tuple
+ * of child1 emits a prefix (&gt;, &gt;=) or a suffix (&lt;, &lt;=) of it,
+ * whose boundary only moves forward as the keys of child1 grow.
+ * <p>
+ * Either way the output is in ascending order of the join field of child1,
+ * and, for an equality join, of that of child2 too.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private final JoinPredicate pred;
+    private DbIterator child1, child2;
+    // the children, or OrderBys over them if they were not sorted
+    private DbIterator in1, in2;
+    private final TupleDesc comboTD;
+
+    // the current tuple of child1, and the tuples of child2 it joins with
+    private transient Tuple left;
+    private transient int pos, end;
+    // equality joins: the tuples of child2 with key groupKey, and the first
+    // tuple of child2 after them
+    private transient ArrayList<Tuple> group;
+    private transient Field groupKey;
+    private transient Tuple lookahead;
+    // inequality joins: all of child2, and the boundary of the matches
+    private transient ArrayList<Tuple> rights;
+    private transient int bound;
+
+    /**
+     * Constructor. Accepts to children to join and the predicate to join them
+     * on
+     *
+     * @param p
+     *            The predicate to use to join the children; one of EQUALS,
+     *            LESS_THAN, LESS_THAN_OR_EQ, GREATER_THAN and
+     *            GREATER_THAN_OR_EQ
+     * @param child1
+     *            Iterator for the left relation to join
+     * @param child2
+     *            Iterator for the right relation to join
+     * @throws IllegalArgumentException if the predicate is not supported
+     */
+    public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        switch (p.getOperator()) {
+        case EQUALS:
+        case LESS_THAN:
+        case LESS_THAN_OR_EQ:
+        case GREATER_THAN:
+        case GREATER_THAN_OR_EQ:
+            break;
+        default:
+            throw new IllegalArgumentException("sort-merge join cannot evaluate "
+                    + p.getOperator());
+        }
+        this.pred = p;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        setChildren(new DbIterator[] { child1, child2 });
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    /** @return true if the children are sorted before they are merged */
+    boolean sortsChild1() {
+        return in1 != child1;
+    }
+
+    boolean sortsChild2() {
+        return in2 != child2;
+    }
+
+    /**
+     * Returns true if an iterator is known to return its tuples in ascending
+     * order of a field: a scan of a {@link BTreeFile} keyed on it, an
+     * ascending {@link OrderBy} on it, a {@link SortMergeJoin} on it, or a
+     * {@link Filter} over one of these.
+     */
+    static boolean isSortedOn(DbIterator it, int field) {
+        if (it instanceof Filter)
+            return isSortedOn(((Filter) it).getChildren()[0], field);
+        if (it instanceof OrderBy) {
+            OrderBy o = (OrderBy) it;
+            return o.isASC() && o.getOrderByField() == field;
+        }
+        if (it instanceof SortMergeJoin) {
+            SortMergeJoin j = (SortMergeJoin) it;
+            JoinPredicate p = j.getJoinPredicate();
+            int n1 = j.child1.getTupleDesc().numFields();
+            return field == p.getField1()
+                    || (p.getOperator() == Predicate.Op.EQUALS
+                            && field == n1 + p.getField2());
+        }
+        String table;
+        if (it instanceof ParallelSeqScan)
+            return false; // the workers interleave their pages
+        else if (it instanceof SeqScan)
+            table = ((SeqScan) it).getTableName();
+        else if (it instanceof BTreeScan)
+            table = ((BTreeScan) it).getTableName();
+        else
+            return false;
+        DbFile f = Database.getCatalog().getDatabaseFile(
+                Database.getCatalog().getTableId(table));
+        return f instanceof BTreeFile && ((BTreeFile) f).keyField() == field;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        in1.open();
+        in2.open();
+        if (pred.getOperator() == Predicate.Op.EQUALS) {
+            group = new ArrayList<Tuple>();
+        } else {
+            rights = new ArrayList<Tuple>();
+            while (in2.hasNext())
+                rights.add(in2.next());
+        }
+        reset();
+        super.open();
+    }
+
+    private void reset() {
+        left = null;
+        pos = end = bound = 0;
+        if (group != null)
+            group.clear();
+        groupKey = null;
+        lookahead = null;
+    }
+
+    public void close() {
+        super.close();
+        in1.close();
+        in2.close();
+        group = null;
+        rights = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        in1.rewind();
+        if (rights == null)
+            in2.rewind();
+        reset();
+    }
+
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (left == null || pos >= end) {
+            if (!in1.hasNext())
+                return null;
+            left = in1.next();
+            if (rights == null)
+                mergeEquals(left.getField(pred.getField1()));
+            else
+                mergeRange(left.getField(pred.getField1()));
+        }
+        Tuple right = rights == null ? group.get(pos++) : rights.get(pos++);
+        Tuple t = new Tuple(comboTD);
+        int n1 = left.getTupleDesc().numFields();
+        for (int i = 0; i < n1; i++)
+            t.setField(i, left.getField(i));
+        for (int i = 0; i < right.getTupleDesc().numFields(); i++)
+            t.setField(n1 + i, right.getField(i));
+        return t;
+    }
+
+    /**
+     * Sets [pos, end) to the tuples of child2 whose key equals key, reading
+     * past those with smaller keys.
+     */
+    private void mergeEquals(Field key) throws TransactionAbortedException,
+            DbException {
+        if (groupKey == null || !groupKey.equals(key)) {
+            group.clear();
+            groupKey = key;
+            int f2 = pred.getField2();
+            while (lookahead != null || in2.hasNext()) {
+                if (lookahead == null)
+                    lookahead = in2.next();
+                Field k = lookahead.getField(f2);
+                if (k.compare(Predicate.Op.GREATER_THAN, key))
+                    break;
+                if (k.compare(Predicate.Op.EQUALS, key))
+                    group.add(lookahead);
+                lookahead = null;
+            }
+        }
+        pos = 0;
+        end = group.size();
+    }
+
+    /**
+     * Sets [pos, end) to the tuples of child2 that satisfy the predicate with
+     * key, moving the boundary of the matches past those that no longer do.
+     */
+    private void mergeRange(Field key) {
+        int f2 = pred.getField2();
+        // the tuples before the boundary are those with
+        //   b <= a for a < b and a >= b, and b < a for a <= b and a > b
+        Predicate.Op before;
+        switch (pred.getOperator()) {
+        case LESS_THAN:
+        case GREATER_THAN_OR_EQ:
+            before = Predicate.Op.LESS_THAN_OR_EQ;
+            break;
+        default:
+            before = Predicate.Op.LESS_THAN;
+        }
+        while (bound < rights.size()
+                && rights.get(bound).getField(f2).compare(before, key))
+            bound++;
+        switch (pred.getOperator()) {
+        case LESS_THAN:
+        case LESS_THAN_OR_EQ:
+            pos = bound;
+            end = rights.size();
+            break;
+        default:
+            pos = 0;
+            end = bound;
+        }
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child1, child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        child1 = children[0];
+        child2 = children[1];
+        in1 = isSortedOn(child1, pred.getField1()) ? child1 : new OrderBy(
+                pred.getField1(), true, child1);
+        in2 = isSortedOn(child2, pred.getField2()) ? child2 : new OrderBy(
+                pred.getField2(), true, child2);
+    }
+}
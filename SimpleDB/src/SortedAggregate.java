@@ -0,0 +1,149 @@
+package simpledb;
+
+import java.util.Arrays;
+
+/**
+ * SortedAggregate computes the same aggregates as {@link Aggregate}, over a
+ * child whose tuples come grouped: all the tuples of a group one after the
+ * other, as they do from an {@link OrderBy} on the group fields or a scan of
+ * a {@link BTreeFile} keyed on the group field. Only the group being read is
+ * held, and it is returned as soon as the first tuple of the next group
+ * arrives, so results start coming before the child is done and memory does
+ * not grow with the number of groups. {@link LogicalPlan} chooses it when
+ * {@link #isGroupedOn(DbIterator, int[])} its input.
+ */
+public class SortedAggregate extends Aggregate {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int[] gfields;
+    // the aggregates of the group being read, and the values of its group
+    // fields, or null before the first tuple of a group
+    private final HashAggregator group;
+    private transient Field[] key;
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            The DbIterator that is feeding us tuples, grouped on gfields
+     * @param afields
+     *            The column of each aggregate.
+     * @param aops
+     *            The aggregation operator of each aggregate
+     * @param gfields
+     *            The columns over which we are grouping the result, none if
+     *            there is no grouping
+     * @see Aggregate#Aggregate(DbIterator, int[], Aggregator.Op[], int[])
+     */
+    public SortedAggregate(DbIterator child, int[] afields,
+            Aggregator.Op[] aops, int[] gfields) {
+        this(child, afields, aops, gfields, new HashAggregator(
+                child.getTupleDesc(), gfields, afields, aops));
+    }
+
+    private SortedAggregate(DbIterator child, int[] afields,
+            Aggregator.Op[] aops, int[] gfields, HashAggregator group) {
+        super(child, afields, aops, gfields, group);
+        this.gfields = gfields.clone();
+        this.group = group;
+        group.setMemoryBudget(1, GroupTable.DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * Only the group being read is held, so this sets the number of its
+     * distinct values of each COUNT_DISTINCT held in memory.
+     */
+    public void setMemoryBudget(int values) {
+        group.setMemoryBudget(1, values);
+    }
+
+    /**
+     * @return true if the tuples of it come grouped on the given fields,
+     *         in any order of the groups: if it is sorted, either way, on
+     *         these fields before any other
+     */
+    static boolean isGroupedOn(DbIterator it, int[] fields) {
+        if (fields.length == 0)
+            return false;
+        if (it instanceof Filter)
+            return isGroupedOn(((Filter) it).getChildren()[0], fields);
+        int[] order;
+        if (it instanceof OrderBy)
+            order = ((OrderBy) it).getOrderByFields();
+        else if (it instanceof TopK)
+            order = ((TopK) it).getOrderByFields();
+        else if (fields.length == 1)
+            return SortMergeJoin.isSortedOn(it, fields[0]);
+        else
+            return false;
+        if (order.length < fields.length)
+            return false;
+        int[] leading = Arrays.copyOf(order, fields.length);
+        int[] wanted = fields.clone();
+        Arrays.sort(leading);
+        Arrays.sort(wanted);
+        return Arrays.equals(leading, wanted);
+    }
+
+    protected void readChild() throws DbException, TransactionAbortedException {
+        getChildren()[0].open();
+        group.clear();
+        key = null;
+    }
+
+    private boolean inGroup(Tuple t) {
+        for (int i = 0; i < gfields.length; i++)
+            if (!key[i].equals(t.getField(gfields[i])))
+                return false;
+        return true;
+    }
+
+    private void startGroup(Tuple t) {
+        key = new Field[gfields.length];
+        for (int i = 0; i < gfields.length; i++)
+            key[i] = t.getField(gfields[i]);
+    }
+
+    /** @return the result of the group read so far, which is then cleared */
+    private Tuple result() throws DbException, TransactionAbortedException {
+        DbIterator it = group.iterator();
+        it.open();
+        Tuple t = it.next();
+        it.close();
+        group.clear();
+        return t;
+    }
+
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        DbIterator child = getChildren()[0];
+        while (child.hasNext()) {
+            Tuple t = child.next();
+            if (key != null && !inGroup(t)) {
+                Tuple r = result();
+                startGroup(t);
+                group.mergeTupleIntoGroup(t);
+                return r;
+            }
+            if (key == null)
+                startGroup(t);
+            group.mergeTupleIntoGroup(t);
+        }
+        if (key == null)
+            return null;
+        key = null;
+        return result();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        getChildren()[0].rewind();
+        group.clear();
+        key = null;
+    }
+
+    public void close() {
+        super.close();
+        group.clear();
+        key = null;
+    }
+}
@@ -227,7 +227,10 @@ public class TableStats {
         // some code goes here
         // replace this.file with the db_file variable
         // replace this.iocostperpage
-        return ((HeapFile)this.file).numPages() * this.iocostperpage;
+        int pages = this.file instanceof BTreeFile
+                ? ((BTreeFile)this.file).numPages()
+                : ((HeapFile)this.file).numPages();
+        return pages * this.iocostperpage;
     }
 
     /**
@@ -0,0 +1,150 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * TopK is an operator that returns the first K tuples of its child in the
+ * order of an ORDER BY on one or more fields, as {@link OrderBy} followed
+ * by {@link Limit} would, but without sorting the whole input.
+ * <p>
+ * It reads its child once, keeping the K least tuples seen so far in a heap
+ * whose head is the greatest of them; a tuple that is not less than the
+ * head is dropped without touching the heap. So it holds at most K tuples,
+ * and the work per tuple is O(log K) at worst. Tuples that agree on the
+ * sort fields come out in the order of the child, as from OrderBy.
+ */
+public class TopK extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private DbIterator child;
+    private final TupleDesc td;
+    private final int[] orderByFields;
+    private final boolean[] ascending;
+    private final int limit;
+
+    private transient Tuple[] sorted;
+    private transient int count, pos;
+
+    /**
+     * Creates a new TopK node over the tuples from the iterator.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied.
+     * @param asc
+     *            for each field, true if the sort order is ascending.
+     * @param limit
+     *            the number of tuples to return.
+     * @param child
+     *            the tuples to sort.
+     */
+    public TopK(int[] orderbyFields, boolean[] asc, int limit,
+            DbIterator child) {
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length)
+            throw new IllegalArgumentException("need an order for each field");
+        if (limit < 0)
+            throw new IllegalArgumentException("limit must not be negative");
+        this.child = child;
+        td = child.getTupleDesc();
+        this.orderByFields = orderbyFields.clone();
+        this.ascending = asc.clone();
+        this.limit = limit;
+    }
+
+    /** @return the fields the sort is applied to, first to last */
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
+    }
+
+    /** @return for each field, true if its sort order is ascending */
+    public boolean[] getAscending() {
+        return ascending.clone();
+    }
+
+    /** @return the most tuples this operator returns */
+    public int getLimit() {
+        return limit;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** A tuple in the heap, and its position in the input */
+    private static class Entry {
+        final Tuple t;
+        final long seq;
+
+        Entry(Tuple t, long seq) {
+            this.t = t;
+            this.seq = seq;
+        }
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        final TupleComparator cmp = new TupleComparator(orderByFields, ascending);
+        // the greatest tuple, and of equal ones the last read, at the head
+        PriorityQueue<Entry> heap = new PriorityQueue<Entry>(Math.max(1,
+                Math.min(limit, 1024)), new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                int c = cmp.compare(b.t, a.t);
+                return c != 0 ? c : Long.compare(b.seq, a.seq);
+            }
+        });
+        long seq = 0;
+        if (limit > 0) {
+            while (child.hasNext()) {
+                Tuple t = child.next();
+                if (heap.size() < limit) {
+                    heap.add(new Entry(t, seq));
+                } else if (cmp.compare(t, heap.peek().t) < 0) {
+                    // a later tuple must be strictly less to displace one
+                    heap.poll();
+                    heap.add(new Entry(t, seq));
+                }
+                seq++;
+            }
+        }
+        count = heap.size();
+        sorted = new Tuple[count];
+        for (int i = count - 1; i >= 0; i--)
+            sorted[i] = heap.poll().t;
+        pos = 0;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        sorted = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        pos = 0;
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns the least tuples of the
+     * child operator in order
+     *
+     * @return The next tuple in the ordering, or null if there are no more
+     *         tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        return pos < count ? sorted[pos++] : null;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child = children[0];
+    }
+
+}
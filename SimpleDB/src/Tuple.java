@@ -1,13 +1,21 @@
 package simpledb;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.text.ParseException;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 /**
  * Tuple maintains information about the contents of a tuple. Tuples have a
  * specified schema specified by a TupleDesc object and contain Field objects
  * with the data for each field.
+ * <p>
+ * A tuple read from a page may instead be backed by the page's serialized
+ * bytes, in which case each Field is only decoded the first time it is
+ * asked for.
  */
 public class Tuple implements Serializable {
 
@@ -15,6 +23,9 @@ public class Tuple implements Serializable {
 	private TupleDesc tpDesc;
 	private Field[] tpField;
 	private RecordId rId;
+	// serialized fields not decoded yet, if the tuple is backed by page bytes
+	private transient byte[] source;
+	private transient int sourceOffset;
 	
     private static final long serialVersionUID = 1L;
     /**
@@ -33,6 +44,17 @@ public class Tuple implements Serializable {
         	tpField = new Field[td.numFields()];
     }
 
+    /**
+     * Create a tuple backed by the serialized form of a tuple of schema td,
+     * which starts at offset in data. Fields are decoded from data as they
+     * are asked for, so data must not change while the tuple is in use.
+     */
+    Tuple(TupleDesc td, byte[] data, int offset) {
+        this(td);
+        this.source = data;
+        this.sourceOffset = offset;
+    }
+
     /**
      * @return The TupleDesc representing the schema of this tuple.
      */
@@ -87,9 +109,42 @@ public class Tuple implements Serializable {
         // some code goes here
     	// assert ?
     	assert (i >= 0 && i < tpField.length);
+    	byte[] data = source;
+    	if (tpField[i] == null && data != null)
+    		tpField[i] = decode(data, i);
 		return tpField[i];
     }
 
+    private Field decode(byte[] data, int i) {
+        try {
+            return tpDesc.getFieldType(i).parse(data,
+                    sourceOffset + tpDesc.getFieldOffset(i));
+        } catch (ParseException e) {
+            e.printStackTrace();
+            throw new NoSuchElementException("parsing error!");
+        }
+    }
+
+    /**
+     * Decodes every field not decoded yet. The backing bytes are kept, so
+     * that threads sharing the tuple, e.g. the outputs of a Broadcast, can
+     * decode the same field at once: they both parse it from the same bytes
+     * to equal, immutable Fields.
+     */
+    private void decodeAll() {
+        byte[] data = source;
+        if (data == null)
+            return;
+        for (int i = 0; i < tpField.length; i++)
+            if (tpField[i] == null)
+                tpField[i] = decode(data, i);
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        decodeAll();
+        out.defaultWriteObject();
+    }
+
     /**
      * Returns the contents of this Tuple as a string. Note that to pass the
      * system tests, the format needs to be as follows:
@@ -100,6 +155,7 @@ public class Tuple implements Serializable {
      */
     public String toString() {
         // some code goes here
+    	decodeAll();
     	StringBuffer res = new StringBuffer();
     	for (int i = 0; i < tpField.length; i++)
     		res.append (tpField[i] + "\t");
@@ -116,6 +172,7 @@ public class Tuple implements Serializable {
      * */
     public Iterator<Field> fields()
     {
+    	decodeAll();
     	return Arrays.asList(tpField).iterator();
     	
         // some code goes here
@@ -128,6 +185,7 @@ public class Tuple implements Serializable {
     {
     	this.tpDesc = td;
     	this.tpField = new Field[td.getSize()];
+    	this.source = null;
         // some code goes here
     }
 }
@@ -0,0 +1,270 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A TupleBatch holds up to a fixed number of rows of a TupleDesc column by
+ * column: an int[] for each INT_TYPE field and a String[] for each
+ * STRING_TYPE field. Operators that work a batch at a time (see
+ * {@link DbIterator#nextBatch()}) run tight loops over these arrays instead
+ * of calling through the iterator interface and allocating a Tuple for
+ * every row.
+ * <p>
+ * Rows are filtered with a selection vector rather than by moving data: the
+ * batch's <em>visible</em> rows are rows {@link #row(int) row(0)} to
+ * row(size() - 1). Right after rows are added every row is visible; a
+ * filter narrows the selection with {@link #getSelection()} and
+ * {@link #setSelected(int)}.
+ * <p>
+ * A batch returned by nextBatch belongs to the operator that returned it,
+ * which may refill it on its next call; consumers must be done with it by
+ * then. Batches do not carry RecordIds, so operators that need them, like
+ * Delete, keep pulling rows one at a time.
+ */
+public class TupleBatch {
+
+    /** Default number of rows in a batch. */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final TupleDesc td;
+    private final int capacity;
+    // one of the two is set for each field, depending on its type
+    private final int[][] ints;
+    private final String[][] strings;
+    private int numRows = 0;
+
+    // if allSelected, row k is visible row k; otherwise the visible rows are
+    // selection[0 .. numSelected); allocated when first needed
+    private int[] selection;
+    private int numSelected = 0;
+    private boolean allSelected = true;
+
+    /** Creates an empty batch of DEFAULT_CAPACITY rows of td. */
+    public TupleBatch(TupleDesc td) {
+        this(td, DEFAULT_CAPACITY);
+    }
+
+    /** Creates an empty batch of up to capacity rows of td. */
+    public TupleBatch(TupleDesc td, int capacity) {
+        this.td = td;
+        this.capacity = capacity;
+        int n = td.numFields();
+        ints = new int[n][];
+        strings = new String[n][];
+        for (int i = 0; i < n; i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE)
+                ints[i] = new int[capacity];
+            else
+                strings[i] = new String[capacity];
+        }
+    }
+
+    /**
+     * Creates a batch of the given fields of source, sharing its columns.
+     * The new batch sees the rows visible in source now.
+     */
+    private TupleBatch(TupleDesc td, TupleBatch source, int[] fields) {
+        this.td = td;
+        this.capacity = source.capacity;
+        ints = new int[fields.length][];
+        strings = new String[fields.length][];
+        for (int i = 0; i < fields.length; i++) {
+            ints[i] = source.ints[fields[i]];
+            strings[i] = source.strings[fields[i]];
+        }
+        numRows = source.numRows;
+        allSelected = source.allSelected;
+        numSelected = source.numSelected;
+        if (!allSelected)
+            selection = source.selection.clone();
+    }
+
+    /**
+     * Returns a batch of the given fields of this batch, in that order,
+     * sharing this batch's columns; it is valid as long as this batch is.
+     *
+     * @param td the TupleDesc of the new batch; its types must match those
+     *            of the projected fields
+     * @param fields the indexes of the fields of this batch to keep
+     */
+    public TupleBatch project(TupleDesc td, int[] fields) {
+        return new TupleBatch(td, this, fields);
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the maximum number of rows in the batch */
+    public int capacity() {
+        return capacity;
+    }
+
+    /** @return the number of rows added, visible or not */
+    public int numRows() {
+        return numRows;
+    }
+
+    /** @return true if no more rows can be added */
+    public boolean isFull() {
+        return numRows == capacity;
+    }
+
+    /** Removes all rows. */
+    public void clear() {
+        numRows = 0;
+        numSelected = 0;
+        allSelected = true;
+    }
+
+    /** @return the number of visible rows */
+    public int size() {
+        return allSelected ? numRows : numSelected;
+    }
+
+    /** @return the index of the kth visible row */
+    public int row(int k) {
+        return allSelected ? k : selection[k];
+    }
+
+    /**
+     * Returns the selection vector, for a filter to narrow the visible rows
+     * in place: it may write the rows it keeps, in order, to the start of
+     * the array while reading them with {@link #row(int)}, and then call
+     * {@link #setSelected(int)}.
+     */
+    public int[] getSelection() {
+        if (selection == null)
+            selection = new int[capacity];
+        return selection;
+    }
+
+    /**
+     * Makes the first n entries of the selection vector the visible rows.
+     */
+    public void setSelected(int n) {
+        numSelected = n;
+        allSelected = false;
+    }
+
+    /**
+     * Adds an empty row and makes it visible. Must not be called once the
+     * selection has been narrowed.
+     *
+     * @return the index of the new row
+     */
+    public int addRow() {
+        if (numRows == capacity)
+            throw new IllegalStateException("batch is full");
+        return numRows++;
+    }
+
+    /** Adds a row holding the fields of t, which must match the batch's TupleDesc. */
+    public void addTuple(Tuple t) {
+        int row = addRow();
+        for (int i = 0; i < ints.length; i++)
+            setField(i, row, t.getField(i));
+    }
+
+    /** @return the values of an INT_TYPE field, indexed by row */
+    public int[] getIntColumn(int field) {
+        return ints[field];
+    }
+
+    /** @return the values of a STRING_TYPE field, indexed by row */
+    public String[] getStringColumn(int field) {
+        return strings[field];
+    }
+
+    public int getInt(int field, int row) {
+        return ints[field][row];
+    }
+
+    public String getString(int field, int row) {
+        return strings[field][row];
+    }
+
+    public void setInt(int field, int row, int value) {
+        ints[field][row] = value;
+    }
+
+    public void setString(int field, int row, String value) {
+        strings[field][row] = value;
+    }
+
+    /** @return the value of a field of a row, as a Field */
+    public Field getField(int field, int row) {
+        if (ints[field] != null)
+            return new IntField(ints[field][row]);
+        return new StringField(strings[field][row], Type.STRING_LEN);
+    }
+
+    public void setField(int field, int row, Field f) {
+        if (ints[field] != null)
+            ints[field][row] = ((IntField) f).getValue();
+        else
+            strings[field][row] = ((StringField) f).getValue();
+    }
+
+    /** Copies a field of a row of another batch into a field of a row of this one. */
+    public void copyField(int field, int row, TupleBatch from, int fromField, int fromRow) {
+        if (ints[field] != null)
+            ints[field][row] = from.ints[fromField][fromRow];
+        else
+            strings[field][row] = from.strings[fromField][fromRow];
+    }
+
+    /** @return the kth visible row as a new Tuple */
+    public Tuple getTuple(int k) {
+        int row = row(k);
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < ints.length; i++)
+            t.setField(i, getField(i, row));
+        return t;
+    }
+
+    /**
+     * Reads up to DEFAULT_CAPACITY rows from it one at a time; this is how
+     * iterators without a batch implementation of their own produce batches.
+     *
+     * @return a new batch, or null if it has no more rows
+     */
+    public static TupleBatch fromRows(DbIterator it)
+        throws DbException, TransactionAbortedException {
+        if (!it.hasNext())
+            return null;
+        TupleBatch batch = null;
+        while (it.hasNext() && (batch == null || !batch.isFull())) {
+            Tuple t = it.next();
+            if (batch == null)
+                batch = new TupleBatch(t.getTupleDesc());
+            batch.addTuple(t);
+        }
+        return batch;
+    }
+
+    /**
+     * Returns the visible rows one at a time, for consumers that need
+     * Tuples.
+     */
+    public Iterator<Tuple> iterator() {
+        return new Iterator<Tuple>() {
+            private int k = 0;
+
+            public boolean hasNext() {
+                return k < size();
+            }
+
+            public Tuple next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return getTuple(k++);
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
@@ -169,6 +169,32 @@ public class TupleDesc implements Serializable {
     	// some code goes here
     }
 
+    /**
+     * Returns the position of the ith field within a serialized tuple of
+     * this TupleDesc, i.e. the total size of the fields before it.
+     *
+     * @param i
+     *            index of the field. It must be a valid index.
+     * @return the offset (in bytes) of the field
+     */
+    public int getFieldOffset(int i) {
+    	return fieldOffsets()[i];
+    }
+
+    // offsets[i] is the offset of field i, worked out on first use
+    private transient int[] offsets;
+
+    private int[] fieldOffsets() {
+    	int[] o = offsets;
+    	if (o == null || o.length != TDList.size() + 1) {
+    		o = new int[TDList.size() + 1];
+    		for (int i = 0; i < TDList.size(); i++)
+    			o[i + 1] = o[i] + TDList.get(i).fieldType.getLen();
+    		offsets = o;
+    	}
+    	return o;
+    }
+
     /**
      * @return The size (in bytes) of tuples corresponding to this TupleDesc.
      *         Note that tuples from a given TupleDesc are of a fixed size.
@@ -0,0 +1,178 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A TupleSpillFile is a temporary file of tuples that an operator writes when
+ * its input does not fit in memory, e.g. a partition of a hash join, and
+ * reads back later. Tuples are appended with {@link #add(Tuple)} and then
+ * read back, in the order they were added, with {@link #iterator()}, as
+ * many times as needed.
+ * <p>
+ * Spill files bypass the BufferPool: they are private to the operator that
+ * made them and never shared or logged. Each tuple takes
+ * {@link TupleDesc#getSize()} bytes, as in a page. The file is only deleted
+ * by {@link #delete()}, which the operators using spill files call when they
+ * are closed: a file per spill left for the JVM to delete on exit would be
+ * remembered until then, so a long-running server would never free them.
+ */
+public class TupleSpillFile {
+
+    /** Size of the read and write buffers, in bytes. */
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    // spill files that have not been deleted yet
+    private static final AtomicInteger live = new AtomicInteger();
+
+    private final TupleDesc td;
+    private File file;
+    private DataOutputStream out;
+    private int size = 0;
+
+    /**
+     * Creates an empty spill file for tuples of td.
+     *
+     * @throws DbException if the file cannot be created
+     */
+    public TupleSpillFile(TupleDesc td) throws DbException {
+        this.td = td;
+        try {
+            file = File.createTempFile("spill", ".dat");
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file), BUFFER_SIZE));
+        } catch (IOException e) {
+            throw new DbException("cannot create spill file: " + e);
+        }
+        live.incrementAndGet();
+    }
+
+    /** @return the number of spill files not yet deleted */
+    static int liveFiles() {
+        return live.get();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the number of tuples in the file */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Appends a tuple to the file. Must not be called once the file has been
+     * read.
+     */
+    public void add(Tuple t) throws DbException {
+        if (out == null)
+            throw new DbException("spill file has already been read");
+        try {
+            for (int i = 0; i < td.numFields(); i++)
+                t.getField(i).serialize(out);
+        } catch (IOException e) {
+            throw new DbException("cannot write spill file: " + e);
+        }
+        size++;
+    }
+
+    /**
+     * Returns an iterator over the tuples in the file. No tuples can be added
+     * after this is called.
+     */
+    public DbIterator iterator() throws DbException {
+        if (file == null)
+            throw new DbException("spill file has been deleted");
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                throw new DbException("cannot write spill file: " + e);
+            }
+            out = null;
+        }
+        return new Reader();
+    }
+
+    /** Deletes the file; it can no longer be used. */
+    public void delete() {
+        if (file == null)
+            return;
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // being deleted anyway
+            }
+            out = null;
+        }
+        file.delete();
+        file = null;
+        live.decrementAndGet();
+    }
+
+    /** Reads the tuples of the file back in order. */
+    private class Reader implements DbIterator {
+        private static final long serialVersionUID = 1L;
+
+        private DataInputStream in;
+        private final byte[] record = new byte[td.getSize()];
+        private int read;
+
+        public void open() throws DbException {
+            try {
+                in = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(file), BUFFER_SIZE));
+            } catch (IOException e) {
+                throw new DbException("cannot read spill file: " + e);
+            }
+            read = 0;
+        }
+
+        public boolean hasNext() {
+            return in != null && read < size;
+        }
+
+        public Tuple next() throws DbException, NoSuchElementException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Tuple t = new Tuple(td);
+            try {
+                in.readFully(record);
+                ByteBuffer buf = ByteBuffer.wrap(record);
+                for (int i = 0; i < td.numFields(); i++)
+                    t.setField(i, td.getFieldType(i).parse(buf));
+            } catch (IOException e) {
+                throw new DbException("cannot read spill file: " + e);
+            } catch (ParseException e) {
+                throw new DbException("corrupt spill file: " + e);
+            }
+            read++;
+            return t;
+        }
+
+        public void rewind() throws DbException {
+            close();
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void close() {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing to lose
+                }
+            }
+            in = null;
+        }
+    }
+}
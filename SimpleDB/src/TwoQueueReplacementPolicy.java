@@ -0,0 +1,95 @@
+package simpledb;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * 2Q replacement (Johnson and Shasha, VLDB '94), a constant-time
+ * approximation of LRU-2. A page seen for the first time goes into a FIFO
+ * queue (A1in); if it is evicted from there its id is remembered in a ghost
+ * queue (A1out). Only a page that is requested again while its id is still
+ * in A1out is promoted into the main LRU queue (Am). A long sequential scan
+ * therefore cycles through A1in without displacing the hot pages in Am.
+ */
+public class TwoQueueReplacementPolicy implements ReplacementPolicy {
+
+    private final int maxIn;
+    private final int maxOut;
+
+    // resident, first-time pages in FIFO order
+    private final LinkedHashMap<PageId, Boolean> a1in =
+        new LinkedHashMap<PageId, Boolean>();
+    // ids (no data) of pages recently evicted from a1in, FIFO order
+    private final LinkedHashSet<PageId> a1out = new LinkedHashSet<PageId>();
+    // resident, re-referenced pages in LRU order
+    private final LinkedHashMap<PageId, Boolean> am =
+        new LinkedHashMap<PageId, Boolean>(16, 0.75f, true);
+
+    /**
+     * Creates a 2Q policy for a buffer pool with the given number of frames,
+     * using the tuning suggested by the paper: A1in holds a quarter of the
+     * frames and A1out remembers half as many ids as there are frames.
+     *
+     * @param numPages the number of frames in the buffer pool
+     */
+    public TwoQueueReplacementPolicy(int numPages) {
+        this(Math.max(1, numPages / 4), Math.max(1, numPages / 2));
+    }
+
+    /**
+     * @param maxIn the number of resident pages A1in may hold before it is
+     *              preferred for eviction
+     * @param maxOut the number of ghost ids A1out remembers
+     */
+    public TwoQueueReplacementPolicy(int maxIn, int maxOut) {
+        this.maxIn = maxIn;
+        this.maxOut = maxOut;
+    }
+
+    public void pageAdded(PageId pid) {
+        if (am.containsKey(pid) || a1in.containsKey(pid))
+            return;
+        if (a1out.remove(pid))
+            am.put(pid, Boolean.TRUE);
+        else
+            a1in.put(pid, Boolean.TRUE);
+    }
+
+    public void pageAccessed(PageId pid) {
+        // a hit in a1in is treated as correlated with the first reference and
+        // does not move the page
+        if (am.get(pid) == null && !a1in.containsKey(pid))
+            pageAdded(pid);
+    }
+
+    public void pageRemoved(PageId pid) {
+        if (a1in.remove(pid) != null) {
+            a1out.add(pid);
+            if (a1out.size() > maxOut) {
+                a1out.remove(a1out.iterator().next());
+            }
+        } else {
+            am.remove(pid);
+        }
+    }
+
+    public PageId chooseVictim(EvictionFilter filter) {
+        PageId victim = null;
+        if (a1in.size() > maxIn)
+            victim = firstEvictable(a1in, filter);
+        if (victim == null)
+            victim = firstEvictable(am, filter);
+        if (victim == null)
+            victim = firstEvictable(a1in, filter);
+        return victim;
+    }
+
+    private static PageId firstEvictable(LinkedHashMap<PageId, Boolean> queue,
+            EvictionFilter filter) {
+        for (PageId pid : queue.keySet()) {
+            if (filter.canEvict(pid))
+                return pid;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,126 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BlockNestedLoopJoinTest extends SimpleDbTestBase {
+    private HeapFile left;
+    private HeapFile right;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        left = SystemTestUtil.createRandomHeapFile(2, 250, 100,
+                new HashMap<Integer, Integer>(), null);
+        right = SystemTestUtil.createRandomHeapFile(2, 150, 100,
+                new HashMap<Integer, Integer>(), null);
+        tid = new TransactionId();
+    }
+
+    private static ArrayList<String> rows(DbIterator it) throws Exception {
+        ArrayList<String> rows = new ArrayList<String>();
+        while (it.hasNext())
+            rows.add(it.next().toString());
+        Collections.sort(rows);
+        return rows;
+    }
+
+    private SeqScan scan(HeapFile f) {
+        return new SeqScan(tid, f.getId(), "");
+    }
+
+    @Test public void matchesNestedLoopJoin() throws Exception {
+        for (Predicate.Op op : new Predicate.Op[] { Predicate.Op.EQUALS,
+                Predicate.Op.NOT_EQUALS, Predicate.Op.LESS_THAN,
+                Predicate.Op.GREATER_THAN_OR_EQ }) {
+            JoinPredicate p = new JoinPredicate(0, op, 1);
+            Join nl = new Join(p, scan(left), scan(right));
+            nl.open();
+            ArrayList<String> expected = rows(nl);
+            nl.close();
+            assertTrue(op.toString(), expected.size() > 0);
+            for (int budget : new int[] { 1, 7, 250,
+                    BlockNestedLoopJoin.DEFAULT_BLOCK_SIZE }) {
+                BlockNestedLoopJoin j = new BlockNestedLoopJoin(p, scan(left),
+                        scan(right));
+                j.setMemoryBudget(budget);
+                j.open();
+                assertEquals(op + " " + budget, expected, rows(j));
+                // child2 is scanned once per block
+                assertEquals((250 + budget - 1) / budget, j.innerScans());
+                j.close();
+            }
+        }
+    }
+
+    @Test public void rewind() throws Exception {
+        BlockNestedLoopJoin j = new BlockNestedLoopJoin(new JoinPredicate(0,
+                Predicate.Op.LESS_THAN, 0), scan(left), scan(right));
+        j.setMemoryBudget(100);
+        j.open();
+        ArrayList<String> first = rows(j);
+        assertTrue(first.size() > 0);
+        j.rewind();
+        assertEquals(first, rows(j));
+        j.close();
+    }
+
+    @Test public void emptyInputs() throws Exception {
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.NOT_EQUALS, 0);
+        BlockNestedLoopJoin j = new BlockNestedLoopJoin(p,
+                TestUtil.createTupleList(2, new int[0]), scan(right));
+        j.open();
+        assertFalse(j.hasNext());
+        j.close();
+        j = new BlockNestedLoopJoin(p, scan(left),
+                TestUtil.createTupleList(2, new int[0]));
+        j.open();
+        assertFalse(j.hasNext());
+        j.close();
+    }
+
+    /** A theta join that Join answers with a scan of child2 per outer tuple */
+    @Test public void fewerInnerScansThanNestedLoops() throws Exception {
+        HeapFile outer = SystemTestUtil.createRandomHeapFile(2, 2000, 1000000,
+                new HashMap<Integer, Integer>(), null);
+        HeapFile inner = SystemTestUtil.createRandomHeapFile(2, 20000, 1000000,
+                new HashMap<Integer, Integer>(), null);
+        // few matches, so that the time is that of reading and comparing
+        Join nl = new Join(new JoinPredicate(0, Predicate.Op.LESS_THAN, 1),
+                new Filter(new Predicate(0, Predicate.Op.GREATER_THAN,
+                        new IntField(990000)), scan(outer)), scan(inner));
+        long start = System.nanoTime();
+        nl.open();
+        int expected = rows(nl).size();
+        nl.close();
+        long nlTime = System.nanoTime() - start;
+
+        BlockNestedLoopJoin j = new BlockNestedLoopJoin(new JoinPredicate(0,
+                Predicate.Op.LESS_THAN, 1), new Filter(new Predicate(0,
+                Predicate.Op.GREATER_THAN, new IntField(990000)),
+                scan(outer)), scan(inner));
+        start = System.nanoTime();
+        j.open();
+        assertEquals(expected, rows(j).size());
+        assertEquals(1, j.innerScans());
+        j.close();
+        long bnlTime = System.nanoTime() - start;
+        System.out.println("BlockNestedLoopJoinTest: nested loops took "
+                + nlTime / 1000000 + " ms, one block " + bnlTime / 1000000
+                + " ms");
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BlockNestedLoopJoinTest.class);
+    }
+}
@@ -0,0 +1,210 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BufferPoolConcurrencyTest extends SimpleDbTestBase {
+    private static final int THREADS = 8;
+    private static final int REQUESTS_PER_THREAD = 20000;
+
+    private HeapFile hf;
+    private int numPages;
+
+    @Before public void setUp() throws Exception {
+        // about 80 pages of two-column tuples
+        hf = SystemTestUtil.createRandomHeapFile(2, 40000, null, null);
+        numPages = hf.numPages();
+        assertTrue(numPages > 40);
+    }
+
+    /**
+     * Runs THREADS threads that each request REQUESTS_PER_THREAD random pages
+     * of hf, and checks that every getPage returns the page asked for.
+     *
+     * @param overlapping if true all threads draw from every page of the
+     *            file; otherwise each thread has its own disjoint slice
+     */
+    private void hammer(final boolean overlapping) throws Exception {
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final int slice = numPages / THREADS;
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < THREADS; i++) {
+            final int first = overlapping ? 0 : i * slice;
+            final int count = overlapping ? numPages : slice;
+            final long seed = i;
+            threads.add(new Thread() {
+                public void run() {
+                    try {
+                        Random r = new Random(seed);
+                        TransactionId tid = new TransactionId();
+                        for (int j = 0; j < REQUESTS_PER_THREAD; j++) {
+                            HeapPageId pid = new HeapPageId(hf.getId(),
+                                    first + r.nextInt(count));
+                            Page p = Database.getBufferPool().getPage(tid, pid,
+                                    Permissions.READ_ONLY);
+                            if (!pid.equals(p.getId()))
+                                throw new AssertionError("asked for " + pid
+                                        + ", got " + p.getId());
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            });
+        }
+        for (Thread t : threads)
+            t.start();
+        for (Thread t : threads)
+            t.join();
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+    }
+
+    /**
+     * Concurrent readers of disjoint page sets, with a pool that holds about
+     * half of the file so that misses and evictions happen concurrently.
+     */
+    @Test public void disjointPages() throws Exception {
+        Database.resetBufferPool(numPages / 2);
+        hammer(false);
+    }
+
+    /**
+     * Concurrent readers of the same pages, so threads race to load and
+     * evict the same frames.
+     */
+    @Test public void overlappingPages() throws Exception {
+        Database.resetBufferPool(numPages / 2);
+        hammer(true);
+    }
+
+    /** A view of hf whose reads of page 0 wait until release is counted down. */
+    private static class SlowHeapFile extends HeapFile {
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger reads = new AtomicInteger();
+
+        SlowHeapFile(File f) {
+            super(f, Utility.getTupleDesc(2));
+            Database.getCatalog().addTable(this, SystemTestUtil.getUUID());
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            if (pid.pageNumber() == 0) {
+                reads.incrementAndGet();
+                reading.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return super.readPage(pid);
+        }
+    }
+
+    /** Starts a thread that gets pid and puts the page in got. */
+    private static Thread getPageAsync(final PageId pid,
+            final AtomicReference<Object> got) {
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    got.set(Database.getBufferPool().getPage(new TransactionId(),
+                            pid, Permissions.READ_ONLY));
+                } catch (Throwable e) {
+                    got.set(e);
+                }
+            }
+        };
+        t.start();
+        return t;
+    }
+
+    /**
+     * While a thread is reading a page, other threads get the pages they ask
+     * for, and a thread asking for the same page waits for that read rather
+     * than reading it again.
+     */
+    @Test public void readsDoNotHoldUpOtherPages() throws Exception {
+        Database.resetBufferPool(numPages / 2);
+        SlowHeapFile slow = new SlowHeapFile(hf.getFile());
+        HeapPageId p0 = new HeapPageId(slow.getId(), 0);
+        AtomicReference<Object> first = new AtomicReference<Object>();
+        AtomicReference<Object> second = new AtomicReference<Object>();
+        Thread reader = getPageAsync(p0, first);
+        try {
+            assertTrue(slow.reading.await(10, TimeUnit.SECONDS));
+            Thread waiter = getPageAsync(p0, second);
+
+            // misses and hits on other pages go ahead
+            for (int i = 1; i < numPages / 4; i++) {
+                AtomicReference<Object> other = new AtomicReference<Object>();
+                Thread t = getPageAsync(new HeapPageId(slow.getId(), i), other);
+                t.join(10000);
+                assertTrue("getPage of page " + i + " waited for page 0",
+                        other.get() instanceof Page);
+            }
+            assertNull(first.get());
+            assertNull(second.get());
+
+            slow.release.countDown();
+            reader.join(10000);
+            waiter.join(10000);
+            assertTrue(first.get() instanceof Page);
+            assertSame(first.get(), second.get());
+            assertEquals(1, slow.reads.get());
+        } finally {
+            slow.release.countDown();
+        }
+    }
+
+    /**
+     * Pinned pages are never evicted; once every frame is pinned, getPage
+     * for another page fails rather than evicting.
+     */
+    @Test public void pinnedPagesAreNotEvicted() throws Exception {
+        BufferPool bp = Database.resetBufferPool(2);
+        TransactionId tid = new TransactionId();
+        HeapPageId p0 = new HeapPageId(hf.getId(), 0);
+        HeapPageId p1 = new HeapPageId(hf.getId(), 1);
+        HeapPageId p2 = new HeapPageId(hf.getId(), 2);
+
+        assertFalse(bp.pinPage(p0));
+        bp.getPage(tid, p0, Permissions.READ_ONLY);
+        bp.getPage(tid, p1, Permissions.READ_ONLY);
+        assertTrue(bp.pinPage(p0));
+        assertTrue(bp.pinPage(p1));
+        try {
+            bp.getPage(tid, p2, Permissions.READ_ONLY);
+            fail("expected DbException when every frame is pinned");
+        } catch (DbException expected) {
+        }
+
+        // p1 can go once it is unpinned, but p0 must stay
+        bp.unpinPage(p1);
+        bp.getPage(tid, p2, Permissions.READ_ONLY);
+        assertTrue(bp.pinPage(p0));
+        assertFalse(bp.pinPage(p1));
+        bp.unpinPage(p0);
+        bp.unpinPage(p0);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolConcurrencyTest.class);
+    }
+}
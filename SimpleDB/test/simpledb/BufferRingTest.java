@@ -0,0 +1,129 @@
+package simpledb;
+
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BufferRingTest extends SimpleDbTestBase {
+    private static final int POOL_PAGES = 64;
+
+    private BufferPool bp;
+    private TransactionId tid;
+    private HeapFile big;
+    private HeapFile small;
+
+    @Before public void setUp() throws Exception {
+        // about 80 pages, more than the pool holds
+        big = SystemTestUtil.createRandomHeapFile(2, 40000, null, null);
+        small = SystemTestUtil.createRandomHeapFile(2, 2000, null, null);
+        Database.getCatalog().addTable(big, "big");
+        Database.getCatalog().addTable(small, "small");
+        assertTrue(big.numPages() > POOL_PAGES);
+        bp = Database.resetBufferPool(POOL_PAGES);
+        bp.setReadAheadWindow(0);
+        tid = new TransactionId();
+    }
+
+    private ArrayList<Tuple> scan(SeqScan s) throws Exception {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        s.open();
+        while (s.hasNext())
+            tuples.add(s.next());
+        s.close();
+        return tuples;
+    }
+
+    /** Reads every page of small into the pool. */
+    private void readSmall() throws Exception {
+        for (int i = 0; i < small.numPages(); i++)
+            bp.getPage(tid, new HeapPageId(small.getId(), i), Permissions.READ_ONLY);
+    }
+
+    private void assertSmallCached(boolean cached) {
+        for (int i = 0; i < small.numPages(); i++)
+            assertEquals(cached, bp.isCached(new HeapPageId(small.getId(), i)));
+    }
+
+    @Test public void largeScanKeepsWorkingSet() throws Exception {
+        readSmall();
+        SeqScan s = new SeqScan(tid, big.getId(), "b");
+        ArrayList<Tuple> tuples = scan(s);
+        assertEquals(40000, tuples.size());
+        assertTrue(s.usesBufferRing());
+        assertTrue(s.getRecycledFrames() > 0);
+        assertSmallCached(true);
+    }
+
+    @Test public void poolScanEvictsWorkingSet() throws Exception {
+        readSmall();
+        SeqScan s = new SeqScan(tid, big.getId(), "b");
+        s.setBufferStrategy(SeqScan.BufferStrategy.POOL);
+        ArrayList<Tuple> tuples = scan(s);
+        assertEquals(40000, tuples.size());
+        assertFalse(s.usesBufferRing());
+        assertEquals(0, s.getRecycledFrames());
+        assertSmallCached(false);
+    }
+
+    @Test public void smallScanUsesPool() throws Exception {
+        SeqScan s = new SeqScan(tid, small.getId(), "s");
+        scan(s);
+        assertFalse(s.usesBufferRing());
+
+        // unless asked to
+        s.setBufferStrategy(SeqScan.BufferStrategy.RING);
+        assertEquals(2000, scan(s).size());
+        assertTrue(s.usesBufferRing());
+    }
+
+    @Test public void ringScanReturnsSameTuples() throws Exception {
+        SeqScan pool = new SeqScan(tid, big.getId(), "b");
+        pool.setBufferStrategy(SeqScan.BufferStrategy.POOL);
+        ArrayList<Tuple> expected = scan(pool);
+
+        bp.setReadAheadWindow(8);
+        SeqScan ring = new SeqScan(tid, big.getId(), "b");
+        ring.setBufferStrategy(SeqScan.BufferStrategy.RING);
+        ArrayList<Tuple> actual = scan(ring);
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++)
+            assertEquals(expected.get(i).toString(), actual.get(i).toString());
+    }
+
+    /** A page another reader asks for is taken out of the ring. */
+    @Test public void sharedPagesLeaveRing() throws Exception {
+        SeqScan s = new SeqScan(tid, big.getId(), "b");
+        s.open();
+        assertTrue(s.usesBufferRing());
+        HeapPageId first = new HeapPageId(big.getId(), 0);
+        assertTrue(bp.isCached(first));
+        bp.getPage(tid, first, Permissions.READ_ONLY);
+        while (s.hasNext())
+            s.next();
+        s.close();
+        assertTrue(bp.isCached(first));
+    }
+
+    @Test public void btreeScanUsesRing() throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 40000, null, null, 0);
+        // building the tree resets the buffer pool
+        bp = Database.resetBufferPool(POOL_PAGES);
+        readSmall();
+        SeqScan s = new SeqScan(tid, bf.getId(), "t");
+        assertEquals(40000, scan(s).size());
+        assertTrue(s.usesBufferRing());
+        assertTrue(s.getRecycledFrames() > 0);
+        assertSmallCached(true);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferRingTest.class);
+    }
+}
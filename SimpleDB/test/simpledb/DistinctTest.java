@@ -0,0 +1,258 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class DistinctTest extends SimpleDbTestBase {
+    private HeapFile table;
+    private ArrayList<ArrayList<Integer>> tuples;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        // about 30 * 30 distinct (c0, c1), with many duplicates
+        tuples = new ArrayList<ArrayList<Integer>>();
+        table = SystemTestUtil.createRandomHeapFile(2, 10000, 30,
+                new HashMap<Integer, Integer>(), tuples, "c");
+        tid = new TransactionId();
+    }
+
+    private SeqScan scan() {
+        return new SeqScan(tid, table.getId(), "t");
+    }
+
+    private static ArrayList<String> rows(DbIterator it) throws Exception {
+        ArrayList<String> rows = new ArrayList<String>();
+        while (it.hasNext())
+            rows.add(it.next().toString());
+        return rows;
+    }
+
+    private static ArrayList<String> sortedRows(DbIterator it) throws Exception {
+        it.open();
+        ArrayList<String> rows = rows(it);
+        it.close();
+        Collections.sort(rows);
+        return rows;
+    }
+
+    private ArrayList<String> distinctRows() {
+        HashSet<String> set = new HashSet<String>();
+        for (ArrayList<Integer> t : tuples)
+            set.add(t.get(0) + "\t" + t.get(1) + "\t");
+        ArrayList<String> rows = new ArrayList<String>(set);
+        Collections.sort(rows);
+        return rows;
+    }
+
+    /** The number of distinct c1 of each c0 */
+    private HashMap<Integer, Integer> distinctCounts() {
+        HashMap<Integer, HashSet<Integer>> sets = new HashMap<Integer, HashSet<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            HashSet<Integer> set = sets.get(t.get(0));
+            if (set == null)
+                sets.put(t.get(0), set = new HashSet<Integer>());
+            set.add(t.get(1));
+        }
+        HashMap<Integer, Integer> counts = new HashMap<Integer, Integer>();
+        for (Map.Entry<Integer, HashSet<Integer>> e : sets.entrySet())
+            counts.put(e.getKey(), e.getValue().size());
+        return counts;
+    }
+
+    @Test public void distinct() throws Exception {
+        int files = TupleSpillFile.liveFiles();
+        for (int budget : new int[] { 1, 50, GroupTable.DEFAULT_MEMORY_BUDGET }) {
+            Distinct d = new Distinct(scan());
+            d.setMemoryBudget(budget);
+            assertEquals(distinctRows(), sortedRows(d));
+            assertEquals(files, TupleSpillFile.liveFiles());
+
+            d.open();
+            ArrayList<String> first = rows(d);
+            d.rewind();
+            assertEquals(first, rows(d));
+            d.close();
+            assertEquals(files, TupleSpillFile.liveFiles());
+        }
+    }
+
+    /** Tuples seen for the first time are returned before the child is done */
+    @Test public void distinctStreams() throws Exception {
+        Distinct d = new Distinct(new Limit(1, scan()));
+        d.open();
+        assertTrue(d.hasNext());
+        d.next();
+        assertFalse(d.hasNext());
+        d.close();
+    }
+
+    @Test public void countDistinct() throws Exception {
+        HashMap<Integer, Integer> counts = distinctCounts();
+        ArrayList<String> expected = new ArrayList<String>();
+        for (Map.Entry<Integer, Integer> e : counts.entrySet())
+            expected.add(e.getKey() + "\t" + e.getValue() + "\t");
+        Collections.sort(expected);
+
+        int files = TupleSpillFile.liveFiles();
+        for (int budget : new int[] { 1, 10, GroupTable.DEFAULT_MEMORY_BUDGET }) {
+            Aggregate a = new Aggregate(scan(), 1, 0, Aggregator.Op.COUNT_DISTINCT);
+            a.setMemoryBudget(budget);
+            assertEquals(expected, sortedRows(a));
+            assertEquals(files, TupleSpillFile.liveFiles());
+        }
+
+        // without grouping, and merged from partial aggregators
+        TupleDesc td = scan().getTupleDesc();
+        HashAggregator agg = new HashAggregator(td, new int[0],
+                new int[] { 0, 1 }, new Aggregator.Op[] {
+                        Aggregator.Op.COUNT_DISTINCT, Aggregator.Op.COUNT });
+        for (int p = 0; p < 3; p++) {
+            HashAggregator partial = agg.partial(5);
+            for (int i = p; i < tuples.size(); i += 3)
+                partial.mergeTupleIntoGroup(Utility.getHeapTuple(new int[] {
+                        tuples.get(i).get(0), tuples.get(i).get(1) }));
+            agg.merge(partial);
+        }
+        ArrayList<String> rows = sortedRows(agg.iterator());
+        assertEquals(1, rows.size());
+        assertEquals(counts.size() + "\t" + tuples.size() + "\t", rows.get(0));
+        agg.clear();
+    }
+
+    @Test public void countDistinctStrings() throws Exception {
+        StringAggregator agg = new StringAggregator(1, Type.INT_TYPE, 0,
+                Aggregator.Op.COUNT_DISTINCT);
+        agg.setMemoryBudget(3);
+        TupleDesc td = new TupleDesc(new Type[] { Type.STRING_TYPE,
+                Type.INT_TYPE });
+        for (ArrayList<Integer> row : tuples) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new StringField("v" + row.get(1), Type.STRING_LEN));
+            t.setField(1, new IntField(row.get(0)));
+            agg.mergeTupleIntoGroup(t);
+        }
+        ArrayList<String> expected = new ArrayList<String>();
+        for (Map.Entry<Integer, Integer> e : distinctCounts().entrySet())
+            expected.add(e.getKey() + "\t" + e.getValue() + "\t");
+        Collections.sort(expected);
+        assertEquals(expected, sortedRows(agg.iterator()));
+        agg.clear();
+    }
+
+    @Test public void hyperLogLog() {
+        for (int n : new int[] { 0, 1, 100, 1000, 100000, 1000000 }) {
+            HyperLogLog a = new HyperLogLog();
+            HyperLogLog b = new HyperLogLog();
+            for (int i = 0; i < n; i++) {
+                a.add(HyperLogLog.hash(i));
+                // duplicates change nothing
+                a.add(HyperLogLog.hash(i));
+                b.add(HyperLogLog.hash("s" + i));
+            }
+            assertEquals("" + n, n, a.estimate(), 0.03 * n);
+            assertEquals("" + n, n, b.estimate(), 0.03 * n);
+
+            // merging halves gives the sketch of the whole
+            HyperLogLog lo = new HyperLogLog(), hi = new HyperLogLog();
+            for (int i = 0; i < n; i++)
+                (i < n / 2 ? lo : hi).add(HyperLogLog.hash(i));
+            lo.merge(hi);
+            assertEquals(a.estimate(), lo.estimate());
+        }
+    }
+
+    @Test public void approxCountDistinct() throws Exception {
+        HashMap<Integer, Integer> counts = distinctCounts();
+        for (int budget : new int[] { 1, GroupTable.DEFAULT_MEMORY_BUDGET }) {
+            Aggregate a = new Aggregate(scan(), new int[] { 1, 1 },
+                    new Aggregator.Op[] { Aggregator.Op.APPROX_COUNT_DISTINCT,
+                            Aggregator.Op.COUNT_DISTINCT }, new int[] { 0 });
+            a.setMemoryBudget(budget);
+            a.open();
+            int groups = 0;
+            while (a.hasNext()) {
+                Tuple t = a.next();
+                int exact = counts.get(((IntField) t.getField(0)).getValue());
+                // small counts are estimated by linear counting, almost exactly
+                assertEquals(exact, ((IntField) t.getField(1)).getValue(), 1);
+                assertEquals(exact, ((IntField) t.getField(2)).getValue());
+                groups++;
+            }
+            a.close();
+            assertEquals(counts.size(), groups);
+        }
+
+        // partial sketches are merged, even when they spill
+        TupleDesc td = scan().getTupleDesc();
+        HashAggregator agg = new HashAggregator(td, new int[] { 0 },
+                new int[] { 1 }, new Aggregator.Op[] {
+                        Aggregator.Op.APPROX_COUNT_DISTINCT });
+        agg.setMemoryBudget(1);
+        for (int p = 0; p < 4; p++) {
+            HashAggregator partial = agg.partial(2);
+            for (int i = 0; i < 20000; i++)
+                partial.mergeTupleIntoGroup(Utility.getHeapTuple(new int[] {
+                        i % 3, p * 20000 + i }));
+            agg.merge(partial);
+        }
+        ArrayList<String> rows = sortedRows(agg.iterator());
+        assertEquals(3, rows.size());
+        for (String row : rows) {
+            int estimate = Integer.parseInt(row.split("\t")[1]);
+            assertEquals(80000 / 3, estimate, 0.03 * 80000 / 3);
+        }
+        agg.clear();
+    }
+
+    @Test public void parsed() throws Exception {
+        Database.getCatalog().addTable(table, "d");
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("d", new TableStats(table.getId(), 10));
+        Parser parser = new Parser();
+
+        DbIterator plan = parser.generateLogicalPlan(tid,
+                "SELECT DISTINCT t.c0, t.c1 FROM d t;").physicalPlan(tid,
+                stats, false);
+        assertEquals(distinctRows(), sortedRows(plan));
+
+        plan = parser.generateLogicalPlan(tid,
+                "SELECT DISTINCT t.c0 FROM d t ORDER BY t.c0 LIMIT 5;")
+                .physicalPlan(tid, stats, false);
+        plan.open();
+        ArrayList<String> first = rows(plan);
+        plan.close();
+        assertEquals(5, first.size());
+        for (int i = 1; i < first.size(); i++)
+            assertTrue(Integer.parseInt(first.get(i).trim()) > Integer
+                    .parseInt(first.get(i - 1).trim()));
+
+        HashMap<Integer, Integer> counts = distinctCounts();
+        ArrayList<String> expected = new ArrayList<String>();
+        for (Map.Entry<Integer, Integer> e : counts.entrySet())
+            expected.add(e.getKey() + "\t" + e.getValue() + "\t"
+                    + e.getValue() + "\t");
+        Collections.sort(expected);
+        plan = parser.generateLogicalPlan(tid,
+                "SELECT t.c0, COUNT(DISTINCT t.c1), APPROX_COUNT_DISTINCT(t.c1) "
+                        + "FROM d t GROUP BY t.c0;").physicalPlan(tid, stats,
+                false);
+        assertEquals(expected, sortedRows(plan));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(DistinctTest.class);
+    }
+}
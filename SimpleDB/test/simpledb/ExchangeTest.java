@@ -0,0 +1,246 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class ExchangeTest extends SimpleDbTestBase {
+    private static final int PARTITIONS = 4;
+
+    private HeapFile big;
+    private HeapFile small;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        big = SystemTestUtil.createRandomHeapFile(2, 20000, 500,
+                new HashMap<Integer, Integer>(), null);
+        small = SystemTestUtil.createRandomHeapFile(2, 300, 500,
+                new HashMap<Integer, Integer>(), null);
+        Database.getCatalog().addTable(big, "big");
+        Database.getCatalog().addTable(small, "small");
+        tid = new TransactionId();
+    }
+
+    private static ArrayList<String> sortedRows(DbIterator it) throws Exception {
+        ArrayList<String> rows = new ArrayList<String>();
+        it.open();
+        while (it.hasNext())
+            rows.add(it.next().toString());
+        it.close();
+        Collections.sort(rows);
+        return rows;
+    }
+
+    private SeqScan scan(HeapFile f, String alias) {
+        return new SeqScan(tid, f.getId(), alias);
+    }
+
+    @Test public void gatherReturnsAllRows() throws Exception {
+        ArrayList<String> expected = sortedRows(scan(big, "a"));
+        expected.addAll(sortedRows(scan(big, "a")));
+        expected.addAll(sortedRows(scan(small, "a")));
+        Collections.sort(expected);
+        Gather g = new Gather(new DbIterator[] { scan(big, "a"), scan(big, "a"),
+                scan(small, "a") });
+        assertEquals(expected, sortedRows(g));
+        // and again
+        assertEquals(expected, sortedRows(g));
+    }
+
+    @Test public void repartitionedHashJoin() throws Exception {
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        ArrayList<String> expected = sortedRows(
+                new HashEquiJoin(p, scan(small, "s"), scan(big, "b")));
+        assertTrue(expected.size() > 0);
+
+        HashRepartition left = new HashRepartition(scan(small, "s"), 0, PARTITIONS);
+        HashRepartition right = new HashRepartition(scan(big, "b"), 0, PARTITIONS);
+        DbIterator[] joins = new DbIterator[PARTITIONS];
+        for (int i = 0; i < PARTITIONS; i++)
+            joins[i] = new HashEquiJoin(p, left.getOutput(i), right.getOutput(i));
+        assertEquals(expected, sortedRows(new Gather(joins)));
+    }
+
+    @Test public void repartitionedAggregate() throws Exception {
+        ArrayList<String> expected = sortedRows(
+                new Aggregate(scan(big, "b"), 1, 0, Aggregator.Op.SUM));
+
+        HashRepartition parts = new HashRepartition(
+                new DbIterator[] { scan(big, "b") }, 0, PARTITIONS);
+        DbIterator[] aggs = new DbIterator[PARTITIONS];
+        for (int i = 0; i < PARTITIONS; i++) {
+            parts.getOutput(i).setRewindable(false);
+            aggs[i] = new Aggregate(parts.getOutput(i), 1, 0, Aggregator.Op.SUM);
+        }
+        assertEquals(expected, sortedRows(new Gather(aggs)));
+    }
+
+    /** Each partition of big is joined with all of small, which is rewound. */
+    @Test public void broadcastJoin() throws Exception {
+        JoinPredicate p = new JoinPredicate(1, Predicate.Op.LESS_THAN, 1);
+        HeapFile tiny = SystemTestUtil.createRandomHeapFile(2, 40, 500,
+                new HashMap<Integer, Integer>(), null);
+        Database.getCatalog().addTable(tiny, "tiny");
+        ArrayList<String> expected = sortedRows(
+                new Join(p, scan(small, "s"), scan(tiny, "t")));
+
+        HashRepartition outer = new HashRepartition(scan(small, "s"), 0, PARTITIONS);
+        Broadcast inner = new Broadcast(scan(tiny, "t"), PARTITIONS);
+        DbIterator[] joins = new DbIterator[PARTITIONS];
+        for (int i = 0; i < PARTITIONS; i++)
+            joins[i] = new Join(p, outer.getOutput(i), inner.getOutput(i));
+        assertEquals(expected, sortedRows(new Gather(joins)));
+    }
+
+    /**
+     * The outputs of a Broadcast share lazily decoded Tuples, which their
+     * consumers decode at once from several threads.
+     */
+    @Test public void broadcastSharesTuplesAcrossThreads() throws Exception {
+        // wide rows, so that the consumers spend long decoding each one
+        HeapFile wide = SystemTestUtil.createRandomHeapFile(16, 5000, 500,
+                new HashMap<Integer, Integer>(), null);
+        Database.getCatalog().addTable(wide, "wide");
+        final ArrayList<String> expected = sortedRows(scan(wide, "w"));
+        final ArrayList<Throwable> errors = new ArrayList<Throwable>();
+        for (int round = 0; round < 20 && errors.isEmpty(); round++) {
+            Broadcast b = new Broadcast(scan(wide, "w"), PARTITIONS);
+            Thread[] consumers = new Thread[PARTITIONS];
+            for (int i = 0; i < PARTITIONS; i++) {
+                final ExchangeConsumer out = b.getOutput(i);
+                final boolean printFirst = i % 2 == 0;
+                consumers[i] = new Thread() {
+                    public void run() {
+                        try {
+                            ArrayList<String> rows = new ArrayList<String>();
+                            out.open();
+                            while (out.hasNext()) {
+                                Tuple t = out.next();
+                                String s = printFirst ? t.toString() : null;
+                                String fields = "";
+                                for (int f = 0; f < t.getTupleDesc().numFields(); f++)
+                                    fields += t.getField(f) + "\t";
+                                if (s == null)
+                                    s = t.toString();
+                                assertEquals(fields, s);
+                                rows.add(s);
+                            }
+                            Collections.sort(rows);
+                            assertEquals(expected, rows);
+                        } catch (Throwable e) {
+                            synchronized (errors) {
+                                errors.add(e);
+                            }
+                        } finally {
+                            // so that the other outputs are not held up
+                            out.close();
+                        }
+                    }
+                };
+            }
+            for (Thread t : consumers)
+                t.start();
+            for (Thread t : consumers)
+                t.join();
+        }
+        assertEquals(new ArrayList<Throwable>(), errors);
+    }
+
+    @Test public void producerErrorReachesConsumer() throws Exception {
+        DbIterator failing = new TestUtil.MockScan(0, 10000, 1) {
+            private int n = 0;
+
+            public Tuple next() throws DbException, TransactionAbortedException,
+                    NoSuchElementException {
+                if (++n == 5000)
+                    throw new DbException("broken");
+                return super.next();
+            }
+        };
+        Gather g = new Gather(new DbIterator[] { failing, new TestUtil.MockScan(0, 10000, 1) });
+        g.open();
+        try {
+            while (g.hasNext())
+                g.next();
+            fail("expected the producer's DbException");
+        } catch (DbException e) {
+            assertEquals("broken", e.getMessage());
+        }
+        g.close();
+    }
+
+    /** Closing the consumer early stops producers waiting on a full queue. */
+    @Test public void closeEarly() throws Exception {
+        HashRepartition parts = new HashRepartition(scan(big, "b"), 0, 2);
+        ExchangeConsumer first = parts.getOutput(0);
+        ExchangeConsumer second = parts.getOutput(1);
+        first.open();
+        second.open();
+        assertTrue(first.hasNext());
+        first.close();
+        // the second output still gets all of its rows
+        int n = 0;
+        while (second.hasNext()) {
+            second.next();
+            n++;
+        }
+        second.close();
+        assertTrue(n > 0 && n < 20000);
+
+        // and the producers can run again
+        first.open();
+        second.open();
+        assertTrue(first.hasNext());
+        first.close();
+        second.close();
+    }
+
+    /** Closing an exchange returns once its producers have closed their children */
+    @Test public void closeWaitsForProducers() throws Exception {
+        final AtomicInteger open = new AtomicInteger();
+        DbIterator[] children = new DbIterator[3];
+        for (int i = 0; i < children.length; i++) {
+            children[i] = new TestUtil.MockScan(0, 100000, 1) {
+                public void open() {
+                    open.incrementAndGet();
+                    super.open();
+                }
+
+                public void close() {
+                    super.close();
+                    open.decrementAndGet();
+                }
+            };
+        }
+        for (int i = 0; i < 20; i++) {
+            Gather g = new Gather(children);
+            g.open();
+            assertTrue(g.hasNext());
+            g.close();
+            assertEquals(0, open.get());
+
+            HashRepartition parts = new HashRepartition(children, 0, 2);
+            parts.getOutput(0).open();
+            parts.getOutput(1).open();
+            assertTrue(parts.getOutput(1).hasNext());
+            parts.getOutput(0).close();
+            parts.getOutput(1).close();
+            assertEquals(0, open.get());
+        }
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ExchangeTest.class);
+    }
+}
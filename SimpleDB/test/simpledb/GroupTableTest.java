@@ -0,0 +1,165 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class GroupTableTest extends SimpleDbTestBase {
+    private HeapFile table;
+    private ArrayList<ArrayList<Integer>> tuples;
+    private TransactionId tid;
+
+    private static final Aggregator.Op[] OPS = { Aggregator.Op.MIN,
+            Aggregator.Op.MAX, Aggregator.Op.SUM, Aggregator.Op.AVG,
+            Aggregator.Op.COUNT };
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        // about 3000 groups in c0
+        tuples = new ArrayList<ArrayList<Integer>>();
+        table = SystemTestUtil.createRandomHeapFile(2, 10000, 3000,
+                new HashMap<Integer, Integer>(),
+                tuples);
+        tid = new TransactionId();
+    }
+
+    private static ArrayList<String> rows(DbIterator it) throws Exception {
+        ArrayList<String> rows = new ArrayList<String>();
+        it.open();
+        while (it.hasNext())
+            rows.add(it.next().toString());
+        it.close();
+        Collections.sort(rows);
+        return rows;
+    }
+
+    /** The aggregate of c1 grouped by c0, computed without the engine */
+    private ArrayList<String> expected(Aggregator.Op op) {
+        HashMap<Integer, long[]> groups = new HashMap<Integer, long[]>();
+        for (ArrayList<Integer> t : tuples) {
+            long[] g = groups.get(t.get(0));
+            if (g == null) {
+                g = new long[] { Long.MAX_VALUE, Long.MIN_VALUE, 0, 0 };
+                groups.put(t.get(0), g);
+            }
+            g[0] = Math.min(g[0], t.get(1));
+            g[1] = Math.max(g[1], t.get(1));
+            g[2] += t.get(1);
+            g[3]++;
+        }
+        ArrayList<String> rows = new ArrayList<String>();
+        for (Map.Entry<Integer, long[]> e : groups.entrySet()) {
+            long[] g = e.getValue();
+            long v = op == Aggregator.Op.MIN ? g[0]
+                    : op == Aggregator.Op.MAX ? g[1]
+                    : op == Aggregator.Op.SUM ? g[2]
+                    : op == Aggregator.Op.AVG ? g[2] / g[3] : g[3];
+            rows.add(e.getKey() + "\t" + v + "\t");
+        }
+        Collections.sort(rows);
+        return rows;
+    }
+
+    @Test public void spillsGroupsBeyondTheBudget() throws Exception {
+        int files = TupleSpillFile.liveFiles();
+        for (Aggregator.Op op : OPS) {
+            for (int budget : new int[] { 100, 1000, GroupTable.DEFAULT_MEMORY_BUDGET }) {
+                IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE,
+                        1, op);
+                agg.setMemoryBudget(budget);
+                SeqScan s = new SeqScan(tid, table.getId(), "");
+                s.open();
+                TupleBatch batch;
+                while ((batch = s.nextBatch()) != null)
+                    agg.mergeBatchIntoGroup(batch);
+                s.close();
+                assertEquals(op + " " + budget,
+                        budget == GroupTable.DEFAULT_MEMORY_BUDGET,
+                        agg.spilledTuples() == 0);
+                ArrayList<String> expected = expected(op);
+                DbIterator it = agg.iterator();
+                assertEquals(op + " " + budget, expected, rows(it));
+                // the partitions can be read again
+                assertEquals(op + " " + budget, expected, rows(it));
+                agg.clear();
+                assertEquals(files, TupleSpillFile.liveFiles());
+            }
+        }
+    }
+
+    /** A budget of one group splits partitions until the last level */
+    @Test public void partitionsAreSplitAgain() throws Exception {
+        IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1,
+                Aggregator.Op.SUM);
+        agg.setMemoryBudget(1);
+        for (ArrayList<Integer> t : tuples)
+            agg.mergeTupleIntoGroup(Utility.getHeapTuple(new int[] {
+                    t.get(0), t.get(1) }));
+        assertEquals(expected(Aggregator.Op.SUM), rows(agg.iterator()));
+        agg.clear();
+    }
+
+    @Test public void stringGroups() throws Exception {
+        TupleDesc td = new TupleDesc(new Type[] { Type.STRING_TYPE,
+                Type.INT_TYPE });
+        HashMap<String, Integer> counts = new HashMap<String, Integer>();
+        StringAggregator count = new StringAggregator(0, Type.STRING_TYPE, 0,
+                Aggregator.Op.COUNT);
+        IntegerAggregator sum = new IntegerAggregator(0, Type.STRING_TYPE, 1,
+                Aggregator.Op.SUM);
+        count.setMemoryBudget(50);
+        sum.setMemoryBudget(50);
+        for (ArrayList<Integer> row : tuples) {
+            String key = "g" + row.get(0) % 500;
+            Tuple t = new Tuple(td);
+            t.setField(0, new StringField(key, Type.STRING_LEN));
+            t.setField(1, new IntField(1));
+            count.mergeTupleIntoGroup(t);
+            sum.mergeTupleIntoGroup(t);
+            Integer c = counts.get(key);
+            counts.put(key, c == null ? 1 : c + 1);
+        }
+        ArrayList<String> expected = new ArrayList<String>();
+        for (Map.Entry<String, Integer> e : counts.entrySet())
+            expected.add(e.getKey() + "\t" + e.getValue() + "\t");
+        Collections.sort(expected);
+        assertEquals(expected, rows(count.iterator()));
+        assertEquals(expected, rows(sum.iterator()));
+        count.clear();
+        sum.clear();
+    }
+
+    @Test public void aggregateOperator() throws Exception {
+        int files = TupleSpillFile.liveFiles();
+        Aggregate a = new Aggregate(new SeqScan(tid, table.getId(), ""), 1, 0,
+                Aggregator.Op.AVG);
+        a.setMemoryBudget(500);
+        a.open();
+        ArrayList<String> first = new ArrayList<String>();
+        while (a.hasNext())
+            first.add(a.next().toString());
+        Collections.sort(first);
+        assertEquals(expected(Aggregator.Op.AVG), first);
+        assertTrue(TupleSpillFile.liveFiles() > files);
+        a.close();
+        assertEquals(files, TupleSpillFile.liveFiles());
+
+        // reopening starts over
+        assertEquals(first, rows(a));
+        assertEquals(files, TupleSpillFile.liveFiles());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(GroupTableTest.class);
+    }
+}
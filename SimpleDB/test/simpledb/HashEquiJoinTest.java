@@ -1,6 +1,7 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
@@ -67,6 +68,35 @@ public class HashEquiJoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, op);
   }
 
+  /**
+   * Unit test for HashEquiJoin.rewind() after all the results have been read
+   */
+  @Test public void rewindAfterEnd() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashEquiJoin op = new HashEquiJoin(pred, scan1, scan2);
+    op.open();
+    eqJoin.open();
+    TestUtil.compareDbIterators(eqJoin, op);
+    assertFalse(op.hasNext());
+    op.rewind();
+    eqJoin.rewind();
+    TestUtil.compareDbIterators(eqJoin, op);
+    op.close();
+
+    // as the inner side of a nested loop join, rewound for each outer tuple
+    DbIterator outer = TestUtil.createTupleList(1, new int[] { 1, 3, 5 });
+    Join nested = new Join(new JoinPredicate(0, Predicate.Op.EQUALS, 0), outer,
+        new HashEquiJoin(pred, scan1, scan2));
+    nested.open();
+    int n = 0;
+    while (nested.hasNext()) {
+      nested.next();
+      n++;
+    }
+    assertEquals(3, n);
+    nested.close();
+  }
+
     private static final int COLUMNS = 2;
     public void validateJoin(int table1ColumnValue, int table1Rows, int table2ColumnValue,
             int table2Rows)
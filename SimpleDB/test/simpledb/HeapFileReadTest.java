@@ -77,6 +77,82 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Unit test for HeapFile.readPage() in memory-mapped mode, including a
+     * page appended after the file was mapped.
+     */
+    @Test
+    public void readPageMemoryMapped() throws Exception {
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 3000, null, null);
+        HeapFile mapped = new HeapFile(big.getFile(), big.getTupleDesc(), true);
+        assertTrue(mapped.isMemoryMapped());
+        assertEquals(big.getId(), mapped.getId());
+
+        int numPages = big.numPages();
+        for (int i = 0; i < numPages; i++) {
+            HeapPageId pid = new HeapPageId(big.getId(), i);
+            assertArrayEquals(big.readPage(pid).getPageData(),
+                    mapped.readPage(pid).getPageData());
+        }
+
+        // grow the file past the mapping
+        HeapPageId newPid = new HeapPageId(big.getId(), numPages);
+        HeapPage newPage = new HeapPage(newPid, HeapPage.createEmptyPageData());
+        newPage.insertTuple(Utility.getHeapTuple(new int[] {7, 8}));
+        mapped.writePage(newPage);
+        assertEquals(numPages + 1, mapped.numPages());
+        HeapPage reread = (HeapPage) mapped.readPage(newPid);
+        assertArrayEquals(newPage.getPageData(), reread.getPageData());
+
+        // a write to a mapped page is visible through the mapping
+        HeapPage first = (HeapPage) mapped.readPage(new HeapPageId(big.getId(), 0));
+        first.deleteTuple(first.iterator().next());
+        mapped.writePage(first);
+        assertArrayEquals(first.getPageData(),
+                mapped.readPage(new HeapPageId(big.getId(), 0)).getPageData());
+    }
+
+    /**
+     * Unit test for HeapFile.readPage() from several threads at once, and
+     * after the file channel has been closed.
+     */
+    @Test
+    public void readPageConcurrently() throws Exception {
+        final HeapFile big = SystemTestUtil.createRandomHeapFile(2, 5000, null, null);
+        final int numPages = big.numPages();
+        final byte[][] expected = new byte[numPages][];
+        for (int i = 0; i < numPages; i++)
+            expected[i] = big.readPage(new HeapPageId(big.getId(), i)).getPageData();
+
+        final ArrayList<Throwable> errors = new ArrayList<Throwable>();
+        Thread[] readers = new Thread[4];
+        for (int t = 0; t < readers.length; t++) {
+            final int first = t;
+            readers[t] = new Thread() {
+                public void run() {
+                    for (int round = 0; round < 20; round++) {
+                        for (int i = (first + round) % numPages; i < numPages; i += 2) {
+                            Page p = big.readPage(new HeapPageId(big.getId(), i));
+                            if (!Arrays.equals(expected[i], p.getPageData())) {
+                                synchronized (errors) {
+                                    errors.add(new AssertionError("page " + i + " differs"));
+                                }
+                            }
+                        }
+                    }
+                }
+            };
+            readers[t].start();
+        }
+        for (Thread t : readers)
+            t.join();
+        assertTrue(errors.toString(), errors.isEmpty());
+
+        big.close();
+        assertArrayEquals(expected[0],
+                big.readPage(new HeapPageId(big.getId(), 0)).getPageData());
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
@@ -1,9 +1,13 @@
 package simpledb;
 
+import java.io.File;
+import java.util.NoSuchElementException;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import simpledb.systemtest.SystemTestUtil;
 import static org.junit.Assert.*;
 import junit.framework.JUnit4TestAdapter;
 
@@ -43,6 +47,97 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /** Counts the number of readPage operations. */
+    private static class InstrumentedHeapFile extends HeapFile {
+        int readCount = 0;
+
+        InstrumentedHeapFile(File f, TupleDesc td) {
+            super(f, td);
+            Database.getCatalog().addTable(this, SystemTestUtil.getUUID());
+        }
+
+        @Override
+        public Page readPage(PageId pid) throws NoSuchElementException {
+            readCount += 1;
+            return super.readPage(pid);
+        }
+    }
+
+    /**
+     * Unit test for HeapFile.insertTuple() going straight to the page with
+     * room once the free-space map knows the full pages, also after the file
+     * is opened again.
+     */
+    @Test public void addTupleSkipsFullPages() throws Exception {
+        // 10 full pages
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 5040, 1000, null, null);
+        InstrumentedHeapFile hf = new InstrumentedHeapFile(f, Utility.getTupleDesc(2));
+        assertEquals(10, hf.numPages());
+
+        // without a map the first insert has to look at every page
+        hf.insertTuple(tid, Utility.getHeapTuple(1, 2));
+        assertEquals(11, hf.numPages());
+        assertEquals(11, hf.readCount);
+        Database.getBufferPool().transactionComplete(tid);
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        hf = new InstrumentedHeapFile(f, Utility.getTupleDesc(2));
+        tid = new TransactionId();
+        for (int i = 0; i < 10; i++)
+            hf.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        assertEquals(11, hf.numPages());
+        assertEquals(1, hf.readCount);
+    }
+
+    /**
+     * Unit test for HeapFile.insertTuple() reusing a slot freed on a page
+     * that was full.
+     */
+    @Test public void addTupleReusesFreedSlot() throws Exception {
+        for (int i = 0; i < 505; ++i)
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        assertEquals(2, empty.numPages());
+
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        Tuple first = it.next();
+        it.close();
+        assertEquals(0, first.getRecordId().getPageId().pageNumber());
+        empty.deleteTuple(tid, first);
+
+        Tuple t = Utility.getHeapTuple(7, 2);
+        empty.insertTuple(tid, t);
+        assertEquals(0, t.getRecordId().getPageId().pageNumber());
+        assertEquals(first.getRecordId().tupleno(), t.getRecordId().tupleno());
+    }
+
+    /**
+     * Unit test for HeapFile.insertTuple() going back to a page that a
+     * transaction filled and then aborted, also after the file is opened
+     * again.
+     */
+    @Test public void addTupleAfterAbortedFill() throws Exception {
+        BufferPool pool = Database.getBufferPool();
+        for (int i = 0; i < 504; ++i)
+            pool.insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        assertEquals(1, empty.numPages());
+        pool.transactionComplete(tid, false);
+
+        tid = new TransactionId();
+        Tuple t = Utility.getHeapTuple(7, 2);
+        pool.insertTuple(tid, empty.getId(), t);
+        assertEquals(0, t.getRecordId().getPageId().pageNumber());
+        pool.transactionComplete(tid, false);
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        HeapFile hf = Utility.openHeapFile(2, empty.getFile());
+        tid = new TransactionId();
+        t = Utility.getHeapTuple(7, 2);
+        Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        assertEquals(0, t.getRecordId().getPageId().pageNumber());
+        assertEquals(1, hf.numPages());
+    }
+
     /**
      * JUnit suite target
      */
@@ -120,6 +120,52 @@ public class HeapPageReadTest extends SimpleDbTestBase {
             assertFalse(page.isSlotUsed(i));
     }
 
+    /**
+     * Unit test for HeapPage in lazy and eager decoding modes: both see the
+     * same tuples and serialize to the bytes they were read from, also after
+     * a change.
+     */
+    @Test public void lazyAndEagerDecoding() throws Exception {
+        boolean lazy = HeapPage.isLazyDecoding();
+        try {
+            HeapPage.setLazyDecoding(true);
+            HeapPage lazyPage = new HeapPage(pid, EXAMPLE_DATA);
+            HeapPage.setLazyDecoding(false);
+            HeapPage eagerPage = new HeapPage(pid, EXAMPLE_DATA);
+
+            assertTrue(Arrays.equals(EXAMPLE_DATA, lazyPage.getPageData()));
+            Iterator<Tuple> lazyIt = lazyPage.iterator();
+            Iterator<Tuple> eagerIt = eagerPage.iterator();
+            while (eagerIt.hasNext()) {
+                assertTrue(lazyIt.hasNext());
+                Tuple l = lazyIt.next();
+                Tuple e = eagerIt.next();
+                assertEquals(e.getRecordId(), l.getRecordId());
+                // a single field can be read without the others
+                assertEquals(e.getField(1), l.getField(1));
+                assertEquals(e.toString(), l.toString());
+            }
+            assertFalse(lazyIt.hasNext());
+
+            // delete a tuple in the middle and insert a new one
+            Tuple victim = null;
+            for (Iterator<Tuple> it = lazyPage.iterator(); it.hasNext(); ) {
+                Tuple t = it.next();
+                if (t.getRecordId().tupleno() == 5)
+                    victim = t;
+            }
+            lazyPage.deleteTuple(victim);
+            eagerPage.deleteTuple(victim);
+            Tuple added = Utility.getHeapTuple(new int[] {7, 8});
+            lazyPage.insertTuple(added);
+            eagerPage.insertTuple(Utility.getHeapTuple(new int[] {7, 8}));
+            assertTrue(Arrays.equals(eagerPage.getPageData(), lazyPage.getPageData()));
+            assertTrue(Arrays.equals(EXAMPLE_DATA, lazyPage.getBeforeImage().getPageData()));
+        } finally {
+            HeapPage.setLazyDecoding(lazy);
+        }
+    }
+
     /**
      * JUnit suite target
      */
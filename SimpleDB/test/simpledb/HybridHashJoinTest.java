@@ -0,0 +1,143 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class HybridHashJoinTest extends SimpleDbTestBase {
+    private static final JoinPredicate EQ = new JoinPredicate(0,
+            Predicate.Op.EQUALS, 0);
+
+    private HeapFile left;
+    private HeapFile right;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        left = SystemTestUtil.createRandomHeapFile(2, 10000, 4000,
+                new HashMap<Integer, Integer>(), null);
+        right = SystemTestUtil.createRandomHeapFile(2, 10000, 4000,
+                new HashMap<Integer, Integer>(), null);
+        tid = new TransactionId();
+    }
+
+    private HashEquiJoin join(int budget) {
+        HashEquiJoin j = new HashEquiJoin(EQ, new SeqScan(tid, left.getId(), "l"),
+                new SeqScan(tid, right.getId(), "r"));
+        j.setMemoryBudget(budget);
+        return j;
+    }
+
+    private static ArrayList<String> sortedRows(DbIterator it) throws Exception {
+        ArrayList<String> rows = new ArrayList<String>();
+        while (it.hasNext())
+            rows.add(it.next().toString());
+        Collections.sort(rows);
+        return rows;
+    }
+
+    private static ArrayList<String> sortedBatchRows(DbIterator it) throws Exception {
+        ArrayList<String> rows = new ArrayList<String>();
+        TupleBatch b;
+        while ((b = it.nextBatch()) != null)
+            for (int k = 0; k < b.size(); k++)
+                rows.add(b.getTuple(k).toString());
+        Collections.sort(rows);
+        return rows;
+    }
+
+    @Test public void spilledJoinMatchesInMemoryJoin() throws Exception {
+        int files = TupleSpillFile.liveFiles();
+        HashEquiJoin inMemory = join(HashEquiJoin.MAP_SIZE);
+        inMemory.open();
+        ArrayList<String> expected = sortedRows(inMemory);
+        assertEquals(0, inMemory.spilledPasses());
+        // the hash table is kept, so a rewind at the end probes it again
+        inMemory.rewind();
+        assertEquals(expected, sortedRows(inMemory));
+        inMemory.close();
+        assertTrue(expected.size() > 0);
+
+        HashEquiJoin spilled = join(300);
+        spilled.open();
+        assertEquals(expected, sortedRows(spilled));
+        // the partitions were too big at the first level, and split again
+        assertTrue(spilled.spilledPasses() > HashEquiJoin.FANOUT);
+        spilled.rewind();
+        assertEquals(expected, sortedRows(spilled));
+        spilled.close();
+        assertEquals(files, TupleSpillFile.liveFiles());
+
+        spilled.open();
+        assertEquals(expected, sortedBatchRows(spilled));
+        spilled.close();
+        assertEquals(files, TupleSpillFile.liveFiles());
+    }
+
+    @Test public void skewedKeysAreJoinedInChunks() throws Exception {
+        int[] build = new int[2 * 3000];
+        for (int i = 0; i < 3000; i++) {
+            build[2 * i] = 7;
+            build[2 * i + 1] = i;
+        }
+        int[] probe = new int[2 * 60];
+        for (int i = 0; i < 60; i++) {
+            probe[2 * i] = i % 2 == 0 ? 7 : 1000 + i;
+            probe[2 * i + 1] = i;
+        }
+        HashEquiJoin j = new HashEquiJoin(EQ, TestUtil.createTupleList(2, build),
+                TestUtil.createTupleList(2, probe));
+        j.setMemoryBudget(100);
+        j.open();
+        int n = 0;
+        while (j.hasNext()) {
+            Tuple t = j.next();
+            assertEquals(new IntField(7), t.getField(2));
+            n++;
+        }
+        assertEquals(3000 * 30, n);
+        j.rewind();
+        assertEquals(3000 * 30, sortedRows(j).size());
+        j.close();
+    }
+
+    @Test public void closeEarlyDeletesSpillFiles() throws Exception {
+        int files = TupleSpillFile.liveFiles();
+        HashEquiJoin j = join(300);
+        j.open();
+        assertTrue(j.hasNext());
+        assertTrue(TupleSpillFile.liveFiles() > files);
+        j.close();
+        assertEquals(files, TupleSpillFile.liveFiles());
+    }
+
+    @Test public void spillFileRoundTrip() throws Exception {
+        TupleIterator rows = TestUtil.createTupleList(2, new Object[] { 1, "one",
+                2, "", 3, "three" });
+        TupleSpillFile f = new TupleSpillFile(rows.getTupleDesc());
+        while (rows.hasNext())
+            f.add(rows.next());
+        assertEquals(3, f.size());
+        DbIterator it = f.iterator();
+        it.open();
+        rows.rewind();
+        TestUtil.compareDbIterators(rows, it);
+        it.rewind();
+        rows.rewind();
+        TestUtil.compareDbIterators(rows, it);
+        it.close();
+        f.delete();
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HybridHashJoinTest.class);
+    }
+}
@@ -0,0 +1,156 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class IndexNestedLoopJoinTest extends SimpleDbTestBase {
+    private static final JoinPredicate EQ = new JoinPredicate(0,
+            Predicate.Op.EQUALS, 0);
+
+    private BTreeFile inner;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        inner = btree(3000, 1000);
+        Database.getCatalog().addTable(inner, "bt");
+        tid = new TransactionId();
+    }
+
+    /** A B+ tree of random rows keyed on their first field, named c0, c1 */
+    private static BTreeFile btree(int rows, int maxValue) throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, rows, maxValue,
+                new HashMap<Integer, Integer>(), null, 0);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        return new BTreeFile(bf.getFile(), 0, Utility.getTupleDesc(2, "c"));
+    }
+
+    private static ArrayList<String> rows(DbIterator it) throws Exception {
+        ArrayList<String> rows = new ArrayList<String>();
+        while (it.hasNext())
+            rows.add(it.next().toString());
+        return rows;
+    }
+
+    private static ArrayList<String> sortedRows(DbIterator it) throws Exception {
+        it.open();
+        ArrayList<String> rows = rows(it);
+        it.close();
+        Collections.sort(rows);
+        return rows;
+    }
+
+    private SeqScan scan(DbFile f) {
+        return new SeqScan(tid, f.getId(), "");
+    }
+
+    @Test public void matchesNestedLoopJoin() throws Exception {
+        // several blocks of outer tuples for the equality join
+        HeapFile outer = SystemTestUtil.createRandomHeapFile(2, 2500, 1000,
+                new HashMap<Integer, Integer>(), null);
+        ArrayList<String> expected = sortedRows(new Join(EQ, scan(outer),
+                scan(inner)));
+        assertTrue(expected.size() > 0);
+        assertEquals(expected, sortedRows(new IndexNestedLoopJoin(EQ,
+                scan(outer), scan(inner))));
+
+        outer = SystemTestUtil.createRandomHeapFile(2, 40, 1000,
+                new HashMap<Integer, Integer>(), null);
+        for (Predicate.Op op : new Predicate.Op[] { Predicate.Op.LESS_THAN,
+                Predicate.Op.LESS_THAN_OR_EQ, Predicate.Op.GREATER_THAN,
+                Predicate.Op.GREATER_THAN_OR_EQ }) {
+            JoinPredicate p = new JoinPredicate(0, op, 0);
+            expected = sortedRows(new Join(p, scan(outer), scan(inner)));
+            assertTrue(op.toString(), expected.size() > 0);
+            assertEquals(op.toString(), expected, sortedRows(
+                    new IndexNestedLoopJoin(p, scan(outer), scan(inner))));
+        }
+    }
+
+    @Test public void filtersOfTheInnerRelationApply() throws Exception {
+        HeapFile outer = SystemTestUtil.createRandomHeapFile(2, 500, 1000,
+                new HashMap<Integer, Integer>(), null);
+        Predicate p = new Predicate(1, Predicate.Op.LESS_THAN, new IntField(
+                1 << 15));
+        ArrayList<String> expected = sortedRows(new Join(EQ, scan(outer),
+                new Filter(p, scan(inner))));
+        assertTrue(expected.size() > 0);
+        assertEquals(expected, sortedRows(new IndexNestedLoopJoin(EQ,
+                scan(outer), new Filter(p, scan(inner)))));
+    }
+
+    @Test public void sortedKeysShareLookups() throws Exception {
+        // every key of the tree, twice, in no particular order
+        int[] keys = new int[2 * 2 * 1000];
+        for (int i = 0; i < 2 * 1000; i++)
+            keys[2 * i] = (i * 7919) % 1000;
+        IndexNestedLoopJoin j = new IndexNestedLoopJoin(EQ,
+                TestUtil.createTupleList(2, keys), scan(inner));
+        j.open();
+        int n = rows(j).size();
+        // a lookup for the first key of each block, rather than one per key
+        int blocks = (2 * 1000 + IndexNestedLoopJoin.BLOCK_SIZE - 1)
+                / IndexNestedLoopJoin.BLOCK_SIZE;
+        assertEquals(blocks, j.lookups());
+        assertEquals(2 * 3000, n);
+        j.close();
+    }
+
+    @Test public void rewind() throws Exception {
+        HeapFile outer = SystemTestUtil.createRandomHeapFile(2, 1500, 1000,
+                new HashMap<Integer, Integer>(), null);
+        IndexNestedLoopJoin j = new IndexNestedLoopJoin(EQ, scan(outer),
+                scan(inner));
+        j.open();
+        ArrayList<String> first = rows(j);
+        assertTrue(first.size() > 0);
+        j.rewind();
+        assertEquals(first, rows(j));
+        j.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void innerMustBeKeyedOnTheJoinField() {
+        new IndexNestedLoopJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 1),
+                scan(inner), scan(inner));
+    }
+
+    /**
+     * The optimizer looks a few tuples up in a large B+ tree rather than
+     * scanning it
+     */
+    @Test public void optimizerLooksUpFewTuples() throws Exception {
+        BTreeFile big = btree(30000, 100000);
+        HeapFile small = SystemTestUtil.createRandomHeapFile(2, 20, 100000,
+                new HashMap<Integer, Integer>(), null, "c");
+        Database.getCatalog().addTable(big, "big");
+        Database.getCatalog().addTable(small, "small");
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("big", new TableStats(big.getId(), 10));
+        stats.put("small", new TableStats(small.getId(), 10));
+
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+                "SELECT * FROM small s, big b WHERE s.c0 = b.c0;");
+        DbIterator plan = lp.physicalPlan(tid, stats, false);
+        while (plan instanceof Operator
+                && !(plan instanceof IndexNestedLoopJoin))
+            plan = ((Operator) plan).getChildren()[0];
+        assertTrue(plan instanceof IndexNestedLoopJoin);
+        assertEquals(sortedRows(new Join(EQ, scan(small), scan(big))),
+                sortedRows(plan));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(IndexNestedLoopJoinTest.class);
+    }
+}
@@ -37,7 +37,7 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
             ArrayList<ArrayList<Integer>> tuples, int columns, String colPrefix)
             throws IOException {
         File temp = File.createTempFile("table", ".dat");
-        temp.deleteOnExit();
+        HeapFile.deleteOnExit(temp);
         HeapFileEncoder.convert(tuples, temp, BufferPool.getPageSize(), columns);
         return Utility.openHeapFile(columns, colPrefix, temp);
     }
@@ -621,4 +621,72 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         Assert.assertTrue(result.get(result.size() - 1).t2Alias.equals("a")
                 || result.get(result.size() - 1).t1Alias.equals("a"));
     }
+
+    /**
+     * A join costed as an index join whose inner plan cannot be probed falls
+     * back to a hash join, or a block nested-loop join, not a nested loop
+     */
+    @Test
+    public void indexJoinFallbackTest() throws ParsingException {
+        TransactionId tid = new TransactionId();
+        LogicalJoinNode lj = new LogicalJoinNode("t1", "t2", "c1", "c2",
+                Predicate.Op.EQUALS)
+                .withAlgorithm(LogicalJoinNode.Algorithm.INDEX_NESTED_LOOP);
+        DbIterator join = JoinOptimizer.instantiateJoin(lj, new SeqScan(tid,
+                tableId1, "t1"), new SeqScan(tid, tableId2, "t2"));
+        Assert.assertTrue(join instanceof HashEquiJoin);
+
+        lj = new LogicalJoinNode("t1", "t2", "c1", "c2", Predicate.Op.LESS_THAN)
+                .withAlgorithm(LogicalJoinNode.Algorithm.INDEX_NESTED_LOOP);
+        join = JoinOptimizer.instantiateJoin(lj, new SeqScan(tid, tableId1,
+                "t1"), new SeqScan(tid, tableId2, "t2"));
+        Assert.assertTrue(join instanceof BlockNestedLoopJoin);
+    }
+
+    /**
+     * Equality joins of large unsorted tables should be hash joins, and range
+     * joins sort-merge joins, both in the join order and in the physical plan
+     */
+    @Test
+    public void joinAlgorithmTest() throws ParsingException {
+        TransactionId tid = new TransactionId();
+        Parser p = new Parser();
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(tableName1, stats1);
+        stats.put(tableName2, stats2);
+        HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+        filterSelectivities.put("t1", 1.0);
+        filterSelectivities.put("t2", 1.0);
+
+        Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+        nodes.add(new LogicalJoinNode("t1", "t2", "c1", "c2",
+                Predicate.Op.EQUALS));
+        JoinOptimizer j = new JoinOptimizer(p.generateLogicalPlan(tid,
+                "SELECT * FROM " + tableName1 + " t1, " + tableName2
+                        + " t2 WHERE t1.c1 = t2.c2;"), nodes);
+        Vector<LogicalJoinNode> result = j.orderJoins(stats,
+                filterSelectivities, false);
+        Assert.assertEquals(LogicalJoinNode.Algorithm.HASH,
+                result.get(0).algorithm);
+        // the smaller table is hashed
+        Assert.assertEquals("t1", result.get(0).t1Alias);
+
+        nodes = new Vector<LogicalJoinNode>();
+        nodes.add(new LogicalJoinNode("t1", "t2", "c1", "c2",
+                Predicate.Op.LESS_THAN));
+        j = new JoinOptimizer(p.generateLogicalPlan(tid, "SELECT * FROM "
+                + tableName1 + " t1, " + tableName2
+                + " t2 WHERE t1.c1 < t2.c2;"), nodes);
+        result = j.orderJoins(stats, filterSelectivities, false);
+        Assert.assertEquals(LogicalJoinNode.Algorithm.SORT_MERGE,
+                result.get(0).algorithm);
+
+        LogicalPlan lp = p.generateLogicalPlan(tid, "SELECT * FROM "
+                + tableName1 + " t1, " + tableName2
+                + " t2 WHERE t1.c1 = t2.c2;");
+        DbIterator plan = lp.physicalPlan(tid, stats, false);
+        while (plan instanceof Operator && !(plan instanceof HashEquiJoin))
+            plan = ((Operator) plan).getChildren()[0];
+        Assert.assertTrue(plan instanceof HashEquiJoin);
+    }
 }
@@ -0,0 +1,223 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LockManagerTest extends SimpleDbTestBase {
+    // how long to give a lock grabber before deciding it is blocked
+    private static final int WAIT_MS = 200;
+
+    private PageId p0, p1;
+    private TransactionId tid1, tid2;
+    private BufferPool bp;
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, 1000, null, null);
+        assertTrue(hf.numPages() >= 2);
+        p0 = new HeapPageId(hf.getId(), 0);
+        p1 = new HeapPageId(hf.getId(), 1);
+        // tid1 is older than tid2
+        tid1 = new TransactionId();
+        tid2 = new TransactionId();
+        bp = Database.getBufferPool();
+    }
+
+    /** Starts a thread that requests the lock and gives it time to get it. */
+    private TestUtil.LockGrabber grab(TransactionId tid, PageId pid, Permissions perm)
+        throws Exception {
+        TestUtil.LockGrabber t = new TestUtil.LockGrabber(tid, pid, perm);
+        t.start();
+        Thread.sleep(WAIT_MS);
+        return t;
+    }
+
+    @Test public void sharedLocksAreCompatible() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_ONLY);
+        assertTrue(grab(tid2, p0, Permissions.READ_ONLY).acquired());
+        assertTrue(bp.holdsLock(tid1, p0));
+        assertTrue(bp.holdsLock(tid2, p0));
+    }
+
+    @Test public void exclusiveLockBlocksUntilCommit() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_WRITE);
+        TestUtil.LockGrabber reader = grab(tid2, p0, Permissions.READ_ONLY);
+        assertFalse(reader.acquired());
+
+        // a lock on another page is not affected
+        assertTrue(grab(tid2, p1, Permissions.READ_WRITE).acquired());
+
+        bp.transactionComplete(tid1);
+        assertFalse(bp.holdsLock(tid1, p0));
+        reader.join(WAIT_MS);
+        assertTrue(reader.acquired());
+    }
+
+    @Test public void releasePage() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_WRITE);
+        bp.releasePage(tid1, p0);
+        assertFalse(bp.holdsLock(tid1, p0));
+        assertTrue(grab(tid2, p0, Permissions.READ_WRITE).acquired());
+    }
+
+    @Test public void soleReaderCanUpgrade() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_ONLY);
+        bp.getPage(tid1, p0, Permissions.READ_WRITE);
+        assertFalse(grab(tid2, p0, Permissions.READ_ONLY).acquired());
+
+        // asking for a shared lock again does not give up the exclusive one
+        bp.getPage(tid1, p0, Permissions.READ_ONLY);
+        assertFalse(grab(tid2, p0, Permissions.READ_ONLY).acquired());
+    }
+
+    @Test public void upgradeWaitsForOtherReaders() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_ONLY);
+        bp.getPage(tid2, p0, Permissions.READ_ONLY);
+        TestUtil.LockGrabber writer = grab(tid1, p0, Permissions.READ_WRITE);
+        assertFalse(writer.acquired());
+        bp.transactionComplete(tid2);
+        writer.join(WAIT_MS);
+        assertTrue(writer.acquired());
+    }
+
+    /**
+     * tid1 and tid2 each hold one page and ask for the other's; the younger
+     * tid2 must be aborted and tid1 must then get its lock.
+     */
+    @Test public void deadlockAbortsYoungest() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_WRITE);
+        bp.getPage(tid2, p1, Permissions.READ_WRITE);
+
+        TestUtil.LockGrabber older = grab(tid1, p1, Permissions.READ_WRITE);
+        assertFalse(older.acquired());
+
+        // tid2 closes the cycle; it is the youngest so its own request fails
+        try {
+            bp.getPage(tid2, p0, Permissions.READ_WRITE);
+            fail("expected TransactionAbortedException");
+        } catch (TransactionAbortedException expected) {
+        }
+        assertFalse(older.acquired());
+        bp.transactionComplete(tid2, false);
+
+        older.join(WAIT_MS);
+        assertTrue(older.acquired());
+        assertNull(older.getError());
+    }
+
+    /**
+     * Same as deadlockAbortsYoungest, but the older transaction closes the
+     * cycle, so the victim is woken up from its pending request.
+     */
+    @Test public void deadlockWakesUpYoungestVictim() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_WRITE);
+        bp.getPage(tid2, p1, Permissions.READ_WRITE);
+
+        // the grabber completes tid2 as aborted when it gets the exception
+        TestUtil.LockGrabber younger = grab(tid2, p0, Permissions.READ_WRITE);
+        assertFalse(younger.acquired());
+
+        bp.getPage(tid1, p1, Permissions.READ_WRITE);
+        younger.join(WAIT_MS);
+        assertFalse(younger.acquired());
+        assertTrue(younger.getError() instanceof TransactionAbortedException);
+        assertTrue(bp.holdsLock(tid1, p1));
+        assertFalse(bp.holdsLock(tid2, p1));
+    }
+
+    @Test public void upgradeDeadlockAbortsYoungest() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_ONLY);
+        bp.getPage(tid2, p0, Permissions.READ_ONLY);
+
+        TestUtil.LockGrabber older = grab(tid1, p0, Permissions.READ_WRITE);
+        TestUtil.LockGrabber younger = grab(tid2, p0, Permissions.READ_WRITE);
+        older.join(WAIT_MS);
+        younger.join(WAIT_MS);
+        assertTrue(older.acquired());
+        assertTrue(younger.getError() instanceof TransactionAbortedException);
+    }
+
+    @Test public void abortDiscardsDirtyPages() throws Exception {
+        // the last page of the file has room for the new tuple
+        HeapPage before = (HeapPage) bp.getPage(tid1, p1, Permissions.READ_ONLY);
+        int empty = before.getNumEmptySlots();
+        bp.transactionComplete(tid1);
+
+        Tuple t = Utility.getHeapTuple(new int[] {1, 2});
+        bp.insertTuple(tid2, hf.getId(), t);
+        assertEquals(p1, t.getRecordId().getPageId());
+        bp.transactionComplete(tid2, false);
+
+        TransactionId tid3 = new TransactionId();
+        HeapPage after = (HeapPage) bp.getPage(tid3, p1, Permissions.READ_ONLY);
+        assertEquals(empty, after.getNumEmptySlots());
+        assertNull(after.isDirty());
+    }
+
+    @Test public void commitWritesDirtyPages() throws Exception {
+        Tuple t = Utility.getHeapTuple(new int[] {1, 2});
+        bp.insertTuple(tid1, hf.getId(), t);
+        PageId pid = t.getRecordId().getPageId();
+        int empty = ((HeapPage) bp.getPage(tid1, pid, Permissions.READ_ONLY)).getNumEmptySlots();
+        bp.transactionComplete(tid1, true);
+
+        HeapPage onDisk = (HeapPage) hf.readPage(pid);
+        assertEquals(empty, onDisk.getNumEmptySlots());
+    }
+
+    /**
+     * Concurrent inserters into one B+ tree, all contending for the same
+     * leaf and internal pages. Aborted inserters are retried until every
+     * tuple has been inserted exactly once.
+     */
+    @Test public void concurrentBTreeInserts() throws Exception {
+        final int inserters = 20;
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 2000, null, null, 0);
+        BlockingQueue<ArrayList<Integer>> inserted =
+            new ArrayBlockingQueue<ArrayList<Integer>>(inserters);
+
+        ArrayList<BTreeUtility.BTreeInserter> threads =
+            new ArrayList<BTreeUtility.BTreeInserter>();
+        for (int i = 0; i < inserters; i++) {
+            BTreeUtility.BTreeInserter t = new BTreeUtility.BTreeInserter(bf,
+                    new int[] {i % 4, i}, inserted);
+            threads.add(t);
+            t.start();
+        }
+        for (int i = 0; i < inserters; i++) {
+            BTreeUtility.BTreeInserter t = threads.get(i);
+            t.join();
+            while (!t.succeeded()) {
+                assertTrue(t.getError() instanceof TransactionAbortedException);
+                t.rerun(bf, new int[] {i % 4, i}, inserted);
+            }
+        }
+        assertEquals(inserters, inserted.size());
+
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = bf.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        bp.transactionComplete(tid);
+        assertEquals(2000 + inserters, count);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
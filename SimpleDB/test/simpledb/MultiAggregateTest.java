@@ -0,0 +1,156 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class MultiAggregateTest extends SimpleDbTestBase {
+    private HeapFile table;
+    private ArrayList<ArrayList<Integer>> tuples;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        // about 40 * 40 groups of (c0, c1)
+        tuples = new ArrayList<ArrayList<Integer>>();
+        table = SystemTestUtil.createRandomHeapFile(3, 10000, 40,
+                new HashMap<Integer, Integer>(), tuples, "c");
+        tid = new TransactionId();
+    }
+
+    private static ArrayList<String> rows(DbIterator it) throws Exception {
+        ArrayList<String> rows = new ArrayList<String>();
+        it.open();
+        while (it.hasNext())
+            rows.add(it.next().toString());
+        it.close();
+        Collections.sort(rows);
+        return rows;
+    }
+
+    /**
+     * c0, c1, SUM(c2), MAX(c2), COUNT(c2), AVG(c2) grouped by (c0, c1),
+     * computed without the engine
+     */
+    private ArrayList<String> expected() {
+        HashMap<List<Integer>, long[]> groups = new HashMap<List<Integer>, long[]>();
+        for (ArrayList<Integer> t : tuples) {
+            List<Integer> key = t.subList(0, 2);
+            long[] g = groups.get(key);
+            if (g == null) {
+                g = new long[] { 0, Long.MIN_VALUE, 0 };
+                groups.put(key, g);
+            }
+            g[0] += t.get(2);
+            g[1] = Math.max(g[1], t.get(2));
+            g[2]++;
+        }
+        ArrayList<String> rows = new ArrayList<String>();
+        for (Map.Entry<List<Integer>, long[]> e : groups.entrySet()) {
+            long[] g = e.getValue();
+            rows.add(e.getKey().get(0) + "\t" + e.getKey().get(1) + "\t" + g[0]
+                    + "\t" + g[1] + "\t" + g[2] + "\t" + g[0] / g[2] + "\t");
+        }
+        Collections.sort(rows);
+        return rows;
+    }
+
+    private Aggregate aggregate() {
+        return new Aggregate(new SeqScan(tid, table.getId(), "t"), new int[] {
+                2, 2, 2, 2 }, new Aggregator.Op[] { Aggregator.Op.SUM,
+                Aggregator.Op.MAX, Aggregator.Op.COUNT, Aggregator.Op.AVG },
+                new int[] { 0, 1 });
+    }
+
+    @Test public void tupleDesc() {
+        TupleDesc td = aggregate().getTupleDesc();
+        assertEquals(6, td.numFields());
+        assertEquals("t.c0", td.getFieldName(0));
+        assertEquals("t.c1", td.getFieldName(1));
+        assertEquals("sum(t.c2)", td.getFieldName(2));
+        assertEquals("avg(t.c2)", td.getFieldName(5));
+    }
+
+    @Test public void compositeKey() throws Exception {
+        assertEquals(expected(), rows(aggregate()));
+    }
+
+    @Test public void compositeKeySpills() throws Exception {
+        int files = TupleSpillFile.liveFiles();
+        for (int budget : new int[] { 1, 100 }) {
+            Aggregate a = aggregate();
+            a.setMemoryBudget(budget);
+            assertEquals(expected(), rows(a));
+            assertEquals(files, TupleSpillFile.liveFiles());
+        }
+    }
+
+    @Test public void stringAndIntKey() throws Exception {
+        TupleDesc td = new TupleDesc(new Type[] { Type.STRING_TYPE,
+                Type.INT_TYPE, Type.INT_TYPE }, new String[] { "s", "i", "v" });
+        HashMap<String, Integer> counts = new HashMap<String, Integer>();
+        HashAggregator agg = new HashAggregator(td, new int[] { 0, 1 },
+                new int[] { 0, 2 }, new Aggregator.Op[] { Aggregator.Op.COUNT,
+                        Aggregator.Op.SUM });
+        agg.setMemoryBudget(20);
+        for (ArrayList<Integer> row : tuples) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new StringField("g" + row.get(0) % 7, Type.STRING_LEN));
+            t.setField(1, new IntField(row.get(1) % 5));
+            t.setField(2, new IntField(2));
+            agg.mergeTupleIntoGroup(t);
+            String key = "g" + row.get(0) % 7 + "\t" + row.get(1) % 5;
+            Integer c = counts.get(key);
+            counts.put(key, c == null ? 1 : c + 1);
+        }
+        assertTrue(agg.spilledTuples() > 0);
+        ArrayList<String> expected = new ArrayList<String>();
+        for (Map.Entry<String, Integer> e : counts.entrySet())
+            expected.add(e.getKey() + "\t" + e.getValue() + "\t"
+                    + 2 * e.getValue() + "\t");
+        Collections.sort(expected);
+        assertEquals(expected, rows(agg.iterator()));
+        agg.clear();
+    }
+
+    @Test public void parsedQuery() throws Exception {
+        Database.getCatalog().addTable(table, "grouped");
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("grouped", new TableStats(table.getId(), 10));
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+                "SELECT t.c0, t.c1, SUM(t.c2), MAX(t.c2), COUNT(t.c2), AVG(t.c2) "
+                        + "FROM grouped t GROUP BY t.c0, t.c1;");
+        DbIterator plan = lp.physicalPlan(tid, stats, false);
+        assertEquals(expected(), rows(plan));
+
+        // select items may come in any order, and aggregates without groups
+        lp = new Parser().generateLogicalPlan(tid,
+                "SELECT MAX(t.c2), t.c1, SUM(t.c2) FROM grouped t GROUP BY t.c1;");
+        assertEquals(40, rows(lp.physicalPlan(tid, stats, false)).size());
+        lp = new Parser().generateLogicalPlan(tid,
+                "SELECT COUNT(t.c0), SUM(t.c1) FROM grouped t;");
+        assertEquals(1, rows(lp.physicalPlan(tid, stats, false)).size());
+    }
+
+    @Test(expected = ParsingException.class)
+    public void fieldNotGrouped() throws Exception {
+        Database.getCatalog().addTable(table, "grouped");
+        new Parser().generateLogicalPlan(tid,
+                "SELECT t.c0, t.c2, SUM(t.c1) FROM grouped t GROUP BY t.c0;");
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(MultiAggregateTest.class);
+    }
+}
@@ -0,0 +1,162 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.NoSuchElementException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class OrderByTest extends SimpleDbTestBase {
+    private HeapFile table;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        // many duplicates in the first two fields; the third tells the
+        // tuples apart
+        table = SystemTestUtil.createRandomHeapFile(3, 20000, 50,
+                new HashMap<Integer, Integer>(), null, "c");
+        tid = new TransactionId();
+    }
+
+    private SeqScan scan() {
+        return new SeqScan(tid, table.getId(), "t");
+    }
+
+    private static ArrayList<ArrayList<Integer>> rows(DbIterator it)
+            throws Exception {
+        ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            ArrayList<Integer> row = new ArrayList<Integer>();
+            for (int i = 0; i < t.getTupleDesc().numFields(); i++)
+                row.add(((IntField) t.getField(i)).getValue());
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    /** The rows in the order of the table, sorted by c0 asc, c1 desc */
+    private ArrayList<ArrayList<Integer>> expected() throws Exception {
+        SeqScan s = scan();
+        s.open();
+        ArrayList<ArrayList<Integer>> rows = rows(s);
+        s.close();
+        Collections.sort(rows, new Comparator<ArrayList<Integer>>() {
+            public int compare(ArrayList<Integer> a, ArrayList<Integer> b) {
+                int c = a.get(0).compareTo(b.get(0));
+                return c != 0 ? c : b.get(1).compareTo(a.get(1));
+            }
+        });
+        return rows;
+    }
+
+    private OrderBy orderBy(int budget) {
+        OrderBy o = new OrderBy(new int[] { 0, 1 }, new boolean[] { true,
+                false }, scan());
+        o.setMemoryBudget(budget);
+        return o;
+    }
+
+    @Test public void multiColumnInMemory() throws Exception {
+        OrderBy o = orderBy(OrderBy.DEFAULT_MEMORY_BUDGET);
+        o.open();
+        // the sort is stable, so even the third field agrees
+        assertEquals(expected(), rows(o));
+        assertEquals(0, o.spilledRuns());
+        o.close();
+    }
+
+    /** A table 20 times the memory budget */
+    @Test public void externalSortMatchesInMemorySort() throws Exception {
+        int files = TupleSpillFile.liveFiles();
+        ArrayList<ArrayList<Integer>> expected = expected();
+        OrderBy o = orderBy(1000);
+        o.open();
+        // the last budget's worth stays in memory
+        assertEquals(19, o.spilledRuns());
+        assertEquals(0, o.mergePasses());
+        assertEquals(expected, rows(o));
+        o.rewind();
+        assertEquals(expected, rows(o));
+        o.close();
+        assertEquals(files, TupleSpillFile.liveFiles());
+
+        o.open();
+        assertEquals(expected, rows(o));
+        // opened again without a close
+        o.open();
+        assertEquals(expected, rows(o));
+        o.close();
+        assertEquals(files, TupleSpillFile.liveFiles());
+    }
+
+    @Test public void tooManyRunsToMergeAtOnce() throws Exception {
+        int files = TupleSpillFile.liveFiles();
+        OrderBy o = orderBy(100);
+        o.open();
+        assertTrue(o.spilledRuns() > OrderBy.MERGE_FANIN);
+        assertEquals(1, o.mergePasses());
+        assertEquals(expected(), rows(o));
+        o.close();
+        assertEquals(files, TupleSpillFile.liveFiles());
+    }
+
+    @Test public void closeEarlyDeletesRuns() throws Exception {
+        int files = TupleSpillFile.liveFiles();
+        OrderBy o = orderBy(1000);
+        o.open();
+        assertTrue(o.hasNext());
+        assertTrue(TupleSpillFile.liveFiles() > files);
+        o.close();
+        assertEquals(files, TupleSpillFile.liveFiles());
+    }
+
+    @Test public void failedQueryDeletesRuns() throws Exception {
+        int files = TupleSpillFile.liveFiles();
+        DbIterator failing = new TestUtil.MockScan(0, 10000, 1) {
+            private int n = 0;
+
+            public Tuple next() throws DbException, TransactionAbortedException,
+                    NoSuchElementException {
+                if (++n == 5000)
+                    throw new DbException("broken");
+                return super.next();
+            }
+        };
+        OrderBy o = new OrderBy(0, true, failing);
+        o.setMemoryBudget(1000);
+        try {
+            new Query(o, tid).execute();
+            fail("expected the child's DbException");
+        } catch (DbException e) {
+            assertEquals("broken", e.getMessage());
+        }
+        assertEquals(files, TupleSpillFile.liveFiles());
+    }
+
+    @Test public void parsedMultiColumnOrderBy() throws Exception {
+        Database.getCatalog().addTable(table, "ordered");
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("ordered", new TableStats(table.getId(), 10));
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+                "SELECT * FROM ordered t ORDER BY t.c0, t.c1 DESC;");
+        DbIterator plan = lp.physicalPlan(tid, stats, false);
+        plan.open();
+        assertEquals(expected(), rows(plan));
+        plan.close();
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(OrderByTest.class);
+    }
+}
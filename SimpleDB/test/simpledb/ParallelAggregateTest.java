@@ -0,0 +1,133 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class ParallelAggregateTest extends SimpleDbTestBase {
+    private static final int ROWS = 30000;
+
+    private static final Aggregator.Op[] OPS = { Aggregator.Op.MIN,
+            Aggregator.Op.MAX, Aggregator.Op.SUM, Aggregator.Op.AVG,
+            Aggregator.Op.COUNT };
+
+    private HeapFile table;
+    private TransactionId tid;
+    private int parallelism;
+    private int minPages;
+
+    @Before public void setUp() throws Exception {
+        // about 1000 groups in c0
+        table = SystemTestUtil.createRandomHeapFile(3, ROWS, 1000,
+                new HashMap<Integer, Integer>(), null, "c");
+        Database.getCatalog().addTable(table, "t");
+        TableStats.setTableStats("t", new TableStats(table.getId(), 1));
+        tid = new TransactionId();
+        parallelism = ParallelSeqScan.getDefaultParallelism();
+        minPages = ParallelSeqScan.getMinPages();
+    }
+
+    @After public void tearDown() {
+        ParallelSeqScan.setDefaultParallelism(parallelism);
+        ParallelSeqScan.setMinPages(minPages);
+    }
+
+    private static ArrayList<String> sortedRows(DbIterator it) throws Exception {
+        ArrayList<String> rows = new ArrayList<String>();
+        it.open();
+        while (it.hasNext())
+            rows.add(it.next().toString());
+        it.close();
+        Collections.sort(rows);
+        return rows;
+    }
+
+    private Aggregate aggregate(DbIterator child, int[] gfields) {
+        int[] afields = new int[OPS.length];
+        for (int i = 0; i < afields.length; i++)
+            afields[i] = 1 + i % 2;
+        return new Aggregate(child, afields, OPS, gfields);
+    }
+
+    @Test public void matchesSerialAggregate() throws Exception {
+        int files = TupleSpillFile.liveFiles();
+        for (int[] gfields : new int[][] { {}, { 0 }, { 0, 1 } }) {
+            ArrayList<String> expected = sortedRows(aggregate(new SeqScan(
+                    tid, table.getId(), "t"), gfields));
+            for (int budget : new int[] { 1, 100, GroupTable.DEFAULT_MEMORY_BUDGET }) {
+                Aggregate a = aggregate(new ParallelSeqScan(tid,
+                        table.getId(), "t", 4), gfields);
+                a.setMemoryBudget(budget);
+                assertEquals(gfields.length + " " + budget, expected,
+                        sortedRows(a));
+                assertEquals(files, TupleSpillFile.liveFiles());
+            }
+        }
+    }
+
+    /** The partial sums of AVG do not fit in an int, but merge exactly */
+    @Test public void averageOfLargeValues() throws Exception {
+        TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE,
+                Type.INT_TYPE }, new String[] { "g", "v" });
+        HashAggregator agg = new HashAggregator(td, new int[] { 0 },
+                new int[] { 1, 1 }, new Aggregator.Op[] { Aggregator.Op.AVG,
+                        Aggregator.Op.MAX });
+        agg.setMemoryBudget(3);
+        HashMap<Integer, long[]> expected = new HashMap<Integer, long[]>();
+        for (int p = 0; p < 4; p++) {
+            HashAggregator partial = agg.partial(2);
+            for (int i = 0; i < 5000; i++) {
+                int g = (i * 7 + p) % 10;
+                int v = Integer.MAX_VALUE - i - g;
+                partial.mergeTupleIntoGroup(Utility.getHeapTuple(new int[] { g, v }));
+                long[] e = expected.get(g);
+                if (e == null)
+                    expected.put(g, e = new long[] { 0, 0, Long.MIN_VALUE });
+                e[0] += v;
+                e[1]++;
+                e[2] = Math.max(e[2], v);
+            }
+            assertTrue(partial.spilledTuples() > 0);
+            agg.merge(partial);
+        }
+        ArrayList<String> rows = new ArrayList<String>();
+        for (Map.Entry<Integer, long[]> e : expected.entrySet())
+            rows.add(e.getKey() + "\t" + e.getValue()[0] / e.getValue()[1]
+                    + "\t" + e.getValue()[2] + "\t");
+        Collections.sort(rows);
+        assertEquals(rows, sortedRows(agg.iterator()));
+        agg.clear();
+    }
+
+    @Test public void beneathPlannedParallelScan() throws Exception {
+        Map<String, TableStats> stats = TableStats.getStatsMap();
+        Parser p = new Parser();
+        String query = "SELECT t.c0, AVG(t.c1), COUNT(t.c2) FROM t "
+                + "WHERE t.c2 >= 300 GROUP BY t.c0;";
+        ArrayList<String> expected = sortedRows(
+                p.generateLogicalPlan(tid, query).physicalPlan(tid, stats, false));
+
+        ParallelSeqScan.setDefaultParallelism(4);
+        ParallelSeqScan.setMinPages(table.numPages());
+        DbIterator plan = p.generateLogicalPlan(tid, query).physicalPlan(tid, stats, false);
+        DbIterator agg = ((Operator) plan).getChildren()[0];
+        assertTrue(agg instanceof Aggregate);
+        assertTrue(((Operator) agg).getChildren()[0] instanceof ParallelSeqScan);
+        assertEquals(expected, sortedRows(plan));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ParallelAggregateTest.class);
+    }
+}
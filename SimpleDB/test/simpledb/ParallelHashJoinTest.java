@@ -0,0 +1,159 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class ParallelHashJoinTest extends SimpleDbTestBase {
+    private static final JoinPredicate EQ = new JoinPredicate(0,
+            Predicate.Op.EQUALS, 0);
+
+    private HeapFile left;
+    private HeapFile right;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        left = SystemTestUtil.createRandomHeapFile(2, 20000, 10000,
+                new HashMap<Integer, Integer>(), null);
+        right = SystemTestUtil.createRandomHeapFile(2, 30000, 10000,
+                new HashMap<Integer, Integer>(), null);
+        tid = new TransactionId();
+    }
+
+    private static ArrayList<String> sortedRows(DbIterator it) throws Exception {
+        ArrayList<String> rows = new ArrayList<String>();
+        it.open();
+        while (it.hasNext())
+            rows.add(it.next().toString());
+        it.close();
+        Collections.sort(rows);
+        return rows;
+    }
+
+    private static ArrayList<String> sortedBatchRows(DbIterator it) throws Exception {
+        ArrayList<String> rows = new ArrayList<String>();
+        it.open();
+        TupleBatch b;
+        while ((b = it.nextBatch()) != null)
+            for (int k = 0; k < b.size(); k++)
+                rows.add(b.getTuple(k).toString());
+        it.close();
+        Collections.sort(rows);
+        return rows;
+    }
+
+    private SeqScan scan(HeapFile f) {
+        return new SeqScan(tid, f.getId(), "");
+    }
+
+    @Test public void intKeysMatchHashEquiJoin() throws Exception {
+        ArrayList<String> expected = sortedRows(new HashEquiJoin(EQ, scan(left),
+                scan(right)));
+        assertTrue(expected.size() > 0);
+        for (int threads : new int[] { 1, 3 }) {
+            assertEquals(expected, sortedRows(new ParallelHashJoin(EQ,
+                    scan(left), scan(right), threads)));
+            assertEquals(expected, sortedBatchRows(new ParallelHashJoin(EQ,
+                    scan(left), scan(right), threads)));
+        }
+    }
+
+    @Test public void stringKeys() throws Exception {
+        Object[] build = new Object[2 * 5000];
+        for (int i = 0; i < 5000; i++) {
+            build[2 * i] = "key" + (i % 700);
+            build[2 * i + 1] = i;
+        }
+        Object[] probe = new Object[2 * 3000];
+        for (int i = 0; i < 3000; i++) {
+            probe[2 * i] = "key" + (i % 900);
+            probe[2 * i + 1] = i;
+        }
+        ArrayList<String> expected = sortedRows(new HashEquiJoin(EQ,
+                TestUtil.createTupleList(2, build),
+                TestUtil.createTupleList(2, probe)));
+        assertTrue(expected.size() > 0);
+        assertEquals(expected, sortedRows(new ParallelHashJoin(EQ,
+                TestUtil.createTupleList(2, build),
+                TestUtil.createTupleList(2, probe), 2)));
+    }
+
+    @Test public void rewind() throws Exception {
+        ParallelHashJoin j = new ParallelHashJoin(EQ, scan(left), scan(right), 2);
+        j.open();
+        int n = 0;
+        while (j.hasNext()) {
+            j.next();
+            n++;
+        }
+        j.rewind();
+        int again = 0;
+        while (j.hasNext()) {
+            j.next();
+            again++;
+        }
+        j.close();
+        assertTrue(n > 0);
+        assertEquals(n, again);
+    }
+
+    /** Prints the time the join takes with 1 to N threads. */
+    @Test public void scaling() throws Exception {
+        HeapFile big1 = SystemTestUtil.createRandomHeapFile(2, 200000, 200000,
+                new HashMap<Integer, Integer>(), null);
+        HeapFile big2 = SystemTestUtil.createRandomHeapFile(2, 200000, 200000,
+                new HashMap<Integer, Integer>(), null);
+        int maxThreads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        int expected = -1;
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < 3; run++) {
+            HashEquiJoin j = new HashEquiJoin(EQ, scan(big1), scan(big2));
+            long start = System.nanoTime();
+            j.open();
+            int n = 0;
+            while (j.hasNext()) {
+                j.next();
+                n++;
+            }
+            j.close();
+            best = Math.min(best, System.nanoTime() - start);
+            expected = n;
+        }
+        System.out.println("ParallelHashJoinTest: HashEquiJoin joined "
+                + "200000 x 200000 rows in " + best / 1000000 + " ms");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            best = Long.MAX_VALUE;
+            for (int run = 0; run < 3; run++) {
+                ParallelHashJoin j = new ParallelHashJoin(EQ, scan(big1),
+                        scan(big2), threads);
+                long start = System.nanoTime();
+                j.open();
+                int n = 0;
+                while (j.hasNext()) {
+                    j.next();
+                    n++;
+                }
+                j.close();
+                best = Math.min(best, System.nanoTime() - start);
+                assertEquals(expected, n);
+            }
+            System.out.println("ParallelHashJoinTest: " + threads
+                    + " thread(s) joined 200000 x 200000 rows in "
+                    + best / 1000000 + " ms ("
+                    + Runtime.getRuntime().availableProcessors() + " cpus)");
+        }
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ParallelHashJoinTest.class);
+    }
+}
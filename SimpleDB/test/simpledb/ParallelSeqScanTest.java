@@ -0,0 +1,150 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class ParallelSeqScanTest extends SimpleDbTestBase {
+    private static final int ROWS = 30000;
+
+    private HeapFile table;
+    private TransactionId tid;
+    private int parallelism;
+    private int minPages;
+
+    @Before public void setUp() throws Exception {
+        table = SystemTestUtil.createRandomHeapFile(3, ROWS, 1000,
+                new HashMap<Integer, Integer>(), null, "c");
+        Database.getCatalog().addTable(table, "t");
+        TableStats.setTableStats("t", new TableStats(table.getId(), 1));
+        tid = new TransactionId();
+        parallelism = ParallelSeqScan.getDefaultParallelism();
+        minPages = ParallelSeqScan.getMinPages();
+    }
+
+    @After public void tearDown() {
+        ParallelSeqScan.setDefaultParallelism(parallelism);
+        ParallelSeqScan.setMinPages(minPages);
+    }
+
+    private static ArrayList<String> sortedRows(DbIterator it) throws Exception {
+        ArrayList<String> rows = new ArrayList<String>();
+        it.open();
+        while (it.hasNext())
+            rows.add(it.next().toString());
+        it.close();
+        Collections.sort(rows);
+        return rows;
+    }
+
+    @Test public void returnsEveryRow() throws Exception {
+        ArrayList<String> expected = sortedRows(new SeqScan(tid, table.getId(), "t"));
+        assertEquals(ROWS, expected.size());
+        ParallelSeqScan ps = new ParallelSeqScan(tid, table.getId(), "t", 4);
+        assertEquals(expected, sortedRows(ps));
+        assertEquals(new SeqScan(tid, table.getId(), "t").getTupleDesc(), ps.getTupleDesc());
+
+        // and a batch at a time, after a rewind
+        ps.open();
+        while (ps.hasNext())
+            ps.next();
+        ps.rewind();
+        int rows = 0;
+        TupleBatch batch;
+        while ((batch = ps.nextBatch()) != null)
+            rows += batch.size();
+        ps.close();
+        assertEquals(ROWS, rows);
+    }
+
+    @Test public void filtersAndProjectsInWorkers() throws Exception {
+        Predicate p1 = new Predicate(1, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(300));
+        Predicate p2 = new Predicate(2, Predicate.Op.LESS_THAN, new IntField(800));
+        ArrayList<Integer> fields = new ArrayList<Integer>();
+        fields.add(2);
+        fields.add(0);
+        ArrayList<String> expected = sortedRows(new Project(fields,
+                new Type[] { Type.INT_TYPE, Type.INT_TYPE },
+                new Filter(p2, new Filter(p1, new SeqScan(tid, table.getId(), "t")))));
+        assertTrue(expected.size() > 0);
+
+        ParallelSeqScan ps = new ParallelSeqScan(tid, table.getId(), "t", 3);
+        ps.addFilter(p1);
+        ps.addFilter(p2);
+        ps.setProjection(fields);
+        assertEquals(2, ps.getTupleDesc().numFields());
+        assertEquals("t.c2", ps.getTupleDesc().getFieldName(0));
+        assertEquals(expected, sortedRows(ps));
+    }
+
+    /** Closing a scan whose workers are waiting on a full queue stops them. */
+    @Test public void closeEarly() throws Exception {
+        ParallelSeqScan ps = new ParallelSeqScan(tid, table.getId(), "t", 4);
+        for (int i = 0; i < 3; i++) {
+            ps.open();
+            assertTrue(ps.hasNext());
+            ps.next();
+            Thread.sleep(50);
+            ps.close();
+        }
+        assertEquals(ROWS, sortedRows(ps).size());
+    }
+
+    /** No worker is left reading pages for the transaction after close() */
+    @Test public void closeWaitsForWorkers() throws Exception {
+        for (int i = 0; i < 50; i++) {
+            TransactionId t = new TransactionId();
+            ParallelSeqScan ps = new ParallelSeqScan(t, table.getId(), "t", 4);
+            ps.open();
+            assertTrue(ps.hasNext());
+            ps.close();
+            Database.getBufferPool().transactionComplete(t);
+            Thread.sleep(20);
+            for (int p = 0; p < table.numPages(); p++)
+                assertFalse(Database.getBufferPool().holdsLock(t,
+                        new HeapPageId(table.getId(), p)));
+        }
+    }
+
+    @Test public void chosenForLargeTables() throws Exception {
+        Map<String, TableStats> stats = TableStats.getStatsMap();
+        Parser p = new Parser();
+        String query = "SELECT t.c0, t.c2 FROM t WHERE t.c1 >= 300;";
+        ArrayList<String> expected = sortedRows(
+                p.generateLogicalPlan(tid, query).physicalPlan(tid, stats, false));
+
+        ParallelSeqScan.setDefaultParallelism(4);
+        ParallelSeqScan.setMinPages(table.numPages());
+        DbIterator plan = p.generateLogicalPlan(tid, query).physicalPlan(tid, stats, false);
+        DbIterator scan = ((Operator) plan).getChildren()[0];
+        assertTrue(scan instanceof ParallelSeqScan);
+        assertEquals(1, ((ParallelSeqScan) scan).getFilters().size());
+        assertNotNull(((ParallelSeqScan) scan).getProjection());
+        assertEquals(expected, sortedRows(plan));
+
+        // not for smaller tables, or for plans whose rows are deleted
+        ParallelSeqScan.setMinPages(table.numPages() + 1);
+        plan = p.generateLogicalPlan(tid, query).physicalPlan(tid, stats, false);
+        assertFalse(((Operator) plan).getChildren()[0] instanceof ParallelSeqScan);
+        ParallelSeqScan.setMinPages(table.numPages());
+        LogicalPlan lp = p.generateLogicalPlan(tid, query);
+        lp.setParallelScans(false);
+        plan = lp.physicalPlan(tid, stats, false);
+        assertFalse(((Operator) plan).getChildren()[0] instanceof ParallelSeqScan);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ParallelSeqScanTest.class);
+    }
+}
@@ -0,0 +1,111 @@
+package simpledb;
+
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class ReadAheadTest extends SimpleDbTestBase {
+    // how long to give the read-ahead thread to catch up
+    private static final int WAIT_MS = 100;
+
+    private BufferPool bp;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        bp = Database.resetBufferPool(64);
+        tid = new TransactionId();
+    }
+
+    /**
+     * Scans it to the end, giving read-ahead time to run after the first
+     * tuple.
+     */
+    private ArrayList<Tuple> scan(DbFileIterator it) throws Exception {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        it.open();
+        boolean first = true;
+        while (it.hasNext()) {
+            tuples.add(it.next());
+            if (first) {
+                Thread.sleep(WAIT_MS);
+                first = false;
+            }
+        }
+        it.close();
+        return tuples;
+    }
+
+    private static void assertSameTuples(ArrayList<Tuple> expected, ArrayList<Tuple> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++)
+            assertEquals(expected.get(i).toString(), actual.get(i).toString());
+    }
+
+    @Test public void windowIsCappedByPoolSize() {
+        bp.setReadAheadWindow(100);
+        assertEquals(16, bp.getReadAheadWindow());
+        bp.setReadAheadWindow(4);
+        assertEquals(4, bp.getReadAheadWindow());
+        bp.setReadAheadWindow(-1);
+        assertEquals(0, bp.getReadAheadWindow());
+    }
+
+    @Test public void heapScanReadsAhead() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 40000, null, null);
+        assertTrue(hf.numPages() > 64);
+
+        bp.setReadAheadWindow(0);
+        ArrayList<Tuple> expected = scan(hf.iterator(tid));
+        assertEquals(0, bp.getPrefetchedPages());
+
+        bp.setReadAheadWindow(8);
+        ArrayList<Tuple> actual = scan(hf.iterator(tid));
+        assertSameTuples(expected, actual);
+        assertTrue(bp.getPrefetchedPages() > 0);
+        assertTrue(bp.getPrefetchHits() > 0);
+        assertTrue(bp.getPrefetchHits() + bp.getPrefetchWaste() <= bp.getPrefetchedPages());
+    }
+
+    @Test public void btreeScanReadsAhead() throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 40000, null, null, 0);
+        // building the tree resets the buffer pool
+        bp = Database.getBufferPool();
+
+        bp.setReadAheadWindow(0);
+        ArrayList<Tuple> expected = scan(bf.iterator(tid));
+        assertEquals(0, bp.getPrefetchedPages());
+
+        bp.setReadAheadWindow(8);
+        ArrayList<Tuple> actual = scan(bf.iterator(tid));
+        assertSameTuples(expected, actual);
+        assertTrue(bp.getPrefetchedPages() > 0);
+        assertTrue(bp.getPrefetchHits() > 0);
+    }
+
+    @Test public void unusedPagesCountAsWaste() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 40000, null, null);
+        bp.setReadAheadWindow(8);
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        Thread.sleep(WAIT_MS);
+        it.close();
+        long prefetched = bp.getPrefetchedPages();
+        assertEquals(8, prefetched);
+
+        for (int i = 1; i <= 8; i++)
+            bp.discardPage(new HeapPageId(hf.getId(), i));
+        assertEquals(prefetched, bp.getPrefetchWaste());
+        assertEquals(0, bp.getPrefetchHits());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadAheadTest.class);
+    }
+}
@@ -0,0 +1,189 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+public class ReplacementPolicyTest {
+
+    private static final int TABLE_ID = 1;
+
+    /**
+     * Drives a policy the same way BufferPool.getPage does and records, for
+     * every access in the trace, whether it was a hit.
+     */
+    private static boolean[] simulate(ReplacementPolicy policy, int frames, int[] trace) {
+        HashSet<PageId> cached = new HashSet<PageId>();
+        boolean[] hits = new boolean[trace.length];
+        for (int i = 0; i < trace.length; i++) {
+            PageId pid = new HeapPageId(TABLE_ID, trace[i]);
+            if (cached.contains(pid)) {
+                hits[i] = true;
+                policy.pageAccessed(pid);
+                continue;
+            }
+            if (cached.size() >= frames) {
+                PageId victim = policy.chooseVictim(ReplacementPolicy.ANY_PAGE);
+                assertTrue(cached.remove(victim));
+                policy.pageRemoved(victim);
+            }
+            cached.add(pid);
+            policy.pageAdded(pid);
+        }
+        return hits;
+    }
+
+    /**
+     * The replacement scheme BufferPool used before policies were pluggable:
+     * every access ages all cached pages by one and the oldest page is evicted.
+     */
+    private static boolean[] simulateAgingSweep(int frames, int[] trace) {
+        HashMap<PageId, Integer> recent = new HashMap<PageId, Integer>();
+        boolean[] hits = new boolean[trace.length];
+        for (int i = 0; i < trace.length; i++) {
+            PageId pid = new HeapPageId(TABLE_ID, trace[i]);
+            if (recent.containsKey(pid)) {
+                hits[i] = true;
+            } else if (recent.size() >= frames) {
+                PageId lru = null;
+                int oldest = -1;
+                for (PageId p : recent.keySet()) {
+                    if (recent.get(p) > oldest) {
+                        oldest = recent.get(p);
+                        lru = p;
+                    }
+                }
+                recent.remove(lru);
+            }
+            for (PageId p : recent.keySet()) {
+                recent.put(p, recent.get(p) + 1);
+            }
+            recent.put(pid, 0);
+        }
+        return hits;
+    }
+
+    private static int[] randomTrace(long seed, int length, int numPages) {
+        Random r = new Random(seed);
+        int[] trace = new int[length];
+        for (int i = 0; i < length; i++) {
+            // skew accesses towards low page numbers so there is locality
+            trace[i] = r.nextBoolean() ? r.nextInt(numPages / 4 + 1) : r.nextInt(numPages);
+        }
+        return trace;
+    }
+
+    private static int count(boolean[] hits) {
+        int n = 0;
+        for (boolean h : hits)
+            if (h) n++;
+        return n;
+    }
+
+    /**
+     * LRU must produce exactly the same hit/miss sequence as the old
+     * aging-sweep implementation.
+     */
+    @Test public void lruMatchesAgingSweep() {
+        int[] frameCounts = new int[] { 1, 2, 7, 16, 50 };
+        for (int frames : frameCounts) {
+            for (long seed = 0; seed < 5; seed++) {
+                int[] trace = randomTrace(seed, 5000, frames * 3);
+                boolean[] expected = simulateAgingSweep(frames, trace);
+                boolean[] actual = simulate(new LruReplacementPolicy(), frames, trace);
+                for (int i = 0; i < trace.length; i++) {
+                    assertEquals("frames=" + frames + " seed=" + seed + " access " + i,
+                            expected[i], actual[i]);
+                }
+            }
+        }
+    }
+
+    @Test public void lruEvictsLeastRecentlyUsed() {
+        ReplacementPolicy lru = new LruReplacementPolicy();
+        for (int i = 0; i < 4; i++)
+            lru.pageAdded(new HeapPageId(TABLE_ID, i));
+        lru.pageAccessed(new HeapPageId(TABLE_ID, 0));
+        assertEquals(new HeapPageId(TABLE_ID, 1), lru.chooseVictim(ReplacementPolicy.ANY_PAGE));
+        lru.pageRemoved(new HeapPageId(TABLE_ID, 1));
+        assertEquals(new HeapPageId(TABLE_ID, 2), lru.chooseVictim(ReplacementPolicy.ANY_PAGE));
+    }
+
+    @Test public void clockGivesSecondChance() {
+        ReplacementPolicy clock = new ClockReplacementPolicy();
+        for (int i = 0; i < 3; i++)
+            clock.pageAdded(new HeapPageId(TABLE_ID, i));
+        clock.pageAccessed(new HeapPageId(TABLE_ID, 0));
+        // page 0 is referenced, so the hand skips it and clears its bit
+        assertEquals(new HeapPageId(TABLE_ID, 1), clock.chooseVictim(ReplacementPolicy.ANY_PAGE));
+        clock.pageRemoved(new HeapPageId(TABLE_ID, 1));
+        assertEquals(new HeapPageId(TABLE_ID, 2), clock.chooseVictim(ReplacementPolicy.ANY_PAGE));
+        clock.pageRemoved(new HeapPageId(TABLE_ID, 2));
+        assertEquals(new HeapPageId(TABLE_ID, 0), clock.chooseVictim(ReplacementPolicy.ANY_PAGE));
+        clock.pageRemoved(new HeapPageId(TABLE_ID, 0));
+        assertEquals(null, clock.chooseVictim(ReplacementPolicy.ANY_PAGE));
+    }
+
+    @Test public void everyPolicyRespectsCapacity() {
+        int frames = 10;
+        int[] trace = randomTrace(42, 2000, 40);
+        ArrayList<ReplacementPolicy> policies = new ArrayList<ReplacementPolicy>();
+        policies.add(new LruReplacementPolicy());
+        policies.add(new ClockReplacementPolicy());
+        policies.add(new TwoQueueReplacementPolicy(frames));
+        for (ReplacementPolicy p : policies) {
+            // simulate() asserts that each victim is actually cached
+            boolean[] hits = simulate(p, frames, trace);
+            assertTrue(count(hits) > 0);
+        }
+    }
+
+    /**
+     * Once a working set has proven itself hot, a one-pass scan over many
+     * pages must not push it out of a 2Q-managed pool, while it does under LRU.
+     */
+    @Test public void twoQueueIsScanResistant() {
+        int frames = 20;
+        int hot = 10;
+        ArrayList<Integer> trace = new ArrayList<Integer>();
+        // first touch of the hot set, then enough other pages to push it out
+        // of A1in; the second touch promotes it to Am
+        for (int i = 0; i < hot; i++)
+            trace.add(i);
+        for (int i = 0; i < frames; i++)
+            trace.add(100 + i);
+        for (int i = 0; i < hot; i++)
+            trace.add(i);
+        // a long scan, followed by the hot set once more
+        for (int i = 0; i < 200; i++)
+            trace.add(1000 + i);
+        for (int i = 0; i < hot; i++)
+            trace.add(i);
+        int[] t = new int[trace.size()];
+        for (int i = 0; i < t.length; i++)
+            t[i] = trace.get(i);
+
+        boolean[] twoQ = simulate(new TwoQueueReplacementPolicy(frames / 4, 2 * frames), frames, t);
+        boolean[] lru = simulate(new LruReplacementPolicy(), frames, t);
+        for (int i = t.length - hot; i < t.length; i++) {
+            assertTrue(twoQ[i]);
+            assertFalse(lru[i]);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
@@ -0,0 +1,175 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+    private static final Predicate.Op[] OPS = { Predicate.Op.EQUALS,
+            Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ,
+            Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ };
+
+    private HeapFile left;
+    private HeapFile right;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        // few distinct keys, so that there are runs of duplicates
+        left = SystemTestUtil.createRandomHeapFile(2, 300, 50,
+                new HashMap<Integer, Integer>(), null);
+        right = SystemTestUtil.createRandomHeapFile(2, 200, 50,
+                new HashMap<Integer, Integer>(), null);
+        tid = new TransactionId();
+    }
+
+    /** A B+ tree of random rows keyed on their first field, named c0, c1 */
+    private static BTreeFile btree(int rows, int maxValue) throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, rows, maxValue,
+                new HashMap<Integer, Integer>(), null, 0);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        return new BTreeFile(bf.getFile(), 0, Utility.getTupleDesc(2, "c"));
+    }
+
+    private static ArrayList<String> rows(DbIterator it) throws Exception {
+        ArrayList<String> rows = new ArrayList<String>();
+        while (it.hasNext())
+            rows.add(it.next().toString());
+        return rows;
+    }
+
+    private static ArrayList<String> sortedRows(DbIterator it) throws Exception {
+        it.open();
+        ArrayList<String> rows = rows(it);
+        it.close();
+        Collections.sort(rows);
+        return rows;
+    }
+
+    private SeqScan scan(DbFile f) {
+        return new SeqScan(tid, f.getId(), "");
+    }
+
+    @Test public void matchesNestedLoopJoin() throws Exception {
+        for (Predicate.Op op : OPS) {
+            JoinPredicate p = new JoinPredicate(0, op, 0);
+            ArrayList<String> expected = sortedRows(new Join(p, scan(left),
+                    scan(right)));
+            assertTrue(op.toString(), expected.size() > 0);
+            assertEquals(op.toString(), expected, sortedRows(new SortMergeJoin(
+                    p, scan(left), scan(right))));
+        }
+    }
+
+    @Test public void outputIsInOrderOfTheJoinField() throws Exception {
+        for (Predicate.Op op : OPS) {
+            SortMergeJoin j = new SortMergeJoin(new JoinPredicate(1, op, 1),
+                    scan(left), scan(right));
+            assertTrue(SortMergeJoin.isSortedOn(j, 1));
+            assertEquals(op == Predicate.Op.EQUALS, SortMergeJoin.isSortedOn(j, 3));
+            j.open();
+            Field prev = null;
+            while (j.hasNext()) {
+                Field f = j.next().getField(1);
+                assertTrue(prev == null
+                        || f.compare(Predicate.Op.GREATER_THAN_OR_EQ, prev));
+                prev = f;
+            }
+            j.close();
+        }
+    }
+
+    @Test public void sortedInputsAreNotSortedAgain() throws Exception {
+        BTreeFile bf = btree(2000, 500);
+        Database.getCatalog().addTable(bf, "bt");
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+
+        SortMergeJoin j = new SortMergeJoin(p, scan(bf), new OrderBy(0, true,
+                scan(right)));
+        assertFalse(j.sortsChild1());
+        assertFalse(j.sortsChild2());
+        assertEquals(sortedRows(new Join(p, scan(bf), scan(right))),
+                sortedRows(j));
+
+        // a filter keeps the order; the second field is not the key
+        j = new SortMergeJoin(new JoinPredicate(0, Predicate.Op.LESS_THAN, 1),
+                new Filter(new Predicate(1, Predicate.Op.GREATER_THAN,
+                        new IntField(100)), new BTreeScan(tid, bf.getId(),
+                        "", null)), scan(bf));
+        assertFalse(j.sortsChild1());
+        assertTrue(j.sortsChild2());
+        assertTrue(sortedRows(j).size() > 0);
+
+        // nor is a descending order
+        j = new SortMergeJoin(p, scan(left), new OrderBy(0, false, scan(right)));
+        assertTrue(j.sortsChild1());
+        assertTrue(j.sortsChild2());
+    }
+
+    @Test public void rewind() throws Exception {
+        for (Predicate.Op op : new Predicate.Op[] { Predicate.Op.EQUALS,
+                Predicate.Op.GREATER_THAN }) {
+            SortMergeJoin j = new SortMergeJoin(new JoinPredicate(0, op, 0),
+                    scan(left), scan(right));
+            j.open();
+            ArrayList<String> first = rows(j);
+            j.rewind();
+            assertEquals(first, rows(j));
+            j.close();
+            j.open();
+            assertEquals(first, rows(j));
+            j.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void notEqualsIsRejected() {
+        new SortMergeJoin(new JoinPredicate(0, Predicate.Op.NOT_EQUALS, 0),
+                scan(left), scan(right));
+    }
+
+    /**
+     * The optimizer knows that scans of B+ trees come in key order, and merges
+     * two of them on their keys rather than hashing one
+     */
+    @Test public void optimizerMergesClusteredScans() throws Exception {
+        BTreeFile a = btree(20000, 100000);
+        BTreeFile b = btree(30000, 100000);
+        Database.getCatalog().addTable(a, "ba");
+        Database.getCatalog().addTable(b, "bb");
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("ba", new TableStats(a.getId(), 10));
+        stats.put("bb", new TableStats(b.getId(), 10));
+
+        Parser parser = new Parser();
+        LogicalPlan lp = parser.generateLogicalPlan(tid,
+                "SELECT * FROM ba x, bb y WHERE x.c0 = y.c0;");
+        DbIterator plan = lp.physicalPlan(tid, stats, false);
+        while (plan instanceof Operator && !(plan instanceof SortMergeJoin))
+            plan = ((Operator) plan).getChildren()[0];
+        assertTrue(plan instanceof SortMergeJoin);
+        assertFalse(((SortMergeJoin) plan).sortsChild1());
+        assertFalse(((SortMergeJoin) plan).sortsChild2());
+
+        // not on a field out of order, though
+        lp = parser.generateLogicalPlan(tid,
+                "SELECT * FROM ba x, bb y WHERE x.c1 = y.c1;");
+        plan = lp.physicalPlan(tid, stats, false);
+        while (plan instanceof Operator && !(plan instanceof HashEquiJoin))
+            plan = ((Operator) plan).getChildren()[0];
+        assertTrue(plan instanceof HashEquiJoin);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SortMergeJoinTest.class);
+    }
+}
@@ -0,0 +1,164 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class SortedAggregateTest extends SimpleDbTestBase {
+    private static final Aggregator.Op[] OPS = { Aggregator.Op.MIN,
+            Aggregator.Op.MAX, Aggregator.Op.SUM, Aggregator.Op.AVG,
+            Aggregator.Op.COUNT };
+    private static final int[] AFIELDS = { 2, 2, 1, 2, 1 };
+
+    private HeapFile table;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        // few distinct values in each field, so that groups are large
+        table = SystemTestUtil.createRandomHeapFile(3, 5000, 30,
+                new HashMap<Integer, Integer>(), null, "c");
+        tid = new TransactionId();
+    }
+
+    /** A B+ tree of random rows keyed on their first field, named c0, c1 */
+    private static BTreeFile btree(int rows, int maxValue) throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, rows, maxValue,
+                new HashMap<Integer, Integer>(), null, 0);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        return new BTreeFile(bf.getFile(), 0, Utility.getTupleDesc(2, "c"));
+    }
+
+    private static ArrayList<String> rows(DbIterator it) throws Exception {
+        ArrayList<String> rows = new ArrayList<String>();
+        while (it.hasNext())
+            rows.add(it.next().toString());
+        return rows;
+    }
+
+    private static ArrayList<String> sortedRows(DbIterator it) throws Exception {
+        it.open();
+        ArrayList<String> rows = rows(it);
+        it.close();
+        Collections.sort(rows);
+        return rows;
+    }
+
+    private SeqScan scan() {
+        return new SeqScan(tid, table.getId(), "t");
+    }
+
+    @Test public void matchesHashAggregate() throws Exception {
+        for (int[] gfields : new int[][] { {}, { 0 }, { 1, 0 } }) {
+            ArrayList<String> expected = sortedRows(new Aggregate(scan(),
+                    AFIELDS, OPS, gfields));
+            OrderBy sorted = new OrderBy(new int[] { 0, 1 }, new boolean[] {
+                    false, true }, scan());
+            SortedAggregate a = new SortedAggregate(sorted, AFIELDS, OPS, gfields);
+            assertEquals(new Aggregate(scan(), AFIELDS, OPS, gfields)
+                    .getTupleDesc(), a.getTupleDesc());
+            assertEquals(expected, sortedRows(a));
+
+            a.open();
+            ArrayList<String> first = rows(a);
+            a.rewind();
+            assertEquals(first, rows(a));
+            a.close();
+        }
+    }
+
+    /** The distinct values of the group being read are held in memory */
+    @Test public void countDistinctDoesNotSpill() throws Exception {
+        final int files = TupleSpillFile.liveFiles();
+        OrderBy sorted = new OrderBy(0, true, scan()) {
+            private static final long serialVersionUID = 1L;
+
+            public Tuple next() throws DbException,
+                    TransactionAbortedException {
+                assertEquals(files, TupleSpillFile.liveFiles());
+                return super.next();
+            }
+        };
+        int[] afields = { 1, 1 };
+        Aggregator.Op[] ops = { Aggregator.Op.COUNT_DISTINCT,
+                Aggregator.Op.COUNT };
+        ArrayList<String> expected = sortedRows(new Aggregate(scan(), afields,
+                ops, new int[] { 0 }));
+        assertEquals(expected, sortedRows(new SortedAggregate(sorted, afields,
+                ops, new int[] { 0 })));
+    }
+
+    /** Each group is returned as soon as the next one starts */
+    @Test public void streams() throws Exception {
+        OrderBy sorted = new OrderBy(0, true, scan());
+        SortedAggregate a = new SortedAggregate(sorted, new int[] { 1 },
+                new Aggregator.Op[] { Aggregator.Op.COUNT }, new int[] { 0 });
+        a.open();
+        assertTrue(a.hasNext());
+        int previous = Integer.MIN_VALUE;
+        int total = 0;
+        while (a.hasNext()) {
+            Tuple t = a.next();
+            int key = ((IntField) t.getField(0)).getValue();
+            assertTrue(key > previous);
+            previous = key;
+            total += ((IntField) t.getField(1)).getValue();
+        }
+        a.close();
+        assertEquals(5000, total);
+    }
+
+    @Test public void groupedOn() throws Exception {
+        OrderBy o = new OrderBy(new int[] { 1, 0, 2 }, new boolean[] { true,
+                false, true }, scan());
+        assertTrue(SortedAggregate.isGroupedOn(o, new int[] { 1 }));
+        assertTrue(SortedAggregate.isGroupedOn(o, new int[] { 0, 1 }));
+        assertFalse(SortedAggregate.isGroupedOn(o, new int[] { 0 }));
+        assertFalse(SortedAggregate.isGroupedOn(o, new int[] { 1, 2 }));
+        assertFalse(SortedAggregate.isGroupedOn(o, new int[] {}));
+        assertFalse(SortedAggregate.isGroupedOn(scan(), new int[] { 0 }));
+        Filter f = new Filter(new Predicate(2, Predicate.Op.GREATER_THAN,
+                new IntField(3)), o);
+        assertTrue(SortedAggregate.isGroupedOn(f, new int[] { 1 }));
+    }
+
+    /** The planner aggregates a B+ tree grouped on its key as it scans it */
+    @Test public void chosenForClusteredScans() throws Exception {
+        BTreeFile bf = btree(20000, 500);
+        Database.getCatalog().addTable(bf, "bt");
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("bt", new TableStats(bf.getId(), 10));
+        ArrayList<String> expected = sortedRows(new Aggregate(new SeqScan(tid,
+                bf.getId(), "x"), new int[] { 1, 1 }, new Aggregator.Op[] {
+                Aggregator.Op.SUM, Aggregator.Op.COUNT }, new int[] { 0 }));
+
+        Parser parser = new Parser();
+        DbIterator plan = parser.generateLogicalPlan(tid,
+                "SELECT x.c0, SUM(x.c1), COUNT(x.c1) FROM bt x GROUP BY x.c0;")
+                .physicalPlan(tid, stats, false);
+        DbIterator agg = ((Operator) plan).getChildren()[0];
+        assertTrue(agg instanceof SortedAggregate);
+        assertEquals(expected, sortedRows(plan));
+
+        // but not grouped on another field
+        plan = parser.generateLogicalPlan(tid,
+                "SELECT x.c1, COUNT(x.c0) FROM bt x GROUP BY x.c1;")
+                .physicalPlan(tid, stats, false);
+        agg = ((Operator) plan).getChildren()[0];
+        assertTrue(agg instanceof Aggregate);
+        assertFalse(agg instanceof SortedAggregate);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SortedAggregateTest.class);
+    }
+}
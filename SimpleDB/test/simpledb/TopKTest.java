@@ -0,0 +1,143 @@
+package simpledb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class TopKTest extends SimpleDbTestBase {
+    private HeapFile table;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        // many duplicates in the first two fields; the third tells the
+        // tuples apart
+        table = SystemTestUtil.createRandomHeapFile(3, 20000, 50,
+                new HashMap<Integer, Integer>(), null, "c");
+        tid = new TransactionId();
+    }
+
+    private SeqScan scan() {
+        return new SeqScan(tid, table.getId(), "t");
+    }
+
+    private static ArrayList<String> rows(DbIterator it) throws Exception {
+        ArrayList<String> rows = new ArrayList<String>();
+        while (it.hasNext())
+            rows.add(it.next().toString());
+        return rows;
+    }
+
+    /** The first k rows of the table sorted by c0 asc, c1 desc */
+    private ArrayList<String> expected(int k) throws Exception {
+        OrderBy o = new OrderBy(new int[] { 0, 1 }, new boolean[] { true,
+                false }, scan());
+        o.open();
+        ArrayList<String> rows = rows(o);
+        o.close();
+        return new ArrayList<String>(rows.subList(0, Math.min(k, rows.size())));
+    }
+
+    @Test public void matchesOrderBy() throws Exception {
+        for (int k : new int[] { 0, 1, 10, 1000, 20000, 25000 }) {
+            TopK t = new TopK(new int[] { 0, 1 }, new boolean[] { true, false },
+                    k, scan());
+            t.open();
+            // the sort is stable, so even the third field agrees
+            assertEquals("k = " + k, expected(k), rows(t));
+            t.rewind();
+            assertEquals("k = " + k, expected(k), rows(t));
+            t.close();
+        }
+    }
+
+    @Test public void limit() throws Exception {
+        SeqScan s = scan();
+        s.open();
+        ArrayList<String> all = rows(s);
+        s.close();
+        for (int k : new int[] { 0, 7, 20000, 25000 }) {
+            Limit l = new Limit(k, scan());
+            l.open();
+            ArrayList<String> first = rows(l);
+            assertEquals(all.subList(0, Math.min(k, all.size())), first);
+            l.rewind();
+            assertEquals(first, rows(l));
+            l.close();
+        }
+    }
+
+    private DbIterator plan(String sql) throws Exception {
+        Database.getCatalog().addTable(table, "ranked");
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("ranked", new TableStats(table.getId(), 10));
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid, sql);
+        return lp.physicalPlan(tid, stats, false);
+    }
+
+    private static boolean contains(DbIterator plan, Class<?> c) {
+        if (c.isInstance(plan))
+            return true;
+        if (plan instanceof Operator)
+            for (DbIterator child : ((Operator) plan).getChildren())
+                if (contains(child, c))
+                    return true;
+        return false;
+    }
+
+    @Test public void parsedOrderByLimit() throws Exception {
+        DbIterator plan = plan(
+                "SELECT * FROM ranked t ORDER BY t.c0, t.c1 DESC LIMIT 10;");
+        assertTrue(contains(plan, TopK.class));
+        assertFalse(contains(plan, OrderBy.class));
+        plan.open();
+        assertEquals(expected(10), rows(plan));
+        plan.close();
+    }
+
+    /** Each statement of a query file keeps its own LIMIT. */
+    @Test public void limitPerStatementOfAStream() throws Exception {
+        Database.getCatalog().addTable(table, "ranked");
+        TableStats.setTableStats("ranked", new TableStats(table.getId(), 10));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(out, true));
+        try {
+            new Parser().processNextStatement(new ByteArrayInputStream((
+                    "SELECT * FROM ranked t LIMIT 3;\n"
+                    + "SELECT * FROM ranked t ORDER BY t.c0 LIMIT 2;\n"
+                    + "SELECT * FROM ranked t WHERE t.c0 < 0;\n").getBytes()));
+        } finally {
+            System.setOut(stdout);
+        }
+        String printed = out.toString();
+        int three = printed.indexOf(" 3 rows.");
+        int two = printed.indexOf(" 2 rows.");
+        int none = printed.indexOf(" 0 rows.");
+        assertTrue(printed, three >= 0 && three < two && two < none);
+        assertFalse(printed, printed.contains("Invalid SQL"));
+    }
+
+    @Test public void parsedLimitWithoutOrderBy() throws Exception {
+        DbIterator plan = plan("SELECT * FROM ranked t limit 5");
+        assertTrue(contains(plan, Limit.class));
+        plan.open();
+        assertEquals(5, rows(plan).size());
+        plan.close();
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TopKTest.class);
+    }
+}
@@ -0,0 +1,179 @@
+package simpledb.systemtest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import simpledb.*;
+
+/**
+ * Checks that operators read a batch at a time with nextBatch() produce the
+ * same rows as when read a row at a time, and reports how much faster a
+ * scan-filter-aggregate runs on batches.
+ */
+public class BatchExecutionTest extends SimpleDbTestBase {
+    private static final int ROWS = 30000;
+
+    private HeapFile table;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        table = SystemTestUtil.createRandomHeapFile(3, ROWS, 1000,
+                new HashMap<Integer, Integer>(), null);
+        Database.getCatalog().addTable(table, "t");
+        tid = new TransactionId();
+    }
+
+    private static ArrayList<String> rows(DbIterator it) throws Exception {
+        ArrayList<String> rows = new ArrayList<String>();
+        it.open();
+        while (it.hasNext())
+            rows.add(it.next().toString());
+        it.close();
+        return rows;
+    }
+
+    private static ArrayList<String> batchRows(DbIterator it) throws Exception {
+        ArrayList<String> rows = new ArrayList<String>();
+        it.open();
+        TupleBatch batch;
+        while ((batch = it.nextBatch()) != null) {
+            assertTrue(batch.size() > 0);
+            for (Iterator<Tuple> i = batch.iterator(); i.hasNext(); )
+                rows.add(i.next().toString());
+        }
+        it.close();
+        return rows;
+    }
+
+    private DbIterator scanFilterProject() {
+        SeqScan ss = new SeqScan(tid, table.getId(), "t");
+        Filter f = new Filter(new Predicate(1, Predicate.Op.GREATER_THAN_OR_EQ,
+                new IntField(300)), ss);
+        ArrayList<Integer> fields = new ArrayList<Integer>();
+        fields.add(2);
+        fields.add(1);
+        return new Project(fields, new Type[] { Type.INT_TYPE, Type.INT_TYPE }, f);
+    }
+
+    @Test public void scanFilterProjectMatchesRows() throws Exception {
+        ArrayList<String> expected = rows(scanFilterProject());
+        ArrayList<String> actual = batchRows(scanFilterProject());
+        assertTrue(expected.size() > 0);
+        assertEquals(expected, actual);
+    }
+
+    @Test public void hashJoinMatchesRows() throws Exception {
+        HeapFile small = SystemTestUtil.createRandomHeapFile(2, 500, 1000,
+                new HashMap<Integer, Integer>(), null);
+        Database.getCatalog().addTable(small, "s");
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        ArrayList<String> expected = rows(new HashEquiJoin(p,
+                new SeqScan(tid, small.getId(), "s"), new SeqScan(tid, table.getId(), "t")));
+        ArrayList<String> actual = batchRows(new HashEquiJoin(p,
+                new SeqScan(tid, small.getId(), "s"), new SeqScan(tid, table.getId(), "t")));
+        assertTrue(expected.size() > 0);
+        Collections.sort(expected);
+        Collections.sort(actual);
+        assertEquals(expected, actual);
+    }
+
+    @Test public void aggregateMatchesRows() throws Exception {
+        for (Aggregator.Op op : new Aggregator.Op[] { Aggregator.Op.MIN,
+                Aggregator.Op.MAX, Aggregator.Op.SUM, Aggregator.Op.AVG,
+                Aggregator.Op.COUNT }) {
+            for (int gfield : new int[] { Aggregator.NO_GROUPING, 0 }) {
+                DbIterator rows = scanFilterProject();
+                Aggregator agg = new IntegerAggregator(gfield,
+                        gfield == Aggregator.NO_GROUPING ? null : Type.INT_TYPE, 1, op);
+                rows.open();
+                while (rows.hasNext())
+                    agg.mergeTupleIntoGroup(rows.next());
+                rows.close();
+                ArrayList<String> expected = rows(agg.iterator());
+
+                ArrayList<String> actual = rows(new Aggregate(scanFilterProject(), 1, gfield, op));
+                Collections.sort(expected);
+                Collections.sort(actual);
+                assertEquals(op + " " + gfield, expected, actual);
+            }
+        }
+    }
+
+    @Test public void stringPredicate() throws Exception {
+        TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+        TupleBatch batch = new TupleBatch(td, 8);
+        String[] names = { "apple", "banana", "cherry", "date", "fig" };
+        for (int i = 0; i < names.length; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(i));
+            t.setField(1, new StringField(names[i], Type.STRING_LEN));
+            batch.addTuple(t);
+        }
+        assertEquals(3, new Predicate(1, Predicate.Op.GREATER_THAN,
+                new StringField("banana", Type.STRING_LEN)).filter(batch));
+        assertEquals(2, new Predicate(1, Predicate.Op.LIKE,
+                new StringField("e", Type.STRING_LEN)).filter(batch));
+        assertEquals("cherry", batch.getString(1, batch.row(0)));
+        assertEquals(3, ((IntField) batch.getTuple(1).getField(0)).getValue());
+
+        TupleBatch names2 = batch.project(new TupleDesc(new Type[] { Type.STRING_TYPE }),
+                new int[] { 1 });
+        assertEquals(2, names2.size());
+        assertEquals("date", names2.getString(0, names2.row(1)));
+    }
+
+    /** Sums a column of the filtered rows a row at a time, as before batches. */
+    private long rowSum() throws Exception {
+        Filter f = new Filter(new Predicate(1, Predicate.Op.GREATER_THAN_OR_EQ,
+                new IntField(300)), new SeqScan(tid, table.getId(), "t"));
+        Aggregator agg = new IntegerAggregator(Aggregator.NO_GROUPING, null, 0,
+                Aggregator.Op.SUM);
+        f.open();
+        while (f.hasNext())
+            agg.mergeTupleIntoGroup(f.next());
+        f.close();
+        DbIterator it = agg.iterator();
+        it.open();
+        return ((IntField) it.next().getField(0)).getValue();
+    }
+
+    private long batchSum() throws Exception {
+        Filter f = new Filter(new Predicate(1, Predicate.Op.GREATER_THAN_OR_EQ,
+                new IntField(300)), new SeqScan(tid, table.getId(), "t"));
+        Aggregate agg = new Aggregate(f, 0, Aggregator.NO_GROUPING, Aggregator.Op.SUM);
+        agg.open();
+        long sum = ((IntField) agg.next().getField(0)).getValue();
+        agg.close();
+        return sum;
+    }
+
+    @Test public void scanFilterAggregateTiming() throws Exception {
+        // the table is cached after the first scan, so both runs measure
+        // execution rather than I/O
+        long expected = rowSum();
+        assertEquals(expected, batchSum());
+        long rowTime = Long.MAX_VALUE, batchTime = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            long start = System.nanoTime();
+            rowSum();
+            rowTime = Math.min(rowTime, System.nanoTime() - start);
+            start = System.nanoTime();
+            batchSum();
+            batchTime = Math.min(batchTime, System.nanoTime() - start);
+        }
+        System.out.println("BatchExecutionTest: scan-filter-sum of " + ROWS + " rows took "
+                + rowTime / 1000 + " us a row at a time, " + batchTime / 1000
+                + " us a batch at a time");
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BatchExecutionTest.class);
+    }
+}
@@ -0,0 +1,100 @@
+package simpledb.systemtest;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import simpledb.*;
+
+/**
+ * Runs a selective filtered scan over a wide table with lazy and with eager
+ * tuple decoding, and compares the bytes allocated by the scanning thread.
+ * Lazy decoding only decodes the filtered column of the rejected tuples;
+ * what both modes still allocate is the page buffers and, per tuple, the
+ * Tuple, its RecordId and its Field array.
+ */
+public class LazyDecodingTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 10;
+    private static final int ROWS = 20000;
+
+    /**
+     * @return the bytes allocated by the current thread so far, or -1 if the
+     *         JVM cannot tell
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+            return -1;
+        com.sun.management.ThreadMXBean b = (com.sun.management.ThreadMXBean) bean;
+        if (!b.isThreadAllocatedMemorySupported() || !b.isThreadAllocatedMemoryEnabled())
+            return -1;
+        return b.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Scans table through a Filter that keeps about 1% of the rows, reading
+     * every page from disk.
+     *
+     * @return the bytes allocated by the scan
+     */
+    private long filteredScan(HeapFile table, boolean lazy, int expected) throws Exception {
+        HeapPage.setLazyDecoding(lazy);
+        // pages read ahead would be decoded on another thread
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES).setReadAheadWindow(0);
+        TransactionId tid = new TransactionId();
+        long before = allocatedBytes();
+        SeqScan ss = new SeqScan(tid, table.getId(), "");
+        Filter filter = new Filter(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(10)), ss);
+        filter.open();
+        int count = 0;
+        while (filter.hasNext()) {
+            filter.next();
+            count++;
+        }
+        filter.close();
+        long after = allocatedBytes();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(expected, count);
+        return after - before;
+    }
+
+    @Test public void filteredScanAllocatesLess() throws Exception {
+        HashMap<Integer, Integer> columnSpecification = new HashMap<Integer, Integer>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, ROWS, 1000,
+                columnSpecification, null);
+        int expected = 0;
+        DbFileIterator it = table.iterator(new TransactionId());
+        it.open();
+        while (it.hasNext())
+            if (((IntField) it.next().getField(0)).getValue() < 10)
+                expected++;
+        it.close();
+
+        boolean lazy = HeapPage.isLazyDecoding();
+        try {
+            // warm up, then keep the smallest of a few runs of each mode
+            filteredScan(table, false, expected);
+            filteredScan(table, true, expected);
+            long eager = Long.MAX_VALUE, lazyBytes = Long.MAX_VALUE;
+            for (int i = 0; i < 3; i++) {
+                eager = Math.min(eager, filteredScan(table, false, expected));
+                lazyBytes = Math.min(lazyBytes, filteredScan(table, true, expected));
+            }
+            if (eager < 0)
+                return;
+            System.out.println("LazyDecodingTest: filtered scan of " + ROWS + " rows allocated "
+                    + (eager >> 10) + " KB eager, " + (lazyBytes >> 10) + " KB lazy");
+            assertTrue(lazyBytes * 4 < eager * 3);
+        } finally {
+            HeapPage.setLazyDecoding(lazy);
+        }
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(LazyDecodingTest.class);
+    }
+}